@@ -0,0 +1,121 @@
+#pragma once
+
+#include "R5MpegMain.h"
+
+/*
+ * Plain C entry points for binding with the foreign function and memory api (JDK 22+), as an alternative to the JNI
+ * functions in TSHandler.cpp. Data is passed as addresses and nothing calls back into java; demuxed frames are left in
+ * a result arena owned by the handler, which the caller reads in place until its next call.
+ */
+extern "C" {
+
+/**
+ * Create a handler for muxing and demuxing without a java receiver.
+ *
+ * @param pmtPid 0 for the default
+ * @param audioPid 0 if there is no audio
+ * @param videoPid 0 if there is no video
+ * @param audioStreamType 0 for aac
+ * @param videoStreamType 0 for h264
+ * @return handler id or -1 if it couldn't be created
+ */
+JNIEXPORT int64_t r5mpeg_create(int16_t pmtPid, int16_t audioPid, int16_t videoPid, uint8_t audioStreamType, uint8_t videoStreamType) {
+    jlong id = maininator.create_handler();
+    TSHandler *handler = mpeg_ctx.getHandler(id);
+    if (id == -1 || handler == 0) {
+        return -1;
+    }
+    // new rather than malloc, so the defaults are set
+    config_t *config = new config_t();
+    if (pmtPid > 0) {
+        config->pmtPid = (uint16_t) pmtPid;
+    }
+    config->audioPid = (uint16_t) audioPid;
+    config->videoPid = (uint16_t) videoPid;
+    if (audioStreamType > 0) {
+        config->audioStreamType = audioStreamType;
+    }
+    if (videoStreamType > 0) {
+        config->videoStreamType = videoStreamType;
+    }
+    handler->config = config;
+    if (!maininator.init(handler)) {
+        std::cerr << "Initialize failed" << std::endl;
+        maininator.destroy(id);
+        return -1;
+    }
+    // frames go to the result arena instead of the receiver
+    handler->demuxer->esOutCallback = std::bind(&TSHandler::onDemuxedRecord, handler, std::placeholders::_1);
+    return id;
+}
+
+/**
+ * Demux MPEG-TS data. The frames completed by it are left in the handlers result arena as frame records, each followed by
+ * its data padded to 8 bytes; the arena is valid until the next call on the handler.
+ *
+ * @param id handler id
+ * @param data
+ * @param length
+ * @param results receives the address of the result arena
+ * @return bytes of frame records in the arena or -1 if there is no such handler
+ */
+JNIEXPORT int32_t r5mpeg_demux(int64_t id, const uint8_t *data, int32_t length, uint8_t **results) {
+    TSHandler *handler = mpeg_ctx.getHandler(id);
+    if (handler == 0) {
+        return -1;
+    }
+    // the arena and input keep their capacity from call to call
+    handler->results.clear();
+    SimpleBuffer &in = handler->demuxInput;
+    in.clear();
+    in.append(data, length);
+    handler->demuxer->decode(in);
+    *results = handler->results.data();
+    return (int32_t) handler->results.size();
+}
+
+/**
+ * Mux a frame, writing its TS packets to the output.
+ *
+ * @param id handler id
+ * @param data
+ * @param length
+ * @param pts presentation timestamp
+ * @param dts decode timestamp
+ * @param type stream type
+ * @param pid
+ * @param streamId ES stream id for the data
+ * @param randomAccess whether decoding can start at this frame
+ * @param out
+ * @param capacity bytes available at the output
+ * @return bytes written or -1 if the output may be too small
+ */
+JNIEXPORT int32_t r5mpeg_mux(int64_t id, const uint8_t *data, int32_t length, int64_t pts, int64_t dts, uint8_t type, int16_t pid, uint8_t streamId, uint8_t randomAccess, uint8_t *out, int32_t capacity) {
+    TSHandler *handler = mpeg_ctx.getHandler(id);
+    if (handler == 0 || length < 0 || MpegTsMuxer::maxEncodedSize((uint32_t) length) > (uint32_t) capacity) {
+        return -1;
+    }
+    return handler->muxer->encodeInto(data, (uint32_t) length, pts, dts, randomAccess, type, streamId, (uint16_t) pid, out);
+}
+
+/**
+ * Returns the bytes of native memory held by a handler, its reusable buffers and decoders.
+ *
+ * @param id handler id
+ * @return bytes or 0 if there is no such handler
+ */
+JNIEXPORT int64_t r5mpeg_native_memory(int64_t id) {
+    TSHandler *handler = mpeg_ctx.getHandler(id);
+    return handler != 0 ? (int64_t) handler->nativeMemory() : 0;
+}
+
+/**
+ * Destroy a handler.
+ *
+ * @param id handler id
+ */
+JNIEXPORT void r5mpeg_destroy(int64_t id) {
+    maininator.destroy(id);
+}
+
+}
@@ -5,45 +5,6 @@
 /* extern C used to prevent method mangling or other odd things from happening */
 extern "C" {
 
-// callback for decoded mpeg1 video
-void onVideo(plm_t *mpeg, plm_frame_t *frame, void *handler) {
-    TSHandler *self = (TSHandler *) handler;
-    // Hand the decoded data over to OpenGL. For the RGB texture mode, the
-    // YCrCb->RGB conversion is done on the CPU.
-    /*
-    // decoded data passed back via receiver
-    //self->recvData(decoded, decodedLength);
-
-    if (self->texture_mode == APP_TEXTURE_MODE_YCRCB) {
-        app_update_texture(self, GL_TEXTURE0, self->texture_y, &frame->y);
-        app_update_texture(self, GL_TEXTURE1, self->texture_cb, &frame->cb);
-        app_update_texture(self, GL_TEXTURE2, self->texture_cr, &frame->cr);
-    }
-    else {
-        plm_frame_to_rgb(frame, self->rgb_data, frame->width * 3);
-    
-        glBindTexture(GL_TEXTURE_2D, self->texture_rgb);
-        glTexImage2D(
-            GL_TEXTURE_2D, 0, GL_RGB, frame->width, frame->height, 0,
-            GL_RGB, GL_UNSIGNED_BYTE, self->rgb_data
-        );
-    }
-    */
-}
-
-// callback for mp2 audio
-void onAudio(plm_t *mpeg, plm_samples_t *samples, void *handler) {
-    TSHandler *self = (TSHandler *) handler;
-    /*
-    // decoded data passed back via receiver
-    //self->recvData(decoded, decodedLength);
-
-    // Hand the decoded samples over to SDL
-    int size = sizeof(float) * samples->count * 2;
-    SDL_QueueAudio(self->audio_device, samples->interleaved, size);
-    */
-}
-
 // ctor
 TSHandler::TSHandler() {
 }
@@ -54,69 +15,92 @@ bool TSHandler::init() {
     int pcrPid = 0;
     std::map<uint8_t, int> streamPidMap;
     if (config->videoPid > 0) {
-        streamPidMap[TYPE_VIDEO] = config->videoPid;
-        pcrPid = streamPidMap[TYPE_VIDEO];
+        streamPidMap[config->videoStreamType] = config->videoPid;
+        pcrPid = config->videoPid;
     }
     if (config->audioPid > 0) {
-        streamPidMap[TYPE_AUDIO] = config->audioPid;
+        streamPidMap[config->audioStreamType] = config->audioPid;
         // if no audio-only use AUDIO_PID
         if (pcrPid == 0) {
-            pcrPid = streamPidMap[TYPE_AUDIO];
+            pcrPid = config->audioPid;
         }
     }
     // Create demuxer / muxer and set onto the handler
     demuxer = std::make_shared<MpegTsDemuxer>();
-    muxer = std::make_shared<MpegTsMuxer>(streamPidMap, PMT_PID, pcrPid);
+    muxer = std::make_shared<MpegTsMuxer>(streamPidMap, config->pmtPid, pcrPid);
     std::cout << "demuxer: " << demuxer << " muxer: " << muxer << std::endl;
     // set the demuxer callback
     demuxer->esOutCallback = std::bind(&TSHandler::onDemuxed, this, std::placeholders::_1);
     // set the muxer callback where TS packets are fed to
     muxer->tsOutCallback = std::bind(&TSHandler::onMuxed, this, std::placeholders::_1);
-    //std::cout << "callbacks set" << std::endl;
-    /*
-    // figure out the right size for both audio and video
-    size_t length = config->width * config->height * 3;
-    uint8_t bytes[length];
-    //
-    plm_buffer_t *buffer = plm_buffer_create_with_memory(bytes, length, true);
-    plm = plm_create_with_buffer(buffer, true);
-    if (plm) {
-        plm_set_video_decode_callback(plm, onVideo, this);
-        plm_set_audio_decode_callback(plm, onAudio, this);
-        return 0;
-    }
-    */
     return JNI_TRUE;
 }
 
-void TSHandler::decodeVideo(std::vector<uint8_t> vbuf) {
-    std::cout << "Decode video " << config->width << "x" << config->height << " size: " << vbuf.size() << std::endl;
-    // Compute the delta time since the last update
-    //auto current_time = std::chrono::steady_clock::now();
-    //std::chrono::duration<double> elapsed_time = current_time - last_time;
-    //last_time = current_time;
-    // plm->buffer = vbuf.data()
-    // set plm->video_packet_type?
-    plm_frame_t *frame = plm_decode_video(plm);
-    //plm_decode(plm, elapsed_time.count() / 1000.0); // send as seconds
+// copies a plane cropped to the picture size, returning the next write position
+static uint8_t *copyPlane(uint8_t *dst, plm_plane_t *plane, int width, int height) {
+    for (int y = 0; y < height; y++) {
+        memcpy(dst, plane->data + y * plane->width, width);
+        dst += width;
+    }
+    return dst;
+}
+
+// appends mpeg-1 video and decodes the next complete picture as I420, returning its size, 0 if more data is needed or
+// -1 if the frame buffer is too small
+int TSHandler::decodeVideo(uint8_t *data, size_t data_len, uint8_t *frame, size_t frame_capacity) {
+    if (video == nullptr) {
+        videoBuffer = plm_buffer_create_with_capacity(PLM_BUFFER_DEFAULT_SIZE);
+        video = plm_video_create_with_buffer(videoBuffer, 1);
+    }
+    if (data_len > 0) {
+        // consumed bytes are discarded as we go, so the buffer only grows to the largest picture
+        plm_buffer_write(videoBuffer, data, data_len);
+    }
+    plm_frame_t *decoded = plm_video_decode(video);
+    if (decoded == NULL) {
+        return 0;
+    }
+    int width = decoded->width, height = decoded->height;
+    int chromaWidth = (width + 1) >> 1, chromaHeight = (height + 1) >> 1;
+    size_t size = (size_t) width * height + 2 * (size_t) chromaWidth * chromaHeight;
+    if (size > frame_capacity) {
+        return -1;
+    }
+    uint8_t *dst = copyPlane(frame, &decoded->y, width, height);
+    dst = copyPlane(dst, &decoded->cb, chromaWidth, chromaHeight);
+    copyPlane(dst, &decoded->cr, chromaWidth, chromaHeight);
+    return (int) size;
 }
 
-void TSHandler::decodeAudio(std::vector<uint16_t> abuf) {
-    std::cout << "Decode audio " << config->sample_rate << "@" << config->no_channels << " size: " << abuf.size() << std::endl;
-    // Compute the delta time since the last update
-    //auto current_time = std::chrono::steady_clock::now();
-    //std::chrono::duration<double> elapsed_time = current_time - last_time;
-    //last_time = current_time;
-    // should automagically cast?
-    // plm->buffer = (int16_t *) abuf.data() // seems this wants an array of l&r interleaved floats
-    // set plm->audio_packet_type?
-    plm_samples_t *samples = plm_decode_audio(plm);
-    //plm_decode(plm, elapsed_time.count() / 1000.0); // send as seconds
+// appends mp2 audio and decodes the next complete frame as interleaved 16 bit stereo, returning the samples per channel,
+// 0 if more data is needed or -1 if the pcm buffer is too small
+int TSHandler::decodeAudio(uint8_t *data, size_t data_len, int16_t *pcm, size_t pcm_capacity) {
+    if (audio == nullptr) {
+        audioBuffer = plm_buffer_create_with_capacity(PLM_BUFFER_DEFAULT_SIZE);
+        audio = plm_audio_create_with_buffer(audioBuffer, 1);
+    }
+    if (data_len > 0) {
+        plm_buffer_write(audioBuffer, data, data_len);
+    }
+    if (pcm_capacity < PLM_AUDIO_SAMPLES_PER_FRAME * 2) {
+        return -1;
+    }
+    plm_samples_t *samples = plm_audio_decode(audio);
+    if (samples == NULL) {
+        return 0;
+    }
+    for (int i = 0; i < PLM_AUDIO_SAMPLES_PER_FRAME * 2; i++) {
+        float sample = samples->interleaved[i] * 32767.0f;
+        pcm[i] = (int16_t) (sample > 32767.0f ? 32767.0f : (sample < -32768.0f ? -32768.0f : sample));
+    }
+    return samples->count;
 }
 
 // hand / dispatch the data (bytes) back over to java via the receiver
 void TSHandler::recvData(uint8_t *data, size_t data_len) {
+#ifdef DEBUG
     std::cout << "Received bytes size " << data_len << std::endl;
+#endif
     if (receiver != nullptr) {
         JNIEnv *env;
         int getEnvStat = jvm->GetEnv((void **) &env, JNI_VERSION_1_8);
@@ -148,53 +132,81 @@ void TSHandler::recvData(uint8_t *data, size_t data_len) {
     }
 }
 
-// hand / dispatch the data (bytes) back over to java via the receiver
-void TSHandler::recvData(uint8_t *data, size_t data_len, uint64_t pts, uint16_t pid) {
-    std::cout << "Received bytes size " << data_len << " pts: " << pts << " pid: " << pid << std::endl;
+// hand a demuxed frame back over to java via the receivers staging buffer, no java arrays are created per frame
+void TSHandler::recvFrame(uint8_t *data, size_t data_len, uint64_t pts, uint64_t dts, uint16_t pid, int flags) {
     if (receiver != nullptr) {
         JNIEnv *env;
         int getEnvStat = jvm->GetEnv((void **) &env, JNI_VERSION_1_8);
         if (getEnvStat == JNI_EDETACHED) {
-            //std::cout << "GetEnv: not attached" << std::endl;
             if (jvm->AttachCurrentThread((void **) &env, NULL) != 0) {
                 std::cerr << "Failed to attach" << std::endl;
             }
-        } else if (getEnvStat == JNI_OK) {
-            //std::cout << "GetEnv: attached" << std::endl;
         } else if (getEnvStat == JNI_EVERSION) {
             std::cerr << "GetEnv: version not supported" << std::endl;
         }
-        //if (receiverMethodId == nullptr) {
-            //jclass receiverClass = env->GetObjectClass(receiver);
-            // public void receiveTyped(long timetamp, byte[] data, int typeId)
-            jmethodID receiverMethodId = env->GetMethodID(receiverClass, "receiveTyped", "(J[BI)V");
-        //}
-        // determine the type id to hand back
-        int typeId = 0; // TYPE_UNKNOWN
-        if (pid == config->videoPid) {
-            // assumes configured video pid is h264
-            typeId = TYPE_H264;
-        } else if (pid == config->audioPid) {
-            // assumes configured audio pid is adts
-            typeId = TYPE_ADTS;
+        // ask the receiver for a larger staging buffer when this frame won't fit
+        if (stagingAddr == nullptr || (jlong) data_len > stagingCapacity) {
+            // public ByteBuffer stagingBuffer(int length)
+            jobject buffer = env->CallObjectMethod(receiver, stagingMethodId, (jint) data_len);
+            if (env->ExceptionCheck() || buffer == nullptr) {
+                env->ExceptionDescribe();
+                if (getEnvStat == JNI_EDETACHED) {
+                    jvm->DetachCurrentThread();
+                }
+                return;
+            }
+            if (staging != nullptr) {
+                env->DeleteGlobalRef(staging);
+            }
+            staging = env->NewGlobalRef(buffer);
+            env->DeleteLocalRef(buffer);
+            stagingAddr = (uint8_t *) env->GetDirectBufferAddress(staging);
+            stagingCapacity = env->GetDirectBufferCapacity(staging);
         }
-        // create a new byte array to hold the buffer contents
-        jbyteArray bytes = env->NewByteArray(data_len);
-        env->SetByteArrayRegion(bytes, 0, data_len, (jbyte*) data);
-        std::cout << "Prepared for call pts: " << ((jlong) pts) << " typeId: " << ((jint) pid) << std::endl;
-        env->CallVoidMethod(receiver, receiverMethodId, pts, bytes, typeId);
+        memcpy(stagingAddr, data, data_len);
+        // public void receiveFrame(long pts, long dts, int typeId, int flags, int length)
+        env->CallVoidMethod(receiver, frameMethodId, (jlong) pts, (jlong) dts, typeId(pid, flags), flags, (jint) data_len);
         if (env->ExceptionCheck()) {
             env->ExceptionDescribe();
         }
-        jvm->DetachCurrentThread();
+        // only detach threads we attached
+        if (getEnvStat == JNI_EDETACHED) {
+            jvm->DetachCurrentThread();
+        }
     } else {
         std::cerr << "Java receiver is not available" << std::endl;
     }
 }
 
+// type id handed back for a pid
+int TSHandler::typeId(uint16_t pid, int flags) {
+    if (flags & FLAG_TS) {
+        // muxed transport stream
+    } else if (pid == config->videoPid) {
+        return config->videoStreamType == 0x01 || config->videoStreamType == 0x02 ? TYPE_MP1V : TYPE_H264;
+    } else if (pid == config->audioPid) {
+        return config->audioStreamType == 0x03 || config->audioStreamType == 0x04 ? TYPE_MP2A : TYPE_ADTS;
+    }
+    return 0; // TYPE_UNKNOWN
+}
+
+// bytes of native memory held by the handler, its reusable buffers and the decoders
+size_t TSHandler::nativeMemory() {
+    size_t total = sizeof(TSHandler) + sizeof(config_t) + demuxInput.capacity() + muxOutput.capacity() + results.capacity();
+    if (videoBuffer != nullptr) {
+        total += plm_buffer_get_capacity(videoBuffer) + plm_video_get_frames_size(video);
+    }
+    if (audioBuffer != nullptr) {
+        total += plm_buffer_get_capacity(audioBuffer);
+    }
+    return total;
+}
+
 // hand / dispatch the data (shorts) back over to java via the receiver
 void TSHandler::recvData(uint16_t *data, size_t data_len) {
+#ifdef DEBUG
     std::cout << "Received shorts size " << data_len << std::endl;
+#endif
     // quick and dirty shorts to bytes
     //uint8_t *bdata = (uint8_t *) data;
     // short array is double the size of the bytes..
@@ -230,27 +242,50 @@ void TSHandler::recvData(uint16_t *data, size_t data_len) {
 
 // callback for the MPEG-TS demuxer
 void TSHandler::onDemuxed(EsFrame *pEs) {
+#ifdef DEBUG
     std::cout << "Demuxed data " << unsigned(pEs->mStreamType) << " size: " << pEs->mData->size() << " broken? " << pEs->mBroken << std::endl;
+#endif
     if (demuxer->mPmtIsValid) {
         // check the PMT header for our expected a/v types
         // demuxer.mPmtHeader
     }
-    if (pEs->mBroken == 0) {
-        // pass off to the recv to get it back over to java
-        recvData(pEs->mData->data(), pEs->mData->size(), pEs->mPts, pEs->mPid);
-    } else {
+    int flags = pEs->mRandomAccess ? FLAG_KEYFRAME : 0;
+    if (pEs->mBroken) {
         // do we want to handle broken frames? these may not be broken, could be 0 pes.length h264 video
         std::cerr << "Broken frame detected" << std::endl;
-        // pass off to the recv to get it back over to java
-        recvData(pEs->mData->data(), pEs->mData->size(), pEs->mPts, pEs->mPid);
+        flags |= FLAG_BROKEN;
+    }
+    // pass off to the recv to get it back over to java
+    recvFrame(pEs->mData->data(), pEs->mData->size(), pEs->mPts, pEs->mDts, pEs->mPid, flags);
+}
+
+// demuxer callback of the foreign function binding, appends the frame to the result arena
+void TSHandler::onDemuxedRecord(EsFrame *pEs) {
+    int flags = pEs->mRandomAccess ? FLAG_KEYFRAME : 0;
+    if (pEs->mBroken) {
+        flags |= FLAG_BROKEN;
     }
+    size_t length = pEs->mData->size();
+    size_t start = results.size();
+    // records stay 8 byte aligned
+    results.resize(start + sizeof(frame_record_t) + ((length + 7) & ~((size_t) 7)));
+    frame_record_t *record = (frame_record_t *) (results.data() + start);
+    record->pts = (int64_t) pEs->mPts;
+    record->dts = (int64_t) pEs->mDts;
+    record->typeId = typeId(pEs->mPid, flags);
+    record->flags = flags;
+    record->length = (int32_t) length;
+    record->reserved = 0;
+    memcpy(results.data() + start + sizeof(frame_record_t), pEs->mData->data(), length);
 }
 
 // callback for the MPEG-TS muxer
 void TSHandler::onMuxed(SimpleBuffer &rTsOutBuffer) {
+#ifdef DEBUG
     std::cout << "Muxed data size: " << rTsOutBuffer.size() << std::endl;
-    // pass off to the recv to get it back over to java
-    recvData(rTsOutBuffer.data(), rTsOutBuffer.size());
+#endif
+    // pass off to the recv to get it back over to java, via the staging buffer as the muxing thread is a java thread
+    recvFrame(rTsOutBuffer.data(), rTsOutBuffer.size(), 0, 0, 0x1fff, FLAG_TS);
 }
 
 /**
@@ -261,14 +296,15 @@ JNIEXPORT jlong JNICALL Java_org_red5_mpeg_TSHandler_createHandler(JNIEnv *env,
     jlong id = maininator.create_handler();
     TSHandler *handler = mpeg_ctx.getHandler(id);
     if (handler != 0) {
-        // config for the incoming java config
-        config_t *mpegConfig = (config_t*) malloc(sizeof(config_t));
+        // config for the incoming java config, new rather than malloc so the defaults are set
+        config_t *mpegConfig = new config_t();
         // get the configuration class
         jclass class_Config = env->GetObjectClass(config);
         /// name (if null is passed, the server will crash)
         jstring strname = (jstring) env->CallObjectMethod(config, env->GetMethodID(class_Config, "getName", "()Ljava/lang/String;"));
         const char *name = env->GetStringUTFChars(strname, NULL);
         mpegConfig->mpegName = name;
+        env->ReleaseStringUTFChars(strname, name);
         /// width / height
         int width = (int) env->GetIntField(config, env->GetFieldID(class_Config, "width", "I"));
         int height = (int) env->GetIntField(config, env->GetFieldID(class_Config, "height", "I"));
@@ -305,6 +341,14 @@ JNIEXPORT jlong JNICALL Java_org_red5_mpeg_TSHandler_createHandler(JNIEnv *env,
         if (streamId > 0) {
             mpegConfig->streamId = streamId;
         }
+        uint8_t audioStreamType = (uint8_t) env->GetByteField(config, env->GetFieldID(class_Config, "audioStreamType", "B"));
+        if (audioStreamType > 0) {
+            mpegConfig->audioStreamType = audioStreamType;
+        }
+        uint8_t videoStreamType = (uint8_t) env->GetByteField(config, env->GetFieldID(class_Config, "videoStreamType", "B"));
+        if (videoStreamType > 0) {
+            mpegConfig->videoStreamType = videoStreamType;
+        }
         // set the config on the handler
         handler->config = mpegConfig;
         // get jvm so we can attach later and call receive method
@@ -313,6 +357,9 @@ JNIEXPORT jlong JNICALL Java_org_red5_mpeg_TSHandler_createHandler(JNIEnv *env,
         handler->receiver = env->NewGlobalRef(receiver);
         jclass receiverClass = env->GetObjectClass(receiver);
         handler->receiverClass = reinterpret_cast<jclass>(env->NewGlobalRef(receiverClass));
+        // method ids stay valid as long as the class is referenced, so look them up once
+        handler->stagingMethodId = env->GetMethodID(receiverClass, "stagingBuffer", "(I)Ljava/nio/ByteBuffer;");
+        handler->frameMethodId = env->GetMethodID(receiverClass, "receiveFrame", "(JJIII)V");
         // initialize the handler
         if (!maininator.init(handler)) {
             std::cerr << "Initialize failed" << std::endl;
@@ -324,47 +371,96 @@ JNIEXPORT jlong JNICALL Java_org_red5_mpeg_TSHandler_createHandler(JNIEnv *env,
 }
 
 /**
- * Send audio data out.
+ * Decode MP2 audio.
  * 
  * @param id handler id
- * @param data short array holding data to send out
- * @return true if decoder accepted the data and false otherwise
+ * @param data byte array holding data to append to the decoders buffer
+ * @param length number of bytes to append
+ * @param pcm short array receiving a frame of interleaved stereo samples
+ * @return samples per channel decoded, 0 if more data is needed or -1 if the pcm array is too small
  */
-JNIEXPORT jboolean JNICALL Java_org_red5_mpeg_TSHandler_decodeAudio(JNIEnv *env, jclass clazz, jlong id, jshortArray data) {
-    std::cout << "Write" << std::endl;
+JNIEXPORT jint JNICALL Java_org_red5_mpeg_TSHandler_decodeAudio(JNIEnv *env, jclass clazz, jlong id, jbyteArray data, jint length, jshortArray pcm) {
     TSHandler *handler = mpeg_ctx.getHandler(id);
     if (handler != 0) {
-        // package the shorts
-        jsize buf_len = env->GetArrayLength(data);
-        jshort* buf = (jshort*) malloc(buf_len);
-        env->GetShortArrayRegion(data, 0, buf_len, buf);
-        std::vector<uint16_t> abuf(&buf[0], &buf[buf_len]);
-        handler->decodeAudio(abuf);
-        return JNI_TRUE;
+        int16_t decoded[PLM_AUDIO_SAMPLES_PER_FRAME * 2];
+        jsize capacity = env->GetArrayLength(pcm);
+        jint result;
+        if (length > 0) {
+            // appended straight from the java array, without an intermediate copy where the vm allows it
+            uint8_t *buf = (uint8_t *) env->GetPrimitiveArrayCritical(data, NULL);
+            result = handler->decodeAudio(buf, length, decoded, capacity);
+            env->ReleasePrimitiveArrayCritical(data, buf, JNI_ABORT);
+        } else {
+            result = handler->decodeAudio(NULL, 0, decoded, capacity);
+        }
+        if (result > 0) {
+            env->SetShortArrayRegion(pcm, 0, result * 2, (jshort *) decoded);
+        }
+        return result;
     }
-    return JNI_FALSE;
+    return -1;
 }
 
 /**
- * Decode video data.
+ * Decode MPEG-1 video.
  * 
  * @param id handler id
- * @param data byte array holding data to decode
- * @return true if decoder accepted the data and false otherwise
+ * @param data byte array holding data to append to the decoders buffer
+ * @param length number of bytes to append
+ * @param frame direct buffer receiving an I420 picture
+ * @param offset position in the frame buffer to write at
+ * @return picture size in bytes, 0 if more data is needed or -1 if the frame buffer is too small
  */
-JNIEXPORT jboolean JNICALL Java_org_red5_mpeg_TSHandler_decodeVideo(JNIEnv *env, jclass clazz, jlong id, jbyteArray data) {
-    std::cout << "Decode" << std::endl;
+JNIEXPORT jint JNICALL Java_org_red5_mpeg_TSHandler_decodeVideo(JNIEnv *env, jclass clazz, jlong id, jbyteArray data, jint length, jobject frame, jint offset) {
     TSHandler *handler = mpeg_ctx.getHandler(id);
     if (handler != 0) {
-        // package the bytes
-        jsize buf_len = env->GetArrayLength(data);
-        jbyte* buf = (jbyte*) malloc(buf_len);
-        env->GetByteArrayRegion(data, 0, buf_len, buf);
-        std::vector<uint8_t> vbuf(&buf[0], &buf[buf_len]);
-        handler->decodeVideo(vbuf);
-        return JNI_TRUE;
+        uint8_t *frameAddr = (uint8_t *) env->GetDirectBufferAddress(frame);
+        jlong capacity = env->GetDirectBufferCapacity(frame);
+        if (frameAddr == nullptr || offset > capacity) {
+            return -1;
+        }
+        if (length > 0) {
+            uint8_t *buf = (uint8_t *) env->GetPrimitiveArrayCritical(data, NULL);
+            jint result = handler->decodeVideo(buf, length, frameAddr + offset, capacity - offset);
+            env->ReleasePrimitiveArrayCritical(data, buf, JNI_ABORT);
+            return result;
+        }
+        return handler->decodeVideo(NULL, 0, frameAddr + offset, capacity - offset);
     }
-    return JNI_FALSE;
+    return -1;
+}
+
+/**
+ * Returns the picture width of the decoded video, once its sequence header has been seen.
+ * 
+ * @param id handler id
+ * @return width or 0
+ */
+JNIEXPORT jint JNICALL Java_org_red5_mpeg_TSHandler_getVideoWidth(JNIEnv *env, jclass clazz, jlong id) {
+    TSHandler *handler = mpeg_ctx.getHandler(id);
+    return handler != 0 && handler->video != nullptr ? plm_video_get_width(handler->video) : 0;
+}
+
+/**
+ * Returns the picture height of the decoded video, once its sequence header has been seen.
+ * 
+ * @param id handler id
+ * @return height or 0
+ */
+JNIEXPORT jint JNICALL Java_org_red5_mpeg_TSHandler_getVideoHeight(JNIEnv *env, jclass clazz, jlong id) {
+    TSHandler *handler = mpeg_ctx.getHandler(id);
+    return handler != 0 && handler->video != nullptr ? plm_video_get_height(handler->video) : 0;
+}
+
+/**
+ * Returns the sample rate of the decoded audio, once a frame header has been seen.
+ * 
+ * @param id handler id
+ * @return sample rate or 0
+ */
+JNIEXPORT jint JNICALL Java_org_red5_mpeg_TSHandler_getSampleRate(JNIEnv *env, jclass clazz, jlong id) {
+    TSHandler *handler = mpeg_ctx.getHandler(id);
+    return handler != 0 && handler->audio != nullptr ? plm_audio_get_samplerate(handler->audio) : 0;
 }
 
 /**
@@ -374,15 +470,42 @@ JNIEXPORT jboolean JNICALL Java_org_red5_mpeg_TSHandler_decodeVideo(JNIEnv *env,
  * @param data byte array holding data to demux
  */
 JNIEXPORT void JNICALL Java_org_red5_mpeg_TSHandler_demux(JNIEnv *env, jclass clazz, jlong id, jbyteArray data) {
+#ifdef DEBUG
     std::cout << "Demux" << std::endl;
+#endif
     TSHandler *handler = mpeg_ctx.getHandler(id);
     if (handler != 0) {
         jsize buf_len = env->GetArrayLength(data);
-        jbyte* buf = (jbyte*) malloc(buf_len);
-        env->GetByteArrayRegion(data, 0, buf_len, buf);
-        //std::cout << "Sync byte? " << unsigned(buf[0]) << std::endl;
-        SimpleBuffer in;
-        in.append((uint8_t*) &buf[0], buf_len);
+        // copied straight from the java array into the handlers input, the demuxer calls back into java so the array
+        // is released first
+        SimpleBuffer &in = handler->demuxInput;
+        in.clear();
+        uint8_t *buf = (uint8_t *) env->GetPrimitiveArrayCritical(data, NULL);
+        in.append(buf, buf_len);
+        env->ReleasePrimitiveArrayCritical(data, buf, JNI_ABORT);
+        handler->demuxer->decode(in);
+    }
+}
+
+/**
+ * Demux MPEG-TS data from a direct buffer. Resulting demuxed data will be returned via callback / receiver.
+ * 
+ * @param id handler id
+ * @param data direct byte buffer holding data to demux
+ * @param offset start of the data in the buffer
+ * @param length number of bytes to demux
+ */
+JNIEXPORT void JNICALL Java_org_red5_mpeg_TSHandler_demuxDirect(JNIEnv *env, jobject obj, jlong id, jobject data, jint offset, jint length) {
+    TSHandler *handler = mpeg_ctx.getHandler(id);
+    if (handler != 0) {
+        uint8_t *buf = (uint8_t *) env->GetDirectBufferAddress(data);
+        if (buf == nullptr) {
+            std::cerr << "Demux buffer is not direct" << std::endl;
+            return;
+        }
+        SimpleBuffer &in = handler->demuxInput;
+        in.clear();
+        in.append(buf + offset, length);
         handler->demuxer->decode(in);
     }
 }
@@ -392,34 +515,89 @@ JNIEXPORT void JNICALL Java_org_red5_mpeg_TSHandler_demux(JNIEnv *env, jclass cl
  * 
  * @param id handler id
  * @param data byte array holding data to mux
+ * @param length number of bytes to mux
  * @param pts presentation timestamp
+ * @param dts decode timestamp
  * @param type stream type
  * @param pid
  * @param streamId ES stream id for the data
+ * @param randomAccess whether decoding can start at this frame
  */
-JNIEXPORT void JNICALL Java_org_red5_mpeg_TSHandler_mux(JNIEnv *env, jclass clazz, jlong id, jbyteArray data, jlong pts, jbyte type, jshort pid, jbyte streamId) {
+JNIEXPORT void JNICALL Java_org_red5_mpeg_TSHandler_mux(JNIEnv *env, jclass clazz, jlong id, jbyteArray data, jint length, jlong pts, jlong dts, jbyte type, jshort pid, jbyte streamId, jboolean randomAccess) {
+#ifdef DEBUG
     std::cout << "Mux" << std::endl;
+#endif
     TSHandler *handler = mpeg_ctx.getHandler(id);
     if (handler != 0) {
-        jsize buf_len = env->GetArrayLength(data);
-        jbyte* buf = (jbyte*) malloc(buf_len);
-        env->GetByteArrayRegion(data, 0, buf_len, buf);
-        // Build a frame of data (ES)
-        EsFrame esFrame;
-        esFrame.mData = std::make_shared<SimpleBuffer>();
-        // Append your ES-Data
-        esFrame.mData->append((uint8_t*) &buf[0], buf_len);
-        esFrame.mPts = pts;
-        esFrame.mDts = pts;
-        esFrame.mPcr = 0;
-        esFrame.mStreamType = type;
-        esFrame.mStreamId = streamId;
-        esFrame.mPid = pid;
-        esFrame.mExpectedPesPacketLength = 0;
-        esFrame.mCompleted = true;
-        // Multiplex your data
-        handler->muxer->encode(esFrame);
+        // muxed from the java array into the handlers output, which grows to the largest frame
+        uint32_t required = MpegTsMuxer::maxEncodedSize((uint32_t) length);
+        if (handler->muxOutput.size() < required) {
+            handler->muxOutput.resize(required);
+        }
+        uint8_t *buf = (uint8_t *) env->GetPrimitiveArrayCritical(data, NULL);
+        int written = handler->muxer->encodeInto(buf, (uint32_t) length, pts, dts, randomAccess ? 1 : 0, (uint8_t) type, (uint8_t) streamId, (uint16_t) pid, handler->muxOutput.data());
+        env->ReleasePrimitiveArrayCritical(data, buf, JNI_ABORT);
+        // back to java as the muxer callback would, outside the critical region
+        handler->recvFrame(handler->muxOutput.data(), written, 0, 0, 0x1fff, FLAG_TS);
+    }
+}
+
+/**
+ * Mux a batch of frames held in a direct buffer, writing the TS packets straight into a direct output buffer. Nothing is
+ * copied or allocated per frame and nothing comes back via the receiver.
+ * 
+ * @param id handler id
+ * @param input direct byte buffer holding the frames
+ * @param index six longs per frame: offset, length, pts, dts, pid << 16 | type << 8 | stream id, flags
+ * @param count number of frames
+ * @param output direct byte buffer for the packets
+ * @param offset start of the output in the buffer
+ * @param capacity bytes available from the offset
+ * @return bytes written or -1 if the batch is invalid or may not fit
+ */
+JNIEXPORT jint JNICALL Java_org_red5_mpeg_TSHandler_muxBatch(JNIEnv *env, jclass clazz, jlong id, jobject input, jlongArray index, jint count, jobject output, jint offset, jint capacity) {
+    TSHandler *handler = mpeg_ctx.getHandler(id);
+    if (handler == 0) {
+        return -1;
+    }
+    uint8_t *in = (uint8_t *) env->GetDirectBufferAddress(input);
+    uint8_t *out = (uint8_t *) env->GetDirectBufferAddress(output);
+    if (in == nullptr || out == nullptr) {
+        std::cerr << "Mux buffers must be direct" << std::endl;
+        return -1;
+    }
+    jlong inputCapacity = env->GetDirectBufferCapacity(input);
+    jlong record[6];
+    // check the whole batch fits before writing any of it, the muxer state moves on as frames are written
+    jlong required = 0;
+    for (jint i = 0; i < count; i++) {
+        env->GetLongArrayRegion(index, i * 6, 6, record);
+        if (record[0] < 0 || record[1] < 0 || record[0] + record[1] > inputCapacity) {
+            return -1;
+        }
+        required += MpegTsMuxer::maxEncodedSize((uint32_t) record[1]);
+    }
+    if (required > capacity) {
+        return -1;
+    }
+    uint8_t *pos = out + offset;
+    for (jint i = 0; i < count; i++) {
+        env->GetLongArrayRegion(index, i * 6, 6, record);
+        jlong meta = record[4];
+        pos += handler->muxer->encodeInto(in + record[0], (uint32_t) record[1], record[2], record[3], (uint8_t) (record[5] & 1), (uint8_t) (meta >> 8), (uint8_t) meta, (uint16_t) (meta >> 16), pos);
     }
+    return (jint) (pos - out - offset);
+}
+
+/**
+ * Returns the bytes of native memory held by the handler, its reusable buffers and decoders.
+ * 
+ * @param id handler id
+ * @return bytes or 0 if there is no such handler
+ */
+JNIEXPORT jlong JNICALL Java_org_red5_mpeg_TSHandler_getNativeMemory(JNIEnv *env, jclass clazz, jlong id) {
+    TSHandler *handler = mpeg_ctx.getHandler(id);
+    return handler != 0 ? (jlong) handler->nativeMemory() : 0L;
 }
 
 JNIEXPORT void JNICALL Java_org_red5_mpeg_TSHandler_destroy(JNIEnv *env, jclass clazz, jlong id) {
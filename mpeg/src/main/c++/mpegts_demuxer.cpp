@@ -19,7 +19,9 @@ uint8_t MpegTsDemuxer::decode(SimpleBuffer &rIn) {
         int lPos = rIn.pos();
         TsHeader lTsHeader;
         lTsHeader.decode(rIn);
+#ifdef DEBUG
         std::cout << "decode - pid: " << lTsHeader.mPid << " pmtid: " << mPmtId << std::endl;
+#endif
         // found pat & get pmt pid
         if (lTsHeader.mPid == 0 && mPmtId == 0) {
             if (lTsHeader.mAdaptationFieldControl == MpegTsAdaptationFieldType::mAdaptionOnly ||
@@ -105,7 +107,9 @@ uint8_t MpegTsDemuxer::decode(SimpleBuffer &rIn) {
                         mEsFrames[lTsHeader.mPid]->reset();
                     } else if (mEsFrames[lTsHeader.mPid]->mData->size() && !mEsFrames[lTsHeader.mPid]->mCompleted) {
                         //Its a broken frame deliver that as broken
+#ifdef DEBUG
                         std::cout << "ES broken frame - callback set? " << (esOutCallback != nullptr) << std::endl;
+#endif
                         if (esOutCallback) {
                             EsFrame *lEsFrame = mEsFrames[lTsHeader.mPid].get();
                             lEsFrame -> mBroken = true;
@@ -144,20 +148,26 @@ uint8_t MpegTsDemuxer::decode(SimpleBuffer &rIn) {
                             mEsFrames[lTsHeader.mPid]->mCompleted = true;
                             mEsFrames[lTsHeader.mPid]->mPid = lTsHeader.mPid;
                             EsFrame *lEsFrame = mEsFrames[lTsHeader.mPid].get();
+#ifdef DEBUG
                             std::cout << "ES frame ready - callback set? " << (esOutCallback != nullptr) << std::endl;
+#endif
                             if (esOutCallback) {
                                 esOutCallback(lEsFrame);
                             }
                             mEsFrames[lTsHeader.mPid]->reset();
                         } else {
+#ifdef DEBUG
                             std::cout << "ES frame not ready, bytes left: " << (payloadLength - mEsFrames[lTsHeader.mPid]->mData->size()) << std::endl;
+#endif
                         }
 
                         rIn.skip(188 - (rIn.pos() - lPos));
                         continue;
                     } else {
                         // XXX remember that PES length is always 0 for h264 video
+#ifdef DEBUG
                         std::cout << "PES length: " << lPesHeader.mPesPacketLength << std::endl;
+#endif
                     }
                 } else {
                     //std::cout << "No payload start indicator, yet" << std::endl;
@@ -179,13 +189,17 @@ uint8_t MpegTsDemuxer::decode(SimpleBuffer &rIn) {
                     mEsFrames[lTsHeader.mPid]->mCompleted = true;
                     mEsFrames[lTsHeader.mPid]->mPid = lTsHeader.mPid;
                     EsFrame *lEsFrame = mEsFrames[lTsHeader.mPid].get();
+#ifdef DEBUG
                     std::cout << "ES frame ready - callback set? " << (esOutCallback != nullptr) << std::endl;
+#endif
                     if (esOutCallback) {
                         esOutCallback(lEsFrame);
                     }
                     mEsFrames[lTsHeader.mPid]->reset();
                 } else {
+#ifdef DEBUG
                     std::cout << "ES frame not equal - data size: " << mEsFrames[lTsHeader.mPid]->mData->size() << " expected: " << mEsFrames[lTsHeader.mPid]->mExpectedPayloadLength << std::endl;                    
+#endif
                 }
 
             }
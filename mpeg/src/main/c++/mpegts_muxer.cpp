@@ -11,6 +11,10 @@ MpegTsMuxer::MpegTsMuxer(std::map<uint8_t, int> lStreamPidMap, uint16_t lPmtPid,
     mStreamPidMap = lStreamPidMap;
     mPcrPid = lPcrPid;
     mMuxType = lType;
+    SimpleBuffer lTables;
+    createPat(lTables, mPmtPid, 0);
+    createPmt(lTables, mStreamPidMap, mPmtPid, 0);
+    memcpy(mTables, lTables.data(), sizeof(mTables));
 }
 
 MpegTsMuxer::~MpegTsMuxer() {
@@ -321,7 +325,7 @@ void MpegTsMuxer::createNull(uint8_t lTag) {
 void MpegTsMuxer::encode(EsFrame &rFrame, uint8_t lTag) {
     std::lock_guard<std::mutex> lock(mMuxMtx);
     SimpleBuffer lSb;
-    if (shouldCreatePat()) {
+    if (shouldCreatePat(rFrame.mRandomAccess)) {
         uint8_t lPatPmtCc = getCc(0);
         createPat(lSb, mPmtPid, lPatPmtCc);
         createPmt(lSb, mStreamPidMap, mPmtPid, lPatPmtCc);
@@ -333,6 +337,123 @@ void MpegTsMuxer::encode(EsFrame &rFrame, uint8_t lTag) {
     }
 }
 
+// same layout as writePts, to a pointer
+static uint8_t *putPts(uint8_t *p, uint32_t lFb, uint64_t lPts) {
+    p[0] = (uint8_t) (lFb << 4 | (((lPts >> 30) & 0x07) << 1) | 1);
+    uint32_t lVal = (((lPts >> 15) & 0x7fff) << 1) | 1;
+    p[1] = (uint8_t) (lVal >> 8);
+    p[2] = (uint8_t) lVal;
+    lVal = (((lPts) & 0x7fff) << 1) | 1;
+    p[3] = (uint8_t) (lVal >> 8);
+    p[4] = (uint8_t) lVal;
+    return p + 5;
+}
+
+// same layout as writePcr, to a pointer
+static uint8_t *putPcr(uint8_t *p, uint64_t lPcr) {
+    p[0] = (uint8_t) (lPcr >> 25);
+    p[1] = (uint8_t) (lPcr >> 17);
+    p[2] = (uint8_t) (lPcr >> 9);
+    p[3] = (uint8_t) (lPcr >> 1);
+    p[4] = (uint8_t) (lPcr << 7 | 0x7e);
+    p[5] = 0;
+    return p + 6;
+}
+
+uint32_t MpegTsMuxer::maxEncodedSize(uint32_t lLength) {
+    // the tables, then a first packet with room for at least 157 bytes after a pcr and both timestamps
+    uint32_t lPackets = 3;
+    if (lLength > 157) {
+        lPackets += (lLength - 157 + 183) / 184;
+    }
+    return lPackets * 188;
+}
+
+int MpegTsMuxer::encodeInto(const uint8_t *pData, uint32_t lLength, uint64_t lPts, uint64_t lDts, uint8_t lRandomAccess, uint8_t lStreamType, uint8_t lStreamId, uint16_t lPid, uint8_t *pOut) {
+    std::lock_guard<std::mutex> lock(mMuxMtx);
+    uint8_t *p = pOut;
+    if (shouldCreatePat(lRandomAccess)) {
+        uint8_t lCc = getCc(0);
+        memcpy(p, mTables, sizeof(mTables));
+        p[3] = (p[3] & 0xf0) | lCc;
+        p[188 + 3] = (p[188 + 3] & 0xf0) | lCc;
+        p += sizeof(mTables);
+    }
+    uint32_t lPos = 0;
+    bool lFirst = true;
+    while (lPos < lLength) {
+        uint8_t *lPacket = p;
+        lPacket[0] = 0x47;
+        lPacket[1] = (lFirst ? 0x40 : 0x00) | ((lPid >> 8) & 0x1f);
+        lPacket[2] = (uint8_t) lPid;
+        lPacket[3] = (MpegTsAdaptationFieldType::mPayloadOnly << 4) | getCc(lStreamType);
+        uint8_t *lEnd = lPacket + 4;
+        if (lFirst) {
+            bool lPcr = lPid == mPcrPid;
+            if (lPcr || lRandomAccess) {
+                lPacket[3] |= 0x20;
+                lPacket[4] = lPcr ? 0x07 : 0x01;
+                lPacket[5] = (lRandomAccess ? 0x40 : 0x00) | (lPcr ? 0x10 : 0x00);
+                lEnd = lPacket + 6;
+                if (lPcr) {
+                    // the clock follows decode time on the pcr pid
+                    lEnd = putPcr(lEnd, lDts);
+                }
+            }
+            bool lBoth = lPts != lDts;
+            uint32_t lPesSize = (lBoth ? 0x0A : 0x05) + lLength + 3;
+            if (lPesSize > 0xffff) {
+                lPesSize = 0;
+            }
+            lEnd[0] = 0x00;
+            lEnd[1] = 0x00;
+            lEnd[2] = 0x01;
+            lEnd[3] = lStreamId;
+            lEnd[4] = (uint8_t) (lPesSize >> 8);
+            lEnd[5] = (uint8_t) lPesSize;
+            // marker bits and original
+            lEnd[6] = 0x81;
+            lEnd[7] = lBoth ? 0xc0 : 0x80;
+            lEnd[8] = lBoth ? 0x0A : 0x05;
+            lEnd += 9;
+            if (lBoth) {
+                lEnd = putPts(lEnd, 3, lPts);
+                lEnd = putPts(lEnd, 1, lDts);
+            } else {
+                lEnd = putPts(lEnd, 2, lPts);
+            }
+        }
+        uint32_t lHeaderSize = lEnd - lPacket;
+        uint32_t lBodySize = 188 - lHeaderSize;
+        uint32_t lInSize = lLength - lPos;
+        if (lInSize < lBodySize) {
+            // the last of the frame, stuff the adaptation field so the payload ends the packet
+            uint32_t lStuffSize = lBodySize - lInSize;
+            if (lPacket[3] & 0x20) {
+                uint8_t *lpBase = lPacket + 5 + lPacket[4];
+                memmove(lpBase + lStuffSize, lpBase, lEnd - lpBase);
+                memset(lpBase, 0xff, lStuffSize);
+                lPacket[4] += lStuffSize;
+            } else {
+                lPacket[3] |= 0x20;
+                memmove(lPacket + 4 + lStuffSize, lPacket + 4, lHeaderSize - 4);
+                lPacket[4] = lStuffSize - 1;
+                if (lStuffSize >= 2) {
+                    lPacket[5] = 0;
+                    memset(lPacket + 6, 0xff, lStuffSize - 2);
+                }
+            }
+            lHeaderSize += lStuffSize;
+            lBodySize = lInSize;
+        }
+        memcpy(lPacket + lHeaderSize, pData + lPos, lBodySize);
+        lPos += lBodySize;
+        p += 188;
+        lFirst = false;
+    }
+    return p - pOut;
+}
+
 uint8_t MpegTsMuxer::getCc(uint32_t lWithPid) {
     if (mPidCcMap.find(lWithPid) != mPidCcMap.end()) {
         mPidCcMap[lWithPid] = (mPidCcMap[lWithPid] + 1) & 0x0F;
@@ -343,18 +464,14 @@ uint8_t MpegTsMuxer::getCc(uint32_t lWithPid) {
     return 0;
 }
 
-bool MpegTsMuxer::shouldCreatePat() {
-    bool lRet = false;
+bool MpegTsMuxer::shouldCreatePat(uint8_t lRandomAccess) {
     static const int lPatInterval = 20;
-    static int lCurrentIndex = 0;
-    if (lCurrentIndex % lPatInterval == 0) {
-        if (lCurrentIndex > 0) {
-            lCurrentIndex = 0;
-        }
-        lRet = true;
+    // segments have to start with the tables, so they lead every random access frame
+    if (mMuxType == MuxType::segmentType && lRandomAccess) {
+        mPatIndex = 1;
+        return true;
     }
-
-    lCurrentIndex++;
-
+    bool lRet = mPatIndex == 0;
+    mPatIndex = (mPatIndex + 1) % lPatInterval;
     return lRet;
 }
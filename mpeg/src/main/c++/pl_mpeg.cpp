@@ -0,0 +1,20 @@
+// the phoboslabs mpeg decoder implementation, compiled once here; everything else includes the declarations only
+#define PL_MPEG_IMPLEMENTATION
+#include "pl_mpeg.h"
+
+extern "C" {
+
+// bytes allocated by a buffer, for the native memory accounting of the handlers
+size_t plm_buffer_get_capacity(plm_buffer_t *self) {
+    return self->capacity;
+}
+
+// bytes of the three pictures a video decoder holds, 0 until the sequence header has been decoded
+size_t plm_video_get_frames_size(plm_video_t *self) {
+    if (self->frames_data == NULL) {
+        return 0;
+    }
+    return ((size_t) self->luma_width * self->luma_height + 2 * (size_t) self->chroma_width * self->chroma_height) * 3;
+}
+
+}
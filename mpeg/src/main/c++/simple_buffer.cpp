@@ -184,6 +184,11 @@ int SimpleBuffer::size()
     return mData.size();
 }
 
+int SimpleBuffer::capacity()
+{
+    return mData.capacity();
+}
+
 int SimpleBuffer::pos()
 {
     return mPos;
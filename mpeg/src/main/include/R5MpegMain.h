@@ -5,6 +5,7 @@
 #include <thread>
 #include <iostream>
 #include <vector>
+#include <string>
 #include <csignal>
 #include <cstddef>
 #include <cstring>
@@ -41,6 +42,15 @@ extern "C" {
 // PMT PID
 #define PMT_PID 100
 
+// pl_mpeg accessors for the native memory accounting, in pl_mpeg.cpp
+size_t plm_buffer_get_capacity(plm_buffer_t *self);
+size_t plm_video_get_frames_size(plm_video_t *self);
+
+// TSPacket flags
+#define FLAG_TS 0x04
+#define FLAG_KEYFRAME 0x08
+#define FLAG_BROKEN 0x10
+
 // fourCC - http://www.fourcc.org/codecs.php
 const uint32_t TYPE_MP2A = (('M'<<24) | ('P'<<16) | ('2'<<8) | 'A');
 const uint32_t TYPE_ADTS = (('A'<<24) | ('D'<<16) | ('T'<<8) | 'S');
@@ -54,7 +64,7 @@ const uint32_t TYPE_KLV = (('K'<<24) | ('L'<<16) | ('V'<<8) | 'A');
 // all the fields needed to configure the handler
 typedef struct config_t {
     // identifier for the instance (ex. stream name)
-    const char* mpegName = "stream1\0";
+    std::string mpegName = "stream1";
     // audio
     // sample-rate
 	int sample_rate = 48000;
@@ -69,10 +79,23 @@ typedef struct config_t {
     uint16_t videoPid = 0;
     uint16_t metaPid = 0;
     uint8_t streamId = 224; // 0xe0
+    // pmt stream types of the muxed audio and video
+    uint8_t audioStreamType = TYPE_AUDIO;
+    uint8_t videoStreamType = TYPE_VIDEO;
 } config_t;
 
-// global static reference for the JVM
-static JavaVM *jvm;
+// header of a demuxed frame in the result arena of the foreign function binding, followed by the frame padded to 8 bytes
+typedef struct frame_record_t {
+    int64_t pts;
+    int64_t dts;
+    int32_t typeId;
+    int32_t flags;
+    int32_t length;
+    int32_t reserved;
+} frame_record_t;
+
+// global reference for the JVM, one for all translation units
+inline JavaVM *jvm;
 
 /**
  * MPEG-TS handler implementation.
@@ -82,12 +105,27 @@ class TSHandler {
         // pointer for ctx lookup of the instance
         uintptr_t selfId = 0;
         // configuration
-        config_t *config;
-        // plabs mpeg struct
-        plm_t *plm;
+        config_t *config = nullptr;
+        // streaming mpeg-1 video and mp2 audio decoders over growing buffers, created on first use
+        plm_video_t *video = nullptr;
+        plm_buffer_t *videoBuffer = nullptr;
+        plm_audio_t *audio = nullptr;
+        plm_buffer_t *audioBuffer = nullptr;
         // receiver
         jobject receiver = nullptr;
         jclass receiverClass = nullptr;
+        // cached receiver method ids for the demuxed frame path
+        jmethodID stagingMethodId = nullptr;
+        jmethodID frameMethodId = nullptr;
+        // java direct buffer demuxed frames are copied into
+        jobject staging = nullptr;
+        uint8_t *stagingAddr = nullptr;
+        jlong stagingCapacity = 0;
+        // demuxed frames as frame records, for the foreign function binding in place of the receiver
+        std::vector<uint8_t> results;
+        // demux input and mux output, reset on each call and reused so they only grow to the largest call
+        SimpleBuffer demuxInput;
+        std::vector<uint8_t> muxOutput;
         // MPEG-TS demuxer
         std::shared_ptr<MpegTsDemuxer> demuxer;
         // MPEG-TS muxer
@@ -99,32 +137,48 @@ class TSHandler {
 
         virtual ~TSHandler() {
             try {
-                plm_destroy(plm);
+                // the decoders own their buffers
+                if (video != nullptr) {
+                    plm_video_destroy(video);
+                }
+                if (audio != nullptr) {
+                    plm_audio_destroy(audio);
+                }
                 // clean up jvm stuff
                 if (receiver != nullptr) {
                     JNIEnv *env;
                     jvm->GetEnv((void **) &env, JNI_VERSION_1_8);
                     env->DeleteGlobalRef(receiver);
                     env->DeleteGlobalRef(receiverClass);
+                    if (staging != nullptr) {
+                        env->DeleteGlobalRef(staging);
+                    }
                 }
             } catch(...) {};
+            delete config;
             std::cout << "freed handler: " << selfId << std::endl;
         };
 
         bool init();
 
-        void decodeVideo(std::vector<uint8_t> vbuf);
+        int decodeVideo(uint8_t *data, size_t data_len, uint8_t *frame, size_t frame_capacity);
 
-        void decodeAudio(std::vector<uint16_t> abuf);
+        int decodeAudio(uint8_t *data, size_t data_len, int16_t *pcm, size_t pcm_capacity);
 
         void recvData(uint8_t *data, size_t data_len);
 
-        void recvData(uint8_t *data, size_t data_len, uint64_t pts, uint16_t pid);
+        void recvFrame(uint8_t *data, size_t data_len, uint64_t pts, uint64_t dts, uint16_t pid, int flags);
 
         void recvData(uint16_t *data, size_t data_len);
 
+        int typeId(uint16_t pid, int flags);
+
+        size_t nativeMemory();
+
         void onDemuxed(EsFrame *pEs);
 
+        void onDemuxedRecord(EsFrame *pEs);
+
         void onMuxed(SimpleBuffer &rTsOutBuffer);
 
 };
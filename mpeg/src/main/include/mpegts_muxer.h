@@ -38,13 +38,19 @@ public:
 
     void encode(EsFrame &rFrame, uint8_t lTag = 0);
 
+    // writes the packets of a frame, led by the tables when due, straight into pOut and returns the bytes written
+    int encodeInto(const uint8_t *pData, uint32_t lLength, uint64_t lPts, uint64_t lDts, uint8_t lRandomAccess, uint8_t lStreamType, uint8_t lStreamId, uint16_t lPid, uint8_t *pOut);
+
+    // the most encodeInto can write for a frame of the given length
+    static uint32_t maxEncodedSize(uint32_t lLength);
+
     std::function<void(SimpleBuffer &rSb, uint8_t lTag)> tsOutCallback = nullptr;
 
 
 private:
     uint8_t getCc(uint32_t lWithPid);
 
-    bool shouldCreatePat();
+    bool shouldCreatePat(uint8_t lRandomAccess);
 
     std::map<uint32_t, uint8_t> mPidCcMap;
 
@@ -56,6 +62,12 @@ private:
 
     MuxType mMuxType = MuxType::unknown;
 
+    // frames since the tables were last written
+    int mPatIndex = 0;
+
+    // pat and pmt built once, only their continuity counters change
+    uint8_t mTables[2 * 188];
+
     std::mutex mMuxMtx;
 
 };
@@ -34,6 +34,7 @@ public:
     bool require(int required_size);
     bool empty();
     int size();
+    int capacity();
     int pos();
     uint8_t* data();
     void clear();
@@ -0,0 +1,128 @@
+package org.red5.mpeg;
+
+import java.util.function.Consumer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.red5.server.api.event.IEvent;
+import org.red5.server.net.rtmp.event.Aggregate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Packs audio and video frames arriving within a small window into a single RTMP Aggregate event. Each frame is written as
+ * an FLV tag (header, body, back-pointer) carrying its own timestamp, so subscribers see the same sub-timestamps they would
+ * have if the frames were dispatched one at a time.
+ *
+ * @author Paul Gregoire
+ */
+public class AggregateBatcher {
+
+    private static Logger log = LoggerFactory.getLogger(AggregateBatcher.class);
+
+    private static boolean isTrace = log.isTraceEnabled();
+
+    // tag header (11 bytes) plus the back-pointer (4 bytes)
+    private static final int TAG_OVERHEAD = 15;
+
+    // initial aggregate buffer size, it'll expand if needed
+    private static final int INITIAL_SIZE = 64 * 1024;
+
+    // where completed aggregates are sent
+    private final Consumer<IEvent> dispatcher;
+
+    // batch window in nanoseconds
+    private final long windowNanos;
+
+    // flush once the aggregate body reaches this size
+    private final int maxBytes;
+
+    // aggregate body being built
+    private IoBuffer body;
+
+    // number of frames in the current batch
+    private int count;
+
+    // timestamp of the first frame in the current batch
+    private int firstTimestamp;
+
+    // arrival time of the first frame in the current batch
+    private long firstArrival;
+
+    /**
+     * Creates a batcher.
+     *
+     * @param dispatcher receives the aggregate events
+     * @param windowMillis batch window in milliseconds
+     * @param maxBytes aggregate body size which forces a flush
+     */
+    public AggregateBatcher(Consumer<IEvent> dispatcher, int windowMillis, int maxBytes) {
+        this.dispatcher = dispatcher;
+        this.windowNanos = windowMillis * 1000000L;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Adds a frame to the current batch. The batch is flushed first if the window has elapsed or the frame would take the
+     * body beyond its maximum size.
+     *
+     * @param dataType Constants.TYPE_AUDIO_DATA or Constants.TYPE_VIDEO_DATA
+     * @param timestamp frame timestamp
+     * @param data frame bytes
+     * @param offset start of the frame in data
+     * @param length frame length
+     */
+    public void add(byte dataType, int timestamp, byte[] data, int offset, int length) {
+        long now = System.nanoTime();
+        if (count > 0 && ((now - firstArrival) >= windowNanos || (body.position() + length + TAG_OVERHEAD) > maxBytes)) {
+            flush();
+        }
+        if (count == 0) {
+            if (body == null) {
+                body = IoBuffer.allocate(Math.max(INITIAL_SIZE, length + TAG_OVERHEAD)).setAutoExpand(true);
+            }
+            firstTimestamp = timestamp;
+            firstArrival = now;
+        }
+        // tag header
+        body.put(dataType);
+        body.putMediumInt(length);
+        // timestamp; lower 24 bits followed by the extended upper 8 bits
+        body.putMediumInt(timestamp & 0xffffff);
+        body.put((byte) ((timestamp >>> 24) & 0xff));
+        // stream id is always 0
+        body.putMediumInt(0);
+        // tag body
+        body.put(data, offset, length);
+        // back-pointer / previous tag size
+        body.putInt(length + 11);
+        count++;
+    }
+
+    /**
+     * Dispatches the current batch if its window has elapsed.
+     */
+    public void flushIfDue() {
+        if (count > 0 && (System.nanoTime() - firstArrival) >= windowNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Dispatches whatever is in the current batch.
+     */
+    public void flush() {
+        if (count > 0) {
+            if (isTrace) {
+                log.trace("Flushing {} frames, {} bytes @ {}", count, body.position(), firstTimestamp);
+            }
+            body.flip();
+            Aggregate aggregate = new Aggregate(body);
+            aggregate.setTimestamp(firstTimestamp);
+            // subscribers hold onto the body, so a new one is needed for the next batch
+            body = null;
+            count = 0;
+            dispatcher.accept(aggregate);
+        }
+    }
+
+}
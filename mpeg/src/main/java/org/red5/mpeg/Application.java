@@ -9,6 +9,8 @@ import org.red5.server.api.scope.IScope;
 import org.red5.server.api.stream.IBroadcastStream;
 import org.red5.server.plugin.PluginRegistry;
 
+import org.red5.mpeg.egress.TSEgress;
+import org.red5.mpeg.hls.SegmentStore;
 import org.red5.mpeg.ws.WebSocketRouter;
 
 /**
@@ -53,12 +55,20 @@ public class Application extends MultiThreadedApplicationAdapter {
 	    return true;
     }
 
+    @Override
+    public void appStop(IScope scope) {
+        // drop the hls segments, along with any spilled to disk
+        SegmentStore.getInstance().shutdown();
+    }
+
     @Override
     public void streamBroadcastStart(IBroadcastStream stream) {
     }
 
     @Override
     public void streamBroadcastClose(IBroadcastStream stream) {
+        // nothing left to send
+        TSEgress.stopAll(stream.getPublishedName());
     }
 
 }
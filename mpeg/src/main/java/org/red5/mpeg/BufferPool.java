@@ -0,0 +1,169 @@
+package org.red5.mpeg;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.red5.mpeg.PacketRing.OverflowPolicy;
+import org.red5.mpeg.PacketRing.WaitStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of off-heap {@link PooledBuffer} instances in power of two size classes. Requests larger than the biggest class are
+ * served with unpooled buffers.
+ * <br>
+ * Leak detection can be enabled with the <i>red5.mpeg.leakDetection</i> system property or {@link #setLeakDetection(boolean)};
+ * while enabled each acquire records its call site and any buffer garbage collected without being released is logged
+ * along with where it was acquired.
+ *
+ * @author Paul Gregoire
+ */
+public class BufferPool {
+
+    private static Logger log = LoggerFactory.getLogger(BufferPool.class);
+
+    // smallest size class 2KiB
+    private static final int MIN_SHIFT = 11;
+
+    // largest size class 4MiB
+    private static final int MAX_SHIFT = 22;
+
+    // idle bytes retained per size class
+    private static final int RETAINED_BYTES = 4 * 1024 * 1024;
+
+    private static final BufferPool instance = new BufferPool();
+
+    private static volatile boolean leakDetection = Boolean.getBoolean("red5.mpeg.leakDetection");
+
+    // idle buffers per size class
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final PacketRing<PooledBuffer>[] classes = new PacketRing[MAX_SHIFT - MIN_SHIFT + 1];
+
+    // buffers allocated over the life of the pool
+    private final AtomicLong allocated = new AtomicLong();
+
+    // outstanding trackers; keeps them reachable until the buffer is released or collected
+    private final Set<LeakTracker> trackers = ConcurrentHashMap.newKeySet();
+
+    private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<>();
+
+    public BufferPool() {
+        for (int i = 0; i < classes.length; i++) {
+            int size = 1 << (MIN_SHIFT + i);
+            classes[i] = new PacketRing<>(Math.max(2, RETAINED_BYTES / size), WaitStrategy.SPIN, OverflowPolicy.DROP_OLDEST, null);
+        }
+    }
+
+    /**
+     * Returns the shared pool.
+     *
+     * @return pool
+     */
+    public static BufferPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns a cleared buffer with at least the requested capacity and a reference count of one.
+     *
+     * @param size minimum capacity
+     * @return buffer
+     */
+    public PooledBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        PooledBuffer buffer = null;
+        if (sizeClass >= 0) {
+            buffer = classes[sizeClass].poll();
+            if (buffer == null) {
+                allocated.incrementAndGet();
+                buffer = new PooledBuffer(this, sizeClass, 1 << (MIN_SHIFT + sizeClass));
+            }
+        } else {
+            allocated.incrementAndGet();
+            buffer = new PooledBuffer(this, -1, size);
+        }
+        buffer.acquired();
+        if (leakDetection) {
+            reportLeaks();
+            LeakTracker tracker = new LeakTracker(buffer, leakQueue);
+            trackers.add(tracker);
+            buffer.tracker = tracker;
+        }
+        return buffer;
+    }
+
+    // called by the buffer once its last reference is released
+    void recycle(PooledBuffer buffer) {
+        if (buffer.tracker != null) {
+            LeakTracker tracker = (LeakTracker) buffer.tracker;
+            trackers.remove(tracker);
+            tracker.clear();
+            buffer.tracker = null;
+        }
+        if (buffer.sizeClass >= 0) {
+            // if the class is already full the buffer is left to the gc
+            classes[buffer.sizeClass].offer(buffer);
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift <= MAX_SHIFT ? shift - MIN_SHIFT : -1;
+    }
+
+    private void reportLeaks() {
+        LeakTracker tracker;
+        while ((tracker = (LeakTracker) leakQueue.poll()) != null) {
+            if (trackers.remove(tracker)) {
+                log.warn("PooledBuffer was garbage collected without being released", tracker.acquiredAt);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of buffers allocated; this stops growing once the pool reaches steady state.
+     *
+     * @return allocated count
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Returns the number of idle buffers across all size classes.
+     *
+     * @return idle count
+     */
+    public int getIdle() {
+        int idle = 0;
+        for (PacketRing<PooledBuffer> ring : classes) {
+            idle += ring.size();
+        }
+        return idle;
+    }
+
+    public static boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    public static void setLeakDetection(boolean leakDetection) {
+        BufferPool.leakDetection = leakDetection;
+    }
+
+    private static final class LeakTracker extends WeakReference<PooledBuffer> {
+
+        final Throwable acquiredAt = new Throwable("Buffer acquired here");
+
+        LeakTracker(PooledBuffer buffer, ReferenceQueue<PooledBuffer> queue) {
+            super(buffer, queue);
+        }
+
+    }
+
+}
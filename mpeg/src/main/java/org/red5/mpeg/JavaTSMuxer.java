@@ -0,0 +1,209 @@
+package org.red5.mpeg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pure Java {@link TSMuxer}, writing the same packets as the native muxer without a JNI round trip. PAT and PMT are built
+ * once as packet templates and only their continuity counters are patched on output; continuity counters are kept per pid in
+ * a primitive array. H.264, HEVC, AAC (ADTS) and MPEG audio / video stream types are supported.
+ *
+ * @author Paul Gregoire
+ */
+public class JavaTSMuxer implements TSMuxer {
+
+    private static final int PACKET_SIZE = 188;
+
+    // the native muxers program map pid
+    private static final short PMT_PID = 100;
+
+    // frames between tables, random access frames always get them
+    private static final int TABLE_INTERVAL = 20;
+
+    public static final byte STREAM_TYPE_MPEG1_VIDEO = 0x01, STREAM_TYPE_MPEG1_AUDIO = 0x03, STREAM_TYPE_MPEG2_AUDIO = 0x04, STREAM_TYPE_AAC = 0x0f, STREAM_TYPE_H264 = 0x1b, STREAM_TYPE_HEVC = 0x24;
+
+    // crc32/mpeg-2 lookup
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    // pat then pmt
+    private final byte[] tables = new byte[PACKET_SIZE * 2];
+
+    // next continuity counter by pid
+    private final byte[] cc = new byte[0x2000];
+
+    private final int pmtPid;
+
+    private final int pcrPid;
+
+    private int tableIndex;
+
+    /**
+     * Creates a muxer for the pids and stream types of a configuration; unset stream types are AAC and H.264.
+     *
+     * @param config
+     */
+    public JavaTSMuxer(TSConfig config) {
+        pmtPid = config.pmtPid > 0 ? config.pmtPid : PMT_PID;
+        pcrPid = config.videoPid > 0 ? config.videoPid : config.audioPid;
+        byte videoType = config.videoStreamType != 0 ? config.videoStreamType : STREAM_TYPE_H264;
+        byte audioType = config.audioStreamType != 0 ? config.audioStreamType : STREAM_TYPE_AAC;
+        for (byte type : new byte[] { videoType, audioType }) {
+            switch (type) {
+                case STREAM_TYPE_MPEG1_VIDEO:
+                case STREAM_TYPE_MPEG1_AUDIO:
+                case STREAM_TYPE_MPEG2_AUDIO:
+                case STREAM_TYPE_AAC:
+                case STREAM_TYPE_H264:
+                case STREAM_TYPE_HEVC:
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported stream type " + type);
+            }
+        }
+        // pat, program 1
+        ByteBuffer pat = ByteBuffer.wrap(tables, 0, PACKET_SIZE);
+        pat.put((byte) 0x47).put((byte) 0x40).put((byte) 0x00).put((byte) 0x10).put((byte) 0);
+        pat.put((byte) 0x00).putShort((short) (0xb000 | 13)).putShort((short) 0).put((byte) 0xc1).put((byte) 0).put((byte) 0);
+        pat.putShort((short) 1).putShort((short) (0xe000 | pmtPid));
+        pat.putInt(crc(tables, 5, pat.position()));
+        fill(pat);
+        // pmt, streams in stream type order as the native muxer has them
+        ByteBuffer pmt = ByteBuffer.wrap(tables, PACKET_SIZE, PACKET_SIZE).slice();
+        int streams = (config.videoPid > 0 ? 1 : 0) + (config.audioPid > 0 ? 1 : 0);
+        pmt.put((byte) 0x47).put((byte) (0x40 | (pmtPid >> 8))).put((byte) pmtPid).put((byte) 0x10).put((byte) 0);
+        pmt.put((byte) 0x02).putShort((short) (0xb000 | (13 + streams * 5))).putShort((short) 1).put((byte) 0xc1).put((byte) 0).put((byte) 0);
+        pmt.putShort((short) (0xe000 | pcrPid)).putShort((short) 0xf000);
+        boolean videoFirst = (videoType & 0xff) < (audioType & 0xff);
+        for (int i = 0; i < 2; i++) {
+            boolean video = (i == 0) == videoFirst;
+            int pid = video ? config.videoPid : config.audioPid;
+            if (pid > 0) {
+                pmt.put(video ? videoType : audioType).putShort((short) (0xe000 | pid)).putShort((short) 0xf000);
+            }
+        }
+        pmt.putInt(crc(tables, PACKET_SIZE + 5, PACKET_SIZE + pmt.position()));
+        fill(pmt);
+    }
+
+    @Override
+    public int mux(ByteBuffer data, long pts, long dts, byte type, short pid, byte streamId, boolean randomAccess, ByteBuffer out) {
+        int length = data.remaining();
+        if (out.remaining() < getMaxOutput(length)) {
+            return -1;
+        }
+        int start = out.position();
+        if (randomAccess) {
+            tableIndex = 0;
+        }
+        if (tableIndex == 0) {
+            // pat and pmt share a counter, the native muxer does the same
+            byte counter = cc[0];
+            cc[0] = (byte) ((counter + 1) & 0x0f);
+            out.put(tables);
+            out.put(start + 3, (byte) (0x10 | counter));
+            out.put(start + PACKET_SIZE + 3, (byte) (0x10 | counter));
+        }
+        tableIndex = (tableIndex + 1) % TABLE_INTERVAL;
+        int dataPosition = data.position(), dataLimit = data.limit();
+        int offset = 0;
+        boolean first = true;
+        boolean both = pts != dts;
+        boolean pcr = pid == pcrPid;
+        try {
+            while (offset < length) {
+                // adaptation field content before stuffing, and the pes header
+                int adaptation = first && pcr ? 7 : first && randomAccess ? 1 : 0;
+                int pesHeader = first ? 9 + (both ? 10 : 5) : 0;
+                int room = PACKET_SIZE - 4 - (adaptation > 0 ? adaptation + 1 : 0) - pesHeader;
+                int payload = Math.min(room, length - offset);
+                int stuffing = room - payload;
+                byte counter = cc[pid];
+                cc[pid] = (byte) ((counter + 1) & 0x0f);
+                out.put((byte) 0x47).put((byte) ((first ? 0x40 : 0) | ((pid >> 8) & 0x1f))).put((byte) pid);
+                if (adaptation > 0 || stuffing > 0) {
+                    out.put((byte) (0x30 | counter));
+                    if (adaptation > 0) {
+                        out.put((byte) (adaptation + stuffing));
+                        out.put((byte) ((randomAccess ? 0x40 : 0) | (pcr ? 0x10 : 0)));
+                        if (pcr) {
+                            // the clock follows decode time on the pcr pid
+                            out.put((byte) (dts >> 25)).put((byte) (dts >> 17)).put((byte) (dts >> 9)).put((byte) (dts >> 1)).put((byte) ((dts << 7) | 0x7e)).put((byte) 0);
+                        }
+                        stuff(out, stuffing);
+                    } else {
+                        out.put((byte) (stuffing - 1));
+                        if (stuffing >= 2) {
+                            out.put((byte) 0);
+                            stuff(out, stuffing - 2);
+                        }
+                    }
+                } else {
+                    out.put((byte) (0x10 | counter));
+                }
+                if (first) {
+                    int pesSize = (both ? 10 : 5) + length + 3;
+                    out.put((byte) 0).put((byte) 0).put((byte) 1).put(streamId).putShort((short) (pesSize > 0xffff ? 0 : pesSize));
+                    out.put((byte) 0x81).put((byte) (both ? 0xc0 : 0x80)).put((byte) (both ? 10 : 5));
+                    if (both) {
+                        putTimestamp(out, 3, pts);
+                        putTimestamp(out, 1, dts);
+                    } else {
+                        putTimestamp(out, 2, pts);
+                    }
+                }
+                data.limit(dataPosition + offset + payload).position(dataPosition + offset);
+                out.put(data);
+                offset += payload;
+                first = false;
+            }
+        } finally {
+            data.limit(dataLimit).position(dataPosition);
+        }
+        return out.position() - start;
+    }
+
+    @Override
+    public int getMaxOutput(int length) {
+        return (int) MuxBatch.maxEncodedSize(length);
+    }
+
+    @Override
+    public void destroy() {
+    }
+
+    private static void putTimestamp(ByteBuffer out, int marker, long timestamp) {
+        out.put((byte) ((marker << 4) | (((timestamp >> 30) & 0x07) << 1) | 1));
+        out.putShort((short) ((((timestamp >> 15) & 0x7fff) << 1) | 1));
+        out.putShort((short) (((timestamp & 0x7fff) << 1) | 1));
+    }
+
+    private static void stuff(ByteBuffer out, int count) {
+        for (int i = 0; i < count; i++) {
+            out.put((byte) 0xff);
+        }
+    }
+
+    private static void fill(ByteBuffer packet) {
+        while (packet.position() < PACKET_SIZE) {
+            packet.put((byte) 0xff);
+        }
+    }
+
+    private static int crc(byte[] data, int from, int to) {
+        int crc = 0xffffffff;
+        for (int i = from; i < to; i++) {
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+}
@@ -1,22 +1,34 @@
 package org.red5.mpeg;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +45,9 @@ public class Main {
     // used in main for testing
     private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
 
+    // extracted libraries are readable by the other accounts sharing lib, as they were before extraction went via temp files
+    private static final Set<PosixFilePermission> LIBRARY_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+
     // debugging use
     @SuppressWarnings("unused")
     private static boolean debug;
@@ -100,13 +115,14 @@ public class Main {
                 log.warn("Exception determining jar name/path", e);
             }
             log.debug("Load library: {}", mpegPath);
+            long start = System.nanoTime();
             try {
                 if (mpegPath != null) {
                     System.load(mpegPath);
-                    log.info("Red5 MPEG library loaded via direct path");
+                    log.info("Red5 MPEG library loaded via direct path in {}us", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
                 } else {
                     System.loadLibrary(libraryName);
-                    log.info("Red5 MPEG library loaded");
+                    log.info("Red5 MPEG library loaded in {}us", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
                 }
             } catch (Exception e) {
                 log.warn("Exception loading: {}", mpegPath, e);
@@ -128,74 +144,92 @@ public class Main {
     }
 
     /**
-     * Extracts / deploys the shared libraries to the native library directory.
+     * Extracts / deploys the shared libraries to the native library directory. Libraries go into a sub-directory named
+     * for a digest of the jars library entries, taken from their names, sizes and checksums in the zip directory, so a
+     * directory only ever holds one build of them. Libraries already there are reused; any others are written to a
+     * temporary file and renamed into place, so a concurrent loader never sees a partial file.
      *
      * @param jarPath
      * @throws Exception
      */
     private static void extractShared(final String jarPath) throws Exception {
-        ZipInputStream zis = null;
-        try {
-            zis = new ZipInputStream(Files.newInputStream(Paths.get(jarPath)));
-            ZipEntry entry = null;
-            while ((entry = zis.getNextEntry()) != null) {
-                String entryName = entry.getName();
-                log.debug("Entry: {}", entryName);
-                String[] parts = entryName.split("/");
-                log.debug("Parts: {}", Arrays.toString(parts));
-                // ensure we're in the lib directory in the jar
-                if ("lib".equals(parts[0])) {
-                    if (parts.length == 3) {
-                        // check for our aol
-                        String aol = parts[1];
-                        if (osDescriptor.indexOf(aol) != -1) {
-                            log.debug("Extracting: {}", aol);
-                            // ensure the destination directory exists and if not create it
-                            Path jniDirectoryPath = Paths.get("lib", "mpeg");
-                            if (!Files.exists(jniDirectoryPath)) {
-                                log.debug("Creating directory for native libs: {}", jniDirectoryPath);
-                                Files.createDirectories(jniDirectoryPath);
-                            }
-                            // check the size since we dont want broken links (linux only issue)
-                            if (!entry.isDirectory()) {
-                                String libraryFileName = parts[parts.length - 1];
-                                String filePath = String.format("%s%s%s", jniDirectoryPath.toAbsolutePath(), File.separatorChar, libraryFileName);
-                                log.debug("Extract {} to {}", libraryFileName, filePath);
-                                extractFile(zis, filePath);
-                                zis.closeEntry();
-                                log.info("Storing library path: {}", filePath);
-                                if (filePath.contains("red5-mpeg")) {
-                                    mpegPath = filePath;
-                                }
-                            } else {
-                                log.debug("Skipping directory");
-                            }
-                        }
-                    }
+        long start = System.nanoTime();
+        try (ZipFile jar = new ZipFile(jarPath)) {
+            List<ZipEntry> libraries = new ArrayList<>();
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Enumeration<? extends ZipEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String[] parts = entry.getName().split("/");
+                // ensure we're in the lib directory in the jar and its for our aol
+                if (parts.length == 3 && "lib".equals(parts[0]) && osDescriptor.indexOf(parts[1]) != -1 && !entry.isDirectory()) {
+                    log.debug("Entry: {}", entry.getName());
+                    libraries.add(entry);
+                    digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+                    digest.update(ByteBuffer.allocate(16).putLong(entry.getSize()).putLong(entry.getCrc()).array());
                 }
             }
-        } finally {
-            if (zis != null) {
-                zis.close();
+            String key = byteArrayToHexString(Arrays.copyOf(digest.digest(), 8)).toLowerCase();
+            Path jniDirectoryPath = Paths.get("lib", "mpeg", key).toAbsolutePath();
+            Files.createDirectories(jniDirectoryPath);
+            log.debug("Library directory: {} digest took {}us", jniDirectoryPath, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            int extracted = 0;
+            for (ZipEntry entry : libraries) {
+                String entryName = entry.getName();
+                Path filePath = jniDirectoryPath.resolve(entryName.substring(entryName.lastIndexOf('/') + 1));
+                if (Files.isRegularFile(filePath) && Files.size(filePath) == entry.getSize()) {
+                    log.debug("Reusing {}", filePath);
+                } else {
+                    long extractStart = System.nanoTime();
+                    extractFile(jar, entry, filePath);
+                    extracted++;
+                    log.debug("Extracted {} to {} in {}us", entryName, filePath, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - extractStart));
+                }
+                log.info("Storing library path: {}", filePath);
+                if (filePath.getFileName().toString().contains("red5-mpeg")) {
+                    mpegPath = filePath.toString();
+                }
             }
+            log.info("Libraries ready in {}us, {} of {} extracted", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), extracted, libraries.size());
         }
     }
 
     /**
-     * Extracts a zip entry (file entry).
+     * Extracts a zip entry (file entry) via a temporary file in the same directory, which is then moved into place. If a
+     * complete copy is already in place, such as one extracted by another webapp at the same time, it is kept.
      * 
-     * @param zipIn
+     * @param jar
+     * @param entry
      * @param filePath
      * @throws IOException
      */
-    private static void extractFile(ZipInputStream zipIn, String filePath) throws IOException {
-        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(filePath));
-        byte[] bytesIn = new byte[4096];
-        int read = 0;
-        while ((read = zipIn.read(bytesIn)) != -1) {
-            bos.write(bytesIn, 0, read);
+    private static void extractFile(ZipFile jar, ZipEntry entry, Path filePath) throws IOException {
+        Path tmpPath = Files.createTempFile(filePath.getParent(), filePath.getFileName().toString(), ".tmp");
+        try {
+            try (InputStream in = jar.getInputStream(entry)) {
+                Files.copy(in, tmpPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            // temp files are created owner only and the move keeps that
+            if (Files.getFileAttributeView(tmpPath, PosixFileAttributeView.class) != null) {
+                Files.setPosixFilePermissions(tmpPath, LIBRARY_PERMISSIONS);
+            }
+            try {
+                // no replacing, on windows that fails for a library another loader already has open
+                Files.move(tmpPath, filePath);
+            } catch (FileAlreadyExistsException | AccessDeniedException e) {
+                if (Files.isRegularFile(filePath) && Files.size(filePath) == entry.getSize()) {
+                    // a racing loader moved its copy into place first
+                    log.debug("{} was extracted concurrently", filePath);
+                } else if (e instanceof FileAlreadyExistsException) {
+                    // left over from an interrupted extraction
+                    Files.move(tmpPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    throw e;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tmpPath);
         }
-        bos.close();
     }
 
     public final static byte[] intArrayToByteArray(int... ints) {
@@ -216,14 +250,79 @@ public class Main {
         return new String(hexChars);
     }
 
+    /**
+     * Compares the java and native muxers on the same frames, after checking they write the same packets.
+     * 
+     * @param frames number of frames to mux per run
+     */
+    private static void bench(int frames) {
+        Main.loadLibrary();
+        // the configuration the egress, recorder and segmenter use
+        TSConfig config = new TSConfig();
+        config.pmtPid = (short) 4096;
+        config.audioPid = (short) 257;
+        config.audioStreamType = 0x0f;
+        config.videoPid = (short) 256;
+        config.videoStreamType = 0x1b;
+        // a keyframe and p-frames at 30 fps with aac in between
+        int[] sizes = { 60000, 8000, 8000, 400, 8000, 8000, 400 };
+        ByteBuffer input = ByteBuffer.allocateDirect(60000);
+        new Random(7).ints(60000).forEach(i -> input.put((byte) i));
+        ByteBuffer out = ByteBuffer.allocateDirect((int) MuxBatch.maxEncodedSize(60000));
+        ByteBuffer check = ByteBuffer.allocateDirect(out.capacity());
+        for (boolean javaMuxer : new boolean[] { true, false }) {
+            config.javaMuxer = javaMuxer;
+            TSMuxer muxer = TSMuxer.build(config);
+            config.javaMuxer = !javaMuxer;
+            TSMuxer other = TSMuxer.build(config);
+            // warm up, comparing output along the way
+            for (int i = 0; i < frames; i++) {
+                benchFrame(muxer, input, sizes, i, out);
+                benchFrame(other, input, sizes, i, check);
+                out.flip();
+                check.flip();
+                if (!out.equals(check)) {
+                    System.out.printf("Muxers differ at frame %d%n", i);
+                    break;
+                }
+            }
+            for (int run = 0; run < 5; run++) {
+                long bytes = 0L, start = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    bytes += benchFrame(muxer, input, sizes, i, out);
+                }
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("%s muxer: %.0f ns/frame, %.1f MB/s%n", javaMuxer ? "Java" : "Native", (double) elapsed / frames, bytes * 1000d / elapsed);
+            }
+            muxer.destroy();
+            other.destroy();
+        }
+    }
+
+    private static int benchFrame(TSMuxer muxer, ByteBuffer input, int[] sizes, int i, ByteBuffer out) {
+        int size = sizes[i % sizes.length];
+        boolean video = size != 400;
+        long pts = i * 3000L;
+        input.clear().limit(size);
+        out.clear();
+        return muxer.mux(input, pts, video ? pts - 3000L : pts, video ? (byte) 0x1b : (byte) 0x0f, video ? (short) 256 : (short) 257, video ? (byte) 0xe0 : (byte) 0xc0, size == 60000, out);
+    }
+
     public static void main(String[] args) throws Exception {
         log.info("MPEG Main");
+        if (args != null && args.length > 0 && "bench".equals(args[0])) {
+            // Main bench [frames]
+            bench(args.length > 1 ? Integer.parseInt(args[1]) : 100000);
+            return;
+        }
         // AAC audio (15)
         byte TYPE_AUDIO = 0x0f;
         // h264 video (27)
         byte TYPE_VIDEO = 0x1b;
         // set debugging flag
         debug = true;
+        // report pooled buffers which are never released
+        BufferPool.setLeakDetection(true);
         if (args != null && args.length > 0) {
             boolean testBytes = "testBytes".equals(args[1]);
             Path testFile = null;
@@ -244,57 +343,39 @@ public class Main {
             TSReceiver receiver = handler.getReceiver();
             // write a ts file for testing post-test
             RandomAccessFile tsOutFile = new RandomAccessFile("target/out.ts", "rw");
-            // get the receiver thread
-            Thread recv = new Thread(() -> {
-                long apts = 0L, vpts = 0L;
-                do {
-                    TSPacket pkt = receiver.getNext();
-                    if (pkt != null) {
-                        log.info("Received: {}", pkt.getPayload().length);
-                        // write a ts file for testing post-test
-                        if (pkt.isMpegTs()) {
-                            try {
-                                tsOutFile.write(pkt.getPayload());
-                            } catch (IOException e) {
-                                log.warn("Exception writing to ts output file", e);
-                            }
-                        } else {
-                            // if the payload isn't muxed, mux it
-                            byte type = 0;
-                            short pid = 0;
-                            if (pkt.isAudio()) {
-                                type = TYPE_AUDIO;
-                                pid = config.audioPid;
-                                // calculate pts
-                                apts += 48000 / 60;
-                                // mux audio
-                                handler.mux(pkt.getPayload(), apts, type, pid, (byte) 0xc0);
-                            } else if (pkt.isVideo()) {
-                                type = TYPE_VIDEO;
-                                pid = config.videoPid;
-                                // calculate pts
-                                vpts += 90000 / 60;
-                                // mux video
-                                handler.mux(pkt.getPayload(), vpts, type, pid, (byte) 0xe0);
-                            }
-                        }
-                    } else {
-                        try {
-                            Thread.sleep(10L);
-                        } catch (Exception e) {
-                            // no op
-                        }
+            // packets are pushed to a single delivery thread so muxing doesn't re-enter the demuxer callback
+            ExecutorService delivery = Executors.newSingleThreadExecutor();
+            final long[] pts = new long[2];
+            TSSubscriber.Subscription subscription = receiver.addListener(pkt -> {
+                log.info("Received: {}", pkt.getLength());
+                // write a ts file for testing post-test
+                if (pkt.isMpegTs()) {
+                    try {
+                        tsOutFile.write(pkt.getData(), 0, pkt.getLength());
+                    } catch (IOException e) {
+                        log.warn("Exception writing to ts output file", e);
+                    }
+                } else {
+                    // if the payload isn't muxed, mux it
+                    byte type = 0;
+                    short pid = 0;
+                    if (pkt.isAudio()) {
+                        type = TYPE_AUDIO;
+                        pid = config.audioPid;
+                        // calculate pts
+                        pts[0] += 48000 / 60;
+                        // mux audio
+                        handler.mux(pkt.getPayload(), pts[0], type, pid, (byte) 0xc0);
+                    } else if (pkt.isVideo()) {
+                        type = TYPE_VIDEO;
+                        pid = config.videoPid;
+                        // calculate pts
+                        pts[1] += 90000 / 60;
+                        // mux video
+                        handler.mux(pkt.getPayload(), pts[1], type, pid, (byte) 0xe0);
                     }
-                } while (debug);
-                // close the output file
-                try {
-                    tsOutFile.close();
-                } catch (IOException e) {
-                    // log.warn("Exception closing ts output file", e);
                 }
-            }, "ReceiveHandler");
-            recv.setDaemon(true);
-            recv.start();
+            }, delivery);
             if (testBytes) {
                 // ts test data
                 ByteBuffer tsDataBuffer = ByteBuffer.wrap(Main.intArrayToByteArray(71, 64, 17, 16, 0, 66, -16, 37, 0, 1, -63, 0, 0, -1, 1, -1, 0, 1, -4, -128, 20, 72, 18, 1, 6, 70, 70, 109, 112, 101, 103, 9, 83, 101, 114, 118, 105, 99, 101, 48, 49, 119, 124, 67, -54, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1,
@@ -350,10 +431,18 @@ public class Main {
             // wait a few ticks
             Thread.sleep(7000L);
             debug = false;
-            recv.join(100L);
+            subscription.cancel();
+            delivery.shutdown();
+            delivery.awaitTermination(100L, TimeUnit.MILLISECONDS);
+            // close the output file
+            try {
+                tsOutFile.close();
+            } catch (IOException e) {
+                // log.warn("Exception closing ts output file", e);
+            }
             log.info("Finished");
         } else {
-            System.out.println("Usage: Main [name]");
+            System.out.println("Usage: Main [name] [testBytes|file] or Main bench [frames]");
         }
     }
 
@@ -0,0 +1,98 @@
+package org.red5.mpeg;
+
+import java.util.Arrays;
+
+/**
+ * Index of the frames to be muxed in one call of {@link TSHandler#mux(java.nio.ByteBuffer, MuxBatch, java.nio.ByteBuffer)}.
+ * Each frame is described by six longs, laid out as the native side reads them: offset and length within the input buffer,
+ * pts, dts, pid / stream type / stream id packed together and flags. Batches are meant to be cleared and reused.
+ *
+ * @author Paul Gregoire
+ */
+public class MuxBatch {
+
+    // longs per frame
+    private static final int FIELDS = 6;
+
+    private static final long RANDOM_ACCESS = 1L;
+
+    private long[] index;
+
+    private int size;
+
+    // worst case bytes written for the frames added so far
+    private long maxOutput;
+
+    public MuxBatch() {
+        this(16);
+    }
+
+    public MuxBatch(int frames) {
+        index = new long[Math.max(1, frames) * FIELDS];
+    }
+
+    /**
+     * Adds a frame.
+     *
+     * @param offset start of the frame in the input buffer
+     * @param length
+     * @param pts presentation timestamp
+     * @param dts decode timestamp
+     * @param type stream type
+     * @param pid
+     * @param streamId
+     * @param randomAccess
+     */
+    public void add(int offset, int length, long pts, long dts, byte type, short pid, byte streamId, boolean randomAccess) {
+        int i = size * FIELDS;
+        if (i + FIELDS > index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        index[i] = offset;
+        index[i + 1] = length;
+        index[i + 2] = pts;
+        index[i + 3] = dts;
+        index[i + 4] = ((pid & 0x1fffL) << 16) | ((type & 0xffL) << 8) | (streamId & 0xffL);
+        index[i + 5] = randomAccess ? RANDOM_ACCESS : 0L;
+        size++;
+        maxOutput += maxEncodedSize(length);
+    }
+
+    /**
+     * Returns the most bytes a frame of the given length is muxed into; matches the native bound, the tables then a first
+     * packet with room for at least 157 bytes.
+     *
+     * @param length
+     * @return bytes
+     */
+    public static long maxEncodedSize(int length) {
+        long packets = 3L;
+        if (length > 157) {
+            packets += (length - 157 + 183) / 184;
+        }
+        return packets * 188L;
+    }
+
+    public void clear() {
+        size = 0;
+        maxOutput = 0L;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the most bytes the frames in this batch can be muxed into.
+     *
+     * @return bytes
+     */
+    public long getMaxOutput() {
+        return maxOutput;
+    }
+
+    long[] getIndex() {
+        return index;
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.red5.mpeg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link TSMuxer} backed by the native muxer, one frame per batched call. Frames on the heap are copied into a direct
+ * staging buffer first, as the native side reads the input in place.
+ *
+ * @author Paul Gregoire
+ */
+public class NativeTSMuxer implements TSMuxer {
+
+    private final TSHandler handler;
+
+    private final MuxBatch batch = new MuxBatch(1);
+
+    // direct copy of heap frames
+    private PooledBuffer staging;
+
+    private NativeTSMuxer(TSHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Builder for a new muxer.
+     *
+     * @param config
+     * @return muxer or null if the handler couldn't be created
+     */
+    public static NativeTSMuxer build(TSConfig config) {
+        TSHandler handler = TSHandler.build(config);
+        return handler != null ? new NativeTSMuxer(handler) : null;
+    }
+
+    @Override
+    public int mux(ByteBuffer data, long pts, long dts, byte type, short pid, byte streamId, boolean randomAccess, ByteBuffer out) {
+        ByteBuffer input = data;
+        int offset = data.position(), length = data.remaining();
+        if (!data.isDirect()) {
+            if (staging == null || staging.buffer().capacity() < length) {
+                if (staging != null) {
+                    staging.release();
+                }
+                staging = BufferPool.getInstance().acquire(length);
+            }
+            input = staging.buffer();
+            input.clear();
+            input.put(data.duplicate());
+            offset = 0;
+        }
+        batch.clear();
+        batch.add(offset, length, pts, dts, type, pid, streamId, randomAccess);
+        return handler.mux(input, batch, out);
+    }
+
+    @Override
+    public int getMaxOutput(int length) {
+        return (int) MuxBatch.maxEncodedSize(length);
+    }
+
+    @Override
+    public void destroy() {
+        handler.destroy();
+        if (staging != null) {
+            staging.release();
+            staging = null;
+        }
+    }
+
+    public TSHandler getHandler() {
+        return handler;
+    }
+
+}
@@ -7,12 +7,10 @@ import java.util.*;
  */
 public enum PayloadType {
 
-    TYPE_UNKNOWN(0), TYPE_AUDIO(8), TYPE_VIDEO(9), TYPE_META(12), TYPE_I420('I', '4', '2', '0'), TYPE_ADTS('A', 'D', 'T', 'S'),
-    TYPE_H264('H', '2', '6', '4'), TYPE_HEVC('H', 'E', 'V', 'C'),
-    TYPE_MP2A(('M'<<24) | ('P'<<16) | ('2'<<8) | 'A'), TYPE_MP1V(('M'<<24) | ('P'<<16) | ('1'<<8) | 'V'),
-    TYPE_ID3(('I'<<24) | ('D'<<16) | ('3'<<8) | ' '), TYPE_KLV(('K'<<24) | ('L'<<16) | ('V'<<8) | 'A');
+    TYPE_UNKNOWN(TypeIds.UNKNOWN), TYPE_AUDIO(TypeIds.AUDIO), TYPE_VIDEO(TypeIds.VIDEO), TYPE_META(TypeIds.META), TYPE_I420(TypeIds.I420), TYPE_ADTS(TypeIds.ADTS),
+    TYPE_H264(TypeIds.H264), TYPE_HEVC(TypeIds.HEVC), TYPE_MP2A(TypeIds.MP2A), TYPE_MP1V(TypeIds.MP1V), TYPE_ID3(TypeIds.ID3), TYPE_KLV(TypeIds.KLV);
 
-    public final Integer typeId;
+    public final int typeId;
 
     static final Map<Integer, PayloadType> BY_VALUE = new HashMap<>();
 
@@ -22,11 +20,6 @@ public enum PayloadType {
         }
     }
 
-    PayloadType(char... typeArray) {
-        // big-endian to match C/C++ side
-        this.typeId = ((typeArray[0] << 24) | (typeArray[1] << 16) | (typeArray[2] << 8) | typeArray[3]);
-    }
-
     PayloadType(int typeId) {
         this.typeId = typeId;
     }
@@ -38,4 +31,40 @@ public enum PayloadType {
     public static PayloadType valueOfTypeId(int typeId) {
         return BY_VALUE.get(typeId);
     }
+
+    /**
+     * Type identifiers as compile-time constants, for switching on the primitive id without a map lookup. FourCC values are
+     * big-endian to match the C/C++ side.
+     */
+    public static final class TypeIds {
+
+        public static final int UNKNOWN = 0;
+
+        public static final int AUDIO = 8;
+
+        public static final int VIDEO = 9;
+
+        public static final int META = 12;
+
+        public static final int I420 = ('I' << 24) | ('4' << 16) | ('2' << 8) | '0';
+
+        public static final int ADTS = ('A' << 24) | ('D' << 16) | ('T' << 8) | 'S';
+
+        public static final int H264 = ('H' << 24) | ('2' << 16) | ('6' << 8) | '4';
+
+        public static final int HEVC = ('H' << 24) | ('E' << 16) | ('V' << 8) | 'C';
+
+        public static final int MP2A = ('M' << 24) | ('P' << 16) | ('2' << 8) | 'A';
+
+        public static final int MP1V = ('M' << 24) | ('P' << 16) | ('1' << 8) | 'V';
+
+        public static final int ID3 = ('I' << 24) | ('D' << 16) | ('3' << 8) | ' ';
+
+        public static final int KLV = ('K' << 24) | ('L' << 16) | ('V' << 8) | 'A';
+
+        private TypeIds() {
+        }
+
+    }
+
 }
\ No newline at end of file
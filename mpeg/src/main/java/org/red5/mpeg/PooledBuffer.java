@@ -0,0 +1,133 @@
+package org.red5.mpeg;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted off-heap buffer obtained from a {@link BufferPool}. The buffer starts with a count of one; each
+ * additional consumer calls {@link #retain()} and every holder calls {@link #release()} when finished. When the count
+ * reaches zero the buffer goes back to its pool and must no longer be touched.
+ *
+ * @author Paul Gregoire
+ */
+public class PooledBuffer {
+
+    // owning pool
+    private final BufferPool pool;
+
+    // index of the size class this buffer belongs to, -1 if its too large to be pooled
+    final int sizeClass;
+
+    private final ByteBuffer buffer;
+
+    private final AtomicInteger refCnt = new AtomicInteger();
+
+    // leak tracker for the current use, only set when leak detection is enabled
+    Object tracker;
+
+    PooledBuffer(BufferPool pool, int sizeClass, int capacity) {
+        this.pool = pool;
+        this.sizeClass = sizeClass;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    // called by the pool as the buffer is handed out
+    void acquired() {
+        buffer.clear();
+        refCnt.set(1);
+    }
+
+    /**
+     * Adds a reference for another consumer.
+     *
+     * @return this buffer
+     */
+    public PooledBuffer retain() {
+        return retain(1);
+    }
+
+    /**
+     * Adds several references at once, as when fanning out to a number of consumers.
+     *
+     * @param increment
+     * @return this buffer
+     */
+    public PooledBuffer retain(int increment) {
+        for (;;) {
+            int count = refCnt.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer has already been released");
+            }
+            if (refCnt.compareAndSet(count, count + increment)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Removes several references at once.
+     *
+     * @param decrement
+     * @return true if the buffer was returned to the pool
+     */
+    public boolean release(int decrement) {
+        for (;;) {
+            int count = refCnt.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Buffer has already been released");
+            }
+            if (count < decrement) {
+                throw new IllegalStateException("Buffer has fewer references than are being released");
+            }
+            if (refCnt.compareAndSet(count, count - decrement)) {
+                if (count == decrement) {
+                    pool.recycle(this);
+                    return true;
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes a reference, returning the buffer to its pool when it was the last one.
+     *
+     * @return true if the buffer was returned to the pool
+     */
+    public boolean release() {
+        return release(1);
+    }
+
+    /**
+     * Returns the underlying buffer. Writers fill and flip it before handing it to consumers; consumers should read via
+     * {@link #duplicate()} so that they don't disturb each others position.
+     *
+     * @return direct buffer
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns an independent view of the content.
+     *
+     * @return read-only view sharing the off-heap content
+     */
+    public ByteBuffer duplicate() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the number of readable bytes.
+     *
+     * @return remaining bytes
+     */
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+
+}
@@ -21,9 +21,22 @@ public class TSConfig {
     // mpeg-ts es data stream id
     public byte streamId = (byte) 0xe0; // default id, start of video range
 
+    // pmt stream types for the muxed audio and video (0 = aac / h264)
+    public byte audioStreamType, videoStreamType;
+
     // used for connection identification
     public int connectionId;
 
+    // mux with the pure java muxer rather than the native one, see TSMuxer
+    public boolean javaMuxer;
+
+    // receiver queue options
+    public int queueCapacity = TSReceiver.DEFAULT_CAPACITY;
+
+    public PacketRing.WaitStrategy waitStrategy = PacketRing.WaitStrategy.PARK;
+
+    public PacketRing.OverflowPolicy overflowPolicy = PacketRing.OverflowPolicy.DROP_NON_KEYFRAME;
+
     public String getName() {
         return name;
     }
@@ -1,5 +1,7 @@
 package org.red5.mpeg;
 
+import java.nio.ByteBuffer;
+
 /**
  * Decodes media / data via TS handler.
  * 
@@ -27,32 +29,59 @@ public class TSHandler {
     private static native long createHandler(TSConfig config, TSReceiver receiver);
 
     /**
-     * Decode audio data via the TS handler matching the given id.
+     * Append MP2 audio to the streaming decoder of the TS handler matching the given id and decode the next frame.
      * 
      * @param id handler id
      * @param data
-     * @return true if the decoder accepts and false if something failed
+     * @param length bytes of data to append
+     * @param pcm
+     * @return samples per channel, 0 if more data is needed or -1 if something failed
      */
-    private native boolean decodeAudio(long id, short[] data);
+    private native int decodeAudio(long id, byte[] data, int length, short[] pcm);
 
     /**
-     * Decode video data via the TS handler matching the given id.
+     * Append MPEG-1 video to the streaming decoder of the TS handler matching the given id and decode the next picture.
      * 
      * @param id handler id
      * @param data
-     * @return true if the decoder accepts and false if something failed
+     * @param length bytes of data to append
+     * @param frame direct buffer
+     * @param offset
+     * @return picture size in bytes, 0 if more data is needed or -1 if something failed
      */
-    private native boolean decodeVideo(long id, byte[] data);
+    private native int decodeVideo(long id, byte[] data, int length, ByteBuffer frame, int offset);
+
+    private native int getVideoWidth(long id);
+
+    private native int getVideoHeight(long id);
+
+    private native int getSampleRate(long id);
 
     /**
      * Demux MPEG-TS data via the TS handler matching the given id.
      */
     private native void demux(long id, byte[] data);
 
+    /**
+     * Demux MPEG-TS data held in a direct buffer via the TS handler matching the given id; the content is read in place.
+     */
+    private native void demuxDirect(long id, ByteBuffer data, int offset, int length);
+
     /**
      * Mux data into MPEG-TS via the TS handler matching the given id.
      */
-    private native void mux(long id, byte[] data, long pts, byte type, short pid, byte streamId);
+    private native void mux(long id, byte[] data, int length, long pts, long dts, byte type, short pid, byte streamId, boolean randomAccess);
+
+    /**
+     * Mux a batch of frames from a direct buffer into another via the TS handler matching the given id, returning the bytes
+     * written.
+     */
+    private native int muxBatch(long id, ByteBuffer input, long[] index, int count, ByteBuffer output, int offset, int capacity);
+
+    /**
+     * Returns the bytes of native memory held by the TS handler matching the given id.
+     */
+    private native long getNativeMemory(long id);
 
     /**
      * Destroys the handler matching the given id.
@@ -62,30 +91,70 @@ public class TSHandler {
     private native void destroy(long id);
 
     /**
-     * Destroys the handler.
+     * Destroys the handler and completes any subscribers of its receiver.
      */
     public void destroy() {
         destroy(handlerId);
+        if (receiver != null) {
+            receiver.complete();
+        }
     }
 
     /**
-     * Decode video.
+     * Decode MPEG-1 video. The data is appended to the decoders buffer and the next complete picture, if any, is written
+     * as I420 to the frame buffer from its position; the position is not modified. A picture is only complete once the
+     * start of the next one has arrived and pictures come out in display order, so output trails input by a picture or
+     * two; when data holds several pictures call again with an empty array to drain them.
      * 
-     * @param data
-     * @return true if the decoder accepts and false if something failed
+     * @param data elementary stream data, may be empty
+     * @param frame direct buffer with room for width * height * 3 / 2 bytes
+     * @return picture size in bytes, 0 if more data is needed or -1 if the buffer is too small
      */
-    public boolean decode(byte[] data) {
-        return decodeVideo(handlerId, data);
+    public int decode(byte[] data, ByteBuffer frame) {
+        if (!frame.isDirect()) {
+            throw new IllegalArgumentException("Buffer must be direct");
+        }
+        return decodeVideo(handlerId, data, data.length, frame, frame.position());
     }
-    
+
     /**
-     * Decode audio.
+     * Decode MP2 audio. The data is appended to the decoders buffer and the next complete frame, if any, is written to
+     * the pcm array as interleaved 16 bit stereo; mono sources are written to both channels. When data holds several
+     * frames call again with an empty array to drain them.
      * 
-     * @param data
-     * @return true if the decoder accepts and false if something failed
+     * @param data elementary stream data, may be empty
+     * @param pcm array with room for 2304 samples
+     * @return samples per channel, 0 if more data is needed or -1 if the array is too small
+     */
+    public int decode(byte[] data, short[] pcm) {
+        return decodeAudio(handlerId, data, data.length, pcm);
+    }
+
+    /**
+     * Returns the width of the decoded video, 0 until a sequence header has been decoded.
+     * 
+     * @return width
+     */
+    public int getVideoWidth() {
+        return getVideoWidth(handlerId);
+    }
+
+    /**
+     * Returns the height of the decoded video, 0 until a sequence header has been decoded.
+     * 
+     * @return height
+     */
+    public int getVideoHeight() {
+        return getVideoHeight(handlerId);
+    }
+
+    /**
+     * Returns the sample rate of the decoded audio, 0 until a frame header has been decoded.
+     * 
+     * @return sample rate
      */
-    public boolean decode(short[] data) {
-        return decodeAudio(handlerId, data);
+    public int getSampleRate() {
+        return getSampleRate(handlerId);
     }
 
     /**
@@ -97,6 +166,19 @@ public class TSHandler {
         demux(handlerId, data);
     }
 
+    /**
+     * Demux TS data from the position to the limit of a direct buffer, without copying it onto the java heap. The buffers
+     * position is not modified. If data is demuxed, it is returned via the receiver.
+     * 
+     * @param data direct buffer
+     */
+    public void demux(ByteBuffer data) {
+        if (!data.isDirect()) {
+            throw new IllegalArgumentException("Buffer must be direct");
+        }
+        demuxDirect(handlerId, data, data.position(), data.remaining());
+    }
+
     /**
      * Mux TS data. If data is muxed, it is returned via the receiver.
      * 
@@ -106,7 +188,7 @@ public class TSHandler {
      * @param pid 
      */
     public void mux(byte[] data, long pts, byte type, short pid) {
-        mux(handlerId, data, pts, type, pid, config.streamId);
+        mux(handlerId, data, data.length, pts, pts, type, pid, config.streamId, false);
     }
 
     /**
@@ -119,7 +201,61 @@ public class TSHandler {
      * @param streamId
      */
     public void mux(byte[] data, long pts, byte type, short pid, byte streamId) {
-        mux(handlerId, data, pts, type, pid, streamId);
+        mux(handlerId, data, data.length, pts, pts, type, pid, streamId, false);
+    }
+
+    /**
+     * Mux TS data. If data is muxed, it is returned via the receiver. Random access frames are marked as such in the
+     * adaptation field and are preceded by the PAT and PMT, so output cut ahead of one can be decoded on its own.
+     * 
+     * @param data
+     * @param length bytes of data to mux
+     * @param pts presentation timestamp
+     * @param dts decode timestamp
+     * @param type stream type
+     * @param pid 
+     * @param streamId
+     * @param randomAccess
+     * @throws IndexOutOfBoundsException if length is negative or past the end of data
+     */
+    public void mux(byte[] data, int length, long pts, long dts, byte type, short pid, byte streamId, boolean randomAccess) {
+        // the native side reads length bytes without checking them against the array
+        if (length < 0 || length > data.length) {
+            throw new IndexOutOfBoundsException("Length " + length + " out of bounds for " + data.length + " bytes");
+        }
+        mux(handlerId, data, length, pts, dts, type, pid, streamId, randomAccess);
+    }
+
+    /**
+     * Mux a batch of frames straight into a direct buffer. Unlike the other mux methods nothing is returned via the
+     * receiver and no arrays are created; the packets, led by the PAT and PMT when they are due, are written from the
+     * output buffers position which is then advanced. Nothing is written unless the output has room for
+     * {@link MuxBatch#getMaxOutput()} bytes.
+     * 
+     * @param input direct buffer holding the frames at the offsets given in the batch
+     * @param batch
+     * @param output direct buffer
+     * @return bytes written or -1 if the output is too small or the batch doesn't match the input
+     */
+    public int mux(ByteBuffer input, MuxBatch batch, ByteBuffer output) {
+        if (!input.isDirect() || !output.isDirect()) {
+            throw new IllegalArgumentException("Buffers must be direct");
+        }
+        int written = muxBatch(handlerId, input, batch.getIndex(), batch.size(), output, output.position(), output.remaining());
+        if (written > 0) {
+            output.position(output.position() + written);
+        }
+        return written;
+    }
+
+    /**
+     * Returns the bytes of native memory held by the handler: its demux input and mux output, which are reused from call
+     * to call and only grow to the largest seen, and its decoders.
+     * 
+     * @return bytes
+     */
+    public long getNativeMemory() {
+        return getNativeMemory(handlerId);
     }
 
     /**
@@ -147,7 +283,7 @@ public class TSHandler {
      * @return TSHandler if no errors occur, otherwise return null
      */
     public static TSHandler build(TSConfig config) {
-        final TSReceiver receiver = new TSReceiver();
+        final TSReceiver receiver = new TSReceiver(config.queueCapacity, config.waitStrategy, config.overflowPolicy);
         long handlerId = createHandler(config, receiver);
         if (handlerId > 0) {
             TSHandler handler = new TSHandler(handlerId);
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
@@ -34,6 +35,7 @@ import org.red5.server.api.stream.IStreamService;
 import org.red5.server.net.rtmp.RTMPConnection;
 import org.red5.server.net.rtmp.codec.RTMP;
 import org.red5.server.net.rtmp.event.*;
+import org.red5.server.net.rtmp.message.Constants;
 import org.red5.server.net.rtmp.message.Packet;
 import org.red5.server.plugin.PluginRegistry;
 import org.red5.server.scope.Scope;
@@ -42,6 +44,11 @@ import org.red5.server.stream.IProviderService;
 import org.red5.server.stream.StreamService;
 import org.red5.server.util.ScopeUtils;
 
+import org.red5.mpeg.codec.StreamTranscoder;
+import org.red5.mpeg.codec.ThumbnailGenerator;
+import org.red5.mpeg.dvr.TSRecorder;
+import org.red5.mpeg.egress.UdpRelay;
+import org.red5.mpeg.hls.HlsSegmenter;
 import org.red5.mpeg.ws.WebSocketRouter;
 
 /**
@@ -62,9 +69,24 @@ public class TSIngestConnection extends RTMPConnection {
     // largest chunk size we'll attempt to read at once
     private static int datagramSize = 8192;
 
+    // off-heap buffers for received datagrams
+    private static BufferPool bufferPool = BufferPool.getInstance();
+
+    // whether preview images are kept for each ingest
+    private static boolean thumbnails = true;
+
+    // whether each ingest is segmented for HLS viewers
+    private static boolean hls = true;
+
+    // whether each ingest is recorded to disk
+    private static boolean recording;
+
     // socket idle timeout value in milliseconds (default 2 minutes)
     public static long socketIdleTimeout = 2 * (60 * 1000);
 
+    // longest a stopping listener waits for its receive loop to exit, in milliseconds
+    private static final long RECEIVE_EXIT_TIMEOUT = 5000L;
+
     // host to listen on
     private String host;
 
@@ -77,6 +99,18 @@ public class TSIngestConnection extends RTMPConnection {
     // whether or not we're proxying mpeg-ts directly to WebSocket connections
     private boolean wsProxy = true;
 
+    // whether or not WebSocket connections get the ingest transcoded to MPEG-1 rather than as-is
+    private boolean transcode;
+
+    // destinations the ingest is forwarded to as-is
+    private List<InetSocketAddress> relayDestinations = new ArrayList<>();
+
+    // window in milliseconds for batching frames into aggregates (0 = dispatch each frame)
+    private int aggregateWindow;
+
+    // largest aggregate body we'll build before flushing
+    private static int aggregateMaxSize = 256 * 1024;
+
     // fourCC codes for audio, video, and metadata
     private int audioFourCC, videoFourCC, metadataFourCC;
 
@@ -105,6 +139,7 @@ public class TSIngestConnection extends RTMPConnection {
 
     public boolean init(IScope scope, String streamName, String host, int port, int audioFourCC, int videoFourCC, int metadataFourCC) {
         // initialize connection properties
+        this.streamName = streamName;
         this.host = host;
         this.port = port;
         if (audioFourCC > 0) {
@@ -221,10 +256,58 @@ public class TSIngestConnection extends RTMPConnection {
         this.multicast = multicast;
     }
 
+    public void setAggregateWindow(int aggregateWindow) {
+        this.aggregateWindow = aggregateWindow;
+    }
+
+    public void setTranscode(boolean transcode) {
+        this.transcode = transcode;
+    }
+
+    /**
+     * Adds a destination the received datagrams are forwarded to unchanged; must be called before init.
+     *
+     * @param host unicast or multicast address
+     * @param port
+     */
+    public void addRelayDestination(String host, int port) {
+        relayDestinations.add(InetSocketAddress.createUnresolved(host, port));
+    }
+
+    /**
+     * Returns the relay forwarding the ingest, if there are destinations.
+     *
+     * @return relay or null
+     */
+    public UdpRelay getRelay() {
+        return listener != null ? listener.relay : null;
+    }
+
+    /**
+     * Returns the transcoder serving WebSocket viewers, if transcoding.
+     *
+     * @return transcoder or null
+     */
+    public StreamTranscoder getTranscoder() {
+        return listener != null ? listener.transcoder : null;
+    }
+
     public static void setWebSocketRouter(WebSocketRouter router) {
         TSIngestConnection.router = router;
     }
 
+    public static void setThumbnails(boolean thumbnails) {
+        TSIngestConnection.thumbnails = thumbnails;
+    }
+
+    public static void setHls(boolean hls) {
+        TSIngestConnection.hls = hls;
+    }
+
+    public static void setRecording(boolean recording) {
+        TSIngestConnection.recording = recording;
+    }
+
     public class Listener {
 
         // datagram socket instance (DatagramSocket for unicast and MulticastSocket for multicast)
@@ -240,6 +323,24 @@ public class TSIngestConnection extends RTMPConnection {
 
         StreamCodecInfo codecInfo;
 
+        // batches frames into aggregates when a window is configured
+        AggregateBatcher batcher;
+
+        // transcodes for WebSocket viewers while there are any
+        StreamTranscoder transcoder;
+
+        // keeps a preview image from the keyframes
+        ThumbnailGenerator thumbnailer;
+
+        // cuts the ingest into HLS segments
+        HlsSegmenter segmenter;
+
+        // writes the ingest to disk
+        TSRecorder recorder;
+
+        // forwards the datagrams as-is
+        UdpRelay relay;
+
         public void start(final String streamName) {
             logger.info("MPEG-TS listener starting on: {}", port);
             try {
@@ -254,10 +355,22 @@ public class TSIngestConnection extends RTMPConnection {
                 }
                 // set a timeout so receive cannot block forever
                 socket.setSoTimeout((int) socketIdleTimeout);
+                if (!relayDestinations.isEmpty()) {
+                    relay = new UdpRelay(streamName);
+                    relayDestinations.forEach(destination -> relay.addDestination(destination.getHostString(), destination.getPort()));
+                    relay.start();
+                }
                 // create a single packet for re-use in the recv loop
                 final DatagramPacket packet = new DatagramPacket(new byte[datagramSize], datagramSize);
                 // stream codec configuration
                 codecInfo = (StreamCodecInfo) stream.getCodecInfo();
+                // batch frames into aggregates if requested
+                if (aggregateWindow > 0) {
+                    final ClientBroadcastStream target = stream;
+                    batcher = new AggregateBatcher(event -> target.dispatchEvent(event), aggregateWindow, aggregateMaxSize);
+                    // wake up each window so a batch is not held while the ingest pauses
+                    socket.setSoTimeout(aggregateWindow);
+                }
                 // ts configuration
                 TSConfig config = new TSConfig();
                 config.name = streamName;
@@ -268,56 +381,80 @@ public class TSIngestConnection extends RTMPConnection {
                 handler = TSHandler.build(config);
                 logger.info("Handler id: {}", handler.getId());
                 TSReceiver receiver = handler.getReceiver();
+                // demuxed frames are pushed to us on the receive thread as each datagram is demuxed
+                receiver.addListener(pkt -> {
+                    // only demuxed ts should show up here
+                    if (!pkt.isMpegTs()) {
+                        process(pkt);
+                    }
+                });
+                // viewers get MPEG-1 from the transcoder instead of the ingest as-is
+                if (transcode && router != null) {
+                    transcoder = new StreamTranscoder(streamName, receiver, router, executor);
+                    router.setDemandListener(streamName, transcoder);
+                }
+                if (thumbnails) {
+                    thumbnailer = new ThumbnailGenerator(streamName, receiver, executor);
+                    thumbnailer.start();
+                }
+                if (hls) {
+                    segmenter = new HlsSegmenter(streamName, receiver, audioFourCC, videoFourCC);
+                    segmenter.start();
+                }
+                if (recording) {
+                    recorder = new TSRecorder(streamName, receiver, audioFourCC, videoFourCC);
+                    recorder.start();
+                }
                 // get the receiver thread
                 recvFuture = executor.submit(() -> {
                     // set the listening flag
                     listening = true;
                     do {
-                        TSPacket pkt = receiver.getNext();
-                        if (pkt != null) {
-                            //logger.trace("Received: {}", pkt.getPayload().length);
-                            // only demuxed ts should show up here
-                            if (!pkt.isMpegTs()) {
-                                process(pkt);
-                            }
-                        } else {
+                        // dont hold a batch past its window while we wait on the socket
+                        if (batcher != null) {
+                            batcher.flushIfDue();
+                        }
+                        try {
+                            // read data until the socket is closed
+                            socket.receive(packet); // this blocks!
+                            // update the receive time so we dont go idle
+                            lastReceiveTime = System.currentTimeMillis();
+                            // copy the datagram off-heap once; the relay and the demuxer share it via its reference count
+                            PooledBuffer data = bufferPool.acquire(packet.getLength());
+                            data.buffer().put(packet.getData(), packet.getOffset(), packet.getLength()).flip();
                             try {
-                                // read data until the socket is closed
-                                socket.receive(packet); // this blocks!
-                                // update the receive time so we dont go idle
-                                lastReceiveTime = System.currentTimeMillis();
-                                // used for the copy of packet data for the ts handler since it queues this up
-                                byte[] data = new byte[packet.getLength()];
-                                // copy the packet content to an array for the tsHandler
-                                System.arraycopy(packet.getData(), packet.getOffset(), data, 0, data.length);
                                 // if we proxying to websocket connections, send the data as-is to them
-                                if (wsProxy) {
-                                    //logger.debug("Proxy/relay data");
-                                    // do this in a separate thread, we'll see if the data array can be shared...
-                                    //executor.submit(() -> {
-                                        //logger.debug("Send data for {}", streamName);
-                                        router.sendData(streamName, data);
-                                    //});
+                                if (wsProxy && transcoder == null) {
+                                    router.sendData(streamName, data);
                                 }
-                                // demux the data
-                                handler.demux(data);
-                            } catch (SocketTimeoutException e) {
-                                logger.debug("Socket timed-out, closing");
-                                break;
-                            } catch (Throwable t) {
-                                if (t.getMessage().contains("closed")) {
-                                    logger.debug("Socket was closed during receive");
-                                } else {
-                                    logger.warn("Exception in receive", t);
+                                if (relay != null) {
+                                    relay.offer(data);
                                 }
-                                break;
+                                // demux the data in place
+                                handler.demux(data.buffer());
+                            } finally {
+                                data.release();
+                            }
+                        } catch (SocketTimeoutException e) {
+                            if (batcher != null && System.currentTimeMillis() - lastReceiveTime < socketIdleTimeout) {
+                                // a batch window passed without data, flush what is held
+                                batcher.flush();
+                                continue;
                             }
+                            logger.debug("Socket timed-out, closing");
+                            break;
+                        } catch (Throwable t) {
+                            if (t.getMessage().contains("closed")) {
+                                logger.debug("Socket was closed during receive");
+                            } else {
+                                logger.warn("Exception in receive", t);
+                            }
+                            break;
                         }
                     } while (listening);
-                    // write any left over packets
-                    LinkedList<TSPacket> pkts = receiver.drain();
-                    pkts.forEach(pkt -> process(pkt));
-                    pkts.clear();
+                    if (batcher != null) {
+                        batcher.flush();
+                    }
                 }, "ReceiveHandler");
             } catch (Throwable t) {
                 logger.warn("Exception in listen", t);
@@ -332,9 +469,14 @@ public class TSIngestConnection extends RTMPConnection {
                 }
                 // TODO handle MPEG-TS ES (adts/etc) to Flash Audio
 
-                AudioData audio = new AudioData(IoBuffer.wrap(pkt.getPayload()));
-                audio.setTimestamp((int) pkt.getTimestamp());
-                stream.dispatchEvent(audio);
+                if (batcher != null) {
+                    batcher.add(Constants.TYPE_AUDIO_DATA, (int) pkt.getTimestamp(), pkt.getData(), 0, pkt.getLength());
+                } else {
+                    // the event holds onto its data; getPayload copies it out of the pooled storage
+                    AudioData audio = new AudioData(IoBuffer.wrap(pkt.getPayload()));
+                    audio.setTimestamp((int) pkt.getTimestamp());
+                    stream.dispatchEvent(audio);
+                }
             } else if (pkt.isVideo()) {
                 if (!codecInfo.hasVideo()) {
                     AVCVideo video = new AVCVideo();
@@ -344,9 +486,14 @@ public class TSIngestConnection extends RTMPConnection {
                 }
                 // TODO handle MPEG-TS ES (h264/hevc/etc) to Flash Video
 
-                VideoData video = new VideoData(IoBuffer.wrap(pkt.getPayload()));
-                video.setTimestamp((int) pkt.getTimestamp());
-                stream.dispatchEvent(video);
+                if (batcher != null) {
+                    batcher.add(Constants.TYPE_VIDEO_DATA, (int) pkt.getTimestamp(), pkt.getData(), 0, pkt.getLength());
+                } else {
+                    // the event holds onto its data; getPayload copies it out of the pooled storage
+                    VideoData video = new VideoData(IoBuffer.wrap(pkt.getPayload()));
+                    video.setTimestamp((int) pkt.getTimestamp());
+                    stream.dispatchEvent(video);
+                }
             }
         }
 
@@ -354,11 +501,54 @@ public class TSIngestConnection extends RTMPConnection {
             logger.info("Listener stop");
             // reset our flag so the receiver can exit
             listening = false;
-            // stop the future without interrupting
+            // close the socket first, unblocking a receive in progress
+            if (socket != null) {
+                try {
+                    if (multicast) {
+                        ((MulticastSocket) socket).leaveGroup(addr);
+                    }
+                } catch (IOException e) {
+                }
+                socket.close();
+            }
+            // wait for the receive loop to exit, nothing may be demuxed or relayed once the sinks and handler are gone
             if (recvFuture != null) {
-                recvFuture.cancel(false);
+                try {
+                    recvFuture.get(RECEIVE_EXIT_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (TimeoutException e) {
+                    logger.warn("Receive loop of {} didn't exit in time", streamName);
+                } catch (CancellationException | ExecutionException e) {
+                    logger.debug("Receive loop of {} ended abnormally", streamName, e);
+                }
                 recvFuture = null;
             }
+            socket = null;
+            // drop the relays cached gop, its of no use to the next publisher
+            if ((wsProxy || transcoder != null) && router != null) {
+                router.unpublish(streamName);
+            }
+            if (transcoder != null) {
+                transcoder.close();
+                transcoder = null;
+            }
+            if (thumbnailer != null) {
+                thumbnailer.stop();
+                thumbnailer = null;
+            }
+            if (segmenter != null) {
+                segmenter.stop();
+                segmenter = null;
+            }
+            if (recorder != null) {
+                recorder.stop();
+                recorder = null;
+            }
+            if (relay != null) {
+                relay.stop();
+                relay = null;
+            }
             // destroy the handler
             if (handler != null) {
                 logger.info("Listener handler destroy");
@@ -369,16 +559,6 @@ public class TSIngestConnection extends RTMPConnection {
                 }
                 handler = null;
             }
-            if (socket != null) {
-                try {
-                    if (multicast) {
-                        ((MulticastSocket) socket).leaveGroup(addr);
-                    }
-                    socket.close();
-                } catch (IOException e) {
-                }
-                socket = null;
-            }
         }
 
     }
@@ -0,0 +1,53 @@
+package org.red5.mpeg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Muxes elementary stream frames into MPEG-TS, writing the packets straight into a caller supplied buffer. Either the pure
+ * Java {@link JavaTSMuxer} or the native muxer via {@link NativeTSMuxer} is used, as selected by
+ * {@link TSConfig#javaMuxer}; both write the same packets.
+ *
+ * @author Paul Gregoire
+ */
+public interface TSMuxer {
+
+    /**
+     * Mux a frame. Its packets, led by the PAT and PMT when they are due, are written from the output buffers position
+     * which is then advanced. Nothing is written unless the output has room for {@link #getMaxOutput(int)} bytes.
+     *
+     * @param data frame from its position to its limit; the position is not modified
+     * @param pts presentation timestamp
+     * @param dts decode timestamp
+     * @param type stream type
+     * @param pid
+     * @param streamId
+     * @param randomAccess
+     * @param out
+     * @return bytes written or -1 if the output is too small
+     */
+    int mux(ByteBuffer data, long pts, long dts, byte type, short pid, byte streamId, boolean randomAccess, ByteBuffer out);
+
+    /**
+     * Returns the most bytes a frame of the given length can be muxed into.
+     *
+     * @param length
+     * @return bytes
+     */
+    int getMaxOutput(int length);
+
+    /**
+     * Releases the muxer.
+     */
+    void destroy();
+
+    /**
+     * Builder for a new muxer.
+     *
+     * @param config
+     * @return muxer or null if the native muxer couldn't be created
+     */
+    static TSMuxer build(TSConfig config) {
+        return config.javaMuxer ? new JavaTSMuxer(config) : NativeTSMuxer.build(config);
+    }
+
+}
@@ -1,155 +1,296 @@
 package org.red5.mpeg;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.red5.mpeg.PayloadType.TypeIds;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Packetized data received via native layer.
- * 
+ * Packetized data received via native layer. Packets taken from a {@link TSPacketPool} are mutable, reused and reference
+ * counted; each holder calls {@link #release()} when finished and the packet goes back to its pool once the last
+ * reference is released. Packets created via the static build methods are not pooled and retain / release are no-ops for
+ * them.
+ *
  * @author Paul Gregoire
  */
 public class TSPacket {
 
     private static Logger log = LoggerFactory.getLogger(TSPacket.class);
 
-    private final long timestamp;
+    // flags
+    public static final int FLAG_AUDIO = 0x01;
 
-    // payload can be either byte[] or short[]
-    private final Object payload;
+    public static final int FLAG_VIDEO = 0x02;
+
+    // mpeg-ts flag indicating muxed content
+    public static final int FLAG_TS = 0x04;
+
+    // random access / keyframe as signalled by the transport stream
+    public static final int FLAG_KEYFRAME = 0x08;
+
+    // pes was incomplete when it was emitted
+    public static final int FLAG_BROKEN = 0x10;
+
+    // owning pool, null for unpooled packets
+    private final TSPacketPool pool;
+
+    // presentation timestamp or arrival time
+    private long timestamp;
+
+    // decode timestamp
+    private long dts;
 
     // payload type identifier
-    private final int typeId;
+    private int typeId;
 
-    // audio flag
-    private final boolean audio;
+    private int flags;
 
-    // video flag
-    private final boolean video;
+    // byte payload storage, may be larger than the payload itself
+    private byte[] data;
 
-    // mpeg-ts flag indicating muxed content
-    private final boolean ts;
+    private int length;
+
+    // audio sample payload
+    private short[] samples;
+
+    // references held on a pooled packet
+    private final AtomicInteger refCnt = new AtomicInteger();
+
+    TSPacket(TSPacketPool pool) {
+        this.pool = pool;
+    }
 
     /**
-     * Expects video or muxed mpeg-ts content as a byte array.
-     * 
-     * @param timestamp
-     * @param payload
+     * Fills this packet from the given buffer, reusing the existing storage when it's large enough.
+     *
+     * @param pts
+     * @param dts
+     * @param typeId
+     * @param flags native flags (keyframe / broken)
+     * @param src buffer holding the payload from index 0
+     * @param length payload length
      */
-    private TSPacket(long timestamp, byte[] payload) {
-        this.timestamp = timestamp;
-        this.payload = (byte[]) payload;
-        this.audio = false;
-        // determine if video or mpeg-ts bytes
-        if (payload[0] == (byte) 0x47) {
-            this.ts = true;
-            this.video = false;
-            this.typeId = PayloadType.TYPE_UNKNOWN.typeId;
-        } else {
-            this.ts = false;
-            this.video = true;
-            this.typeId = PayloadType.TYPE_VIDEO.typeId;;
+    void set(long pts, long dts, int typeId, int flags, ByteBuffer src, int length) {
+        this.timestamp = pts;
+        this.dts = dts;
+        this.typeId = typeId;
+        this.flags = flags | classify(typeId);
+        if (data == null || data.length < length) {
+            data = new byte[length];
         }
+        // the staging buffer belongs to the calling thread, so its position can be reset in place
+        src.clear();
+        src.get(data, 0, length);
+        this.length = length;
+        this.samples = null;
+        refCnt.set(1);
+    }
+
+    private void wrap(long timestamp, byte[] payload, int typeId, int flags) {
+        this.timestamp = timestamp;
+        this.dts = timestamp;
+        this.typeId = typeId;
+        this.flags = flags;
+        this.data = payload;
+        this.length = payload.length;
     }
 
     /**
-     * Expects data as a byte array with a type identifier.
-     * 
-     * @param timestamp
-     * @param payload
+     * Returns the a/v flags for a type identifier.
+     *
      * @param typeId
+     * @return FLAG_AUDIO, FLAG_VIDEO or 0
      */
-    private TSPacket(long timestamp, byte[] payload, int typeId) {
-        log.info("TSPacket - timestamp: {} typeId: {} payload size: {}", timestamp, typeId, payload.length);
-        this.timestamp = timestamp;
-        this.payload = (byte[]) payload;
-        this.typeId = typeId;
-        // determine if mpeg-ts bytes
-        if (payload[0] == (byte) 0x47) {
-            this.ts = true;
-        } else {
-            this.ts = false;
-        }
-        final PayloadType type = PayloadType.valueOfTypeId(typeId);
-        switch (type) {
-            case TYPE_AUDIO:
-            case TYPE_ADTS:
-            case TYPE_MP2A:
-                this.audio = true;
-                this.video = false;
-                break;
-            case TYPE_VIDEO:
-            case TYPE_H264:
-            case TYPE_HEVC:
-            case TYPE_MP1V:
-                this.audio = false;
-                this.video = true;
-                break;
-            case TYPE_META:
-            case TYPE_ID3:
-            case TYPE_KLV:
-                this.audio = false;
-                this.video = false;
-                break;
+    public static int classify(int typeId) {
+        switch (typeId) {
+            case TypeIds.AUDIO:
+            case TypeIds.ADTS:
+            case TypeIds.MP2A:
+                return FLAG_AUDIO;
+            case TypeIds.VIDEO:
+            case TypeIds.H264:
+            case TypeIds.HEVC:
+            case TypeIds.MP1V:
+                return FLAG_VIDEO;
             default:
-                // if we're here, the typeId isn't precoded; assume fourCC, but keep a/v flags off
-                this.audio = false;
-                this.video = false;
-                break;
+                // meta types and non-precoded fourCC keep a/v flags off
+                return 0;
         }
     }
 
     /**
-     * Expects audio short array.
+     * Adds a reference, keeping a pooled packet valid until a matching {@link #release()}.
+     *
+     * @return this packet
      */
-    private TSPacket(long timestamp, short[] payload) {
-        this.timestamp = timestamp;
-        this.payload = (short[]) payload;
-        this.audio = true;
-        this.video = false;
-        this.ts = false;
-        this.typeId = PayloadType.TYPE_AUDIO.typeId;;
+    public TSPacket retain() {
+        if (pool != null) {
+            refCnt.incrementAndGet();
+        }
+        return this;
+    }
+
+    /**
+     * Removes a reference; once the last one is gone the packet returns to its pool and must not be used afterwards.
+     */
+    public void release() {
+        if (pool != null) {
+            int count = refCnt.decrementAndGet();
+            if (count == 0) {
+                pool.release(this);
+            } else if (count < 0) {
+                refCnt.incrementAndGet();
+                log.warn("Packet released more than once");
+            }
+        }
     }
 
     public long getTimestamp() {
         return timestamp;
     }
 
+    public long getDts() {
+        return dts;
+    }
+
+    public int getTypeId() {
+        return typeId;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Returns the backing payload array; only the first {@link #getLength()} bytes are valid.
+     *
+     * @return payload storage
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns the payload length in bytes.
+     *
+     * @return length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the payload as an exactly sized array. Pooled packets always return a copy, as their storage is refilled
+     * once they're released, so prefer {@link #getData()} with {@link #getLength()} on hot paths.
+     *
+     * @return payload bytes
+     */
     public byte[] getPayload() {
-        return (byte[]) payload;
+        if (data == null || (pool == null && data.length == length)) {
+            return data;
+        }
+        return Arrays.copyOf(data, length);
     }
 
     public short[] getPayloadAsShorts() {
-        return (short[]) payload;
+        return samples;
     }
 
     public boolean isAudio() {
-        return audio;
+        return (flags & FLAG_AUDIO) != 0;
     }
 
     public boolean isVideo() {
-        return video;
+        return (flags & FLAG_VIDEO) != 0;
     }
 
     public boolean isMpegTs() {
-        return ts;
+        return (flags & FLAG_TS) != 0;
     }
 
-	public static TSPacket build(long timestamp, byte[] data) {
-        TSPacket packet = new TSPacket(timestamp, data);
-		return packet;
-	}
+    /**
+     * Returns whether or not this packet is a video keyframe; either flagged random access by the transport stream or
+     * containing H.264 IDR or HEVC IRAP access units in Annex-B form. This is only consulted when the receiver queue
+     * overflows.
+     *
+     * @return true if keyframe and false otherwise
+     */
+    public boolean isKeyframe() {
+        if ((flags & FLAG_VIDEO) != 0) {
+            if ((flags & FLAG_KEYFRAME) != 0) {
+                return true;
+            }
+            if (data != null) {
+                boolean hevc = typeId == TypeIds.HEVC;
+                // walk the start codes looking for a random access nal unit
+                for (int i = 2; i < length - 1; i++) {
+                    if (data[i] == 1 && data[i - 1] == 0 && data[i - 2] == 0) {
+                        int header = data[i + 1] & 0xff;
+                        if (hevc) {
+                            int nalType = (header >> 1) & 0x3f;
+                            if (nalType >= 16 && nalType <= 21) {
+                                return true;
+                            }
+                        } else if ((header & 0x1f) == 5) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
 
-	public static TSPacket build(long timestamp, byte[] data, int typeId) {
-        TSPacket packet = new TSPacket(timestamp, data, typeId);
-		return packet;
-	}
+    /**
+     * Expects video or muxed mpeg-ts content as a byte array.
+     *
+     * @param timestamp
+     * @param data
+     * @return packet
+     */
+    public static TSPacket build(long timestamp, byte[] data) {
+        TSPacket packet = new TSPacket(null);
+        // determine if video or mpeg-ts bytes
+        if (data[0] == (byte) 0x47) {
+            packet.wrap(timestamp, data, TypeIds.UNKNOWN, FLAG_TS);
+        } else {
+            packet.wrap(timestamp, data, TypeIds.VIDEO, FLAG_VIDEO);
+        }
+        return packet;
+    }
 
-	public static TSPacket build(long timestamp, short[] data) {
-        TSPacket packet = new TSPacket(timestamp, data);
-		return packet;
-	}
+    /**
+     * Expects data as a byte array with a type identifier.
+     *
+     * @param timestamp
+     * @param data
+     * @param typeId
+     * @return packet
+     */
+    public static TSPacket build(long timestamp, byte[] data, int typeId) {
+        TSPacket packet = new TSPacket(null);
+        packet.wrap(timestamp, data, typeId, (data[0] == (byte) 0x47 ? FLAG_TS : 0) | classify(typeId));
+        return packet;
+    }
+
+    /**
+     * Expects audio short array.
+     *
+     * @param timestamp
+     * @param data
+     * @return packet
+     */
+    public static TSPacket build(long timestamp, short[] data) {
+        TSPacket packet = new TSPacket(null);
+        packet.timestamp = timestamp;
+        packet.dts = timestamp;
+        packet.typeId = TypeIds.AUDIO;
+        packet.flags = FLAG_AUDIO;
+        packet.samples = data;
+        return packet;
+    }
 
 }
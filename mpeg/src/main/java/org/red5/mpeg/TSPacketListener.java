@@ -0,0 +1,14 @@
+package org.red5.mpeg;
+
+/**
+ * Simple push based packet consumer with unbounded demand. The packet is only valid for the duration of the call; see
+ * {@link TSSubscriber}.
+ *
+ * @author Paul Gregoire
+ */
+@FunctionalInterface
+public interface TSPacketListener {
+
+    void onPacket(TSPacket packet);
+
+}
@@ -0,0 +1,72 @@
+package org.red5.mpeg;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.red5.mpeg.PacketRing.OverflowPolicy;
+import org.red5.mpeg.PacketRing.WaitStrategy;
+
+/**
+ * Per-handler pool of reusable packets. Once warmed up, acquiring and releasing packets allocates nothing; payload storage
+ * only grows when a larger frame than any seen before arrives.
+ *
+ * @author Paul Gregoire
+ */
+public class TSPacketPool {
+
+    // idle packets
+    private final PacketRing<TSPacket> free;
+
+    // packets created over the life of the pool
+    private final AtomicLong created = new AtomicLong();
+
+    /**
+     * Creates a pool.
+     *
+     * @param capacity maximum idle packets retained; releases beyond this are left to the GC
+     */
+    public TSPacketPool(int capacity) {
+        free = new PacketRing<>(capacity, WaitStrategy.SPIN, OverflowPolicy.DROP_OLDEST, null);
+    }
+
+    /**
+     * Returns an idle packet or a new one if the pool is empty.
+     *
+     * @return packet
+     */
+    public TSPacket acquire() {
+        TSPacket packet = free.poll();
+        if (packet == null) {
+            created.incrementAndGet();
+            packet = new TSPacket(this);
+        }
+        return packet;
+    }
+
+    /**
+     * Returns a packet to the pool; called via {@link TSPacket#release()}.
+     *
+     * @param packet
+     */
+    void release(TSPacket packet) {
+        free.offer(packet);
+    }
+
+    /**
+     * Returns the number of idle packets.
+     *
+     * @return idle count
+     */
+    public int getIdle() {
+        return free.size();
+    }
+
+    /**
+     * Returns the number of packets created; this stops growing once the pool reaches steady state.
+     *
+     * @return created count
+     */
+    public long getCreated() {
+        return created.get();
+    }
+
+}
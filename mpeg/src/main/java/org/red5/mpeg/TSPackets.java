@@ -0,0 +1,242 @@
+package org.red5.mpeg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for inspecting 188 byte MPEG-TS packets in place. All methods use absolute indexes, so the buffers position and
+ * limit are left untouched.
+ *
+ * @author Paul Gregoire
+ */
+public final class TSPackets {
+
+    public static final int PACKET_SIZE = 188;
+
+    public static final byte SYNC_BYTE = 0x47;
+
+    public static final int PAT_PID = 0;
+
+    public static final int NULL_PID = 0x1fff;
+
+    private TSPackets() {
+    }
+
+    public static boolean isSync(ByteBuffer buf, int off) {
+        return buf.get(off) == SYNC_BYTE;
+    }
+
+    public static int pid(ByteBuffer buf, int off) {
+        return ((buf.get(off + 1) & 0x1f) << 8) | (buf.get(off + 2) & 0xff);
+    }
+
+    /**
+     * Returns whether the payload unit start indicator is set; a PES header or section starts in this packet.
+     */
+    public static boolean pusi(ByteBuffer buf, int off) {
+        return (buf.get(off + 1) & 0x40) != 0;
+    }
+
+    public static int continuityCounter(ByteBuffer buf, int off) {
+        return buf.get(off + 3) & 0x0f;
+    }
+
+    public static boolean hasAdaptationField(ByteBuffer buf, int off) {
+        return (buf.get(off + 3) & 0x20) != 0;
+    }
+
+    public static boolean hasPayload(ByteBuffer buf, int off) {
+        return (buf.get(off + 3) & 0x10) != 0;
+    }
+
+    /**
+     * Returns whether the adaptation field signals random access, as set by muxers on keyframe packets.
+     */
+    public static boolean randomAccess(ByteBuffer buf, int off) {
+        return hasAdaptationField(buf, off) && (buf.get(off + 4) & 0xff) > 0 && (buf.get(off + 5) & 0x40) != 0;
+    }
+
+    /**
+     * Returns whether the adaptation field carries a PCR.
+     */
+    public static boolean hasPcr(ByteBuffer buf, int off) {
+        return hasAdaptationField(buf, off) && (buf.get(off + 4) & 0xff) >= 7 && (buf.get(off + 5) & 0x10) != 0;
+    }
+
+    /**
+     * Returns the PCR base (90kHz) of a packet carrying one.
+     */
+    public static long pcrBase(ByteBuffer buf, int off) {
+        return ((buf.get(off + 6) & 0xffL) << 25) | ((buf.get(off + 7) & 0xffL) << 17) | ((buf.get(off + 8) & 0xffL) << 9) | ((buf.get(off + 9) & 0xffL) << 1) | ((buf.get(off + 10) & 0x80L) >> 7);
+    }
+
+    /**
+     * Returns the index of the first payload byte or -1 if the packet has no payload.
+     */
+    public static int payloadOffset(ByteBuffer buf, int off) {
+        if (!hasPayload(buf, off)) {
+            return -1;
+        }
+        int pos = off + 4;
+        if (hasAdaptationField(buf, off)) {
+            pos += 1 + (buf.get(off + 4) & 0xff);
+        }
+        return pos < off + PACKET_SIZE ? pos : -1;
+    }
+
+    /**
+     * Returns the index of the elementary stream data following the PES header in a packet that starts a PES, or -1.
+     */
+    public static int esOffset(ByteBuffer buf, int off) {
+        int pos = payloadOffset(buf, off);
+        if (pos < 0 || !pusi(buf, off) || pos + 9 > off + PACKET_SIZE) {
+            return -1;
+        }
+        if (buf.get(pos) != 0 || buf.get(pos + 1) != 0 || buf.get(pos + 2) != 1) {
+            return -1;
+        }
+        int es = pos + 9 + (buf.get(pos + 8) & 0xff);
+        return es < off + PACKET_SIZE ? es : -1;
+    }
+
+    /**
+     * Returns the PES presentation timestamp of a packet that starts a PES, or -1 if there isn't one.
+     */
+    public static long pts(ByteBuffer buf, int off) {
+        int pos = payloadOffset(buf, off);
+        if (pos < 0 || !pusi(buf, off) || pos + 14 > off + PACKET_SIZE || (buf.get(pos + 7) & 0x80) == 0) {
+            return -1L;
+        }
+        return readTimestamp(buf, pos + 9);
+    }
+
+    /**
+     * Reads a 33 bit PES timestamp.
+     */
+    public static long readTimestamp(ByteBuffer buf, int pos) {
+        return (((buf.get(pos) & 0x0eL) << 29) | ((buf.get(pos + 1) & 0xffL) << 22) | ((buf.get(pos + 2) & 0xfeL) << 14) | ((buf.get(pos + 3) & 0xffL) << 7) | ((buf.get(pos + 4) & 0xfeL) >> 1));
+    }
+
+    /**
+     * Returns the PMT pid of the first program in a PAT packet, or -1.
+     */
+    public static int patPmtPid(ByteBuffer buf, int off) {
+        int section = sectionOffset(buf, off);
+        if (section < 0 || buf.get(section) != 0x00) {
+            return -1;
+        }
+        int end = Math.min(section + 3 + sectionLength(buf, section) - 4, off + PACKET_SIZE);
+        // program loop starts after the 8 byte section header
+        for (int pos = section + 8; pos + 4 <= end; pos += 4) {
+            int program = ((buf.get(pos) & 0xff) << 8) | (buf.get(pos + 1) & 0xff);
+            // program 0 points at the network pid
+            if (program != 0) {
+                return ((buf.get(pos + 2) & 0x1f) << 8) | (buf.get(pos + 3) & 0xff);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the first video elementary stream in a PMT packet packed as (stream type &lt;&lt; 16 | pid), or -1.
+     */
+    public static int pmtVideoStream(ByteBuffer buf, int off) {
+        int section = sectionOffset(buf, off);
+        if (section < 0 || buf.get(section) != 0x02) {
+            return -1;
+        }
+        int end = Math.min(section + 3 + sectionLength(buf, section) - 4, off + PACKET_SIZE);
+        int programInfoLength = ((buf.get(section + 10) & 0x0f) << 8) | (buf.get(section + 11) & 0xff);
+        for (int pos = section + 12 + programInfoLength; pos + 5 <= end;) {
+            int streamType = buf.get(pos) & 0xff;
+            int pid = ((buf.get(pos + 1) & 0x1f) << 8) | (buf.get(pos + 2) & 0xff);
+            if (isVideoStreamType(streamType)) {
+                return (streamType << 16) | pid;
+            }
+            pos += 5 + (((buf.get(pos + 3) & 0x0f) << 8) | (buf.get(pos + 4) & 0xff));
+        }
+        return -1;
+    }
+
+    /**
+     * Returns whether the PMT stream type is video; MPEG-1, MPEG-2, H.264 or HEVC.
+     */
+    public static boolean isVideoStreamType(int streamType) {
+        switch (streamType) {
+            case 0x01:
+            case 0x02:
+            case 0x1b:
+            case 0x24:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns whether a video packet starts a decodable point; signalled random access or, at the start of the PES, an
+     * MPEG-1/2 sequence header or GOP, an H.264 IDR or SPS, or an HEVC IRAP or parameter set.
+     *
+     * @param buf
+     * @param off
+     * @param streamType PMT stream type of the packets pid
+     * @return true if a decoder can start here
+     */
+    public static boolean isKeyframeStart(ByteBuffer buf, int off, int streamType) {
+        if (!pusi(buf, off)) {
+            return false;
+        }
+        if (randomAccess(buf, off)) {
+            return true;
+        }
+        int es = esOffset(buf, off);
+        if (es < 0) {
+            return false;
+        }
+        int end = off + PACKET_SIZE - 3;
+        for (int i = es; i < end; i++) {
+            if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                int code = buf.get(i + 3) & 0xff;
+                switch (streamType) {
+                    case 0x01:
+                    case 0x02:
+                        // sequence header or group of pictures
+                        if (code == 0xb3 || code == 0xb8) {
+                            return true;
+                        }
+                        break;
+                    case 0x1b:
+                        // idr or sps
+                        int avcType = code & 0x1f;
+                        if (avcType == 5 || avcType == 7) {
+                            return true;
+                        }
+                        break;
+                    case 0x24:
+                        // irap or vps / sps
+                        int hevcType = (code >> 1) & 0x3f;
+                        if ((hevcType >= 16 && hevcType <= 21) || hevcType == 32 || hevcType == 33) {
+                            return true;
+                        }
+                        break;
+                }
+                i += 2;
+            }
+        }
+        return false;
+    }
+
+    // index of the psi section following the pointer field, or -1
+    private static int sectionOffset(ByteBuffer buf, int off) {
+        int pos = payloadOffset(buf, off);
+        if (pos < 0 || !pusi(buf, off)) {
+            return -1;
+        }
+        int section = pos + 1 + (buf.get(pos) & 0xff);
+        return section + 12 <= off + PACKET_SIZE ? section : -1;
+    }
+
+    private static int sectionLength(ByteBuffer buf, int section) {
+        return ((buf.get(section + 1) & 0x0f) << 8) | (buf.get(section + 2) & 0xff);
+    }
+
+}
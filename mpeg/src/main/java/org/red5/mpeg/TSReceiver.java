@@ -1,14 +1,24 @@
 package org.red5.mpeg;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
+import org.red5.mpeg.PacketRing.OverflowPolicy;
+import org.red5.mpeg.PacketRing.WaitStrategy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Receiver of packet type data.
+ * Receiver of packet type data. Packets are either pulled via {@link #getNext()} or, once any subscriber is registered,
+ * pushed to the subscribers and not queued for polling.
  * 
  * @author Paul Gregoire
  */
@@ -18,10 +28,83 @@ public class TSReceiver {
 
     private static boolean isTrace = log.isTraceEnabled();
 
+    // default bound on queued packets
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // initial size of the native staging buffer
+    private static final int STAGING_SIZE = 256 * 1024;
+
     // storage of incoming packets
-    private final ConcurrentLinkedDeque<TSPacket> packets = new ConcurrentLinkedDeque<>();
+    private final PacketRing<TSPacket> packets;
+
+    // reusable packets for demuxed frames
+    private final TSPacketPool pool;
+
+    // direct buffer the native layer copies demuxed frames into; only touched on the demuxing thread
+    private ByteBuffer staging = ByteBuffer.allocateDirect(STAGING_SIZE);
+
+    // push subscribers; registration is rare compared to delivery
+    private final List<PacketSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    // bound on packets queued per executor delivered subscription
+    private final int capacity;
 
     public TSReceiver() {
+        this(DEFAULT_CAPACITY, WaitStrategy.PARK, OverflowPolicy.DROP_NON_KEYFRAME);
+    }
+
+    /**
+     * Creates a receiver with a bounded packet queue.
+     * 
+     * @param capacity maximum queued packets, rounded up to a power of two
+     * @param waitStrategy how consumers wait in {@link #getNext(long, TimeUnit)}
+     * @param overflowPolicy what to do with packets arriving while the queue is full
+     */
+    public TSReceiver(int capacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy) {
+        this.capacity = capacity;
+        packets = new PacketRing<>(capacity, waitStrategy, overflowPolicy, TSPacket::isKeyframe);
+        // dropped packets go back to the pool
+        packets.setDropHandler(TSPacket::release);
+        // enough idle packets to refill a full queue
+        pool = new TSPacketPool(capacity);
+    }
+
+    /**
+     * Returns the staging buffer for a frame of the given length, growing it first if needed. Called from the native layer
+     * before {@link #receiveFrame(long, long, int, int, int)}.
+     * 
+     * @param length
+     * @return direct staging buffer
+     */
+    public ByteBuffer stagingBuffer(int length) {
+        if (staging.capacity() < length) {
+            int size = staging.capacity();
+            while (size < length) {
+                size <<= 1;
+            }
+            log.debug("Growing staging buffer to {}", size);
+            staging = ByteBuffer.allocateDirect(size);
+        }
+        return staging;
+    }
+
+    /**
+     * Receive handler for demuxed frames, which the native layer has copied into the staging buffer. The frame is placed
+     * in a pooled packet, so the consumer must release it when done.
+     * 
+     * @param pts
+     * @param dts
+     * @param typeId
+     * @param flags TSPacket flags set natively (keyframe / broken)
+     * @param length frame length in the staging buffer
+     */
+    public void receiveFrame(long pts, long dts, int typeId, int flags, int length) {
+        if (isTrace) {
+            log.trace("receive frame @{} type: {} flags: {} length: {}", pts, typeId, flags, length);
+        }
+        TSPacket packet = pool.acquire();
+        packet.set(pts, dts, typeId, flags, staging, length);
+        deliver(packet);
     }
 
     /**
@@ -35,7 +118,7 @@ public class TSReceiver {
             log.trace("receive {}", Main.byteArrayToHexString(data));
         }
         // construct a packet and store it in the packet deque
-        packets.offer(TSPacket.build(System.currentTimeMillis(), data));
+        deliver(TSPacket.build(System.currentTimeMillis(), data));
     }
 
     /**
@@ -48,7 +131,7 @@ public class TSReceiver {
             log.trace("receive {}", Arrays.toString(data));
         }
         // construct a packet and store it in the packet deque
-        packets.offer(TSPacket.build(System.currentTimeMillis(), data));
+        deliver(TSPacket.build(System.currentTimeMillis(), data));
     }
 
     /**
@@ -62,7 +145,7 @@ public class TSReceiver {
             log.trace("receive type: {} {}", typeId, Main.byteArrayToHexString(data));
         }
         // construct a packet and store it in the packet deque
-        packets.offer(TSPacket.build(System.currentTimeMillis(), data, typeId));
+        deliver(TSPacket.build(System.currentTimeMillis(), data, typeId));
     }
 
     /**
@@ -77,16 +160,131 @@ public class TSReceiver {
             log.trace("receive @{} type: {} {}", timestamp, typeId, Main.byteArrayToHexString(data));
         }
         // construct a packet and store it in the packet deque
-        packets.offer(TSPacket.build(timestamp, data, typeId));
+        deliver(TSPacket.build(timestamp, data, typeId));
     }
 
     /**
-     * Returns the next packet in the deque.
+     * Pushes a packet to the subscribers, or queues it for polling when there are none.
+     * 
+     * @param packet
+     */
+    private void deliver(TSPacket packet) {
+        if (subscriptions.isEmpty()) {
+            packets.put(packet);
+        } else {
+            for (PacketSubscription subscription : subscriptions) {
+                subscription.offer(packet);
+            }
+            // subscribers retain what they keep
+            packet.release();
+        }
+    }
+
+    /**
+     * Subscribes for packets delivered on the demuxing thread; the subscriber must not block.
+     * 
+     * @param subscriber
+     */
+    public void subscribe(TSSubscriber subscriber) {
+        subscribe(subscriber, null);
+    }
+
+    /**
+     * Subscribes for packets delivered via the given executor, in order. Up to the receivers capacity of packets are queued
+     * for the subscriber while it catches up; beyond that packets are dropped for it.
+     * 
+     * @param subscriber
+     * @param executor executor to deliver on or null for the demuxing thread
+     */
+    public void subscribe(TSSubscriber subscriber, Executor executor) {
+        PacketSubscription subscription = new PacketSubscription(subscriber, executor);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Adds a listener with unbounded demand, called on the demuxing thread.
+     * 
+     * @param listener
+     * @return subscription which may be used to remove the listener
+     */
+    public TSSubscriber.Subscription addListener(TSPacketListener listener) {
+        return addListener(listener, null);
+    }
+
+    /**
+     * Adds a listener with unbounded demand, called via the given executor.
+     * 
+     * @param listener
+     * @param executor executor to deliver on or null for the demuxing thread
+     * @return subscription which may be used to remove the listener
+     */
+    public TSSubscriber.Subscription addListener(TSPacketListener listener, Executor executor) {
+        PacketSubscription subscription = new PacketSubscription(new TSSubscriber() {
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(TSPacket packet) {
+                listener.onPacket(packet);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                log.warn("Exception in packet listener", throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+
+        }, executor);
+        subscriptions.add(subscription);
+        subscription.subscriber.onSubscribe(subscription);
+        return subscription;
+    }
+
+    /**
+     * Signals completion to all subscribers and removes them; called when the handler is destroyed.
+     */
+    public void complete() {
+        for (PacketSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+        subscriptions.clear();
+    }
+
+    /**
+     * Returns the next packet in the queue; pooled packets must be released by the caller.
      * 
      * @return next packet if it exists or null if deque is empty
      */
     public TSPacket getNext() {
-        return packets != null ? packets.poll() : null;
+        return packets.poll();
+    }
+
+    /**
+     * Returns the next packet, waiting up to the given time for one to arrive.
+     * 
+     * @param timeout
+     * @param unit
+     * @return next packet or null if none arrived in time
+     */
+    public TSPacket getNext(long timeout, TimeUnit unit) {
+        return packets.poll(timeout, unit);
+    }
+
+    /**
+     * Hands all the current packets to the consumer in-order; this is destructive and will clear the existing packets.
+     * 
+     * @param consumer
+     * @return number of packets drained
+     */
+    public int drainTo(Consumer<TSPacket> consumer) {
+        return packets.drainTo(consumer);
     }
 
     /**
@@ -96,11 +294,190 @@ public class TSReceiver {
      */
     public LinkedList<TSPacket> drain() {
         // create a list with all the current packets in-order
-        LinkedList<TSPacket> list = new LinkedList<>(Arrays.asList(packets.toArray(new TSPacket[0])));
-        // clear the list
-        packets.clear();
+        LinkedList<TSPacket> list = new LinkedList<>();
+        packets.drainTo(list::add);
         // return the packets
         return list;
     }
 
-}
\ No newline at end of file
+    /**
+     * Returns the number of queued packets.
+     * 
+     * @return depth
+     */
+    public int getDepth() {
+        return packets.size();
+    }
+
+    /**
+     * Returns the number of packets dropped due to a full queue.
+     * 
+     * @return dropped count
+     */
+    public long getDropped() {
+        return packets.getDropped();
+    }
+
+    /**
+     * Returns the packet pool.
+     * 
+     * @return pool
+     */
+    public TSPacketPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Subscription state for a single subscriber.
+     */
+    private final class PacketSubscription implements TSSubscriber.Subscription, Runnable {
+
+        final TSSubscriber subscriber;
+
+        // null for delivery on the demuxing thread
+        final Executor executor;
+
+        // packets waiting for the executor, only used with an executor
+        final PacketRing<TSPacket> pending;
+
+        // set while a drain task is scheduled or running
+        final AtomicBoolean draining = new AtomicBoolean();
+
+        // outstanding demand
+        final AtomicLong demand = new AtomicLong();
+
+        final AtomicLong dropped = new AtomicLong();
+
+        volatile boolean cancelled;
+
+        volatile boolean completed;
+
+        PacketSubscription(TSSubscriber subscriber, Executor executor) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.pending = executor != null ? new PacketRing<>(capacity, WaitStrategy.SPIN, OverflowPolicy.BLOCK, null) : null;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Demand must be positive: " + n));
+                return;
+            }
+            for (;;) {
+                long current = demand.get();
+                long next = current + n;
+                // cap on overflow, Long.MAX_VALUE being unbounded
+                if (next < 0L) {
+                    next = Long.MAX_VALUE;
+                }
+                if (demand.compareAndSet(current, next)) {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                subscriptions.remove(this);
+                if (executor == null) {
+                    return;
+                }
+                // let the drain task release anything still queued
+                schedule();
+            }
+        }
+
+        @Override
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        // takes a unit of demand if available
+        private boolean takeDemand() {
+            for (;;) {
+                long current = demand.get();
+                if (current == 0L) {
+                    return false;
+                }
+                if (current == Long.MAX_VALUE || demand.compareAndSet(current, current - 1L)) {
+                    return true;
+                }
+            }
+        }
+
+        void offer(TSPacket packet) {
+            if (cancelled) {
+                return;
+            }
+            if (!takeDemand()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (executor == null) {
+                try {
+                    subscriber.onNext(packet);
+                } catch (Throwable t) {
+                    cancel();
+                    subscriber.onError(t);
+                }
+            } else {
+                packet.retain();
+                if (pending.offer(packet)) {
+                    schedule();
+                } else {
+                    packet.release();
+                    dropped.incrementAndGet();
+                }
+            }
+        }
+
+        void complete() {
+            completed = true;
+            if (executor == null) {
+                if (!cancelled) {
+                    subscriber.onComplete();
+                }
+            } else {
+                schedule();
+            }
+        }
+
+        private void schedule() {
+            if (draining.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        // drains the pending packets on the executor
+        @Override
+        public void run() {
+            do {
+                TSPacket packet;
+                while ((packet = pending.poll()) != null) {
+                    try {
+                        if (!cancelled) {
+                            subscriber.onNext(packet);
+                        }
+                    } catch (Throwable t) {
+                        cancel();
+                        subscriber.onError(t);
+                    } finally {
+                        packet.release();
+                    }
+                }
+                if (completed && !cancelled) {
+                    cancelled = true;
+                    subscriber.onComplete();
+                }
+                draining.set(false);
+                // pick up anything offered after the ring was seen empty
+            } while (!pending.isEmpty() && draining.compareAndSet(false, true));
+        }
+
+    }
+
+}
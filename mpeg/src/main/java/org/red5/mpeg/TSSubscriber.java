@@ -0,0 +1,68 @@
+package org.red5.mpeg;
+
+/**
+ * Push based consumer of packets from a {@link TSReceiver}, following the same contract as java.util.concurrent.Flow
+ * (Java 9+) so it can be adapted directly once the module moves past Java 8. Nothing is delivered until demand is
+ * signalled via {@link Subscription#request(long)}; packets arriving while there is no outstanding demand are dropped for
+ * that subscriber, as is appropriate for live media.
+ * <br>
+ * A packet is only valid for the duration of {@link #onNext(TSPacket)}; subscribers needing it afterwards must call
+ * {@link TSPacket#retain()} and later {@link TSPacket#release()}.
+ *
+ * @author Paul Gregoire
+ */
+public interface TSSubscriber {
+
+    /**
+     * Called once with the subscription used to request packets or cancel.
+     *
+     * @param subscription
+     */
+    void onSubscribe(Subscription subscription);
+
+    /**
+     * Called for each packet, up to the requested demand.
+     *
+     * @param packet
+     */
+    void onNext(TSPacket packet);
+
+    /**
+     * Called if the subscriber fails; no further packets are delivered.
+     *
+     * @param throwable
+     */
+    void onError(Throwable throwable);
+
+    /**
+     * Called when the handler is destroyed; no further packets are delivered.
+     */
+    void onComplete();
+
+    /**
+     * Link between a receiver and a subscriber.
+     */
+    interface Subscription {
+
+        /**
+         * Adds to the number of packets the subscriber is willing to accept; Long.MAX_VALUE means unbounded.
+         *
+         * @param n
+         */
+        void request(long n);
+
+        /**
+         * Stops delivery to the subscriber.
+         */
+        void cancel();
+
+        /**
+         * Returns the number of packets dropped for lack of demand or queue space.
+         *
+         * @return dropped count
+         */
+        long getDropped();
+
+    }
+
+}
@@ -0,0 +1,560 @@
+package org.red5.mpeg.codec;
+
+import java.util.Arrays;
+
+/**
+ * MPEG-1 Layer II (MP2) audio encoder, the audio format jsmpeg decodes. Supports 32, 44.1 and 48 kHz in mono or stereo at
+ * the MPEG-1 bitrates. Bits are allocated greedily to the subbands with the lowest mask-to-noise ratio, using the absolute
+ * threshold of hearing against each subbands peak level in place of a full psychoacoustic model.
+ * <br>
+ * The polyphase analysis filterbank works on flat arrays with unit-stride inner loops so the JIT can vectorize them.
+ * <br>
+ * Not thread-safe; each stream uses its own instance.
+ *
+ * @author Paul Gregoire
+ */
+public class Mp2AudioEncoder {
+
+    public static final int SAMPLES_PER_FRAME = 1152;
+
+    private static final int[] SAMPLE_RATES = { 44100, 48000, 32000 };
+
+    private static final int[] BITRATES = { 0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384 };
+
+    // synthesis window D[i] of ISO 11172-3 table 3-B.3 scaled by 2^15, the analysis window C[i] is D[i] / 32
+    private static final double[] WINDOW = {
+            0, -0.5, -0.5, -0.5, -0.5, -0.5, -0.5, -1,
+            -1, -1, -1, -1.5, -1.5, -2, -2, -2.5,
+            -2.5, -3, -3.5, -3.5, -4, -4.5, -5, -5.5,
+            -6.5, -7, -8, -8.5, -9.5, -10.5, -12, -13,
+            -14.5, -15.5, -17.5, -19, -20.5, -22.5, -24.5, -26.5,
+            -29, -31.5, -34, -36.5, -39.5, -42.5, -45.5, -48.5,
+            -52, -55.5, -58.5, -62.5, -66, -69.5, -73.5, -77,
+            -80.5, -84.5, -88, -91.5, -95, -98, -101, -104,
+            106.5, 109, 111, 112.5, 113.5, 114, 114, 113.5,
+            112, 110.5, 107.5, 104, 100, 94.5, 88.5, 81.5,
+            73, 63.5, 53, 41.5, 28.5, 14.5, -1, -18,
+            -36, -55.5, -76.5, -98.5, -122, -147, -173.5, -200.5,
+            -229.5, -259.5, -290.5, -322.5, -355.5, -389.5, -424, -459.5,
+            -495.5, -532, -568.5, -605, -641.5, -678, -714, -749,
+            -783.5, -817, -849, -879.5, -908.5, -935, -959.5, -981,
+            -1000.5, -1016, -1028.5, -1037.5, -1042.5, -1043.5, -1040, -1031.5,
+            1018.5, 1000, 976, 946.5, 911, 869.5, 822, 767.5,
+            707, 640, 565.5, 485, 397, 302.5, 201, 92.5,
+            -22.5, -144, -272.5, -407, -547.5, -694, -846, -1003,
+            -1165, -1331.5, -1502, -1675.5, -1852.5, -2031.5, -2212.5, -2394,
+            -2576.5, -2758.5, -2939.5, -3118.5, -3294.5, -3467.5, -3635.5, -3798.5,
+            -3955, -4104.5, -4245.5, -4377.5, -4499, -4609.5, -4708, -4792.5,
+            -4863.5, -4919, -4958, -4979.5, -4983, -4967.5, -4931.5, -4875,
+            -4796, -4694.5, -4569.5, -4420, -4246, -4046, -3820, -3567,
+            3287, 2979.5, 2644, 2280.5, 1888, 1467.5, 1018.5, 541,
+            35, -499, -1061, -1650, -2266.5, -2909, -3577, -4270,
+            -4987.5, -5727.5, -6490, -7274, -8077.5, -8899.5, -9739, -10594.5,
+            -11464.5, -12347, -13241, -14144.5, -15056, -15973.5, -16895.5, -17820,
+            -18744.5, -19668, -20588, -21503, -22410.5, -23308.5, -24195, -25068.5,
+            -25926.5, -26767, -27589, -28389, -29166.5, -29919, -30644.5, -31342,
+            -32009.5, -32645, -33247, -33814.5, -34346, -34839.5, -35295, -35710,
+            -36084.5, -36417.5, -36707.5, -36954, -37156.5, -37315, -37428, -37496,
+            37519, 37496, 37428, 37315, 37156.5, 36954, 36707.5, 36417.5,
+            36084.5, 35710, 35295, 34839.5, 34346, 33814.5, 33247, 32645,
+            32009.5, 31342, 30644.5, 29919, 29166.5, 28389, 27589, 26767,
+            25926.5, 25068.5, 24195, 23308.5, 22410.5, 21503, 20588, 19668,
+            18744.5, 17820, 16895.5, 15973.5, 15056, 14144.5, 13241, 12347,
+            11464.5, 10594.5, 9739, 8899.5, 8077.5, 7274, 6490, 5727.5,
+            4987.5, 4270, 3577, 2909, 2266.5, 1650, 1061, 499,
+            -35, -541, -1018.5, -1467.5, -1888, -2280.5, -2644, -2979.5,
+            3287, 3567, 3820, 4046, 4246, 4420, 4569.5, 4694.5,
+            4796, 4875, 4931.5, 4967.5, 4983, 4979.5, 4958, 4919,
+            4863.5, 4792.5, 4708, 4609.5, 4499, 4377.5, 4245.5, 4104.5,
+            3955, 3798.5, 3635.5, 3467.5, 3294.5, 3118.5, 2939.5, 2758.5,
+            2576.5, 2394, 2212.5, 2031.5, 1852.5, 1675.5, 1502, 1331.5,
+            1165, 1003, 846, 694, 547.5, 407, 272.5, 144,
+            22.5, -92.5, -201, -302.5, -397, -485, -565.5, -640,
+            -707, -767.5, -822, -869.5, -911, -946.5, -976, -1000,
+            1018.5, 1031.5, 1040, 1043.5, 1042.5, 1037.5, 1028.5, 1016,
+            1000.5, 981, 959.5, 935, 908.5, 879.5, 849, 817,
+            783.5, 749, 714, 678, 641.5, 605, 568.5, 532,
+            495.5, 459.5, 424, 389.5, 355.5, 322.5, 290.5, 259.5,
+            229.5, 200.5, 173.5, 147, 122, 98.5, 76.5, 55.5,
+            36, 18, 1, -14.5, -28.5, -41.5, -53, -63.5,
+            -73, -81.5, -88.5, -94.5, -100, -104, -107.5, -110.5,
+            -112, -113.5, -114, -114, -113.5, -112.5, -111, -109,
+            106.5, 104, 101, 98, 95, 91.5, 88, 84.5,
+            80.5, 77, 73.5, 69.5, 66, 62.5, 58.5, 55.5,
+            52, 48.5, 45.5, 42.5, 39.5, 36.5, 34, 31.5,
+            29, 26.5, 24.5, 22.5, 20.5, 19, 17.5, 15.5,
+            14.5, 13, 12, 10.5, 9.5, 8.5, 8, 7,
+            6.5, 5.5, 5, 4.5, 4, 3.5, 3.5, 3,
+            2.5, 2.5, 2, 2, 1.5, 1.5, 1, 1,
+            1, 1, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5
+    };
+
+    // allocation table lookups as in ISO 11172-3 tables 3-B.2a-d; bitrate class by mode and bitrate index
+    private static final int[][] TABLE_CLASS = { { 0, 0, 0, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 2 }, { 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 2, 2, 2, 2, 2 } };
+
+    // table (upper bits; 0 low-rate, 1 high-rate) and sblimit by bitrate class and sample rate
+    private static final int[][] TABLE_SELECT = { { 8, 8, 12 }, { 27 | 64, 27 | 64, 27 | 64 }, { 30 | 64, 27 | 64, 30 | 64 } };
+
+    // allocation bits (upper nibble) and quantizer row (lower nibble) by table and subband
+    private static final int[][] SUBBAND_ALLOCATION = { { 0x44, 0x44, 0x34, 0x34, 0x34, 0x34, 0x34, 0x34, 0x34, 0x34, 0x34, 0x34 },
+            { 0x43, 0x43, 0x43, 0x42, 0x42, 0x42, 0x42, 0x42, 0x42, 0x42, 0x42, 0x31, 0x31, 0x31, 0x31, 0x31, 0x31, 0x31, 0x31, 0x31, 0x31, 0x31, 0x31, 0x20, 0x20, 0x20, 0x20, 0x20, 0x20, 0x20 } };
+
+    // quantizer class by row and allocation code, 0 for none
+    private static final int[][] ROW_QUANTIZERS = { { 0, 1, 2, 17 }, { 0, 1, 2, 3, 4, 5, 6, 17 }, { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 17 }, { 0, 1, 3, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17 },
+            { 0, 1, 2, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 17 } };
+
+    // quantizer classes 1 - 17; levels, grouped, bits per codeword and snr in dB
+    private static final int[] LEVELS = { 0, 3, 5, 7, 9, 15, 31, 63, 127, 255, 511, 1023, 2047, 4095, 8191, 16383, 32767, 65535 };
+
+    private static final boolean[] GROUPED = { false, true, true, false, true, false, false, false, false, false, false, false, false, false, false, false, false, false };
+
+    private static final int[] BITS = { 0, 5, 7, 3, 10, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+
+    private static final double[] SNR = { 0d, 7d, 11d, 16d, 20.84, 25.28, 31.59, 37.75, 43.84, 49.89, 55.93, 61.96, 67.98, 74.01, 80.03, 86.05, 92.01, 98.01 };
+
+    // scalefactors 2^(1 - i/3)
+    private static final double[] SCALEFACTORS = new double[63];
+
+    // scalefactor bits by selection info
+    private static final int[] SCALEFACTOR_BITS = { 18, 12, 6, 12 };
+
+    // analysis matrix M[k][i] = cos((2k + 1)(i - 16)pi / 64), row-major
+    private static final float[] MATRIX = new float[32 * 64];
+
+    private static final float[] ANALYSIS = new float[512];
+
+    static {
+        for (int i = 0; i < SCALEFACTORS.length; i++) {
+            SCALEFACTORS[i] = Math.pow(2d, 1d - i / 3d);
+        }
+        for (int k = 0; k < 32; k++) {
+            for (int i = 0; i < 64; i++) {
+                MATRIX[k * 64 + i] = (float) Math.cos((2 * k + 1) * (i - 16) * Math.PI / 64d);
+            }
+        }
+        for (int i = 0; i < 512; i++) {
+            ANALYSIS[i] = (float) (WINDOW[i] / 32768d / 32d);
+        }
+    }
+
+    private final int sampleRate, channels, bitrate;
+
+    private final int sampleRateIndex, bitrateIndex;
+
+    // allocation table in use
+    private final int table, sblimit;
+
+    // bytes per frame without padding and the fractional part, in 1/sampleRate units, for 44.1 kHz padding
+    private final int frameBytes, frameRemainder;
+
+    private int padAccumulator;
+
+    // absolute threshold per subband in dB relative to full scale
+    private final double[] threshold = new double[32];
+
+    // per channel analysis history, newest sample first
+    private final float[][] history;
+
+    // pcm waiting to fill a frame, per channel
+    private final float[][] pcm;
+
+    private int buffered;
+
+    // subband samples per channel [sb * 36 + t]
+    private final float[][] subbands;
+
+    private final float[] windowed = new float[64];
+
+    // per channel and subband: scalefactor indexes, selection info and allocation code
+    private final int[][][] scalefactor;
+
+    private final int[][] scfsi, allocation;
+
+    // signal to mask ratio per channel and subband
+    private final double[][] smr;
+
+    private final BitWriter out = new BitWriter();
+
+    private long frames;
+
+    /**
+     * Creates an encoder.
+     *
+     * @param sampleRate 32000, 44100 or 48000
+     * @param channels 1 or 2
+     * @param bitrate bits per second, the nearest MPEG-1 layer II rate is used
+     */
+    public Mp2AudioEncoder(int sampleRate, int channels, int bitrate) {
+        int rateIndex = -1;
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) {
+                rateIndex = i;
+            }
+        }
+        if (rateIndex < 0 || channels < 1 || channels > 2) {
+            throw new IllegalArgumentException("Unsupported format " + sampleRate + "Hz " + channels + " channels");
+        }
+        int index = 1;
+        for (int i = 2; i < BITRATES.length; i++) {
+            if (Math.abs(BITRATES[i] * 1000 - bitrate) < Math.abs(BITRATES[index] * 1000 - bitrate)) {
+                index = i;
+            }
+        }
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.sampleRateIndex = rateIndex;
+        this.bitrateIndex = index;
+        this.bitrate = BITRATES[index] * 1000;
+        int select = TABLE_SELECT[TABLE_CLASS[channels - 1][index]][rateIndex];
+        this.table = select >> 6;
+        this.sblimit = select & 63;
+        this.frameBytes = 144 * this.bitrate / sampleRate;
+        this.frameRemainder = 144 * this.bitrate % sampleRate;
+        for (int sb = 0; sb < 32; sb++) {
+            // threshold in quiet at the band centre, taking full scale as 96 dB spl
+            double khz = (sb + 0.5) * sampleRate / 64d / 1000d;
+            threshold[sb] = 3.64 * Math.pow(khz, -0.8) - 6.5 * Math.exp(-0.6 * (khz - 3.3) * (khz - 3.3)) + 0.001 * Math.pow(khz, 4) - 96d;
+        }
+        history = new float[channels][512];
+        pcm = new float[channels][SAMPLES_PER_FRAME];
+        subbands = new float[channels][32 * 36];
+        scalefactor = new int[channels][32][3];
+        scfsi = new int[channels][32];
+        allocation = new int[channels][32];
+        smr = new double[channels][32];
+    }
+
+    /**
+     * Encodes interleaved 16 bit pcm. Samples are buffered until a whole frame is available, so a call may return any
+     * number of frames, including none.
+     *
+     * @param samples interleaved samples
+     * @param offset first sample
+     * @param length number of samples, across all channels
+     * @return encoded frames, empty if none were completed
+     */
+    public byte[] encode(short[] samples, int offset, int length) {
+        out.reset();
+        int end = offset + length - channels + 1;
+        for (int i = offset; i < end; i += channels) {
+            for (int ch = 0; ch < channels; ch++) {
+                pcm[ch][buffered] = samples[i + ch] / 32768f;
+            }
+            if (++buffered == SAMPLES_PER_FRAME) {
+                encodeFrame();
+                buffered = 0;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private void encodeFrame() {
+        for (int ch = 0; ch < channels; ch++) {
+            analyze(ch);
+            scale(ch);
+        }
+        // frame size, padding a slot whenever the fractional bytes add up
+        boolean padding = false;
+        if (frameRemainder != 0) {
+            padAccumulator += frameRemainder;
+            if (padAccumulator >= sampleRate) {
+                padAccumulator -= sampleRate;
+                padding = true;
+            }
+        }
+        int frameBits = (frameBytes + (padding ? 1 : 0)) << 3;
+        allocate(frameBits);
+        long start = out.bits();
+        // header; mpeg-1 layer ii without crc
+        out.write(0xfff, 12);
+        out.write(1, 1);
+        out.write(2, 2);
+        out.write(1, 1);
+        out.write(bitrateIndex, 4);
+        out.write(sampleRateIndex, 2);
+        out.write(padding ? 1 : 0, 1);
+        out.write(0, 1);
+        out.write(channels == 1 ? 3 : 0, 2);
+        out.write(0, 2);
+        // not copyrighted, original, no emphasis
+        out.write(0, 1);
+        out.write(1, 1);
+        out.write(0, 2);
+        for (int sb = 0; sb < sblimit; sb++) {
+            int nbal = SUBBAND_ALLOCATION[table][sb] >> 4;
+            for (int ch = 0; ch < channels; ch++) {
+                out.write(allocation[ch][sb], nbal);
+            }
+        }
+        for (int sb = 0; sb < sblimit; sb++) {
+            for (int ch = 0; ch < channels; ch++) {
+                if (allocation[ch][sb] != 0) {
+                    out.write(scfsi[ch][sb], 2);
+                }
+            }
+        }
+        for (int sb = 0; sb < sblimit; sb++) {
+            for (int ch = 0; ch < channels; ch++) {
+                if (allocation[ch][sb] != 0) {
+                    int[] sf = scalefactor[ch][sb];
+                    switch (scfsi[ch][sb]) {
+                        case 0:
+                            out.write(sf[0], 6);
+                            out.write(sf[1], 6);
+                            out.write(sf[2], 6);
+                            break;
+                        case 1:
+                            out.write(sf[0], 6);
+                            out.write(sf[2], 6);
+                            break;
+                        case 2:
+                            out.write(sf[0], 6);
+                            break;
+                        case 3:
+                            out.write(sf[0], 6);
+                            out.write(sf[1], 6);
+                            break;
+                    }
+                }
+            }
+        }
+        // twelve granules of three samples per subband
+        for (int gr = 0; gr < 12; gr++) {
+            int part = gr >> 2;
+            for (int sb = 0; sb < sblimit; sb++) {
+                for (int ch = 0; ch < channels; ch++) {
+                    int code = allocation[ch][sb];
+                    if (code != 0) {
+                        int quantizer = ROW_QUANTIZERS[SUBBAND_ALLOCATION[table][sb] & 15][code];
+                        int levels = LEVELS[quantizer];
+                        double sf = SCALEFACTORS[scalefactor[ch][sb][part]];
+                        int base = sb * 36 + gr * 3;
+                        float[] s = subbands[ch];
+                        int q0 = quantize(s[base] / sf, levels), q1 = quantize(s[base + 1] / sf, levels), q2 = quantize(s[base + 2] / sf, levels);
+                        if (GROUPED[quantizer]) {
+                            out.write(q0 + levels * (q1 + levels * q2), BITS[quantizer]);
+                        } else {
+                            out.write(q0, BITS[quantizer]);
+                            out.write(q1, BITS[quantizer]);
+                            out.write(q2, BITS[quantizer]);
+                        }
+                    }
+                }
+            }
+        }
+        // fill the rest of the frame
+        int used = (int) (out.bits() - start);
+        for (int remaining = frameBits - used; remaining > 0; remaining -= 16) {
+            out.write(0, Math.min(16, remaining));
+        }
+        frames++;
+    }
+
+    // polyphase analysis of the buffered frame into 36 samples for each of the 32 subbands
+    private void analyze(int ch) {
+        float[] x = history[ch];
+        float[] in = pcm[ch];
+        float[] s = subbands[ch];
+        float[] y = windowed;
+        for (int t = 0; t < 36; t++) {
+            // shift in 32 samples, newest first
+            System.arraycopy(x, 0, x, 32, 480);
+            int src = t * 32 + 31;
+            for (int i = 0; i < 32; i++) {
+                x[i] = in[src - i];
+            }
+            // window and fold the 512 taps down to 64
+            for (int i = 0; i < 64; i++) {
+                y[i] = ANALYSIS[i] * x[i];
+            }
+            for (int j = 64; j < 512; j += 64) {
+                for (int i = 0; i < 64; i++) {
+                    y[i] += ANALYSIS[j + i] * x[j + i];
+                }
+            }
+            // matrixing
+            for (int k = 0; k < 32; k++) {
+                int row = k * 64;
+                float sum = 0f;
+                for (int i = 0; i < 64; i++) {
+                    sum += MATRIX[row + i] * y[i];
+                }
+                s[k * 36 + t] = sum;
+            }
+        }
+    }
+
+    // picks scalefactors for each third of the frame and how they're shared
+    private void scale(int ch) {
+        float[] s = subbands[ch];
+        for (int sb = 0; sb < sblimit; sb++) {
+            int[] sf = scalefactor[ch][sb];
+            for (int part = 0; part < 3; part++) {
+                float max = 0f;
+                int base = sb * 36 + part * 12;
+                for (int i = 0; i < 12; i++) {
+                    max = Math.max(max, Math.abs(s[base + i]));
+                }
+                sf[part] = scalefactorIndex(max);
+            }
+            // share scalefactors that are close, taking the larger so nothing clips
+            int d01 = sf[0] - sf[1], d12 = sf[1] - sf[2];
+            if (Math.abs(d01) <= 1 && Math.abs(d12) <= 1) {
+                sf[0] = sf[1] = sf[2] = Math.min(sf[0], Math.min(sf[1], sf[2]));
+                scfsi[ch][sb] = 2;
+            } else if (Math.abs(d01) <= 1) {
+                sf[0] = sf[1] = Math.min(sf[0], sf[1]);
+                scfsi[ch][sb] = 1;
+            } else if (Math.abs(d12) <= 1) {
+                sf[1] = sf[2] = Math.min(sf[1], sf[2]);
+                scfsi[ch][sb] = 3;
+            } else {
+                scfsi[ch][sb] = 0;
+            }
+        }
+    }
+
+    // greedy bit allocation to the subband with the lowest mask to noise ratio
+    private void allocate(int frameBits) {
+        int available = frameBits - 32;
+        for (int sb = 0; sb < sblimit; sb++) {
+            available -= (SUBBAND_ALLOCATION[table][sb] >> 4) * channels;
+        }
+        for (int ch = 0; ch < channels; ch++) {
+            Arrays.fill(allocation[ch], 0);
+            for (int sb = 0; sb < sblimit; sb++) {
+                int[] sf = scalefactor[ch][sb];
+                double peak = 20d * Math.log10(SCALEFACTORS[Math.min(sf[0], Math.min(sf[1], sf[2]))]);
+                smr[ch][sb] = peak - threshold[sb];
+            }
+        }
+        for (;;) {
+            int bestCh = -1, bestSb = -1, bestCost = 0;
+            double lowest = Double.MAX_VALUE;
+            for (int ch = 0; ch < channels; ch++) {
+                for (int sb = 0; sb < sblimit; sb++) {
+                    // rows can be longer than the allocation field addresses
+                    int entry = SUBBAND_ALLOCATION[table][sb];
+                    int[] row = ROW_QUANTIZERS[entry & 15];
+                    int code = allocation[ch][sb];
+                    if (code + 1 >= Math.min(row.length, 1 << (entry >> 4))) {
+                        continue;
+                    }
+                    double mnr = SNR[row[code]] - smr[ch][sb];
+                    if (mnr < lowest) {
+                        int cost = sampleBits(row[code + 1]) - sampleBits(row[code]);
+                        if (code == 0) {
+                            cost += 2 + SCALEFACTOR_BITS[scfsi[ch][sb]];
+                        }
+                        if (cost <= available) {
+                            lowest = mnr;
+                            bestCh = ch;
+                            bestSb = sb;
+                            bestCost = cost;
+                        }
+                    }
+                }
+            }
+            if (bestCh < 0) {
+                break;
+            }
+            allocation[bestCh][bestSb]++;
+            available -= bestCost;
+        }
+    }
+
+    // bits used by a subbands 36 samples with a quantizer class
+    private static int sampleBits(int quantizer) {
+        if (quantizer == 0) {
+            return 0;
+        }
+        return GROUPED[quantizer] ? 12 * BITS[quantizer] : 36 * BITS[quantizer];
+    }
+
+    // smallest scalefactor covering the peak
+    private static int scalefactorIndex(float peak) {
+        if (peak <= 0f) {
+            return 62;
+        }
+        int index = (int) Math.floor(3d * (1d - Math.log(peak) / Math.log(2d)));
+        index = Math.max(0, Math.min(62, index));
+        while (index > 0 && SCALEFACTORS[index] < peak) {
+            index--;
+        }
+        return index;
+    }
+
+    // maps a sample normalized by its scalefactor to a code; decoders reconstruct (middle - code) * 2 / (levels + 1)
+    private static int quantize(double value, int levels) {
+        int code = (levels >> 1) - (int) Math.round(value * (levels + 1) / 2d);
+        return Math.max(0, Math.min(levels - 1, code));
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    /**
+     * Returns the number of samples per channel waiting for a frame to fill.
+     *
+     * @return buffered samples
+     */
+    public int getBuffered() {
+        return buffered;
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Big-endian bit writer over a growable array.
+     */
+    private static final class BitWriter {
+
+        private byte[] data = new byte[4096];
+
+        private int length;
+
+        private long acc;
+
+        private int count;
+
+        void reset() {
+            length = 0;
+            acc = 0L;
+            count = 0;
+        }
+
+        void write(int value, int bits) {
+            acc |= (value & ((1L << bits) - 1)) << (64 - count - bits);
+            count += bits;
+            while (count >= 8) {
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, length << 1);
+                }
+                data[length++] = (byte) (acc >>> 56);
+                acc <<= 8;
+                count -= 8;
+            }
+        }
+
+        long bits() {
+            return (length << 3) + count;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+
+    }
+
+}
@@ -0,0 +1,370 @@
+package org.red5.mpeg.codec;
+
+import java.util.Arrays;
+
+/**
+ * Intra-only MPEG-1 video encoder, which is what jsmpeg decodes. Every picture is coded as an I-picture and preceded by a
+ * sequence header and a closed GOP header, so a decoder can start on any frame. Input is planar 4:2:0 with signed samples
+ * centered on zero, as produced by the JCodec decoders; the planes must cover whole macroblocks.
+ * <br>
+ * Rate control adapts the quantizer once per picture towards the configured bitrate.
+ * <br>
+ * Not thread-safe; each stream uses its own instance.
+ *
+ * @author Paul Gregoire
+ */
+public class Mpeg1VideoEncoder {
+
+    // start codes
+    private static final int PICTURE_START = 0x100, SLICE_START = 0x101, SEQUENCE_HEADER = 0x1b3, GOP_START = 0x1b8;
+
+    // picture_rate codes 1 - 8
+    private static final double[] PICTURE_RATES = { 23.976, 24d, 25d, 29.97, 30d, 50d, 59.94, 60d };
+
+    // zig-zag scan to raster position
+    private static final int[] ZIGZAG = { 0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5, 12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28, 35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51, 58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63 };
+
+    // default intra quantizer matrix in raster order
+    private static final int[] INTRA_MATRIX = { 8, 16, 19, 22, 26, 27, 29, 34, 16, 16, 22, 24, 27, 29, 34, 37, 19, 22, 26, 27, 29, 34, 34, 38, 22, 22, 26, 27, 29, 34, 37, 40, 22, 26, 27, 29, 32, 35, 40, 48, 26, 27, 29, 32, 35, 40, 48, 58, 26, 27, 29, 34, 38, 46, 56, 69, 27, 29, 35, 38, 46, 56, 69, 83 };
+
+    // dct_dc_size_luminance / chrominance codes and lengths indexed by size
+    private static final int[] DC_LUMA_CODE = { 0b100, 0b00, 0b01, 0b101, 0b110, 0b1110, 0b11110, 0b111110, 0b1111110 };
+
+    private static final int[] DC_LUMA_LENGTH = { 3, 2, 2, 3, 3, 4, 5, 6, 7 };
+
+    private static final int[] DC_CHROMA_CODE = { 0b00, 0b01, 0b10, 0b110, 0b1110, 0b11110, 0b111110, 0b1111110, 0b11111110 };
+
+    private static final int[] DC_CHROMA_LENGTH = { 2, 2, 2, 3, 4, 5, 6, 7, 8 };
+
+    // dct_coeff_next as { run, level, code, length }, sign bit not included
+    private static final int[][] AC_TABLE = {
+            { 0, 1, 0b11, 2 }, { 1, 1, 0b011, 3 }, { 0, 2, 0b0100, 4 }, { 2, 1, 0b0101, 4 }, { 0, 3, 0b00101, 5 }, { 3, 1, 0b00111, 5 }, { 4, 1, 0b00110, 5 },
+            { 1, 2, 0b000110, 6 }, { 5, 1, 0b000111, 6 }, { 6, 1, 0b000101, 6 }, { 7, 1, 0b000100, 6 },
+            { 0, 4, 0b0000110, 7 }, { 2, 2, 0b0000100, 7 }, { 8, 1, 0b0000111, 7 }, { 9, 1, 0b0000101, 7 },
+            { 0, 5, 0b00100110, 8 }, { 0, 6, 0b00100001, 8 }, { 1, 3, 0b00100101, 8 }, { 3, 2, 0b00100100, 8 }, { 10, 1, 0b00100111, 8 }, { 11, 1, 0b00100011, 8 }, { 12, 1, 0b00100010, 8 }, { 13, 1, 0b00100000, 8 },
+            { 0, 7, 0b0000001010, 10 }, { 1, 4, 0b0000001100, 10 }, { 2, 3, 0b0000001011, 10 }, { 4, 2, 0b0000001111, 10 }, { 5, 2, 0b0000001001, 10 }, { 14, 1, 0b0000001110, 10 }, { 15, 1, 0b0000001101, 10 }, { 16, 1, 0b0000001000, 10 },
+            { 0, 8, 0b000000011101, 12 }, { 0, 9, 0b000000011000, 12 }, { 0, 10, 0b000000010011, 12 }, { 0, 11, 0b000000010000, 12 }, { 1, 5, 0b000000011011, 12 }, { 2, 4, 0b000000010100, 12 }, { 3, 3, 0b000000011100, 12 }, { 4, 3, 0b000000010010, 12 },
+            { 6, 2, 0b000000011110, 12 }, { 7, 2, 0b000000010101, 12 }, { 8, 2, 0b000000010001, 12 }, { 17, 1, 0b000000011111, 12 }, { 18, 1, 0b000000011010, 12 }, { 19, 1, 0b000000011001, 12 }, { 20, 1, 0b000000010111, 12 }, { 21, 1, 0b000000010110, 12 },
+            { 0, 12, 0b0000000011010, 13 }, { 0, 13, 0b0000000011001, 13 }, { 0, 14, 0b0000000011000, 13 }, { 0, 15, 0b0000000010111, 13 }, { 1, 6, 0b0000000010110, 13 }, { 1, 7, 0b0000000010101, 13 }, { 2, 5, 0b0000000010100, 13 }, { 3, 4, 0b0000000010011, 13 },
+            { 5, 3, 0b0000000010010, 13 }, { 9, 2, 0b0000000010001, 13 }, { 10, 2, 0b0000000010000, 13 }, { 22, 1, 0b0000000011111, 13 }, { 23, 1, 0b0000000011110, 13 }, { 24, 1, 0b0000000011101, 13 }, { 25, 1, 0b0000000011100, 13 }, { 26, 1, 0b0000000011011, 13 },
+            { 0, 16, 0b00000000011111, 14 }, { 0, 17, 0b00000000011110, 14 }, { 0, 18, 0b00000000011101, 14 }, { 0, 19, 0b00000000011100, 14 }, { 0, 20, 0b00000000011011, 14 }, { 0, 21, 0b00000000011010, 14 }, { 0, 22, 0b00000000011001, 14 }, { 0, 23, 0b00000000011000, 14 },
+            { 0, 24, 0b00000000010111, 14 }, { 0, 25, 0b00000000010110, 14 }, { 0, 26, 0b00000000010101, 14 }, { 0, 27, 0b00000000010100, 14 }, { 0, 28, 0b00000000010011, 14 }, { 0, 29, 0b00000000010010, 14 }, { 0, 30, 0b00000000010001, 14 }, { 0, 31, 0b00000000010000, 14 },
+            { 0, 32, 0b000000000011000, 15 }, { 0, 33, 0b000000000010111, 15 }, { 0, 34, 0b000000000010110, 15 }, { 0, 35, 0b000000000010101, 15 }, { 0, 36, 0b000000000010100, 15 }, { 0, 37, 0b000000000010011, 15 }, { 0, 38, 0b000000000010010, 15 }, { 0, 39, 0b000000000010001, 15 },
+            { 0, 40, 0b000000000010000, 15 }, { 1, 8, 0b000000000011111, 15 }, { 1, 9, 0b000000000011110, 15 }, { 1, 10, 0b000000000011101, 15 }, { 1, 11, 0b000000000011100, 15 }, { 1, 12, 0b000000000011011, 15 }, { 1, 13, 0b000000000011010, 15 }, { 1, 14, 0b000000000011001, 15 },
+            { 1, 15, 0b0000000000010011, 16 }, { 1, 16, 0b0000000000010010, 16 }, { 1, 17, 0b0000000000010001, 16 }, { 1, 18, 0b0000000000010000, 16 }, { 6, 3, 0b0000000000010100, 16 }, { 11, 2, 0b0000000000011010, 16 }, { 12, 2, 0b0000000000011001, 16 }, { 13, 2, 0b0000000000011000, 16 },
+            { 14, 2, 0b0000000000010111, 16 }, { 15, 2, 0b0000000000010110, 16 }, { 16, 2, 0b0000000000010101, 16 }, { 27, 1, 0b0000000000011111, 16 }, { 28, 1, 0b0000000000011110, 16 }, { 29, 1, 0b0000000000011101, 16 }, { 30, 1, 0b0000000000011100, 16 }, { 31, 1, 0b0000000000011011, 16 } };
+
+    // longest level with a code for each run
+    private static final int MAX_CODED_LEVEL = 40;
+
+    // ac codes and lengths indexed by [run][level], 0 length where an escape is needed
+    private static final int[][] AC_CODE = new int[64][MAX_CODED_LEVEL + 1];
+
+    private static final int[][] AC_LENGTH = new int[64][MAX_CODED_LEVEL + 1];
+
+    // forward dct basis; orthonormal so that the dc coefficient is eight times the block mean
+    private static final float[] DCT = new float[64];
+
+    static {
+        for (int[] entry : AC_TABLE) {
+            AC_CODE[entry[0]][entry[1]] = entry[2];
+            AC_LENGTH[entry[0]][entry[1]] = entry[3];
+        }
+        for (int u = 0; u < 8; u++) {
+            double scale = u == 0 ? Math.sqrt(0.125) : 0.5;
+            for (int x = 0; x < 8; x++) {
+                DCT[u * 8 + x] = (float) (scale * Math.cos((2 * x + 1) * u * Math.PI / 16d));
+            }
+        }
+    }
+
+    private final int width, height;
+
+    private final int mbWidth, mbHeight;
+
+    private final int pictureRate;
+
+    private final double frameRate;
+
+    private final int bitrate;
+
+    // target size of a picture in bits
+    private final double targetBits;
+
+    // current quantizer scale, kept fractional so small corrections accumulate
+    private double quantizer = 8d;
+
+    private final BitWriter out = new BitWriter();
+
+    private final float[] block = new float[64];
+
+    private final float[] temp = new float[64];
+
+    // dc predictors for y, cb and cr
+    private final int[] dcPredictor = new int[3];
+
+    private long frames;
+
+    /**
+     * Creates an encoder.
+     *
+     * @param width display width
+     * @param height display height
+     * @param frameRate frames per second, the nearest MPEG-1 rate is signalled
+     * @param bitrate target bits per second
+     */
+    public Mpeg1VideoEncoder(int width, int height, double frameRate, int bitrate) {
+        if (width <= 0 || height <= 0 || width > 4095 || height > 2800) {
+            throw new IllegalArgumentException("Unsupported picture size " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.mbWidth = (width + 15) >> 4;
+        this.mbHeight = (height + 15) >> 4;
+        int code = 0;
+        for (int i = 1; i < PICTURE_RATES.length; i++) {
+            if (Math.abs(PICTURE_RATES[i] - frameRate) < Math.abs(PICTURE_RATES[code] - frameRate)) {
+                code = i;
+            }
+        }
+        this.pictureRate = code + 1;
+        this.frameRate = PICTURE_RATES[code];
+        this.bitrate = bitrate;
+        this.targetBits = bitrate / this.frameRate;
+    }
+
+    /**
+     * Encodes a picture.
+     *
+     * @param y luma plane
+     * @param cb blue chroma plane
+     * @param cr red chroma plane
+     * @param stride luma line length; chroma lines are half of it
+     * @return sequence header, GOP header and I-picture
+     */
+    public byte[] encode(byte[] y, byte[] cb, byte[] cr, int stride) {
+        if (stride < mbWidth << 4 || y.length < stride * (mbHeight << 4)) {
+            throw new IllegalArgumentException("Planes don't cover the macroblocks");
+        }
+        int qscale = (int) Math.round(quantizer);
+        out.reset();
+        writeSequenceHeader();
+        writeGopHeader();
+        // picture header; temporal reference 0, I-picture, variable vbv delay
+        out.startCode(PICTURE_START);
+        out.write(0, 10);
+        out.write(1, 3);
+        out.write(0xffff, 16);
+        out.write(0, 1);
+        out.align();
+        int chromaStride = stride >> 1;
+        for (int mby = 0; mby < mbHeight; mby++) {
+            // a slice per row of macroblocks
+            out.startCode(SLICE_START + mby);
+            out.write(qscale, 5);
+            out.write(0, 1);
+            Arrays.fill(dcPredictor, 128);
+            for (int mbx = 0; mbx < mbWidth; mbx++) {
+                // address increment 1 and intra macroblock type
+                out.write(1, 1);
+                out.write(1, 1);
+                int lx = mbx << 4, ly = mby << 4;
+                encodeBlock(y, stride, lx, ly, 0, qscale);
+                encodeBlock(y, stride, lx + 8, ly, 0, qscale);
+                encodeBlock(y, stride, lx, ly + 8, 0, qscale);
+                encodeBlock(y, stride, lx + 8, ly + 8, 0, qscale);
+                encodeBlock(cb, chromaStride, lx >> 1, ly >> 1, 1, qscale);
+                encodeBlock(cr, chromaStride, lx >> 1, ly >> 1, 2, qscale);
+            }
+            out.align();
+        }
+        frames++;
+        // steer the quantizer towards the target picture size
+        double ratio = out.bits() / targetBits;
+        quantizer = Math.max(1d, Math.min(31d, quantizer * Math.sqrt(ratio)));
+        return out.toByteArray();
+    }
+
+    private void writeSequenceHeader() {
+        out.startCode(SEQUENCE_HEADER);
+        out.write(width, 12);
+        out.write(height, 12);
+        // square pixels
+        out.write(1, 4);
+        out.write(pictureRate, 4);
+        out.write(Math.max(1, Math.min(0x3fffe, (bitrate + 399) / 400)), 18);
+        out.write(1, 1);
+        // half a second of vbv buffer in 16 kbit units
+        out.write(Math.max(1, Math.min(1023, bitrate / 2 / 16384)), 10);
+        // not constrained, default quantizer matrices
+        out.write(0, 3);
+    }
+
+    private void writeGopHeader() {
+        out.startCode(GOP_START);
+        int fps = (int) Math.round(frameRate);
+        long seconds = frames / fps;
+        out.write(0, 1);
+        out.write((int) (seconds / 3600) % 24, 5);
+        out.write((int) (seconds / 60) % 60, 6);
+        out.write(1, 1);
+        out.write((int) (seconds % 60), 6);
+        out.write((int) (frames % fps), 6);
+        // closed gop, no broken link
+        out.write(1, 1);
+        out.write(0, 1);
+        out.align();
+    }
+
+    // transforms, quantizes and codes the 8x8 block at x, y of a plane
+    private void encodeBlock(byte[] plane, int stride, int x, int y, int component, int qscale) {
+        // rows then columns of the separable dct
+        for (int row = 0; row < 8; row++) {
+            int src = (y + row) * stride + x;
+            for (int u = 0; u < 8; u++) {
+                int basis = u << 3;
+                float sum = 0f;
+                for (int i = 0; i < 8; i++) {
+                    sum += DCT[basis + i] * plane[src + i];
+                }
+                temp[(row << 3) + u] = sum;
+            }
+        }
+        for (int col = 0; col < 8; col++) {
+            for (int v = 0; v < 8; v++) {
+                int basis = v << 3;
+                float sum = 0f;
+                for (int i = 0; i < 8; i++) {
+                    sum += DCT[basis + i] * temp[(i << 3) + col];
+                }
+                block[(v << 3) + col] = sum;
+            }
+        }
+        // dc is coded as the block mean, differentially against the previous block of the component
+        int dc = Math.max(0, Math.min(255, Math.round(block[0] / 8f) + 128));
+        int diff = dc - dcPredictor[component];
+        dcPredictor[component] = dc;
+        int size = 32 - Integer.numberOfLeadingZeros(Math.abs(diff));
+        if (component == 0) {
+            out.write(DC_LUMA_CODE[size], DC_LUMA_LENGTH[size]);
+        } else {
+            out.write(DC_CHROMA_CODE[size], DC_CHROMA_LENGTH[size]);
+        }
+        if (size > 0) {
+            out.write(diff > 0 ? diff : diff + (1 << size) - 1, size);
+        }
+        float scale = 8f / qscale;
+        int run = 0;
+        for (int i = 1; i < 64; i++) {
+            int pos = ZIGZAG[i];
+            int level = Math.round(block[pos] * scale / INTRA_MATRIX[pos]);
+            if (level == 0) {
+                run++;
+                continue;
+            }
+            level = Math.max(-255, Math.min(255, level));
+            int abs = Math.abs(level);
+            if (abs <= MAX_CODED_LEVEL && AC_LENGTH[run][abs] > 0) {
+                out.write(AC_CODE[run][abs], AC_LENGTH[run][abs]);
+                out.write(level < 0 ? 1 : 0, 1);
+            } else {
+                // escape with a fixed length run and level
+                out.write(0b000001, 6);
+                out.write(run, 6);
+                if (abs < 128) {
+                    out.write(level & 0xff, 8);
+                } else {
+                    out.write(level < 0 ? 0x80 : 0, 8);
+                    out.write(level & 0xff, 8);
+                }
+            }
+            run = 0;
+        }
+        // end of block
+        out.write(0b10, 2);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    /**
+     * Returns the quantizer scale the next picture will use.
+     *
+     * @return quantizer scale 1 - 31
+     */
+    public int getQuantizer() {
+        return (int) Math.round(quantizer);
+    }
+
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Big-endian bit writer over a growable array.
+     */
+    private static final class BitWriter {
+
+        private byte[] data = new byte[64 * 1024];
+
+        private int length;
+
+        // pending bits, left aligned at bit 63 down
+        private long acc;
+
+        private int count;
+
+        void reset() {
+            length = 0;
+            acc = 0L;
+            count = 0;
+        }
+
+        void write(int value, int bits) {
+            acc |= (value & ((1L << bits) - 1)) << (64 - count - bits);
+            count += bits;
+            while (count >= 8) {
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, length << 1);
+                }
+                data[length++] = (byte) (acc >>> 56);
+                acc <<= 8;
+                count -= 8;
+            }
+        }
+
+        void align() {
+            if (count > 0) {
+                write(0, 8 - count);
+            }
+        }
+
+        void startCode(int code) {
+            align();
+            write(0, 8);
+            write(0, 8);
+            write(1, 8);
+            write(code & 0xff, 8);
+        }
+
+        long bits() {
+            return (length << 3) + count;
+        }
+
+        byte[] toByteArray() {
+            align();
+            return Arrays.copyOf(data, length);
+        }
+
+    }
+
+}
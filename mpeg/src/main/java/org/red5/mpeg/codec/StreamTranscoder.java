@@ -0,0 +1,520 @@
+package org.red5.mpeg.codec;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+import org.jcodec.codecs.h264.H264Decoder;
+import org.jcodec.codecs.h264.io.model.Frame;
+import org.jcodec.common.VideoCodecMeta;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture;
+import org.jcodec.common.model.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.sourceforge.jaad.aac.AACException;
+import net.sourceforge.jaad.aac.Decoder;
+import net.sourceforge.jaad.aac.SampleBuffer;
+
+import org.red5.mpeg.BufferPool;
+import org.red5.mpeg.PayloadType.TypeIds;
+import org.red5.mpeg.PooledBuffer;
+import org.red5.mpeg.TSConfig;
+import org.red5.mpeg.TSHandler;
+import org.red5.mpeg.TSPacket;
+import org.red5.mpeg.TSPacketListener;
+import org.red5.mpeg.TSReceiver;
+import org.red5.mpeg.TSSubscriber;
+import org.red5.mpeg.ws.ViewerDemandListener;
+import org.red5.mpeg.ws.WebSocketRouter;
+
+/**
+ * Transcodes an H.264 / AAC ingest into MPEG-1 video and MP2 audio for jsmpeg viewers. The ingest is decoded once, encoded
+ * once and muxed once, and the resulting transport stream is published to every WebSocket viewer of the stream. Work only
+ * happens while the stream has viewers; it starts with the first and stops after the last one leaves. MP2 audio in the
+ * ingest is passed through as-is.
+ * <br>
+ * The H.264 decoder returns pictures in decode order, so streams with B-frames are put back into presentation order by
+ * holding a few decoded pictures and encoding the one with the lowest pts. The hold starts at none and grows, up to
+ * {@value #MAX_REORDER_DEPTH} pictures, each time a picture turns up after a later one was encoded; that picture is
+ * dropped.
+ *
+ * @author Paul Gregoire
+ */
+public class StreamTranscoder implements TSPacketListener, ViewerDemandListener {
+
+    private static Logger log = LoggerFactory.getLogger(StreamTranscoder.class);
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // pmt stream type for MPEG-1 video
+    private static final byte STREAM_TYPE_MPEG1_VIDEO = 0x01;
+
+    private static final short VIDEO_PID = 256;
+
+    // pmt stream type for MPEG-1 audio
+    private static final byte STREAM_TYPE_MPEG1_AUDIO = 0x03;
+
+    private static final short AUDIO_PID = 257;
+
+    // pes stream id of the first mpeg audio stream
+    private static final byte AUDIO_STREAM_ID = (byte) 0xc0;
+
+    // most decoded pictures held back for reordering
+    private static final int MAX_REORDER_DEPTH = 4;
+
+    private final String streamName;
+
+    // demuxed ingest frames
+    private final TSReceiver source;
+
+    private final WebSocketRouter router;
+
+    // runs start / stop and the decode / encode work
+    private final Executor executor;
+
+    // encoder settings
+    private int videoBitrate = 1000000;
+
+    private double frameRate = 30d;
+
+    private int audioBitrate = 128000;
+
+    // set while the stream has viewers
+    private volatile boolean demanded;
+
+    // pipeline, only present while running
+    private TSSubscriber.Subscription subscription;
+
+    private TSHandler muxer;
+
+    private H264Decoder decoder;
+
+    // picture buffer size, zero until read from the sps
+    private int bufferWidth, bufferHeight;
+
+    // picture buffers free to decode into
+    private ArrayDeque<byte[][]> spareBuffers;
+
+    // decoded pictures waiting for their turn in presentation order
+    private PriorityQueue<DecodedPicture> reorderQueue;
+
+    // pictures held in the queue before the lowest is encoded
+    private int reorderDepth;
+
+    // pts of the last picture encoded
+    private long lastPts;
+
+    private Mpeg1VideoEncoder encoder;
+
+    // set when decoding has to restart at the next keyframe
+    private boolean awaitKeyframe;
+
+    // ingest frames dropped for us, so we know when decoding lost its references
+    private long dropped;
+
+    // audio pipeline, cleared when audio can't be transcoded
+    private boolean audioEnabled;
+
+    private Decoder aacDecoder;
+
+    // audio specific config the aac decoder was created with
+    private int aacConfig;
+
+    private SampleBuffer sampleBuffer;
+
+    private short[] pcm;
+
+    private Mp2AudioEncoder audioEncoder;
+
+    // stats
+    private volatile long frames;
+
+    private volatile long cpuTime;
+
+    private volatile double fps;
+
+    private long windowStart, windowFrames, windowCpu;
+
+    public StreamTranscoder(String streamName, TSReceiver source, WebSocketRouter router, Executor executor) {
+        this.streamName = streamName;
+        this.source = source;
+        this.router = router;
+        this.executor = executor;
+    }
+
+    @Override
+    public void onFirstViewer(String streamName) {
+        demanded = true;
+        executor.execute(this::update);
+    }
+
+    @Override
+    public void onLastViewer(String streamName) {
+        demanded = false;
+        executor.execute(this::update);
+    }
+
+    // brings the pipeline in line with the latest demand
+    private synchronized void update() {
+        if (demanded && muxer == null) {
+            start();
+        } else if (!demanded && muxer != null) {
+            stop();
+        }
+    }
+
+    private void start() {
+        log.info("Starting transcode of {}", streamName);
+        TSConfig config = new TSConfig();
+        config.name = streamName;
+        config.pmtPid = (short) 4096;
+        config.videoPid = VIDEO_PID;
+        config.videoStreamType = STREAM_TYPE_MPEG1_VIDEO;
+        config.audioPid = AUDIO_PID;
+        config.audioStreamType = STREAM_TYPE_MPEG1_AUDIO;
+        muxer = TSHandler.build(config);
+        if (muxer == null) {
+            log.warn("Muxer creation failed for {}", streamName);
+            return;
+        }
+        // muxed ts comes back on our own thread as we mux
+        muxer.getReceiver().addListener(this::publish);
+        decoder = new H264Decoder();
+        bufferWidth = bufferHeight = 0;
+        spareBuffers = new ArrayDeque<>();
+        reorderQueue = new PriorityQueue<>();
+        reorderDepth = 0;
+        lastPts = Long.MIN_VALUE;
+        encoder = null;
+        awaitKeyframe = true;
+        dropped = 0L;
+        audioEnabled = true;
+        aacDecoder = null;
+        sampleBuffer = new SampleBuffer();
+        sampleBuffer.setBigEndian(false);
+        audioEncoder = null;
+        windowStart = System.nanoTime();
+        windowFrames = 0L;
+        windowCpu = 0L;
+        subscription = source.addListener(this, executor);
+    }
+
+    private void stop() {
+        log.info("Stopping transcode of {} after {} frames, {} ms cpu", streamName, frames, cpuTime / 1000000L);
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+        if (muxer != null) {
+            muxer.destroy();
+            muxer = null;
+        }
+        decoder = null;
+        spareBuffers = null;
+        reorderQueue = null;
+        encoder = null;
+        aacDecoder = null;
+        sampleBuffer = null;
+        pcm = null;
+        audioEncoder = null;
+        fps = 0d;
+    }
+
+    /**
+     * Stops transcoding for good, such as when the ingest ends.
+     */
+    public synchronized void close() {
+        demanded = false;
+        if (muxer != null) {
+            stop();
+        }
+    }
+
+    @Override
+    public synchronized void onPacket(TSPacket pkt) {
+        if (muxer == null || pkt.isMpegTs()) {
+            return;
+        }
+        long started = cpuTime();
+        try {
+            if (pkt.isVideo()) {
+                transcodeVideo(pkt);
+            } else if (pkt.isAudio() && audioEnabled) {
+                transcodeAudio(pkt);
+            }
+        } finally {
+            long used = cpuTime() - started;
+            cpuTime += used;
+            windowCpu += used;
+            updateStats();
+        }
+    }
+
+    private void transcodeVideo(TSPacket pkt) {
+        // frames dropped for us break the reference chain, so wait for the next keyframe
+        long lost = subscription.getDropped();
+        if (lost != dropped) {
+            dropped = lost;
+            awaitKeyframe = true;
+        }
+        if (awaitKeyframe) {
+            if (!pkt.isKeyframe()) {
+                return;
+            }
+            awaitKeyframe = false;
+        }
+        try {
+            ByteBuffer es = ByteBuffer.wrap(pkt.getData(), 0, pkt.getLength());
+            if (bufferWidth == 0) {
+                // size the picture buffers from the sps
+                VideoCodecMeta meta = decoder.getCodecMeta(es.duplicate());
+                if (meta == null) {
+                    awaitKeyframe = true;
+                    return;
+                }
+                Size size = meta.getSize();
+                bufferWidth = (size.getWidth() + 15) & ~15;
+                bufferHeight = (size.getHeight() + 15) & ~15;
+            }
+            // the decoder keeps copies of its references, so the buffer is ours until we hand it back
+            byte[][] buffer = spareBuffers.isEmpty() ? Picture.create(bufferWidth, bufferHeight, ColorSpace.YUV420J).getData() : spareBuffers.poll();
+            Frame frame = decoder.decodeFrame(es, buffer);
+            if (frame == null) {
+                spareBuffers.add(buffer);
+                return;
+            }
+            long pts = pkt.getTimestamp();
+            if (pts < lastPts) {
+                if (pkt.isKeyframe()) {
+                    // timestamps went back, such as on a wrap or a new publisher, nothing held can follow this picture
+                    while (!reorderQueue.isEmpty()) {
+                        encodeVideo(reorderQueue.poll());
+                    }
+                } else {
+                    // too late to go out in order, hold more pictures from now on
+                    if (reorderDepth < MAX_REORDER_DEPTH) {
+                        reorderDepth++;
+                        log.debug("Reordering {} by {} pictures", streamName, reorderDepth);
+                    }
+                    spareBuffers.add(buffer);
+                    return;
+                }
+            }
+            reorderQueue.add(new DecodedPicture(frame, pts));
+            while (reorderQueue.size() > reorderDepth) {
+                DecodedPicture next = reorderQueue.poll();
+                lastPts = next.pts;
+                encodeVideo(next);
+            }
+        } catch (Exception e) {
+            // most likely a resolution change or a broken frame, start over from the next keyframe
+            log.debug("Exception transcoding {}", streamName, e);
+            bufferWidth = bufferHeight = 0;
+            spareBuffers.clear();
+            reorderQueue.clear();
+            lastPts = Long.MIN_VALUE;
+            awaitKeyframe = true;
+        }
+    }
+
+    // encodes and muxes a decoded picture, then recycles its buffer
+    private void encodeVideo(DecodedPicture decoded) {
+        Frame frame = decoded.frame;
+        int width = frame.getCroppedWidth(), height = frame.getCroppedHeight();
+        if (encoder == null || encoder.getWidth() != width || encoder.getHeight() != height) {
+            log.debug("Encoding {} as {}x{} MPEG-1", streamName, width, height);
+            encoder = new Mpeg1VideoEncoder(width, height, frameRate, videoBitrate);
+        }
+        byte[] picture = encoder.encode(frame.getPlaneData(0), frame.getPlaneData(1), frame.getPlaneData(2), frame.getWidth());
+        muxer.mux(picture, decoded.pts, STREAM_TYPE_MPEG1_VIDEO, VIDEO_PID);
+        frames++;
+        windowFrames++;
+        spareBuffers.add(frame.getData());
+    }
+
+    private void transcodeAudio(TSPacket pkt) {
+        if (pkt.getTypeId() == TypeIds.MP2A) {
+            // already playable
+            muxer.mux(pkt.getPayload(), pkt.getTimestamp(), STREAM_TYPE_MPEG1_AUDIO, AUDIO_PID, AUDIO_STREAM_ID);
+            return;
+        }
+        if (pkt.getTypeId() != TypeIds.ADTS) {
+            return;
+        }
+        byte[] data = pkt.getData();
+        int length = pkt.getLength();
+        long pts = pkt.getTimestamp();
+        // a pes may carry several adts frames
+        int off = 0;
+        while (off + 7 <= length) {
+            if ((data[off] & 0xff) != 0xff || (data[off + 1] & 0xf6) != 0xf0) {
+                off++;
+                continue;
+            }
+            int headerLength = (data[off + 1] & 0x01) != 0 ? 7 : 9;
+            int frameLength = ((data[off + 3] & 0x03) << 11) | ((data[off + 4] & 0xff) << 3) | ((data[off + 5] & 0xff) >>> 5);
+            if (frameLength <= headerLength || off + frameLength > length) {
+                break;
+            }
+            int profile = (data[off + 2] >>> 6) & 0x03;
+            int rateIndex = (data[off + 2] >>> 2) & 0x0f;
+            int channelConfig = ((data[off + 2] & 0x01) << 2) | ((data[off + 3] >>> 6) & 0x03);
+            int config = ((profile + 1) << 11) | (rateIndex << 7) | (channelConfig << 3);
+            try {
+                if (aacDecoder == null || config != aacConfig) {
+                    aacDecoder = new Decoder(new byte[] { (byte) (config >>> 8), (byte) config });
+                    aacConfig = config;
+                }
+                aacDecoder.decodeFrame(Arrays.copyOfRange(data, off + headerLength, off + frameLength), sampleBuffer);
+                pts += encodeAudio(pts);
+            } catch (AACException e) {
+                log.debug("Exception decoding audio of {}", streamName, e);
+                aacDecoder = null;
+            }
+            off += frameLength;
+        }
+    }
+
+    // encodes the decoded pcm, returning its duration in 90kHz ticks
+    private long encodeAudio(long pts) {
+        int sampleRate = sampleBuffer.getSampleRate(), channels = sampleBuffer.getChannels();
+        byte[] raw = sampleBuffer.getData();
+        if (channels < 1 || raw.length == 0) {
+            return 0L;
+        }
+        if (audioEncoder == null || audioEncoder.getSampleRate() != sampleRate || audioEncoder.getChannels() != Math.min(channels, 2)) {
+            try {
+                audioEncoder = new Mp2AudioEncoder(sampleRate, Math.min(channels, 2), audioBitrate);
+                log.debug("Encoding {} audio as {}Hz {} channel MP2 at {} bps", streamName, sampleRate, audioEncoder.getChannels(), audioEncoder.getBitrate());
+            } catch (IllegalArgumentException e) {
+                log.warn("Audio of {} can't be transcoded: {}", streamName, e.getMessage());
+                audioEnabled = false;
+                return 0L;
+            }
+        }
+        // keep the first two channels of anything wider
+        int outChannels = audioEncoder.getChannels();
+        int samples = raw.length / 2 / channels;
+        if (pcm == null || pcm.length < samples * outChannels) {
+            pcm = new short[samples * outChannels];
+        }
+        boolean bigEndian = sampleBuffer.isBigEndian();
+        for (int i = 0, in = 0, out = 0; i < samples; i++, in += channels * 2) {
+            for (int ch = 0; ch < outChannels; ch++) {
+                int p = in + ch * 2;
+                pcm[out++] = bigEndian ? (short) ((raw[p] << 8) | (raw[p + 1] & 0xff)) : (short) ((raw[p + 1] << 8) | (raw[p] & 0xff));
+            }
+        }
+        // the oldest sample waiting in the encoder starts the next mp2 frame
+        long start = pts - audioEncoder.getBuffered() * 90000L / sampleRate;
+        byte[] frames = audioEncoder.encode(pcm, 0, samples * outChannels);
+        if (frames.length > 0) {
+            muxer.mux(frames, start, STREAM_TYPE_MPEG1_AUDIO, AUDIO_PID, AUDIO_STREAM_ID);
+        }
+        return samples * 90000L / sampleRate;
+    }
+
+    // publishes muxed ts to the viewers
+    private void publish(TSPacket pkt) {
+        PooledBuffer data = BufferPool.getInstance().acquire(pkt.getLength());
+        data.buffer().put(pkt.getData(), 0, pkt.getLength()).flip();
+        try {
+            router.sendData(streamName, data);
+        } finally {
+            data.release();
+        }
+    }
+
+    // rolls the per second stats window
+    private void updateStats() {
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed >= 1000000000L) {
+            fps = windowFrames * 1e9d / elapsed;
+            if (log.isDebugEnabled()) {
+                log.debug("Transcoding {} at {} fps using {} ms cpu per second, quantizer {}", streamName, String.format("%.1f", fps), windowCpu * 1000L / elapsed, encoder != null ? encoder.getQuantizer() : 0);
+            }
+            windowStart = now;
+            windowFrames = 0L;
+            windowCpu = 0L;
+        }
+    }
+
+    // cpu time of the calling thread, or wall time where thats not available
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    public boolean isRunning() {
+        return demanded;
+    }
+
+    /**
+     * Returns the number of pictures encoded.
+     *
+     * @return frames
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Returns the encode rate over the last second.
+     *
+     * @return frames per second
+     */
+    public double getFps() {
+        return fps;
+    }
+
+    /**
+     * Returns the cpu time spent decoding, encoding and muxing.
+     *
+     * @return nanoseconds
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    public void setVideoBitrate(int videoBitrate) {
+        this.videoBitrate = videoBitrate;
+    }
+
+    public void setFrameRate(double frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    public void setAudioBitrate(int audioBitrate) {
+        this.audioBitrate = audioBitrate;
+    }
+
+    // a decoded picture and its presentation time
+    private static final class DecodedPicture implements Comparable<DecodedPicture> {
+
+        final Frame frame;
+
+        final long pts;
+
+        DecodedPicture(Frame frame, long pts) {
+            this.frame = frame;
+            this.pts = pts;
+        }
+
+        @Override
+        public int compareTo(DecodedPicture other) {
+            return Long.compare(pts, other.pts);
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.red5.mpeg.codec;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+/**
+ * Holds the latest preview image of each stream. Images are replaced whole, so readers always see a complete image along
+ * with its entity tag.
+ *
+ * @author Paul Gregoire
+ */
+public class ThumbnailCache {
+
+    private static final ThumbnailCache instance = new ThumbnailCache();
+
+    // latest image by stream name
+    private final ConcurrentMap<String, Thumbnail> thumbnails = new ConcurrentHashMap<>();
+
+    private ThumbnailCache() {
+    }
+
+    public static ThumbnailCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Replaces the image of a stream.
+     *
+     * @param streamName
+     * @param data encoded image
+     * @param contentType
+     * @return the cached thumbnail
+     */
+    public Thumbnail put(String streamName, byte[] data, String contentType) {
+        Thumbnail thumbnail = new Thumbnail(data, contentType, System.currentTimeMillis());
+        thumbnails.put(streamName, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Returns the latest image of a stream.
+     *
+     * @param streamName
+     * @return thumbnail or null if there is none
+     */
+    public Thumbnail get(String streamName) {
+        return thumbnails.get(streamName);
+    }
+
+    /**
+     * Forgets the image of a stream, such as when its ingest ends.
+     *
+     * @param streamName
+     */
+    public void remove(String streamName) {
+        thumbnails.remove(streamName);
+    }
+
+    public Set<String> getStreamNames() {
+        return thumbnails.keySet();
+    }
+
+    /**
+     * An encoded preview image.
+     */
+    public static final class Thumbnail {
+
+        private final byte[] data;
+
+        private final String contentType;
+
+        // strong validator derived from the image content
+        private final String etag;
+
+        private final long created;
+
+        Thumbnail(byte[] data, String contentType, long created) {
+            this.data = data;
+            this.contentType = contentType;
+            this.created = created;
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            this.etag = String.format("\"%08x-%x\"", crc.getValue(), data.length);
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+    }
+
+}
@@ -0,0 +1,263 @@
+package org.red5.mpeg.codec;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.jcodec.codecs.h264.H264Decoder;
+import org.jcodec.codecs.h264.io.model.Frame;
+import org.jcodec.common.VideoCodecMeta;
+import org.jcodec.common.model.ColorSpace;
+import org.jcodec.common.model.Picture;
+import org.jcodec.common.model.Size;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.PayloadType.TypeIds;
+import org.red5.mpeg.TSPacket;
+import org.red5.mpeg.TSPacketListener;
+import org.red5.mpeg.TSReceiver;
+import org.red5.mpeg.TSSubscriber;
+
+/**
+ * Keeps a preview image of an H.264 ingest in the {@link ThumbnailCache}. Only random access frames are decoded, at most
+ * one per interval, so the cost is a single IDR decode every few seconds rather than a full decode of the stream. Frames
+ * are picked on the demuxing thread without copying, then decoded, scaled and encoded via the executor.
+ *
+ * @author Paul Gregoire
+ */
+public class ThumbnailGenerator implements TSPacketListener {
+
+    private static Logger log = LoggerFactory.getLogger(ThumbnailGenerator.class);
+
+    // time between previews, in milliseconds
+    private static long interval = 5000L;
+
+    // preview width, the height follows the aspect ratio
+    private static int width = 320;
+
+    // image format; jpg or png
+    private static String format = "jpg";
+
+    // jpeg quality between 0 and 1
+    private static float quality = 0.75f;
+
+    private final String streamName;
+
+    private final TSReceiver source;
+
+    private final Executor executor;
+
+    private TSSubscriber.Subscription subscription;
+
+    // set while a frame is being rendered, so keyframes arriving meanwhile are skipped
+    private final AtomicBoolean busy = new AtomicBoolean();
+
+    // earliest time for the next preview, in nanoseconds
+    private volatile long nextDue;
+
+    // set once stopped, a render still in flight must not bring the preview back
+    private volatile boolean stopped;
+
+    // only touched by the render task, which never runs concurrently with itself
+    private H264Decoder decoder;
+
+    private byte[][] frameBuffer;
+
+    private BufferedImage image;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+
+    private volatile long rendered;
+
+    public ThumbnailGenerator(String streamName, TSReceiver source, Executor executor) {
+        this.streamName = streamName;
+        this.source = source;
+        this.executor = executor;
+    }
+
+    public void start() {
+        stopped = false;
+        nextDue = System.nanoTime();
+        decoder = new H264Decoder();
+        // keyframes are picked out on the demuxing thread, everything else is ignored there
+        subscription = source.addListener(this);
+    }
+
+    public void stop() {
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+        // under the lock the render publishes with, so the removal can't be followed by a put
+        synchronized (this) {
+            stopped = true;
+        }
+        ThumbnailCache.getInstance().remove(streamName);
+    }
+
+    @Override
+    public void onPacket(TSPacket pkt) {
+        if (pkt.getTypeId() != TypeIds.H264 || System.nanoTime() - nextDue < 0 || !pkt.isKeyframe() || !busy.compareAndSet(false, true)) {
+            return;
+        }
+        pkt.retain();
+        try {
+            executor.execute(() -> {
+                try {
+                    render(pkt);
+                } finally {
+                    pkt.release();
+                    busy.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            log.debug("Preview of {} not scheduled", streamName, e);
+            pkt.release();
+            busy.set(false);
+        }
+    }
+
+    private void render(TSPacket pkt) {
+        if (stopped) {
+            return;
+        }
+        try {
+            ByteBuffer es = ByteBuffer.wrap(pkt.getData(), 0, pkt.getLength());
+            if (frameBuffer == null) {
+                VideoCodecMeta meta = decoder.getCodecMeta(es.duplicate());
+                if (meta == null) {
+                    return;
+                }
+                Size size = meta.getSize();
+                frameBuffer = Picture.create((size.getWidth() + 15) & ~15, (size.getHeight() + 15) & ~15, ColorSpace.YUV420J).getData();
+            }
+            Frame frame = decoder.decodeFrame(es, frameBuffer);
+            if (frame == null) {
+                return;
+            }
+            scale(frame);
+            byte[] preview = encode();
+            synchronized (this) {
+                if (stopped) {
+                    return;
+                }
+                ThumbnailCache.getInstance().put(streamName, preview, "png".equals(format) ? "image/png" : "image/jpeg");
+            }
+            rendered++;
+            nextDue = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+        } catch (Exception e) {
+            // most likely a resolution change, size up again from the next keyframe
+            log.debug("Exception rendering preview of {}", streamName, e);
+            frameBuffer = null;
+        }
+    }
+
+    // point samples the cropped picture straight into the rgb image, averaging the 2x2 luma block at each sample and
+    // converting only the pixels we keep
+    private void scale(Picture picture) {
+        int srcWidth = picture.getCroppedWidth(), srcHeight = picture.getCroppedHeight();
+        int dstWidth = Math.min(width, srcWidth) & ~1;
+        int dstHeight = Math.max(2, (int) ((long) srcHeight * dstWidth / srcWidth) & ~1);
+        if (image == null || image.getWidth() != dstWidth || image.getHeight() != dstHeight) {
+            image = new BufferedImage(dstWidth, dstHeight, BufferedImage.TYPE_INT_RGB);
+        }
+        int[] rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        byte[] y = picture.getPlaneData(0), cb = picture.getPlaneData(1), cr = picture.getPlaneData(2);
+        int yStride = picture.getPlaneWidth(0), cStride = picture.getPlaneWidth(1);
+        int x0 = picture.getStartX(), y0 = picture.getStartY();
+        for (int dy = 0; dy < dstHeight; dy++) {
+            int sy = y0 + dy * srcHeight / dstHeight;
+            int sy1 = Math.min(sy + 1, y0 + srcHeight - 1);
+            int row = dy * dstWidth;
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int sx = x0 + dx * srcWidth / dstWidth;
+                int sx1 = Math.min(sx + 1, x0 + srcWidth - 1);
+                // samples are stored offset by -128
+                int luma = ((y[sy * yStride + sx] + y[sy * yStride + sx1] + y[sy1 * yStride + sx] + y[sy1 * yStride + sx1]) >> 2) + 128;
+                int c = (sy >> 1) * cStride + (sx >> 1);
+                rgb[row + dx] = toRgb(luma, cb[c], cr[c]);
+            }
+        }
+    }
+
+    // bt.601 studio range to full range rgb, 16.16 fixed point
+    private static int toRgb(int luma, int cb, int cr) {
+        int l = 76284 * (luma - 16);
+        int r = clamp((l + 104595 * cr) >> 16);
+        int g = clamp((l - 25690 * cb - 53281 * cr) >> 16);
+        int b = clamp((l + 132186 * cb) >> 16);
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private byte[] encode() throws IOException {
+        out.reset();
+        if ("png".equals(format)) {
+            ImageIO.write(image, "png", out);
+        } else {
+            Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+            ImageWriter writer = writers.next();
+            try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+                ImageWriteParam param = writer.getDefaultWriteParam();
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    /**
+     * Returns the number of previews rendered.
+     *
+     * @return previews
+     */
+    public long getRendered() {
+        return rendered;
+    }
+
+    public static void setInterval(long interval) {
+        ThumbnailGenerator.interval = interval;
+    }
+
+    public static void setWidth(int width) {
+        ThumbnailGenerator.width = width;
+    }
+
+    /**
+     * Sets the image format.
+     *
+     * @param format jpg or png
+     */
+    public static void setFormat(String format) {
+        ThumbnailGenerator.format = format;
+    }
+
+    public static void setQuality(float quality) {
+        ThumbnailGenerator.quality = quality;
+    }
+
+}
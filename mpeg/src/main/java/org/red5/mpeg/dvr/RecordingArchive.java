@@ -0,0 +1,264 @@
+package org.red5.mpeg.dvr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds time ranges in the recordings written by {@link TSRecorder}. Every recording has a sidecar index of fixed size
+ * entries, each the wall clock in milliseconds, the 90kHz pts and the byte offset of an indexed frame as big endian longs.
+ * Indexes are memory mapped and searched with a binary search, so a range is found with a handful of reads however long
+ * the archive; mappings are kept and only renewed when an index has grown.
+ * <br>
+ * A clip starts at the indexed frame at or before its start and ends ahead of the indexed frame at or after its end, so
+ * it is cut at keyframes and every file range it is made of begins with the PAT and PMT.
+ *
+ * @author Paul Gregoire
+ */
+public class RecordingArchive {
+
+    private static Logger log = LoggerFactory.getLogger(RecordingArchive.class);
+
+    static final String MEDIA_EXTENSION = ".ts";
+
+    static final String INDEX_EXTENSION = ".idx";
+
+    private static final int ENTRY_SIZE = TSRecorder.INDEX_FIELDS * 8;
+
+    private static final int PACKET_SIZE = 188;
+
+    // mapped indexes by path
+    private static final ConcurrentMap<Path, Index> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the ranges of the recordings of a stream making up a clip, in playback order.
+     *
+     * @param streamName
+     * @param start wall clock in milliseconds
+     * @param end wall clock in milliseconds
+     * @return ranges, empty if nothing was recorded in the given time
+     * @throws IOException
+     */
+    public static List<Range> find(String streamName, long start, long end) throws IOException {
+        List<Range> ranges = new ArrayList<>();
+        Path directory = TSRecorder.getDirectory(streamName);
+        if (end <= start || !Files.isDirectory(directory)) {
+            return ranges;
+        }
+        List<Index> recordings = new ArrayList<>();
+        Set<Path> listed = new HashSet<>();
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory, '*' + INDEX_EXTENSION)) {
+            for (Path path : paths) {
+                listed.add(path);
+                Index index = map(path);
+                if (index != null) {
+                    recordings.add(index);
+                }
+            }
+        }
+        // forget the indexes of recordings which were removed
+        indexes.keySet().removeIf(path -> path.startsWith(directory) && !listed.contains(path));
+        Collections.sort(recordings, Comparator.comparingLong(Index::getFirstClock));
+        for (int i = 0; i < recordings.size(); i++) {
+            Index index = recordings.get(i);
+            // a recording lasts until the next one starts
+            if (index.getFirstClock() >= end || (i + 1 < recordings.size() && recordings.get(i + 1).getFirstClock() <= start)) {
+                continue;
+            }
+            Path media = index.getMediaPath();
+            long length;
+            try {
+                // whole batches of whole packets are written, so this is always a packet boundary
+                length = Files.size(media);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            int from = index.floor(start);
+            int to = index.ceiling(end);
+            long position = from < 0 ? 0L : index.getOffset(from);
+            long limit = to < 0 ? length : Math.min(length, index.getOffset(to));
+            if (limit > position) {
+                ranges.add(new Range(media, position, limit - position));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Writes a clip, prepending the PAT and PMT of a recording to any of its ranges which doesn't start with them.
+     *
+     * @param ranges
+     * @param out
+     * @throws IOException
+     */
+    public static void transfer(List<Range> ranges, WritableByteChannel out) throws IOException {
+        for (Range range : ranges) {
+            try (FileChannel source = FileChannel.open(range.path, StandardOpenOption.READ)) {
+                if (range.psi > 0L) {
+                    transfer(source, 0L, range.psi, out);
+                }
+                transfer(source, range.position, range.count, out);
+            }
+        }
+    }
+
+    private static void transfer(FileChannel source, long position, long count, WritableByteChannel out) throws IOException {
+        while (count > 0L) {
+            long sent = source.transferTo(position, count, out);
+            if (sent <= 0L && position >= source.size()) {
+                throw new IOException("Recording was truncated");
+            }
+            position += sent;
+            count -= sent;
+        }
+    }
+
+    // maps an index, reusing the mapping unless the index grew
+    private static Index map(Path path) throws IOException {
+        long size;
+        try {
+            size = Files.size(path);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        int entries = (int) (size / ENTRY_SIZE);
+        if (entries == 0) {
+            return null;
+        }
+        Index index = indexes.get(path);
+        if (index == null || index.entries.limit() != entries * TSRecorder.INDEX_FIELDS) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                index = new Index(path, channel.map(FileChannel.MapMode.READ_ONLY, 0L, (long) entries * ENTRY_SIZE).asLongBuffer());
+            }
+            log.trace("Mapped {} entries of {}", entries, path);
+            indexes.put(path, index);
+        }
+        return index;
+    }
+
+    /**
+     * Part of a clip; a byte range of a recording.
+     */
+    public static final class Range {
+
+        final Path path;
+
+        final long position, count;
+
+        // bytes of psi to send from the start of the recording ahead of the range
+        final long psi;
+
+        Range(Path path, long position, long count) throws IOException {
+            this.path = path;
+            this.position = position;
+            this.count = count;
+            this.psi = position > 0L && !startsWithPat(path, position) ? 2 * PACKET_SIZE : 0L;
+        }
+
+        private static boolean startsWithPat(Path path, long position) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(3);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) {
+                }
+            }
+            return !header.hasRemaining() && header.get(0) == 0x47 && (header.get(1) & 0x1f) == 0 && header.get(2) == 0;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * Returns the bytes sent for this range, including any prepended tables.
+         *
+         * @return bytes
+         */
+        public long getLength() {
+            return psi + count;
+        }
+
+    }
+
+    private static final class Index {
+
+        final Path path;
+
+        // wall clock, pts and offset per entry
+        final LongBuffer entries;
+
+        final int size;
+
+        Index(Path path, LongBuffer entries) {
+            this.path = path;
+            this.entries = entries;
+            this.size = entries.limit() / TSRecorder.INDEX_FIELDS;
+        }
+
+        long getFirstClock() {
+            return entries.get(0);
+        }
+
+        long getOffset(int entry) {
+            return entries.get(entry * TSRecorder.INDEX_FIELDS + 2);
+        }
+
+        Path getMediaPath() {
+            String name = path.getFileName().toString();
+            return path.resolveSibling(name.substring(0, name.length() - INDEX_EXTENSION.length()) + MEDIA_EXTENSION);
+        }
+
+        // last entry at or before the clock, -1 if there is none
+        int floor(long clock) {
+            int low = 0, high = size - 1, found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (entries.get(mid * TSRecorder.INDEX_FIELDS) <= clock) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        // first entry at or after the clock, -1 if there is none
+        int ceiling(long clock) {
+            int low = 0, high = size - 1, found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (entries.get(mid * TSRecorder.INDEX_FIELDS) >= clock) {
+                    found = mid;
+                    high = mid - 1;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return found;
+        }
+
+    }
+
+}
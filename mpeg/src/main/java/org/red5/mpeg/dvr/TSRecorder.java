@@ -0,0 +1,522 @@
+package org.red5.mpeg.dvr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.BufferPool;
+import org.red5.mpeg.PooledBuffer;
+import org.red5.mpeg.TSConfig;
+import org.red5.mpeg.TSMuxer;
+import org.red5.mpeg.TSPacket;
+import org.red5.mpeg.TSPacketListener;
+import org.red5.mpeg.TSReceiver;
+import org.red5.mpeg.TSSubscriber;
+import org.red5.mpeg.hls.HlsSegmenter;
+
+/**
+ * Records an ingest to disk as rolling MPEG-TS files. The demuxed frames are remuxed on the demuxing thread straight into
+ * large off-heap batches, which are handed to a dedicated write-behind thread and written with a {@link FileChannel}; the
+ * receive thread never waits on the disk. Batches are filled to their capacity, a multiple of both 4KiB and the TS packet
+ * size, so file writes stay block aligned up to the last one of a file and a dropped batch never splits a packet. Files
+ * are rotated by size or age at keyframes, or at any audio frame for audio only ingests, and each starts with the PAT and
+ * PMT.
+ * <br>
+ * Each file has a sidecar index, see {@link RecordingArchive}, with an entry for every keyframe, or about every second of
+ * an audio only ingest; the PAT and PMT are written ahead of every indexed frame, so any entry can start a clip. Entries
+ * travel with the batch their frame starts in and are appended once it is written, the index never points past the data.
+ * <br>
+ * The bytes queued for writing are bounded; when the disk falls behind, batches are dropped and counted, and recording
+ * resumes in a new file from the next keyframe.
+ *
+ * @author Paul Gregoire
+ */
+public class TSRecorder implements TSPacketListener {
+
+    private static Logger log = LoggerFactory.getLogger(TSRecorder.class);
+
+    // active recorders by stream name
+    private static final ConcurrentMap<String, TSRecorder> recorders = new ConcurrentHashMap<>();
+
+    private static final short VIDEO_PID = 256;
+
+    private static final short AUDIO_PID = 257;
+
+    private static final byte VIDEO_STREAM_ID = (byte) 0xe0;
+
+    private static final byte AUDIO_STREAM_ID = (byte) 0xc0;
+
+    // timestamps are 33 bits at 90kHz
+    private static final long TIMESTAMP_MASK = 0x1ffffffffL;
+
+    // smallest run of whole 4KiB blocks which is also whole ts packets
+    private static final int BATCH_UNIT = 47 * 4096;
+
+    // longs per index entry; wall clock, pts and file offset
+    static final int INDEX_FIELDS = 3;
+
+    // least time between index entries of audio only ingests, in milliseconds
+    private static final long AUDIO_INDEX_INTERVAL = 1000L;
+
+    // queued by stop, the writer exits once it gets here
+    private static final Batch END = new Batch(null, null, null);
+
+    // directory recordings are written under, one sub-directory per stream
+    private static String directory = "dvr";
+
+    // file size after which the next cut point starts a new file, in bytes
+    private static long fileSize = 256L * 1024L * 1024L;
+
+    // file age after which the next cut point starts a new file, in milliseconds
+    private static long fileDuration = 10L * 60L * 1000L;
+
+    // bytes per write, a multiple of the batch unit
+    private static int batchSize = 5 * BATCH_UNIT;
+
+    // most bytes waiting on the writer before batches are dropped
+    private static long maxBacklog = 64L * 1024L * 1024L;
+
+    // whether to mux in java rather than natively
+    private static boolean javaMuxer;
+
+    private final String streamName;
+
+    private final TSReceiver source;
+
+    private final byte videoStreamType, audioStreamType;
+
+    private final BlockingQueue<Batch> queue = new LinkedBlockingQueue<>();
+
+    private TSSubscriber.Subscription subscription;
+
+    private TSMuxer muxer;
+
+    private Thread writer;
+
+    // batch being filled
+    private PooledBuffer batch;
+
+    // name of the file the batch being filled starts, null if it continues the current one
+    private String batchFile;
+
+    // frames which didn't fit the batch are muxed here and split across two
+    private PooledBuffer overflow;
+
+    // wall clock start and bytes muxed of the file being recorded, -1 until the first cut point
+    private long fileStart = -1L, fileBytes;
+
+    private int fileSequence;
+
+    // index entries of frames starting in the batch being filled
+    private long[] index = new long[INDEX_FIELDS * 4];
+
+    private int indexLength;
+
+    // wall clock of the last index entry
+    private long lastIndexed;
+
+    // waiting on a cut point after a drop
+    private boolean resync;
+
+    private final AtomicLong backlog = new AtomicLong(), droppedBytes = new AtomicLong(), droppedBatches = new AtomicLong();
+
+    private volatile long written, files;
+
+    /**
+     * Creates a recorder for an ingest of the given codecs.
+     *
+     * @param streamName
+     * @param source receiver of the demuxed ingest
+     * @param audioFourCC audio type id, 0 if there is no audio
+     * @param videoFourCC video type id, 0 if there is no video
+     */
+    public TSRecorder(String streamName, TSReceiver source, int audioFourCC, int videoFourCC) {
+        this.streamName = streamName;
+        this.source = source;
+        this.videoStreamType = HlsSegmenter.streamType(videoFourCC);
+        this.audioStreamType = HlsSegmenter.streamType(audioFourCC);
+    }
+
+    public void start() {
+        TSConfig config = new TSConfig();
+        config.name = streamName;
+        config.pmtPid = (short) 4096;
+        config.javaMuxer = javaMuxer;
+        if (videoStreamType != 0) {
+            config.videoPid = VIDEO_PID;
+            config.videoStreamType = videoStreamType;
+        }
+        if (audioStreamType != 0) {
+            config.audioPid = AUDIO_PID;
+            config.audioStreamType = audioStreamType;
+        }
+        muxer = TSMuxer.build(config);
+        if (muxer == null) {
+            log.warn("Muxer creation failed for {}", streamName);
+            return;
+        }
+        TSRecorder previous = recorders.put(streamName, this);
+        if (previous != null) {
+            previous.stop();
+        }
+        writer = new Thread(this::write, "TSRecorder-" + streamName);
+        writer.setDaemon(true);
+        writer.start();
+        subscription = source.addListener(this);
+    }
+
+    /**
+     * Stops recording. Batches already queued are still written, the current file is then closed.
+     */
+    public void stop() {
+        recorders.remove(streamName, this);
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+        synchronized (this) {
+            if (muxer == null) {
+                return;
+            }
+            muxer.destroy();
+            muxer = null;
+            handOff();
+            if (overflow != null) {
+                overflow.release();
+                overflow = null;
+            }
+        }
+        queue.offer(END);
+    }
+
+    @Override
+    public void onPacket(TSPacket pkt) {
+        if (pkt.isMpegTs()) {
+            return;
+        }
+        synchronized (this) {
+            if (muxer == null) {
+                return;
+            }
+            boolean video = pkt.isVideo();
+            if (video ? videoStreamType == 0 : (!pkt.isAudio() || audioStreamType == 0)) {
+                return;
+            }
+            // files follow the video if there is any, otherwise every audio frame can start one
+            boolean cutPoint = video ? pkt.isKeyframe() : videoStreamType == 0;
+            boolean randomAccess = video && cutPoint;
+            long now = 0L;
+            if (cutPoint) {
+                now = System.currentTimeMillis();
+                if (fileStart < 0L || resync || fileBytes >= fileSize || now - fileStart >= fileDuration) {
+                    // the rest of the current file goes out as is
+                    handOff();
+                    batchFile = fileName(now);
+                    fileStart = now;
+                    fileBytes = 0L;
+                    resync = false;
+                    randomAccess = true;
+                }
+            }
+            if (fileStart < 0L || resync) {
+                // nothing can be decoded before the first keyframe
+                return;
+            }
+            ByteBuffer data = ByteBuffer.wrap(pkt.getData(), 0, pkt.getLength());
+            long pts = pkt.getTimestamp() & TIMESTAMP_MASK, dts = pkt.getDts() & TIMESTAMP_MASK;
+            if (randomAccess || (cutPoint && now - lastIndexed >= AUDIO_INDEX_INTERVAL)) {
+                // the tables go ahead of every indexed frame
+                randomAccess = true;
+                lastIndexed = now;
+                if (indexLength + INDEX_FIELDS > index.length) {
+                    index = Arrays.copyOf(index, index.length * 2);
+                }
+                index[indexLength++] = now;
+                index[indexLength++] = pts;
+                index[indexLength++] = fileBytes;
+            }
+            byte type = video ? videoStreamType : audioStreamType;
+            short pid = video ? VIDEO_PID : AUDIO_PID;
+            byte streamId = video ? VIDEO_STREAM_ID : AUDIO_STREAM_ID;
+            int max = muxer.getMaxOutput(data.remaining());
+            if (batch == null) {
+                batch = BufferPool.getInstance().acquire(batchSize);
+                batch.buffer().limit(batchSize);
+            }
+            ByteBuffer out = batch.buffer();
+            if (out.remaining() >= max) {
+                fileBytes += muxer.mux(data, pts, dts, type, pid, streamId, randomAccess, out);
+                if (!out.hasRemaining()) {
+                    handOff();
+                }
+                return;
+            }
+            // fill the batch to its end and carry the rest over to the next
+            if (overflow == null || overflow.buffer().capacity() < max) {
+                if (overflow != null) {
+                    overflow.release();
+                }
+                overflow = BufferPool.getInstance().acquire(max);
+            }
+            ByteBuffer muxed = overflow.buffer();
+            muxed.clear();
+            fileBytes += muxer.mux(data, pts, dts, type, pid, streamId, randomAccess, muxed);
+            muxed.flip();
+            while (muxed.hasRemaining()) {
+                int limit = muxed.limit();
+                muxed.limit(muxed.position() + Math.min(muxed.remaining(), out.remaining()));
+                out.put(muxed);
+                muxed.limit(limit);
+                if (!out.hasRemaining()) {
+                    if (!handOff()) {
+                        // the rest of the frame is of no use without the start of it
+                        return;
+                    }
+                    batch = BufferPool.getInstance().acquire(batchSize);
+                    out = batch.buffer();
+                    out.limit(batchSize);
+                }
+            }
+        }
+    }
+
+    // queues the batch being filled for the writer, false if it was dropped
+    private boolean handOff() {
+        PooledBuffer full = batch;
+        String file = batchFile;
+        long[] entries = indexLength > 0 ? Arrays.copyOf(index, indexLength) : null;
+        batch = null;
+        batchFile = null;
+        indexLength = 0;
+        if (full == null) {
+            return true;
+        }
+        ByteBuffer out = full.buffer();
+        out.flip();
+        int length = out.remaining();
+        if (length == 0 && file == null) {
+            full.release();
+            return true;
+        }
+        if (backlog.get() + length > maxBacklog) {
+            full.release();
+            if (!resync) {
+                log.warn("Recording of {} is behind by {} bytes, dropping until the next keyframe", streamName, backlog.get());
+            }
+            droppedBytes.addAndGet(length);
+            droppedBatches.incrementAndGet();
+            resync = true;
+            return false;
+        }
+        backlog.addAndGet(length);
+        queue.offer(new Batch(full, file, entries));
+        return true;
+    }
+
+    private String fileName(long now) {
+        return String.format("%s-%tY%<tm%<td-%<tH%<tM%<tS-%d", fileSafe(streamName), now, fileSequence++);
+    }
+
+    private static String fileSafe(String streamName) {
+        return streamName.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Returns the directory the recordings of a stream are written to.
+     *
+     * @param streamName
+     * @return path
+     */
+    public static Path getDirectory(String streamName) {
+        return Paths.get(directory, fileSafe(streamName));
+    }
+
+    // write-behind loop, run on the recorders own thread
+    private void write() {
+        Path path = getDirectory(streamName);
+        FileChannel channel = null, indexChannel = null;
+        ByteBuffer entries = ByteBuffer.allocate(INDEX_FIELDS * 8 * 16);
+        // set when the file couldn't be written, its remaining batches are skipped
+        boolean failed = false;
+        try {
+            for (;;) {
+                Batch next = queue.take();
+                if (next == END) {
+                    break;
+                }
+                ByteBuffer data = next.buffer.buffer();
+                int length = data.remaining();
+                try {
+                    if (next.file != null) {
+                        close(channel);
+                        close(indexChannel);
+                        channel = null;
+                        indexChannel = null;
+                        failed = false;
+                        Files.createDirectories(path);
+                        channel = FileChannel.open(path.resolve(next.file + RecordingArchive.MEDIA_EXTENSION), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                        indexChannel = FileChannel.open(path.resolve(next.file + RecordingArchive.INDEX_EXTENSION), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                        files++;
+                        log.debug("Recording {} to {}", streamName, next.file);
+                    }
+                    if (channel != null && !failed) {
+                        while (data.hasRemaining()) {
+                            channel.write(data);
+                        }
+                        written += length;
+                        if (next.index != null) {
+                            if (entries.capacity() < next.index.length * 8) {
+                                entries = ByteBuffer.allocate(next.index.length * 8);
+                            }
+                            entries.clear();
+                            entries.asLongBuffer().put(next.index);
+                            entries.limit(next.index.length * 8);
+                            while (entries.hasRemaining()) {
+                                indexChannel.write(entries);
+                            }
+                        }
+                    } else {
+                        droppedBytes.addAndGet(length);
+                        droppedBatches.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    log.warn("Recording of {} failed, skipping to the next file", streamName, e);
+                    failed = true;
+                    droppedBytes.addAndGet(length);
+                    droppedBatches.incrementAndGet();
+                } finally {
+                    backlog.addAndGet(-length);
+                    next.buffer.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(channel);
+            close(indexChannel);
+            Batch next;
+            while ((next = queue.poll()) != null) {
+                if (next != END) {
+                    backlog.addAndGet(-next.buffer.remaining());
+                    next.buffer.release();
+                }
+            }
+        }
+    }
+
+    private void close(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Exception closing recording of {}", streamName, e);
+            }
+        }
+    }
+
+    public static TSRecorder getRecorder(String streamName) {
+        return recorders.get(streamName);
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    /**
+     * Returns the bytes written to disk.
+     *
+     * @return bytes
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * Returns the bytes waiting on the writer.
+     *
+     * @return bytes
+     */
+    public long getBacklog() {
+        return backlog.get();
+    }
+
+    /**
+     * Returns the bytes dropped, as the writer fell behind or the disk failed.
+     *
+     * @return bytes
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    public long getDroppedBatches() {
+        return droppedBatches.get();
+    }
+
+    /**
+     * Returns the number of files opened.
+     *
+     * @return file count
+     */
+    public long getFiles() {
+        return files;
+    }
+
+    public static void setDirectory(String directory) {
+        TSRecorder.directory = directory;
+    }
+
+    public static void setFileSize(long fileSize) {
+        TSRecorder.fileSize = fileSize;
+    }
+
+    public static void setFileDuration(long fileDuration) {
+        TSRecorder.fileDuration = fileDuration;
+    }
+
+    public static void setBatchSize(int batchSize) {
+        // whole units only
+        TSRecorder.batchSize = Math.max(BATCH_UNIT, (batchSize + BATCH_UNIT - 1) / BATCH_UNIT * BATCH_UNIT);
+    }
+
+    public static void setMaxBacklog(long maxBacklog) {
+        TSRecorder.maxBacklog = maxBacklog;
+    }
+
+    public static void setJavaMuxer(boolean javaMuxer) {
+        TSRecorder.javaMuxer = javaMuxer;
+    }
+
+    private static final class Batch {
+
+        final PooledBuffer buffer;
+
+        // file this batch starts, null if it continues the current one
+        final String file;
+
+        // index entries of the frames starting in this batch, null if there are none
+        final long[] index;
+
+        Batch(PooledBuffer buffer, String file, long[] index) {
+            this.buffer = buffer;
+            this.file = file;
+            this.index = index;
+        }
+
+    }
+
+}
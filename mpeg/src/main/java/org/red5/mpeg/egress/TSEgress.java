@@ -0,0 +1,546 @@
+package org.red5.mpeg.egress;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.server.api.stream.IBroadcastStream;
+import org.red5.server.api.stream.IStreamListener;
+import org.red5.server.api.stream.IStreamPacket;
+import org.red5.server.net.rtmp.event.Aggregate;
+import org.red5.server.net.rtmp.message.Constants;
+
+import org.red5.mpeg.BufferPool;
+import org.red5.mpeg.PooledBuffer;
+import org.red5.mpeg.TSConfig;
+import org.red5.mpeg.TSMuxer;
+
+/**
+ * Sends a broadcast stream out as MPEG-TS over UDP, unicast or multicast. AVC video is converted from length prefixed NAL
+ * units to Annex-B with an access unit delimiter, the parameter sets being repeated ahead of every keyframe, and raw AAC
+ * gets ADTS headers; both are muxed by a {@link TSMuxer}, native or pure Java. Muxed packets are gathered in an off-heap
+ * buffer and sent seven to a datagram over a connected channel, all complete datagrams of a frame in one go. Given a mux
+ * rate, output instead goes through a {@link TSOutputScheduler} for constant bit rate delivery.
+ *
+ * @author Paul Gregoire
+ */
+public class TSEgress implements IStreamListener {
+
+    private static Logger log = LoggerFactory.getLogger(TSEgress.class);
+
+    // active outputs by stream name and destination
+    private static final ConcurrentMap<String, TSEgress> outputs = new ConcurrentHashMap<>();
+
+    private static final short VIDEO_PID = 256;
+
+    private static final short AUDIO_PID = 257;
+
+    private static final byte STREAM_TYPE_H264 = 0x1b;
+
+    private static final byte STREAM_TYPE_AAC = 0x0f;
+
+    private static final byte VIDEO_STREAM_ID = (byte) 0xe0;
+
+    private static final byte AUDIO_STREAM_ID = (byte) 0xc0;
+
+    // flv codec ids
+    private static final int CODEC_AVC = 7, CODEC_AAC = 10;
+
+    // ts packets per datagram
+    private static final int DATAGRAM_SIZE = 7 * 188;
+
+    // access unit delimiter, any slice types
+    private static final byte[] AUD = { 0, 0, 0, 1, 9, (byte) 0xf0 };
+
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+    // multicast time to live
+    private static int multicastTtl = 16;
+
+    // default constant output rate in bits per second, zero to send packets as they're muxed
+    private static long muxRate;
+
+    // whether to mux in java rather than natively
+    private static boolean javaMuxer;
+
+    private final String streamName;
+
+    private final InetSocketAddress destination;
+
+    private IBroadcastStream stream;
+
+    private TSMuxer muxer;
+
+    private DatagramChannel channel;
+
+    // muxed packets waiting to fill a datagram
+    private PooledBuffer datagram;
+
+    // paces constant rate output, null when sending as muxed
+    private TSOutputScheduler scheduler;
+
+    // packets of the last frame muxed
+    private PooledBuffer muxed;
+
+    // annex-b access unit or adts frame being built
+    private byte[] frame = new byte[64 * 1024];
+
+    private ByteBuffer frameView = ByteBuffer.wrap(frame);
+
+    // parameter sets in annex-b form, from the avc decoder configuration
+    private byte[] parameterSets;
+
+    private int nalLengthSize = 4;
+
+    // aac audio object type, sampling frequency index and channel configuration
+    private int aacProfile = -1, aacFrequencyIndex, aacChannels;
+
+    private volatile long datagrams, dropped;
+
+    private TSEgress(String streamName, InetSocketAddress destination) {
+        this.streamName = streamName;
+        this.destination = destination;
+    }
+
+    /**
+     * Starts sending a stream to a destination at the default mux rate.
+     *
+     * @param stream
+     * @param host unicast or multicast address
+     * @param port
+     * @return the output or null if it couldn't be started or the stream is already sent there
+     */
+    public static TSEgress start(IBroadcastStream stream, String host, int port) {
+        return start(stream, host, port, muxRate);
+    }
+
+    /**
+     * Starts sending a stream to a destination.
+     *
+     * @param stream
+     * @param host unicast or multicast address
+     * @param port
+     * @param muxRate constant output rate in bits per second, zero to send packets as they're muxed
+     * @return the output or null if it couldn't be started or the stream is already sent there
+     */
+    public static TSEgress start(IBroadcastStream stream, String host, int port, long muxRate) {
+        String streamName = stream.getPublishedName();
+        InetSocketAddress destination = new InetSocketAddress(host, port);
+        TSEgress egress = new TSEgress(streamName, destination);
+        if (outputs.putIfAbsent(egress.key(), egress) != null) {
+            return null;
+        }
+        try {
+            egress.open(stream, muxRate);
+            return egress;
+        } catch (Exception e) {
+            log.warn("Exception starting egress of {} to {}", streamName, destination, e);
+            egress.stop();
+        }
+        return null;
+    }
+
+    /**
+     * Stops sending a stream to a destination.
+     *
+     * @param streamName
+     * @param host
+     * @param port
+     * @return true if there was such an output
+     */
+    public static boolean stop(String streamName, String host, int port) {
+        TSEgress egress = outputs.get(key(streamName, new InetSocketAddress(host, port)));
+        if (egress != null) {
+            egress.stop();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stops every output of a stream, such as when its publish ends.
+     *
+     * @param streamName
+     */
+    public static void stopAll(String streamName) {
+        outputs.values().stream().filter(egress -> egress.streamName.equals(streamName)).forEach(TSEgress::stop);
+    }
+
+    public static Collection<TSEgress> getOutputs() {
+        return outputs.values();
+    }
+
+    private void open(IBroadcastStream stream, long muxRate) throws IOException {
+        InetAddress address = destination.getAddress();
+        if (address == null) {
+            throw new IOException("Unresolved destination " + destination);
+        }
+        TSConfig config = new TSConfig();
+        config.name = streamName;
+        config.pmtPid = (short) 4096;
+        config.videoPid = VIDEO_PID;
+        config.videoStreamType = STREAM_TYPE_H264;
+        config.audioPid = AUDIO_PID;
+        config.audioStreamType = STREAM_TYPE_AAC;
+        config.javaMuxer = javaMuxer;
+        muxer = TSMuxer.build(config);
+        if (muxer == null) {
+            throw new IOException("Muxer creation failed");
+        }
+        channel = DatagramChannel.open(address.getAddress().length == 4 ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+        if (address.isMulticastAddress()) {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTtl);
+        }
+        // connected, so each send skips the per-datagram address checks
+        channel.connect(destination);
+        if (muxRate > 0L) {
+            // pcr rides on the video pid, as the native muxer has it
+            scheduler = new TSOutputScheduler(muxRate, VIDEO_PID, this::send);
+        } else {
+            datagram = BufferPool.getInstance().acquire(DATAGRAM_SIZE);
+        }
+        this.stream = stream;
+        stream.addStreamListener(this);
+        log.info("Egress of {} to {} started", streamName, destination);
+    }
+
+    /**
+     * Stops this output.
+     */
+    public void stop() {
+        outputs.remove(key(), this);
+        if (stream != null) {
+            stream.removeStreamListener(this);
+            stream = null;
+        }
+        synchronized (this) {
+            if (scheduler != null) {
+                // no datagram is in flight once this returns
+                scheduler.close();
+            }
+            if (datagram != null) {
+                if (datagram.buffer().position() > 0) {
+                    send();
+                }
+                datagram.release();
+                datagram = null;
+            }
+            if (muxer != null) {
+                muxer.destroy();
+                muxer = null;
+            }
+            if (muxed != null) {
+                muxed.release();
+                muxed = null;
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.debug("Exception closing channel", e);
+                }
+                channel = null;
+            }
+        }
+        log.info("Egress of {} to {} stopped after {} datagrams", streamName, destination, datagrams);
+    }
+
+    @Override
+    public synchronized void packetReceived(IBroadcastStream stream, IStreamPacket packet) {
+        if (muxer == null) {
+            return;
+        }
+        try {
+            switch (packet.getDataType()) {
+                case Constants.TYPE_VIDEO_DATA:
+                    video(packet.getData(), packet.getTimestamp());
+                    break;
+                case Constants.TYPE_AUDIO_DATA:
+                    audio(packet.getData(), packet.getTimestamp());
+                    break;
+                case Constants.TYPE_AGGREGATE:
+                    ((Aggregate) packet).getParts().forEach(part -> {
+                        IStreamPacket sub = (IStreamPacket) part;
+                        if (sub.getDataType() == Constants.TYPE_VIDEO_DATA) {
+                            video(sub.getData(), sub.getTimestamp());
+                        } else if (sub.getDataType() == Constants.TYPE_AUDIO_DATA) {
+                            audio(sub.getData(), sub.getTimestamp());
+                        }
+                    });
+                    break;
+                default:
+                    return;
+            }
+            // everything muxed for this packet goes out now, a partial datagram waits for the next
+            while (datagram != null && datagram.buffer().position() >= DATAGRAM_SIZE) {
+                send();
+            }
+        } catch (Exception e) {
+            log.warn("Exception in egress of {}", streamName, e);
+        }
+    }
+
+    private void video(IoBuffer packet, int timestamp) {
+        // absolute reads on a view, the packet is shared with other listeners
+        ByteBuffer data = packet.buf().duplicate();
+        int pos = data.position(), limit = data.limit();
+        if (limit - pos < 5 || (data.get(pos) & 0x0f) != CODEC_AVC) {
+            return;
+        }
+        boolean keyframe = (data.get(pos) & 0xf0) == 0x10;
+        int packetType = data.get(pos + 1);
+        if (packetType == 0) {
+            configureAvc(data, pos + 5, limit);
+            return;
+        }
+        if (packetType != 1 || parameterSets == null) {
+            return;
+        }
+        // signed 24 bit composition time offset
+        int cts = ((data.get(pos + 2) << 16) | ((data.get(pos + 3) & 0xff) << 8) | (data.get(pos + 4) & 0xff));
+        int length = 0;
+        length = put(length, AUD, 0, AUD.length);
+        boolean haveParameterSets = false;
+        int offset = pos + 5;
+        while (offset + nalLengthSize <= limit) {
+            int nalLength = 0;
+            for (int i = 0; i < nalLengthSize; i++) {
+                nalLength = (nalLength << 8) | (data.get(offset + i) & 0xff);
+            }
+            offset += nalLengthSize;
+            if (nalLength <= 0 || offset + nalLength > limit) {
+                break;
+            }
+            int nalType = data.get(offset) & 0x1f;
+            if (nalType == 9) {
+                // our own delimiter leads the access unit
+                offset += nalLength;
+                continue;
+            }
+            if (nalType == 7 || nalType == 8) {
+                haveParameterSets = true;
+            } else if (keyframe && !haveParameterSets && (nalType == 5 || nalType == 1)) {
+                // decoders joining at this keyframe need the parameter sets ahead of its first slice
+                length = put(length, parameterSets, 0, parameterSets.length);
+                haveParameterSets = true;
+            }
+            length = put(length, START_CODE, 0, START_CODE.length);
+            length = ensure(length, nalLength);
+            data.position(offset);
+            data.get(frame, length, nalLength);
+            length += nalLength;
+            offset += nalLength;
+        }
+        long dts = timestamp * 90L;
+        mux(length, dts + cts * 90L, dts, STREAM_TYPE_H264, VIDEO_PID, VIDEO_STREAM_ID, keyframe);
+    }
+
+    // reads the parameter sets out of an avc decoder configuration record
+    private void configureAvc(ByteBuffer data, int offset, int limit) {
+        if (limit - offset < 7) {
+            return;
+        }
+        nalLengthSize = (data.get(offset + 4) & 0x03) + 1;
+        byte[] sets = new byte[limit - offset + 32];
+        int length = 0;
+        int pos = offset + 5;
+        // sps then pps
+        for (int type = 0; type < 2 && pos < limit; type++) {
+            int count = type == 0 ? data.get(pos++) & 0x1f : data.get(pos++) & 0xff;
+            for (int i = 0; i < count && pos + 2 <= limit; i++) {
+                int setLength = ((data.get(pos) & 0xff) << 8) | (data.get(pos + 1) & 0xff);
+                pos += 2;
+                if (pos + setLength > limit) {
+                    break;
+                }
+                if (length + 4 + setLength > sets.length) {
+                    sets = Arrays.copyOf(sets, (length + 4 + setLength) * 2);
+                }
+                System.arraycopy(START_CODE, 0, sets, length, 4);
+                data.position(pos);
+                data.get(sets, length + 4, setLength);
+                length += 4 + setLength;
+                pos += setLength;
+            }
+        }
+        parameterSets = Arrays.copyOf(sets, length);
+        log.debug("AVC configured for {}; nal length size {}, parameter sets {} bytes", streamName, nalLengthSize, length);
+    }
+
+    private void audio(IoBuffer packet, int timestamp) {
+        ByteBuffer data = packet.buf().duplicate();
+        int pos = data.position(), limit = data.limit();
+        if (limit - pos < 2 || ((data.get(pos) & 0xf0) >> 4) != CODEC_AAC) {
+            return;
+        }
+        if (data.get(pos + 1) == 0) {
+            // audio specific config
+            if (limit - pos >= 4) {
+                int config = ((data.get(pos + 2) & 0xff) << 8) | (data.get(pos + 3) & 0xff);
+                aacProfile = (config >> 11) & 0x1f;
+                aacFrequencyIndex = (config >> 7) & 0x0f;
+                aacChannels = (config >> 3) & 0x0f;
+            }
+            return;
+        }
+        if (aacProfile < 0) {
+            return;
+        }
+        int rawLength = limit - pos - 2;
+        int frameLength = rawLength + 7;
+        ensure(0, frameLength);
+        frame[0] = (byte) 0xff;
+        // mpeg-4, no crc
+        frame[1] = (byte) 0xf1;
+        frame[2] = (byte) ((((aacProfile - 1) & 0x03) << 6) | (aacFrequencyIndex << 2) | (aacChannels >> 2));
+        frame[3] = (byte) (((aacChannels & 0x03) << 6) | (frameLength >> 11));
+        frame[4] = (byte) ((frameLength >> 3) & 0xff);
+        frame[5] = (byte) (((frameLength & 0x07) << 5) | 0x1f);
+        frame[6] = (byte) 0xfc;
+        data.position(pos + 2);
+        data.get(frame, 7, rawLength);
+        long pts = timestamp * 90L;
+        mux(frameLength, pts, pts, STREAM_TYPE_AAC, AUDIO_PID, AUDIO_STREAM_ID, false);
+    }
+
+    // copies into the frame buffer at the given length, returning the new length
+    private int put(int length, byte[] src, int offset, int count) {
+        length = ensure(length, count);
+        System.arraycopy(src, offset, frame, length, count);
+        return length + count;
+    }
+
+    // grows the frame buffer to take count more bytes
+    private int ensure(int length, int count) {
+        if (length + count > frame.length) {
+            frame = Arrays.copyOf(frame, Math.max(frame.length * 2, length + count));
+            frameView = ByteBuffer.wrap(frame);
+        }
+        return length;
+    }
+
+    // muxes the frame buffer and passes the packets on
+    private void mux(int length, long pts, long dts, byte type, short pid, byte streamId, boolean randomAccess) {
+        int maxOutput = muxer.getMaxOutput(length);
+        if (muxed == null || muxed.buffer().capacity() < maxOutput) {
+            if (muxed != null) {
+                muxed.release();
+            }
+            muxed = BufferPool.getInstance().acquire(maxOutput);
+        }
+        ByteBuffer out = muxed.buffer();
+        out.clear();
+        frameView.clear().limit(length);
+        if (muxer.mux(frameView, pts, dts, type, pid, streamId, randomAccess, out) > 0) {
+            out.flip();
+            gather(out, dts);
+        }
+    }
+
+    // appends muxed ts, sending each datagram as it fills or handing it to the scheduler
+    private void gather(ByteBuffer packets, long dts) {
+        if (scheduler != null) {
+            scheduler.offer(packets, dts);
+            return;
+        }
+        ByteBuffer buffer = datagram.buffer();
+        int limit = packets.limit();
+        while (packets.hasRemaining()) {
+            if (buffer.position() == DATAGRAM_SIZE) {
+                send();
+            }
+            packets.limit(Math.min(limit, packets.position() + DATAGRAM_SIZE - buffer.position()));
+            buffer.put(packets);
+            packets.limit(limit);
+        }
+    }
+
+    private void send() {
+        ByteBuffer buffer = datagram.buffer();
+        buffer.flip();
+        send(buffer);
+        buffer.clear();
+    }
+
+    private void send(ByteBuffer buffer) {
+        try {
+            if (channel.write(buffer) > 0) {
+                datagrams++;
+            } else {
+                dropped++;
+            }
+        } catch (IOException e) {
+            // nobody listening on a unicast destination shows up here, keep sending regardless
+            dropped++;
+            log.trace("Exception sending to {}", destination, e);
+        }
+    }
+
+    private String key() {
+        return key(streamName, destination);
+    }
+
+    private static String key(String streamName, InetSocketAddress destination) {
+        return streamName + '@' + destination.getHostString() + ':' + destination.getPort();
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    public InetSocketAddress getDestination() {
+        return destination;
+    }
+
+    /**
+     * Returns the number of datagrams sent.
+     *
+     * @return datagrams
+     */
+    public long getDatagrams() {
+        return datagrams;
+    }
+
+    /**
+     * Returns the number of datagrams which couldn't be sent.
+     *
+     * @return datagrams
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Returns the scheduler pacing this output.
+     *
+     * @return scheduler or null if packets are sent as they're muxed
+     */
+    public TSOutputScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public static void setMuxRate(long muxRate) {
+        TSEgress.muxRate = muxRate;
+    }
+
+    public static void setJavaMuxer(boolean javaMuxer) {
+        TSEgress.javaMuxer = javaMuxer;
+    }
+
+    public static void setMulticastTtl(int multicastTtl) {
+        TSEgress.multicastTtl = multicastTtl;
+    }
+
+}
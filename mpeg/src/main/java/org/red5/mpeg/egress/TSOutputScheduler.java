@@ -0,0 +1,564 @@
+package org.red5.mpeg.egress;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.BufferPool;
+import org.red5.mpeg.PooledBuffer;
+
+/**
+ * Turns the bursty output of the muxer into a constant bit rate transport stream. Muxed frames are held briefly and
+ * released in DTS order so audio and video interleave, PAT and PMT are repeated on a fixed interval, PCR is carried at least
+ * every 40 ms and restamped to the position of its packet in the output, and any slot with nothing to send is stuffed with a
+ * null packet. Datagrams of seven packets are released on a schedule kept against {@link System#nanoTime()} by a small set
+ * of shared pacer threads, which park until just before a datagram is due and spin the remainder so the spacing holds at
+ * rates well past 50 Mbps.
+ *
+ * @author Paul Gregoire
+ */
+public class TSOutputScheduler {
+
+    private static Logger log = LoggerFactory.getLogger(TSOutputScheduler.class);
+
+    private static final int PACKET_SIZE = 188;
+
+    // ts packets per datagram
+    private static final int DATAGRAM_SIZE = 7 * PACKET_SIZE;
+
+    private static final int PAT_PID = 0, NULL_PID = 0x1fff;
+
+    // system clock frequency
+    private static final long SYSTEM_CLOCK = 27000000L;
+
+    private static final long NANOS = 1000000000L;
+
+    // offset of the pcr within a packet carrying one
+    private static final int PCR_OFFSET = 6;
+
+    // pacers park until this close to a datagram being due then spin, unless spinning would starve everything else
+    private static final long SPIN_NANOS = Runtime.getRuntime().availableProcessors() > 1 ? 200000L : 0L;
+
+    // a pacer this far behind skips ahead instead of bursting to catch up
+    private static final long RESYNC_NANOS = 100000000L;
+
+    private static final byte[] NULL_PACKET = new byte[PACKET_SIZE];
+
+    static {
+        Arrays.fill(NULL_PACKET, (byte) 0xff);
+        NULL_PACKET[0] = 0x47;
+        NULL_PACKET[1] = (byte) (NULL_PID >> 8);
+        NULL_PACKET[2] = (byte) NULL_PID;
+        NULL_PACKET[3] = 0x10;
+    }
+
+    // pcr interval in milliseconds, under the 40 ms ceiling with room for datagram granularity
+    private static long pcrInterval = 35L;
+
+    // pat and pmt repetition interval in milliseconds
+    private static long psiInterval = 100L;
+
+    // how long frames are held to be interleaved by dts, in milliseconds
+    private static long interleaveWindow = 50L;
+
+    // target lead of dts over pcr, the decoder buffering, in milliseconds
+    private static long decoderDelay = 500L;
+
+    // seconds of output which may be queued before the oldest frames are dropped
+    private static long maxQueued = 2L;
+
+    private static int pacerCount = 2;
+
+    private static Pacer[] pacers;
+
+    private static final AtomicInteger assigned = new AtomicInteger();
+
+    private final long muxRate;
+
+    private final int pcrPid;
+
+    private final Sink sink;
+
+    private final Pacer pacer;
+
+    // byte intervals derived from the mux rate
+    private final long pcrBytes, psiBytes;
+
+    // frames waiting, lowest dts first
+    private final PriorityQueue<Frame> frames = new PriorityQueue<>(Comparator.comparingLong((Frame frame) -> frame.dts).thenComparingLong(frame -> frame.sequence));
+
+    private long sequence;
+
+    private long queuedBytes;
+
+    // highest dts offered so far
+    private long maxDts = Long.MIN_VALUE;
+
+    // frame being sent
+    private Frame current;
+
+    // latest pat and pmt from the muxer, repeated with our own continuity counters
+    private byte[] pat, pmt;
+
+    private int pmtPid = -1;
+
+    private int patCc, pmtCc;
+
+    // continuity counter of the last payload on the pcr pid, adaptation only packets repeat it
+    private int pcrCc = 0x0f;
+
+    private PooledBuffer datagram;
+
+    // schedule start, index of the next datagram and when its due
+    private long start, index;
+
+    volatile long due;
+
+    // pcr at byte zero of the schedule
+    private long pcrBase;
+
+    private boolean anchored, discontinuity, scheduled, closed;
+
+    // byte positions of the last pcr and psi, and psi packets left to send
+    private long lastPcr, lastPsi;
+
+    private int psiPending;
+
+    private volatile long nullPackets, droppedFrames, lateFrames, resyncs;
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param muxRate output rate in bits per second
+     * @param pcrPid pid carrying the pcr
+     * @param sink receives each datagram
+     */
+    public TSOutputScheduler(long muxRate, int pcrPid, Sink sink) {
+        this.muxRate = muxRate;
+        this.pcrPid = pcrPid;
+        this.sink = sink;
+        pcrBytes = muxRate / 8L * pcrInterval / 1000L;
+        psiBytes = muxRate / 8L * psiInterval / 1000L;
+        lastPcr = lastPsi = Long.MIN_VALUE / 2;
+        pacer = pacer();
+    }
+
+    private static synchronized Pacer pacer() {
+        if (pacers == null) {
+            pacers = new Pacer[Math.max(1, pacerCount)];
+            for (int i = 0; i < pacers.length; i++) {
+                pacers[i] = new Pacer(i);
+            }
+        }
+        return pacers[(assigned.getAndIncrement() & Integer.MAX_VALUE) % pacers.length];
+    }
+
+    /**
+     * Queues the muxed packets of one frame. PAT and PMT are taken out of the flow and repeated on their own schedule.
+     *
+     * @param data packets from position to limit; the position is not modified
+     * @param dts decode timestamp of the frame at 90kHz
+     */
+    public synchronized void offer(ByteBuffer data, long dts) {
+        if (closed) {
+            return;
+        }
+        int position = data.position(), limit = data.limit();
+        int end = limit - (limit - position) % PACKET_SIZE;
+        PooledBuffer buffer = null;
+        try {
+            for (int p = position; p < end; p += PACKET_SIZE) {
+                int pid = ((data.get(p + 1) & 0x1f) << 8) | (data.get(p + 2) & 0xff);
+                data.limit(p + PACKET_SIZE).position(p);
+                if (pid == PAT_PID || pid == pmtPid) {
+                    if (pid == PAT_PID) {
+                        if (pat == null) {
+                            pat = new byte[PACKET_SIZE];
+                        }
+                        data.get(pat);
+                        pmtPid = programMapPid(pat);
+                    } else {
+                        if (pmt == null) {
+                            pmt = new byte[PACKET_SIZE];
+                        }
+                        data.get(pmt);
+                    }
+                    continue;
+                }
+                if (buffer == null) {
+                    buffer = BufferPool.getInstance().acquire(end - p);
+                }
+                buffer.buffer().put(data);
+            }
+        } finally {
+            data.limit(limit).position(position);
+        }
+        if (buffer == null) {
+            return;
+        }
+        buffer.buffer().flip();
+        Frame frame = new Frame(dts, sequence++, buffer);
+        frames.add(frame);
+        queuedBytes += buffer.remaining();
+        maxDts = Math.max(maxDts, dts);
+        // the output can't keep up with its input, shed the oldest rather than fall ever further behind
+        long maxBytes = muxRate / 8L * maxQueued;
+        while (queuedBytes > maxBytes && frames.size() > 1) {
+            Frame dropped = frames.poll();
+            queuedBytes -= dropped.buffer.remaining();
+            dropped.buffer.release();
+            if (droppedFrames++ == 0) {
+                log.warn("Mux rate {} is too low for its input, dropping frames", muxRate);
+            }
+        }
+        if (!scheduled && pat != null && pmt != null) {
+            scheduled = true;
+            datagram = BufferPool.getInstance().acquire(DATAGRAM_SIZE);
+            start = due = System.nanoTime();
+            pacer.add(this);
+        }
+    }
+
+    // first program map pid in a pat
+    private static int programMapPid(byte[] pat) {
+        int section = 5 + (pat[4] & 0xff);
+        int sectionLength = ((pat[section + 1] & 0x0f) << 8) | (pat[section + 2] & 0xff);
+        // programs follow the 8 byte header and precede the crc
+        for (int p = section + 8; p + 4 <= section + 3 + sectionLength - 4 && p + 4 <= PACKET_SIZE; p += 4) {
+            int program = ((pat[p] & 0xff) << 8) | (pat[p + 1] & 0xff);
+            if (program != 0) {
+                return ((pat[p + 2] & 0x1f) << 8) | (pat[p + 3] & 0xff);
+            }
+        }
+        return -1;
+    }
+
+    // fills and sends the next datagram, returning when the one after it is due or -1 once closed
+    synchronized long emit(long now) {
+        if (closed) {
+            return -1L;
+        }
+        if (now - due > RESYNC_NANOS) {
+            // stalled, carry on from now as though stuffing had gone out meanwhile so pcr stays on the wall clock
+            index = scale(now - start, muxRate, NANOS) / (8L * DATAGRAM_SIZE);
+            resyncs++;
+        }
+        ByteBuffer out = datagram.buffer();
+        out.clear();
+        long position = index * DATAGRAM_SIZE;
+        for (int slot = 0; slot < 7; slot++, position += PACKET_SIZE) {
+            if (psiPending == 0 && position - lastPsi >= psiBytes) {
+                psiPending = 2;
+                lastPsi = position;
+            }
+            if (psiPending > 0) {
+                if (psiPending-- == 2) {
+                    putTable(out, pat, patCc++);
+                } else {
+                    putTable(out, pmt, pmtCc++);
+                }
+            } else if (anchored && position - lastPcr >= pcrBytes) {
+                putPcr(out, position);
+            } else if (next(now, position)) {
+                putPacket(out, position);
+            } else {
+                out.put(NULL_PACKET);
+                nullPackets++;
+            }
+        }
+        out.flip();
+        sink.send(out);
+        index++;
+        due = start + scale(index * DATAGRAM_SIZE * 8L, NANOS, muxRate);
+        return due;
+    }
+
+    // whether there's an es packet to send, starting the next frame if its interleave window has passed
+    private boolean next(long now, long position) {
+        if (current != null) {
+            return true;
+        }
+        Frame frame = frames.peek();
+        if (frame == null || (maxDts - frame.dts < interleaveWindow * 90L && now - frame.arrival < interleaveWindow * 1000000L)) {
+            return false;
+        }
+        current = frames.poll();
+        queuedBytes -= current.buffer.remaining();
+        long target = decoderDelay * SYSTEM_CLOCK / 1000L;
+        if (!anchored) {
+            anchor(current.dts, position, target);
+            anchored = true;
+        } else {
+            long lead = current.dts * 300L - pcr(position);
+            if (lead < 0L) {
+                lateFrames++;
+            }
+            if (lead < -target || lead > target * 3L) {
+                // the source clock wandered off ours, or the timeline jumped
+                log.debug("Re-anchoring pcr, lead was {} ms", lead / 27000L);
+                anchor(current.dts, position, target);
+                discontinuity = true;
+                lastPcr = Long.MIN_VALUE / 2;
+            }
+        }
+        return true;
+    }
+
+    private void anchor(long dts, long position, long target) {
+        pcrBase = dts * 300L - target - scale(position + PCR_OFFSET, SYSTEM_CLOCK * 8L, muxRate);
+    }
+
+    // pcr for a packet at the given output position
+    private long pcr(long position) {
+        return pcrBase + scale(position + PCR_OFFSET, SYSTEM_CLOCK * 8L, muxRate);
+    }
+
+    private void putPacket(ByteBuffer out, long position) {
+        ByteBuffer src = current.buffer.buffer();
+        int packet = out.position();
+        int limit = src.limit();
+        src.limit(src.position() + PACKET_SIZE);
+        out.put(src);
+        src.limit(limit);
+        int pid = ((out.get(packet + 1) & 0x1f) << 8) | (out.get(packet + 2) & 0xff);
+        if (pid == pcrPid) {
+            int flags = out.get(packet + 3);
+            if ((flags & 0x10) != 0) {
+                pcrCc = flags & 0x0f;
+            }
+            // restamp any pcr the muxer wrote to where it sits in the output
+            if ((flags & 0x20) != 0 && out.get(packet + 4) >= 7 && (out.get(packet + 5) & 0x10) != 0) {
+                writePcr(out, packet, position);
+            }
+        }
+        if (!src.hasRemaining()) {
+            current.buffer.release();
+            current = null;
+        }
+    }
+
+    // adaptation field only packet carrying a pcr
+    private void putPcr(ByteBuffer out, long position) {
+        int packet = out.position();
+        out.put((byte) 0x47).put((byte) ((pcrPid >> 8) & 0x1f)).put((byte) pcrPid).put((byte) (0x20 | pcrCc));
+        out.put((byte) (PACKET_SIZE - 5)).put((byte) 0x10);
+        for (int i = packet + 6; i < packet + PACKET_SIZE; i++) {
+            out.put((byte) 0xff);
+        }
+        writePcr(out, packet, position);
+    }
+
+    private void writePcr(ByteBuffer out, int packet, long position) {
+        long pcr = pcr(position);
+        long base = (pcr / 300L) & 0x1ffffffffL;
+        int extension = (int) Math.floorMod(pcr, 300L);
+        if (discontinuity) {
+            out.put(packet + 5, (byte) (out.get(packet + 5) | 0x80));
+            discontinuity = false;
+        }
+        int p = packet + PCR_OFFSET;
+        out.put(p, (byte) (base >> 25));
+        out.put(p + 1, (byte) (base >> 17));
+        out.put(p + 2, (byte) (base >> 9));
+        out.put(p + 3, (byte) (base >> 1));
+        out.put(p + 4, (byte) (((base & 1) << 7) | 0x7e | (extension >> 8)));
+        out.put(p + 5, (byte) extension);
+        lastPcr = position;
+    }
+
+    private static void putTable(ByteBuffer out, byte[] table, int cc) {
+        int packet = out.position();
+        out.put(table);
+        out.put(packet + 3, (byte) ((table[3] & 0xf0) | (cc & 0x0f)));
+    }
+
+    // value * multiplier / divisor without overflowing on long running streams
+    private static long scale(long value, long multiplier, long divisor) {
+        return value / divisor * multiplier + value % divisor * multiplier / divisor;
+    }
+
+    /**
+     * Stops sending and releases anything queued.
+     */
+    public void close() {
+        pacer.remove(this);
+        synchronized (this) {
+            closed = true;
+            frames.forEach(frame -> frame.buffer.release());
+            frames.clear();
+            if (current != null) {
+                current.buffer.release();
+                current = null;
+            }
+            if (datagram != null) {
+                datagram.release();
+                datagram = null;
+            }
+        }
+    }
+
+    public long getMuxRate() {
+        return muxRate;
+    }
+
+    /**
+     * Returns the number of null packets sent as stuffing.
+     *
+     * @return packets
+     */
+    public long getNullPackets() {
+        return nullPackets;
+    }
+
+    /**
+     * Returns the number of frames dropped because the mux rate couldn't carry them.
+     *
+     * @return frames
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Returns the number of frames which went out after their decode time.
+     *
+     * @return frames
+     */
+    public long getLateFrames() {
+        return lateFrames;
+    }
+
+    /**
+     * Returns the number of times the schedule skipped ahead after a stall.
+     *
+     * @return resyncs
+     */
+    public long getResyncs() {
+        return resyncs;
+    }
+
+    public static void setPcrInterval(long pcrInterval) {
+        TSOutputScheduler.pcrInterval = Math.min(pcrInterval, 40L);
+    }
+
+    public static void setPsiInterval(long psiInterval) {
+        TSOutputScheduler.psiInterval = psiInterval;
+    }
+
+    public static void setInterleaveWindow(long interleaveWindow) {
+        TSOutputScheduler.interleaveWindow = interleaveWindow;
+    }
+
+    public static void setDecoderDelay(long decoderDelay) {
+        TSOutputScheduler.decoderDelay = decoderDelay;
+    }
+
+    public static void setMaxQueued(long maxQueued) {
+        TSOutputScheduler.maxQueued = maxQueued;
+    }
+
+    /**
+     * Sets the number of pacer threads shared by all schedulers; takes effect if set before the first scheduler is created.
+     *
+     * @param pacerCount
+     */
+    public static void setPacerCount(int pacerCount) {
+        TSOutputScheduler.pacerCount = pacerCount;
+    }
+
+    /**
+     * Receives datagrams as they fall due.
+     */
+    @FunctionalInterface
+    public interface Sink {
+
+        /**
+         * Sends a datagram; the buffer is only valid for the duration of the call.
+         *
+         * @param datagram
+         */
+        void send(ByteBuffer datagram);
+
+    }
+
+    private static final class Frame {
+
+        final long dts;
+
+        final long sequence;
+
+        final long arrival = System.nanoTime();
+
+        final PooledBuffer buffer;
+
+        Frame(long dts, long sequence, PooledBuffer buffer) {
+            this.dts = dts;
+            this.sequence = sequence;
+            this.buffer = buffer;
+        }
+
+    }
+
+    // releases the datagrams of its schedulers in due order
+    private static final class Pacer implements Runnable {
+
+        private final PriorityBlockingQueue<TSOutputScheduler> queue = new PriorityBlockingQueue<>(64, Comparator.comparingLong((TSOutputScheduler scheduler) -> scheduler.due));
+
+        private final Thread thread;
+
+        Pacer(int id) {
+            thread = new Thread(this, "TSOutputPacer-" + id);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            thread.start();
+        }
+
+        void add(TSOutputScheduler scheduler) {
+            queue.add(scheduler);
+            LockSupport.unpark(thread);
+        }
+
+        void remove(TSOutputScheduler scheduler) {
+            queue.remove(scheduler);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                TSOutputScheduler scheduler = queue.peek();
+                if (scheduler == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                long wait = scheduler.due - System.nanoTime();
+                if (wait > SPIN_NANOS && wait > 0L) {
+                    LockSupport.parkNanos(this, wait - SPIN_NANOS);
+                    continue;
+                }
+                if (wait > 0L) {
+                    continue;
+                }
+                scheduler = queue.poll();
+                if (scheduler == null) {
+                    continue;
+                }
+                try {
+                    if (scheduler.emit(System.nanoTime()) >= 0L) {
+                        queue.add(scheduler);
+                    }
+                } catch (Throwable t) {
+                    log.warn("Exception pacing output, it is dropped", t);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,349 @@
+package org.red5.mpeg.egress;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.PooledBuffer;
+
+/**
+ * Forwards the datagrams of an ingest unchanged to any number of UDP destinations, unicast or multicast. The receive
+ * thread hands each datagram over by reference, as the off-heap buffer it was received into, through a single producer
+ * ring; a single relay thread drains the ring in batches and sends each batch to one destination after another over
+ * connected, non-blocking channels, so the datagram is never copied and no destination can hold up the others or the
+ * ingest. A datagram a destination's socket has no room for is dropped and counted for that destination alone.
+ * <br>
+ * Per destination the datagrams sent, dropped and failed are counted, along with the latency from receipt to send.
+ *
+ * @author Paul Gregoire
+ */
+public class UdpRelay {
+
+    private static Logger log = LoggerFactory.getLogger(UdpRelay.class);
+
+    // most datagrams sent to a destination in one go
+    private static final int BATCH_SIZE = 64;
+
+    // longest the relay thread parks before checking for datagrams again
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+    // datagrams held between the receive and relay threads
+    private static int capacity = 4096;
+
+    // socket send buffer per destination, room for bursts
+    private static int sendBufferSize = 4 * 1024 * 1024;
+
+    // multicast time to live
+    private static int multicastTtl = 16;
+
+    private final String streamName;
+
+    private final List<Destination> destinations = new CopyOnWriteArrayList<>();
+
+    // received datagrams and when they were received
+    private final PooledBuffer[] slots;
+
+    private final long[] received;
+
+    private final int mask;
+
+    // next slot to be written, by the receive thread
+    private final AtomicLong tail = new AtomicLong();
+
+    // next slot to be read, by the relay thread
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong overflows = new AtomicLong();
+
+    private volatile Thread relayThread;
+
+    private volatile boolean parked, running;
+
+    /**
+     * Creates a relay for an ingest.
+     *
+     * @param streamName
+     */
+    public UdpRelay(String streamName) {
+        this.streamName = streamName;
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new PooledBuffer[size];
+        received = new long[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds a destination.
+     *
+     * @param host unicast or multicast address
+     * @param port
+     * @return the destination or null if the channel couldn't be opened or it's already a destination
+     */
+    public Destination addDestination(String host, int port) {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        for (Destination destination : destinations) {
+            if (destination.address.equals(address)) {
+                return null;
+            }
+        }
+        try {
+            DatagramChannel channel = address.getAddress() instanceof Inet6Address ? DatagramChannel.open(StandardProtocolFamily.INET6) : DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+            if (address.getAddress().isMulticastAddress()) {
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTtl);
+            }
+            channel.connect(address);
+            Destination destination = new Destination(address, channel);
+            destinations.add(destination);
+            log.info("Relaying {} to {}", streamName, address);
+            return destination;
+        } catch (IOException e) {
+            log.warn("Exception opening relay of {} to {}", streamName, address, e);
+        }
+        return null;
+    }
+
+    /**
+     * Removes a destination.
+     *
+     * @param host
+     * @param port
+     * @return true if it was a destination
+     */
+    public boolean removeDestination(String host, int port) {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        for (Destination destination : destinations) {
+            if (destination.address.equals(address) && destinations.remove(destination)) {
+                // the relay thread may be mid-send, closing makes it fail rather than go anywhere
+                destination.close();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void start() {
+        running = true;
+        Thread thread = new Thread(this::relay, "UdpRelay-" + streamName);
+        thread.setDaemon(true);
+        relayThread = thread;
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        Thread thread = relayThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            relayThread = null;
+        }
+        // whatever wasn't relayed goes back to the pool
+        for (long i = head.get(), end = tail.get(); i < end; i++) {
+            int index = (int) (i & mask);
+            slots[index].release();
+            slots[index] = null;
+        }
+        head.set(tail.get());
+        destinations.forEach(Destination::close);
+        destinations.clear();
+    }
+
+    /**
+     * Queues a received datagram, called on the receive thread only. The buffer is retained until it has been sent to
+     * every destination; if the relay has fallen a full ring behind, the datagram is dropped instead.
+     *
+     * @param data datagram from its position to its limit
+     * @return true if queued
+     */
+    public boolean offer(PooledBuffer data) {
+        long pos = tail.get();
+        if (!running || pos - head.get() > mask) {
+            overflows.incrementAndGet();
+            return false;
+        }
+        int index = (int) (pos & mask);
+        slots[index] = data.retain();
+        received[index] = System.nanoTime();
+        // a full write, so the relay thread either sees the datagram before parking or is seen as parked here
+        tail.set(pos + 1);
+        if (parked) {
+            LockSupport.unpark(relayThread);
+        }
+        return true;
+    }
+
+    // relay loop, drains the ring a batch at a time
+    private void relay() {
+        ByteBuffer[] batch = new ByteBuffer[BATCH_SIZE];
+        long[] times = new long[BATCH_SIZE];
+        while (running) {
+            long from = head.get();
+            int count = (int) Math.min(BATCH_SIZE, tail.get() - from);
+            if (count == 0) {
+                parked = true;
+                // a datagram may have arrived before the flag was seen
+                if (tail.get() == from && running) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                parked = false;
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                int index = (int) ((from + i) & mask);
+                // the receive thread is still demuxing from the buffer, so it's read through a view of our own
+                batch[i] = slots[index].duplicate();
+                times[i] = received[index];
+            }
+            for (Destination destination : destinations) {
+                destination.send(batch, times, count);
+            }
+            for (int i = 0; i < count; i++) {
+                int index = (int) ((from + i) & mask);
+                slots[index].release();
+                slots[index] = null;
+                batch[i] = null;
+            }
+            head.lazySet(from + count);
+        }
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    public List<Destination> getDestinations() {
+        return Collections.unmodifiableList(destinations);
+    }
+
+    /**
+     * Returns the number of datagrams dropped as the relay thread fell a full ring behind.
+     *
+     * @return overflow count
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    public static void setCapacity(int capacity) {
+        UdpRelay.capacity = capacity;
+    }
+
+    public static void setSendBufferSize(int sendBufferSize) {
+        UdpRelay.sendBufferSize = sendBufferSize;
+    }
+
+    public static void setMulticastTtl(int multicastTtl) {
+        UdpRelay.multicastTtl = multicastTtl;
+    }
+
+    /**
+     * A destination and its statistics; these are written by the relay thread only.
+     */
+    public static final class Destination {
+
+        private final InetSocketAddress address;
+
+        private final DatagramChannel channel;
+
+        private volatile long sent, dropped, errors, latencyTotal, latencyMax;
+
+        Destination(InetSocketAddress address, DatagramChannel channel) {
+            this.address = address;
+            this.channel = channel;
+        }
+
+        void send(ByteBuffer[] batch, long[] times, int count) {
+            for (int i = 0; i < count; i++) {
+                ByteBuffer data = batch[i];
+                int position = data.position(), limit = data.limit();
+                try {
+                    if (channel.write(data) > 0) {
+                        long latency = System.nanoTime() - times[i];
+                        latencyTotal += latency;
+                        if (latency > latencyMax) {
+                            latencyMax = latency;
+                        }
+                        sent++;
+                    } else {
+                        // no room in the socket buffer
+                        dropped++;
+                    }
+                } catch (IOException e) {
+                    // refused by an unreachable port, or closed while removed
+                    if (errors++ == 0L) {
+                        log.debug("Exception relaying to {}", address, e);
+                    }
+                } finally {
+                    // the buffer is shared with the destinations that follow
+                    data.limit(limit).position(position);
+                }
+            }
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Returns the mean time from receipt of a datagram to its send.
+         *
+         * @return microseconds
+         */
+        public long getAverageLatency() {
+            long count = sent;
+            return count > 0L ? latencyTotal / count / 1000L : 0L;
+        }
+
+        /**
+         * Returns the longest time from receipt of a datagram to its send.
+         *
+         * @return microseconds
+         */
+        public long getMaxLatency() {
+            return latencyMax / 1000L;
+        }
+
+    }
+
+}
@@ -0,0 +1,572 @@
+package org.red5.mpeg.hls;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.PayloadType.TypeIds;
+import org.red5.mpeg.TSConfig;
+import org.red5.mpeg.TSHandler;
+import org.red5.mpeg.TSPacket;
+import org.red5.mpeg.TSPacketListener;
+import org.red5.mpeg.TSReceiver;
+import org.red5.mpeg.TSSubscriber;
+
+/**
+ * Cuts an ingest into HLS segments and low-latency partial segments, keeping a rolling media playlist. The demuxed frames
+ * are remuxed in segment mode, so every random access frame is preceded by the PAT and PMT; segments start at keyframes
+ * as flagged by the demuxer and parts start at any frame, independent when they start at a keyframe. Audio only ingests
+ * are cut at any audio frame. Playlist reloads can block until a given segment or part is available and the next part
+ * is announced with a preload hint, so players can hold a request open for it. Segments and parts are kept off-heap in the
+ * {@link SegmentStore} under the names they have in the playlist.
+ *
+ * @author Paul Gregoire
+ */
+public class HlsSegmenter implements TSPacketListener {
+
+    private static Logger log = LoggerFactory.getLogger(HlsSegmenter.class);
+
+    // active segmenters by stream name
+    private static final ConcurrentMap<String, HlsSegmenter> segmenters = new ConcurrentHashMap<>();
+
+    private static final short VIDEO_PID = 256;
+
+    private static final short AUDIO_PID = 257;
+
+    private static final byte VIDEO_STREAM_ID = (byte) 0xe0;
+
+    private static final byte AUDIO_STREAM_ID = (byte) 0xc0;
+
+    // timestamps are 33 bits at 90kHz
+    private static final long TIMESTAMP_MASK = 0x1ffffffffL;
+
+    // jumps larger than this are treated as discontinuities, in 90kHz ticks
+    private static final long MAX_GAP = 10L * 90000L;
+
+    // target segment duration, in milliseconds
+    private static long segmentDuration = 2000L;
+
+    // target partial segment duration, in milliseconds
+    private static long partDuration = 334L;
+
+    // segments listed in the playlist
+    private static int playlistSize = 6;
+
+    // segments kept after leaving the playlist, for players still fetching them
+    private static int retainedSegments = 2;
+
+    // complete segments whose parts are still listed, newer segments list all of theirs
+    private static int partSegments = 2;
+
+    private final String streamName;
+
+    private final TSReceiver source;
+
+    private final byte videoStreamType, audioStreamType;
+
+    private TSSubscriber.Subscription subscription;
+
+    private TSHandler muxer;
+
+    // complete segments, oldest first; includes the retained ones before the playlist window
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    // segment being written, null until the first cut point
+    private Segment current;
+
+    // media sequence number of the segment being written, or the next one to be
+    private long sequence;
+
+    // muxed ts of the segment being written, parts are ranges of it; reused from segment to segment
+    private byte[] pending = new byte[1024 * 1024];
+
+    private int pendingLength, partOffset;
+
+    private long partStart;
+
+    private boolean partIndependent;
+
+    // timeline of the stream the cuts are made on
+    private long lastDts, frameInterval;
+
+    private boolean discontinuity;
+
+    private int discontinuitySequence;
+
+    // longest segment so far, in 90kHz ticks; the target duration can only grow
+    private long longestSegment;
+
+    // requests waiting for a segment or part which isn't available yet
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    private volatile boolean running;
+
+    /**
+     * Creates a segmenter for an ingest of the given codecs.
+     *
+     * @param streamName
+     * @param source receiver of the demuxed ingest
+     * @param audioFourCC audio type id, 0 if there is no audio
+     * @param videoFourCC video type id, 0 if there is no video
+     */
+    public HlsSegmenter(String streamName, TSReceiver source, int audioFourCC, int videoFourCC) {
+        this.streamName = streamName;
+        this.source = source;
+        this.videoStreamType = streamType(videoFourCC);
+        this.audioStreamType = streamType(audioFourCC);
+    }
+
+    public void start() {
+        TSConfig config = new TSConfig();
+        config.name = streamName;
+        config.pmtPid = (short) 4096;
+        if (videoStreamType != 0) {
+            config.videoPid = VIDEO_PID;
+            config.videoStreamType = videoStreamType;
+        }
+        if (audioStreamType != 0) {
+            config.audioPid = AUDIO_PID;
+            config.audioStreamType = audioStreamType;
+        }
+        muxer = TSHandler.build(config);
+        if (muxer == null) {
+            log.warn("Muxer creation failed for {}", streamName);
+            return;
+        }
+        // muxed ts comes back on our own thread as we mux
+        muxer.getReceiver().addListener(this::append);
+        running = true;
+        segmenters.put(streamName, this);
+        // remuxing is cheap and every frame is needed, so it's done on the demuxing thread rather than queued
+        subscription = source.addListener(this);
+    }
+
+    public void stop() {
+        running = false;
+        segmenters.remove(streamName, this);
+        if (subscription != null) {
+            subscription.cancel();
+            subscription = null;
+        }
+        List<Waiter> pending;
+        synchronized (this) {
+            if (muxer != null) {
+                muxer.destroy();
+                muxer = null;
+            }
+            segments.clear();
+            current = null;
+            SegmentStore.getInstance().removeStream(streamName);
+            pending = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        // let anyone blocked find out the stream is gone
+        pending.forEach(waiter -> waiter.callback.run());
+    }
+
+    @Override
+    public void onPacket(TSPacket pkt) {
+        if (pkt.isMpegTs()) {
+            return;
+        }
+        List<Waiter> ready = null;
+        synchronized (this) {
+            if (muxer == null) {
+                return;
+            }
+            boolean video = pkt.isVideo();
+            if (video ? videoStreamType == 0 : (!pkt.isAudio() || audioStreamType == 0)) {
+                return;
+            }
+            // cuts follow the video if there is any, otherwise every audio frame can start a segment
+            boolean timeline = video || videoStreamType == 0;
+            boolean keyframe = video && pkt.isKeyframe();
+            // audio only parts start with the tables too, so they can be played on their own
+            boolean randomAccess = keyframe;
+            if (timeline) {
+                boolean cutPoint = !video || keyframe;
+                long dts = pkt.getDts() & TIMESTAMP_MASK;
+                if (current == null) {
+                    if (!cutPoint) {
+                        // nothing can be decoded before the first keyframe
+                        return;
+                    }
+                    startSegment(dts);
+                    randomAccess = true;
+                } else {
+                    long elapsed = (dts - lastDts) & TIMESTAMP_MASK;
+                    if (elapsed > MAX_GAP) {
+                        // timestamps jumped; end the segment where the old timeline ended
+                        closePart(lastDts + frameInterval);
+                        closeSegment();
+                        discontinuity = true;
+                        ready = release();
+                        if (cutPoint) {
+                            startSegment(dts);
+                            randomAccess = true;
+                        }
+                    } else {
+                        if (elapsed > 0L) {
+                            frameInterval = elapsed;
+                        }
+                        long segmentElapsed = (dts - current.start) & TIMESTAMP_MASK;
+                        long partElapsed = (dts - partStart) & TIMESTAMP_MASK;
+                        if (cutPoint && segmentElapsed >= segmentDuration * 90L) {
+                            closePart(dts);
+                            closeSegment();
+                            startSegment(dts);
+                            randomAccess = true;
+                            ready = release();
+                        } else if (partElapsed + frameInterval > partDuration * 90L) {
+                            // the next frame would take the part past its target
+                            closePart(dts);
+                            startPart(dts, cutPoint);
+                            randomAccess = cutPoint;
+                            ready = release();
+                        }
+                    }
+                }
+                lastDts = dts;
+            }
+            if (current != null) {
+                muxer.mux(pkt.getData(), pkt.getLength(), pkt.getTimestamp() & TIMESTAMP_MASK, pkt.getDts() & TIMESTAMP_MASK, video ? videoStreamType : audioStreamType, video ? VIDEO_PID : AUDIO_PID, video ? VIDEO_STREAM_ID : AUDIO_STREAM_ID, randomAccess);
+            }
+        }
+        if (ready != null) {
+            ready.forEach(waiter -> waiter.callback.run());
+        }
+    }
+
+    // appends muxed ts to the part being written
+    private void append(TSPacket pkt) {
+        int length = pkt.getLength();
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+        }
+        System.arraycopy(pkt.getData(), 0, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    private void startSegment(long dts) {
+        current = new Segment(sequence, dts, discontinuity);
+        discontinuity = false;
+        startPart(dts, true);
+    }
+
+    private void startPart(long dts, boolean independent) {
+        partStart = dts;
+        partIndependent = independent;
+    }
+
+    private void closePart(long dts) {
+        if (pendingLength > partOffset) {
+            SegmentStore.getInstance().put(streamName, partName(current.sequence, current.parts.size()), ByteBuffer.wrap(pending, partOffset, pendingLength - partOffset));
+            current.parts.add(new Part(((dts - partStart) & TIMESTAMP_MASK) / 90000d, partIndependent));
+            partOffset = pendingLength;
+        }
+    }
+
+    private void closeSegment() {
+        Segment segment = current;
+        current = null;
+        SegmentStore store = SegmentStore.getInstance();
+        if (!segment.parts.isEmpty()) {
+            store.put(streamName, segment.sequence + ".ts", ByteBuffer.wrap(pending, 0, pendingLength));
+        }
+        pendingLength = 0;
+        partOffset = 0;
+        if (segment.parts.isEmpty()) {
+            return;
+        }
+        segment.complete();
+        longestSegment = Math.max(longestSegment, Math.round(segment.duration * 90000d));
+        segments.add(segment);
+        sequence++;
+        // drop segments which left the playlist, and parts no longer listed
+        while (segments.size() > playlistSize + retainedSegments) {
+            Segment dropped = segments.poll();
+            removeParts(dropped);
+            store.remove(streamName, dropped.sequence + ".ts");
+            if (dropped.discontinuity) {
+                discontinuitySequence++;
+            }
+        }
+        int listed = 0;
+        for (Iterator<Segment> it = segments.descendingIterator(); it.hasNext();) {
+            Segment older = it.next();
+            if (++listed > partSegments) {
+                removeParts(older);
+            }
+        }
+    }
+
+    private void removeParts(Segment segment) {
+        for (int i = 0; i < segment.parts.size(); i++) {
+            SegmentStore.getInstance().remove(streamName, partName(segment.sequence, i));
+        }
+        segment.parts.clear();
+    }
+
+    private static String partName(long sequence, int part) {
+        return sequence + "." + part + ".ts";
+    }
+
+    // collects the waiters whose segment or part is now available
+    private List<Waiter> release() {
+        List<Waiter> ready = null;
+        for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+            Waiter waiter = it.next();
+            if (isAvailable(waiter.sequence, waiter.part)) {
+                if (ready == null) {
+                    ready = new ArrayList<>();
+                }
+                ready.add(waiter);
+                it.remove();
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Returns whether a segment, or a part of it, is available. A part is available once it's complete and a segment
+     * once all of its parts are.
+     *
+     * @param sequence media sequence number
+     * @param part part index or -1 for the whole segment
+     * @return true if available
+     */
+    public synchronized boolean isAvailable(long sequence, int part) {
+        if (sequence < this.sequence) {
+            return true;
+        }
+        return sequence == this.sequence && part >= 0 && current != null && part < current.parts.size();
+    }
+
+    /**
+     * Runs the callback once a segment or part is available, or the segmenter stops; immediately if it's already
+     * available. A playlist reload blocks this way on the segment or part it asks for.
+     *
+     * @param sequence media sequence number
+     * @param part part index or -1 for the whole segment
+     * @param callback
+     * @return handle to cancel the wait with
+     */
+    public Object await(long sequence, int part, Runnable callback) {
+        Waiter waiter = new Waiter(sequence, part, callback);
+        synchronized (this) {
+            if (running && !isAvailable(sequence, part)) {
+                waiters.add(waiter);
+                return waiter;
+            }
+        }
+        callback.run();
+        return waiter;
+    }
+
+    /**
+     * Stops waiting, such as when the request timed out.
+     *
+     * @param handle from await
+     */
+    public synchronized void cancel(Object handle) {
+        waiters.remove(handle);
+    }
+
+    /**
+     * Returns the media playlist.
+     *
+     * @return playlist or null if nothing has been segmented yet
+     */
+    public synchronized String getPlaylist() {
+        if (segments.isEmpty() && (current == null || current.parts.isEmpty())) {
+            return null;
+        }
+        int skip = Math.max(0, segments.size() - playlistSize);
+        long targetDuration = Math.max((segmentDuration + 999L) / 1000L, (longestSegment + 89999L) / 90000L);
+        double partTarget = partDuration / 1000d;
+        int discontinuities = discontinuitySequence;
+        Iterator<Segment> it = segments.iterator();
+        for (int i = 0; i < skip; i++) {
+            if (it.next().discontinuity) {
+                discontinuities++;
+            }
+        }
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append("#EXTM3U\n");
+        sb.append("#EXT-X-VERSION:6\n");
+        sb.append("#EXT-X-TARGETDURATION:").append(targetDuration).append('\n');
+        sb.append(String.format(Locale.ROOT, "#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=%.3f\n", partTarget * 3d));
+        sb.append(String.format(Locale.ROOT, "#EXT-X-PART-INF:PART-TARGET=%.3f\n", partTarget));
+        sb.append("#EXT-X-MEDIA-SEQUENCE:").append(segments.isEmpty() ? current.sequence : segments.peekFirst().sequence + skip).append('\n');
+        if (discontinuities > 0) {
+            sb.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuities).append('\n');
+        }
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            appendSegment(sb, segment);
+            sb.append(String.format(Locale.ROOT, "#EXTINF:%.3f,\n", segment.duration));
+            sb.append(segment.sequence).append(".ts\n");
+        }
+        if (current != null) {
+            appendSegment(sb, current);
+            sb.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"").append(partName(current.sequence, current.parts.size())).append("\"\n");
+        }
+        return sb.toString();
+    }
+
+    private static void appendSegment(StringBuilder sb, Segment segment) {
+        if (segment.discontinuity) {
+            sb.append("#EXT-X-DISCONTINUITY\n");
+        }
+        for (int i = 0; i < segment.parts.size(); i++) {
+            Part part = segment.parts.get(i);
+            sb.append(String.format(Locale.ROOT, "#EXT-X-PART:DURATION=%.3f,URI=\"%s\"", part.duration, partName(segment.sequence, i)));
+            if (part.independent) {
+                sb.append(",INDEPENDENT=YES");
+            }
+            sb.append('\n');
+        }
+    }
+
+    /**
+     * Returns the sequence number of the segment being written, or the next one to be.
+     *
+     * @return media sequence number
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    /**
+     * Returns the segmenter of a stream.
+     *
+     * @param streamName
+     * @return segmenter or null if the stream isn't being segmented
+     */
+    public static HlsSegmenter getSegmenter(String streamName) {
+        return segmenters.get(streamName);
+    }
+
+    public static long getSegmentDuration() {
+        return segmentDuration;
+    }
+
+    public static void setSegmentDuration(long segmentDuration) {
+        HlsSegmenter.segmentDuration = segmentDuration;
+    }
+
+    public static long getPartDuration() {
+        return partDuration;
+    }
+
+    public static void setPartDuration(long partDuration) {
+        HlsSegmenter.partDuration = partDuration;
+    }
+
+    public static void setPlaylistSize(int playlistSize) {
+        HlsSegmenter.playlistSize = playlistSize;
+    }
+
+    public static void setRetainedSegments(int retainedSegments) {
+        HlsSegmenter.retainedSegments = retainedSegments;
+    }
+
+    public static void setPartSegments(int partSegments) {
+        HlsSegmenter.partSegments = partSegments;
+    }
+
+    /**
+     * Returns the PMT stream type for a type id.
+     *
+     * @param typeId
+     * @return stream type or 0 if it can't be carried
+     */
+    public static byte streamType(int typeId) {
+        switch (typeId) {
+            case TypeIds.H264:
+                return 0x1b;
+            case TypeIds.HEVC:
+                return 0x24;
+            case TypeIds.MP1V:
+                return 0x01;
+            case TypeIds.ADTS:
+                return 0x0f;
+            case TypeIds.MP2A:
+                return 0x03;
+            default:
+                return 0;
+        }
+    }
+
+    private static final class Segment {
+
+        final long sequence;
+
+        // dts of the first frame
+        final long start;
+
+        final boolean discontinuity;
+
+        final List<Part> parts = new ArrayList<>();
+
+        double duration;
+
+        Segment(long sequence, long start, boolean discontinuity) {
+            this.sequence = sequence;
+            this.start = start;
+            this.discontinuity = discontinuity;
+        }
+
+        void complete() {
+            for (Part part : parts) {
+                duration += part.duration;
+            }
+        }
+
+    }
+
+    private static final class Part {
+
+        // seconds
+        final double duration;
+
+        // starts with a keyframe
+        final boolean independent;
+
+        Part(double duration, boolean independent) {
+            this.duration = duration;
+            this.independent = independent;
+        }
+
+    }
+
+    private static final class Waiter {
+
+        final long sequence;
+
+        final int part;
+
+        final Runnable callback;
+
+        Waiter(long sequence, int part, Runnable callback) {
+            this.sequence = sequence;
+            this.part = part;
+            this.callback = callback;
+        }
+
+    }
+
+}
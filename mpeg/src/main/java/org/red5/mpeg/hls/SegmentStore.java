@@ -0,0 +1,386 @@
+package org.red5.mpeg.hls;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.BufferPool;
+import org.red5.mpeg.PooledBuffer;
+
+/**
+ * Holds the segments of every stream in off-heap buffers under a global memory cap. When the cap is exceeded the least
+ * recently used segments are spilled to disk, or dropped if spilling is disabled, so the live window of busy streams stays
+ * in memory. Readers take a reference on a segments buffer while sending it, so eviction never pulls content out from
+ * under a response.
+ * <br>
+ * Eviction runs on a background thread, so a slow disk never holds up the ingest thread putting a segment. Memory is
+ * accounted by the size of the pooled buffers rather than the segments, and spilled files are cleared out of the spill
+ * directory as the store is created and on {@link #shutdown()}.
+ *
+ * @author Paul Gregoire
+ */
+public class SegmentStore {
+
+    private static Logger log = LoggerFactory.getLogger(SegmentStore.class);
+
+    // off-heap bytes held across all streams before eviction
+    private static long maxMemory = 512L * 1024L * 1024L;
+
+    // eviction frees down to this fraction of the cap, so it runs in batches rather than on every put
+    private static final double LOW_WATER = 0.9d;
+
+    // spilled segment files are named seg*.ts
+    private static final String SPILL_PREFIX = "seg", SPILL_SUFFIX = ".ts";
+
+    // where evicted segments are written, null to drop them instead
+    private static File spillDirectory = new File(System.getProperty("java.io.tmpdir"), "red5-mpeg-segments");
+
+    // created after the settings above, which it reads
+    private static final SegmentStore instance = new SegmentStore();
+
+    // spills and drops segments off the threads putting them
+    private final ExecutorService evictor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "SegmentEvict");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // set while an eviction is queued or running
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    // segments by name by stream name
+    private final ConcurrentMap<String, ConcurrentMap<String, Segment>> streams = new ConcurrentHashMap<>();
+
+    private final AtomicLong memoryUsed = new AtomicLong();
+
+    private final AtomicLong spilledBytes = new AtomicLong();
+
+    private SegmentStore() {
+        // spills left by an earlier run are of no use, clear them before any of ours are written
+        File directory = spillDirectory;
+        if (directory != null) {
+            evictor.execute(() -> clearSpills(directory));
+        }
+    }
+
+    public static SegmentStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Stores a segment, replacing any with the same name.
+     *
+     * @param streamName
+     * @param name
+     * @param data content from position to limit, copied off-heap
+     */
+    public void put(String streamName, String name, ByteBuffer data) {
+        PooledBuffer buffer = BufferPool.getInstance().acquire(data.remaining());
+        buffer.buffer().put(data.duplicate()).flip();
+        put(streamName, name, buffer);
+    }
+
+    /**
+     * Stores a segment, replacing any with the same name. The store takes over the callers reference to the buffer.
+     *
+     * @param streamName
+     * @param name
+     * @param buffer flipped buffer
+     */
+    public void put(String streamName, String name, PooledBuffer buffer) {
+        Segment segment = new Segment(streamName, name, buffer);
+        memoryUsed.addAndGet(segment.footprint);
+        Segment previous = streams.computeIfAbsent(streamName, key -> new ConcurrentHashMap<>()).put(name, segment);
+        if (previous != null) {
+            discard(previous);
+        }
+        // only signal, spilling blocks on the disk
+        if (memoryUsed.get() > maxMemory && evicting.compareAndSet(false, true)) {
+            evictor.execute(this::evict);
+        }
+    }
+
+    /**
+     * Returns a segment.
+     *
+     * @param streamName
+     * @param name
+     * @return segment or null if there is none
+     */
+    public Segment get(String streamName, String name) {
+        ConcurrentMap<String, Segment> segments = streams.get(streamName);
+        return segments != null ? segments.get(name) : null;
+    }
+
+    /**
+     * Removes a segment, such as when it leaves a playlist.
+     *
+     * @param streamName
+     * @param name
+     */
+    public void remove(String streamName, String name) {
+        ConcurrentMap<String, Segment> segments = streams.get(streamName);
+        if (segments != null) {
+            Segment segment = segments.remove(name);
+            if (segment != null) {
+                discard(segment);
+            }
+        }
+    }
+
+    /**
+     * Removes every segment of a stream.
+     *
+     * @param streamName
+     */
+    public void removeStream(String streamName) {
+        ConcurrentMap<String, Segment> segments = streams.remove(streamName);
+        if (segments != null) {
+            segments.values().forEach(this::discard);
+        }
+    }
+
+    private void discard(Segment segment) {
+        if (segment.drop()) {
+            memoryUsed.addAndGet(-segment.footprint);
+        }
+        File file = segment.file;
+        if (file != null && file.delete()) {
+            spilledBytes.addAndGet(-segment.length);
+        }
+    }
+
+    /**
+     * Removes every segment and clears the spill directory, such as when the application stops.
+     */
+    public void shutdown() {
+        streams.keySet().forEach(this::removeStream);
+        File directory = spillDirectory;
+        if (directory != null) {
+            clearSpills(directory);
+        }
+    }
+
+    // spills or drops the least recently used segments until memory is back under the low water mark, on the evictor
+    private void evict() {
+        try {
+            // puts made while we run only see the flag, so go again while that left us over the cap
+            while (memoryUsed.get() > maxMemory && evictResident()) {
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    // returns whether any segment was evicted
+    private boolean evictResident() {
+        List<Segment> resident = new ArrayList<>();
+        streams.values().forEach(segments -> segments.values().forEach(segment -> {
+            if (segment.isResident()) {
+                resident.add(segment);
+            }
+        }));
+        resident.sort(Comparator.comparingLong(segment -> segment.lastAccess));
+        long target = (long) (maxMemory * LOW_WATER);
+        boolean evicted = false;
+        for (Segment segment : resident) {
+            if (memoryUsed.get() <= target) {
+                break;
+            }
+            if (spillDirectory != null) {
+                try {
+                    if (segment.spill(spillDirectory)) {
+                        spilledBytes.addAndGet(segment.length);
+                        memoryUsed.addAndGet(-segment.footprint);
+                        evicted = true;
+                    }
+                    continue;
+                } catch (IOException e) {
+                    log.warn("Exception spilling segment {}/{}, dropping it", segment.streamName, segment.name, e);
+                }
+            }
+            // nowhere to put it
+            ConcurrentMap<String, Segment> segments = streams.get(segment.streamName);
+            if (segments != null && segments.remove(segment.name, segment)) {
+                discard(segment);
+                evicted = true;
+            }
+        }
+        return evicted;
+    }
+
+    // deletes the spilled segment files in a directory
+    private static void clearSpills(File directory) {
+        if (!directory.isDirectory()) {
+            return;
+        }
+        try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory.toPath(), SPILL_PREFIX + '*' + SPILL_SUFFIX)) {
+            for (Path path : paths) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            log.warn("Exception clearing spilled segments from {}", directory, e);
+        }
+    }
+
+    /**
+     * Returns the off-heap bytes held.
+     *
+     * @return bytes
+     */
+    public long getMemoryUsed() {
+        return memoryUsed.get();
+    }
+
+    /**
+     * Returns the bytes of segments spilled to disk.
+     *
+     * @return bytes
+     */
+    public long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    public static void setMaxMemory(long maxMemory) {
+        SegmentStore.maxMemory = maxMemory;
+    }
+
+    /**
+     * Sets where evicted segments are written.
+     *
+     * @param spillDirectory directory or null to drop evicted segments
+     */
+    public static void setSpillDirectory(File spillDirectory) {
+        if (spillDirectory != null && !spillDirectory.equals(SegmentStore.spillDirectory)) {
+            // as on creation, clear out spills left by an earlier run before any of ours are written
+            instance.evictor.execute(() -> clearSpills(spillDirectory));
+        }
+        SegmentStore.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * A stored segment; its content is either in memory or spilled to a file.
+     */
+    public static final class Segment {
+
+        private final String streamName;
+
+        private final String name;
+
+        private final int length;
+
+        // off-heap bytes held while in memory, the size class of the buffer
+        private final int footprint;
+
+        private final long created = System.currentTimeMillis();
+
+        private final String etag;
+
+        private volatile long lastAccess = System.nanoTime();
+
+        // in memory content, null once spilled or dropped
+        private PooledBuffer buffer;
+
+        private volatile File file;
+
+        Segment(String streamName, String name, PooledBuffer buffer) {
+            this.streamName = streamName;
+            this.name = name;
+            this.buffer = buffer;
+            this.length = buffer.remaining();
+            this.footprint = buffer.buffer().capacity();
+            this.etag = String.format("\"%x-%x\"", created, length);
+        }
+
+        /**
+         * Takes a reference on the in memory content. The caller reads via {@link PooledBuffer#duplicate()} and releases
+         * it when done.
+         *
+         * @return buffer or null if the segment has been spilled
+         */
+        public synchronized PooledBuffer retain() {
+            lastAccess = System.nanoTime();
+            return buffer != null ? buffer.retain() : null;
+        }
+
+        /**
+         * Returns the file holding the content once the segment has been spilled.
+         *
+         * @return file or null if the segment is in memory
+         */
+        public File getFile() {
+            lastAccess = System.nanoTime();
+            return file;
+        }
+
+        synchronized boolean isResident() {
+            return buffer != null;
+        }
+
+        synchronized boolean spill(File directory) throws IOException {
+            if (buffer == null) {
+                return false;
+            }
+            directory.mkdirs();
+            File spilled = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, directory);
+            try (FileChannel channel = FileChannel.open(spilled.toPath(), StandardOpenOption.WRITE)) {
+                ByteBuffer content = buffer.duplicate();
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+            } catch (IOException e) {
+                spilled.delete();
+                throw e;
+            }
+            file = spilled;
+            buffer.release();
+            buffer = null;
+            return true;
+        }
+
+        // lets go of the in memory content, returning whether there was any
+        synchronized boolean drop() {
+            if (buffer != null) {
+                buffer.release();
+                buffer = null;
+                return true;
+            }
+            return false;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.red5.mpeg.servlet;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.dvr.RecordingArchive;
+import org.red5.mpeg.dvr.RecordingArchive.Range;
+
+/**
+ * This servlet extracts a clip from the recordings of an ingest as a standalone MPEG-TS. The time range is given in
+ * milliseconds since the epoch; the clip is cut at the keyframes around it and streamed from the recordings with
+ * transferTo.
+ * <br>
+ * Clip: <pre>http://localhost:5080/mpeg/clip?name=stream1&start=1700000000000&end=1700000060000</pre>
+ * <br>
+ *
+ * @author Paul Gregoire
+ */
+public class ClipServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 82471927116L;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String streamName = request.getParameter("name");
+        String start = request.getParameter("start");
+        String end = request.getParameter("end");
+        if (StringUtils.isBlank(streamName) || !StringUtils.isNumeric(start) || !StringUtils.isNumeric(end)) {
+            response.sendError(400, "Stream name, start and end are required");
+            return;
+        }
+        // recordings are kept by stream name only, ignore any room type scoping
+        if (streamName.contains("/")) {
+            streamName = streamName.substring(streamName.lastIndexOf('/') + 1);
+        }
+        // dots survive as file safe characters, so these would name the recordings directory or its parent
+        if (streamName.isEmpty() || ".".equals(streamName) || "..".equals(streamName)) {
+            response.sendError(400, "Invalid stream name");
+            return;
+        }
+        long from, to;
+        try {
+            from = Long.valueOf(start);
+            to = Long.valueOf(end);
+        } catch (NumberFormatException e) {
+            response.sendError(400, "Start and end must be milliseconds since the epoch");
+            return;
+        }
+        if (to <= from) {
+            response.sendError(400, "End must be after start");
+            return;
+        }
+        List<Range> ranges = RecordingArchive.find(streamName, from, to);
+        if (ranges.isEmpty()) {
+            response.sendError(404, "Nothing recorded in range");
+            return;
+        }
+        long length = 0L;
+        for (Range range : ranges) {
+            length += range.getLength();
+        }
+        response.setContentType("video/mp2t");
+        response.setHeader("Content-Length", String.valueOf(length));
+        try {
+            RecordingArchive.transfer(ranges, Channels.newChannel(response.getOutputStream()));
+        } catch (Exception e) {
+            logger.debug("Exception writing clip of {}", streamName, e);
+        }
+    }
+
+}
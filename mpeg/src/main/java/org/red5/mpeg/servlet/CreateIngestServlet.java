@@ -1,6 +1,9 @@
 package org.red5.mpeg.servlet;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Consumer;
@@ -34,6 +37,10 @@ import org.red5.mpeg.ws.WebSocketRouter;
  * <br>
  * Create: <pre>http://localhost:5080/mpeg/createingest?action=create&port=49152&name=stream1</pre>
  * <br>
+ * Create with 40ms aggregate batching: <pre>http://localhost:5080/mpeg/createingest?action=create&port=49152&name=stream1&aggregate=40</pre>
+ * <br>
+ * Create, forwarding the ingest as-is to two destinations: <pre>http://localhost:5080/mpeg/createingest?action=create&port=49152&name=stream1&relay=10.0.0.5:5000,239.1.1.1:5000</pre>
+ * <br>
  * Kill: <pre>http://localhost:5080/mpeg/createingest?action=kill&name=stream1</pre>
  * <br>
  * 
@@ -93,6 +100,12 @@ public class CreateIngestServlet extends HttpServlet {
                     PayloadType audio = PayloadType.valueOf(String.format("TYPE_%s", Optional.ofNullable(request.getParameter("audio")).orElse("ADTS").toUpperCase()));
                     PayloadType video = PayloadType.valueOf(String.format("TYPE_%s", Optional.ofNullable(request.getParameter("video")).orElse("H264").toUpperCase()));
                     int audioFourCC = audio.typeId, videoFourCC = video.typeId, metadataFourCC = 0;
+                    // forward the datagrams unchanged to a comma separated list of host:port destinations
+                    List<InetSocketAddress> relayDestinations = parseDestinations(request.getParameter("relay"));
+                    if (relayDestinations == null) {
+                        response.sendError(400, "Relay destinations must be host:port with a port from 1 to 65535");
+                        return;
+                    }
                     try {
                         // create an endpoint for ingest
                         TSIngestConnection conn = new TSIngestConnection();
@@ -100,6 +113,15 @@ public class CreateIngestServlet extends HttpServlet {
                         if (request.getParameter("multicast") != null) {
                             conn.setMulticast(true);
                         }
+                        // batch frames arriving within the given window (milliseconds) into aggregates
+                        if (request.getParameter("aggregate") != null) {
+                            conn.setAggregateWindow(Integer.valueOf(request.getParameter("aggregate")));
+                        }
+                        // send websocket viewers MPEG-1 for jsmpeg rather than the ingest as-is
+                        if (request.getParameter("transcode") != null) {
+                            conn.setTranscode(true);
+                        }
+                        relayDestinations.forEach(destination -> conn.addRelayDestination(destination.getHostString(), destination.getPort()));
                         if (conn.init(scope, streamName, host, port, audioFourCC, videoFourCC, metadataFourCC)) {
                             result = "Ingest configured and started successfully";
                         } else {
@@ -131,6 +153,34 @@ public class CreateIngestServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Parses a comma separated list of host:port destinations.
+     * 
+     * @param destinations list or null for none
+     * @return unresolved addresses or null if any entry is malformed
+     */
+    private static List<InetSocketAddress> parseDestinations(String destinations) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        if (StringUtils.isNotBlank(destinations)) {
+            for (String destination : destinations.split(",")) {
+                int colon = destination.lastIndexOf(':');
+                if (colon < 0) {
+                    return null;
+                }
+                String host = destination.substring(0, colon).trim(), port = destination.substring(colon + 1).trim();
+                if (host.isEmpty() || port.isEmpty() || port.length() > 5 || !StringUtils.isNumeric(port)) {
+                    return null;
+                }
+                int number = Integer.parseInt(port);
+                if (number < 1 || number > 65535) {
+                    return null;
+                }
+                addresses.add(InetSocketAddress.createUnresolved(host, number));
+            }
+        }
+        return addresses;
+    }
+
     /**
      * Returns whether or not a stream name is available for a given scope.
      * 
@@ -0,0 +1,108 @@
+package org.red5.mpeg.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.red5.server.adapter.StatefulScopeWrappingAdapter;
+import org.red5.server.api.scope.IBroadcastScope;
+import org.red5.server.api.scope.IScope;
+import org.red5.server.api.stream.IBroadcastStream;
+import org.red5.server.util.ScopeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.web.context.WebApplicationContext;
+
+import org.red5.mpeg.Main;
+import org.red5.mpeg.egress.TSEgress;
+
+/**
+ * This servlet provides start and stop actions for sending a published stream out as MPEG-TS over UDP. Requests are
+ * handled as simple key/value via HTTP.GET and responses are plain-text or HTTP status codes. The host may be a unicast or
+ * multicast address.
+ * <br>
+ * Start: <pre>http://localhost:5080/mpeg/egress?action=start&name=stream1&host=239.1.1.1&port=5000</pre>
+ * <br>
+ * Start at a constant 8 Mbps: <pre>http://localhost:5080/mpeg/egress?action=start&name=stream1&host=239.1.1.1&port=5000&rate=8000000</pre>
+ * <br>
+ * Stop: <pre>http://localhost:5080/mpeg/egress?action=stop&name=stream1&host=239.1.1.1&port=5000</pre>
+ * <br>
+ *
+ * @author Paul Gregoire
+ */
+public class EgressServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 82471927115L;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    // set this as-soon-as-possible after the server has started
+    private static IScope appScope;
+
+    static {
+        // ensure the libs are loaded
+        Main.loadLibrary();
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        // ensure appScope is configured
+        if (appScope == null) {
+            ApplicationContext appCtx = (ApplicationContext) getServletContext().getAttribute(WebApplicationContext.ROOT_WEB_APPLICATION_CONTEXT_ATTRIBUTE);
+            StatefulScopeWrappingAdapter app = (StatefulScopeWrappingAdapter) appCtx.getBean("web.handler");
+            appScope = app.getScope();
+        }
+        String action = request.getParameter("action");
+        String streamName = request.getParameter("name");
+        String host = request.getParameter("host");
+        String port = request.getParameter("port");
+        String rate = request.getParameter("rate");
+        if (StringUtils.isBlank(streamName) || StringUtils.isBlank(host) || !StringUtils.isNumeric(port)) {
+            response.sendError(400, "Stream name, host and port are required");
+            return;
+        }
+        if (rate != null && !StringUtils.isNumeric(rate)) {
+            response.sendError(400, "Rate must be in bits per second");
+            return;
+        }
+        // if the stream name contains slashes, assume room type scoping
+        IScope scope = appScope;
+        if (streamName.contains("/")) {
+            scope = ScopeUtils.resolveScope(appScope, streamName.substring(0, streamName.lastIndexOf('/')));
+            streamName = streamName.substring(streamName.lastIndexOf('/') + 1);
+        }
+        String result = null;
+        if ("start".equals(action)) {
+            IBroadcastScope bs = scope != null ? scope.getBroadcastScope(streamName) : null;
+            IBroadcastStream stream = bs != null ? bs.getClientBroadcastStream() : null;
+            if (stream == null) {
+                response.sendError(404, "Stream is not published");
+            } else if ((rate != null ? TSEgress.start(stream, host, Integer.valueOf(port), Long.valueOf(rate)) : TSEgress.start(stream, host, Integer.valueOf(port))) != null) {
+                result = "Egress started";
+            } else {
+                response.sendError(409, "Egress already running or failed to start");
+            }
+        } else if ("stop".equals(action)) {
+            if (TSEgress.stop(streamName, host, Integer.valueOf(port))) {
+                result = "Egress stopped";
+            } else {
+                response.sendError(404, "No such egress");
+            }
+        } else {
+            response.sendError(400, "Unknown action");
+        }
+        if (result != null) {
+            try {
+                response.getOutputStream().write(result.getBytes());
+            } catch (Exception e) {
+                logger.warn("Exception writing response", e);
+            }
+        }
+    }
+
+}
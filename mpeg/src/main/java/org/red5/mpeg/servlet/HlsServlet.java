@@ -0,0 +1,273 @@
+package org.red5.mpeg.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.PooledBuffer;
+import org.red5.mpeg.hls.HlsSegmenter;
+import org.red5.mpeg.hls.SegmentStore;
+import org.red5.mpeg.hls.SegmentStore.Segment;
+
+/**
+ * This servlet serves the low-latency HLS output of ingest streams. Playlist requests carrying _HLS_msn (and optionally
+ * _HLS_part) are held asynchronously until that segment or part is available, as are requests for the part announced by
+ * the preload hint, so no container thread is tied up while a player waits. Segments and parts come from the
+ * {@link SegmentStore}; in memory content is written straight from its off-heap buffer and spilled content is transferred
+ * from its file, with entity tags and single byte ranges supported.
+ * <br>
+ * Playlist: <pre>http://localhost:5080/mpeg/hls/stream1/index.m3u8</pre>
+ * <br>
+ * Segment: <pre>http://localhost:5080/mpeg/hls/stream1/12.ts</pre>
+ * <br>
+ * Part: <pre>http://localhost:5080/mpeg/hls/stream1/12.3.ts</pre>
+ * <br>
+ *
+ * @author Paul Gregoire
+ */
+public class HlsServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 82471927114L;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private static final String PLAYLIST = "index.m3u8";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        // expect /{name}/{resource}
+        String path = request.getPathInfo();
+        int slash = path != null ? path.lastIndexOf('/') : -1;
+        if (slash <= 0) {
+            response.sendError(400, "Stream name and resource required");
+            return;
+        }
+        String streamName = path.substring(1, slash);
+        String resource = path.substring(slash + 1);
+        HlsSegmenter segmenter = HlsSegmenter.getSegmenter(streamName);
+        if (segmenter == null) {
+            response.sendError(404, "Stream not found");
+            return;
+        }
+        try {
+            if (PLAYLIST.equals(resource)) {
+                String msn = request.getParameter("_HLS_msn");
+                if (msn == null && request.getParameter("_HLS_part") != null) {
+                    // a part is only meaningful within a media sequence
+                    response.sendError(400, "_HLS_part requires _HLS_msn");
+                } else if (msn == null) {
+                    writePlaylist(segmenter, response, false);
+                } else {
+                    String part = request.getParameter("_HLS_part");
+                    long sequence = Long.parseLong(msn);
+                    // requests too far ahead of the live edge are refused rather than held
+                    if (sequence > segmenter.getSequence() + 2) {
+                        response.sendError(400, "Media sequence too far ahead");
+                        return;
+                    }
+                    block(request, segmenter, sequence, part != null ? Integer.parseInt(part) : -1, () -> writePlaylist(HlsSegmenter.getSegmenter(streamName), response, true));
+                }
+            } else if (resource.endsWith(".ts")) {
+                Segment segment = SegmentStore.getInstance().get(streamName, resource);
+                if (segment != null) {
+                    serve(request, response, segment);
+                } else {
+                    String[] parts = resource.substring(0, resource.length() - 3).split("\\.");
+                    long sequence = Long.parseLong(parts[0]);
+                    int part = parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+                    if (part >= 0 && sequence == segmenter.getSequence() && !segmenter.isAvailable(sequence, part)) {
+                        // the hinted part, held until its written
+                        block(request, segmenter, sequence, part, () -> serve(request, response, SegmentStore.getInstance().get(streamName, resource)));
+                    } else {
+                        response.sendError(404, "Segment not found");
+                    }
+                }
+            } else {
+                response.sendError(404, "Unknown resource");
+            }
+        } catch (NumberFormatException e) {
+            response.sendError(400, "Invalid segment or part");
+        }
+    }
+
+    // holds the request until the segment or part is available, then responds
+    private void block(HttpServletRequest request, HlsSegmenter segmenter, long sequence, int part, Responder responder) {
+        final AsyncContext async = request.startAsync();
+        // a few target durations is plenty, players give up on their own before long
+        async.setTimeout(HlsSegmenter.getSegmentDuration() * 3L);
+        final AtomicBoolean done = new AtomicBoolean();
+        final Object handle = segmenter.await(sequence, part, () -> {
+            if (done.compareAndSet(false, true)) {
+                // respond on a container thread, not the one publishing the part
+                async.start(() -> {
+                    try {
+                        responder.respond();
+                    } catch (Exception e) {
+                        logger.debug("Exception responding to blocked request", e);
+                    } finally {
+                        async.complete();
+                    }
+                });
+            }
+        });
+        async.addListener(new AsyncListener() {
+
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                if (done.compareAndSet(false, true)) {
+                    segmenter.cancel(handle);
+                    ((HttpServletResponse) event.getSuppliedResponse()).sendError(503, "Not available yet");
+                    async.complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                if (done.compareAndSet(false, true)) {
+                    segmenter.cancel(handle);
+                }
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+            }
+
+        });
+    }
+
+    private void writePlaylist(HlsSegmenter segmenter, HttpServletResponse response, boolean blocked) throws IOException {
+        String playlist = segmenter != null ? segmenter.getPlaylist() : null;
+        if (playlist == null) {
+            response.sendError(404, "Playlist not available");
+            return;
+        }
+        // blocking reloads have unique urls and can be cached, the plain playlist changes with every part
+        response.setHeader("Cache-Control", blocked ? "max-age=60" : "no-cache");
+        write(response, playlist.getBytes(StandardCharsets.UTF_8), "application/vnd.apple.mpegurl");
+    }
+
+    private void write(HttpServletResponse response, byte[] data, String contentType) throws IOException {
+        response.setContentType(contentType);
+        response.setContentLength(data.length);
+        try {
+            response.getOutputStream().write(data);
+        } catch (Exception e) {
+            logger.debug("Exception writing response", e);
+        }
+    }
+
+    // sends a stored segment or the requested range of it
+    private void serve(HttpServletRequest request, HttpServletResponse response, Segment segment) throws IOException {
+        if (segment == null) {
+            response.sendError(404, "Segment not found");
+            return;
+        }
+        int length = segment.getLength();
+        // segments and parts never change once written
+        response.setHeader("Cache-Control", "max-age=60");
+        response.setHeader("ETag", segment.getEtag());
+        response.setDateHeader("Last-Modified", segment.getCreated());
+        response.setHeader("Accept-Ranges", "bytes");
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(segment.getEtag()) || "*".equals(ifNoneMatch.trim()))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        long start = 0L, end = length - 1L;
+        String range = request.getHeader("Range");
+        String ifRange = request.getHeader("If-Range");
+        if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0 && (ifRange == null || ifRange.equals(segment.getEtag()))) {
+            try {
+                String spec = range.substring(6).trim();
+                int dash = spec.indexOf('-');
+                if (dash == 0) {
+                    // suffix range, the last n bytes
+                    start = Math.max(0L, length - Long.parseLong(spec.substring(1)));
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if (dash < spec.length() - 1) {
+                        end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+                    }
+                }
+            } catch (RuntimeException e) {
+                // malformed ranges are ignored and the whole segment sent
+                start = 0L;
+                end = length - 1L;
+            }
+            if (start > end || start >= length) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(416, "Range not satisfiable");
+                return;
+            }
+            response.setStatus(206);
+            response.setHeader("Content-Range", "bytes " + start + '-' + end + '/' + length);
+        }
+        response.setContentType("video/mp2t");
+        response.setContentLength((int) (end - start + 1L));
+        try {
+            transfer(response.getOutputStream(), segment, start, end - start + 1L);
+        } catch (Exception e) {
+            logger.debug("Exception writing segment {}", segment.getName(), e);
+        }
+    }
+
+    // writes from the off-heap buffer without a heap copy of the segment, or from the spill file
+    private void transfer(OutputStream out, Segment segment, long position, long count) throws IOException {
+        WritableByteChannel channel = Channels.newChannel(out);
+        PooledBuffer buffer = segment.retain();
+        if (buffer != null) {
+            try {
+                ByteBuffer content = buffer.duplicate();
+                content.position(content.position() + (int) position);
+                content.limit(content.position() + (int) count);
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+            } finally {
+                buffer.release();
+            }
+        } else {
+            File file = segment.getFile();
+            if (file == null) {
+                throw new IOException("Segment was dropped");
+            }
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                while (count > 0L) {
+                    long sent = source.transferTo(position, count, channel);
+                    position += sent;
+                    count -= sent;
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Responder {
+
+        void respond() throws IOException;
+
+    }
+
+}
@@ -0,0 +1,68 @@
+package org.red5.mpeg.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.codec.ThumbnailCache;
+import org.red5.mpeg.codec.ThumbnailCache.Thumbnail;
+
+/**
+ * This servlet serves the latest preview image of an ingest stream. Responses carry an entity tag, so a monitoring page
+ * polling with If-None-Match only transfers an image when it has changed.
+ * <br>
+ * Preview: <pre>http://localhost:5080/mpeg/thumbnail?name=stream1</pre>
+ * <br>
+ *
+ * @author Paul Gregoire
+ */
+public class ThumbnailServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 82471927113L;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        String streamName = request.getParameter("name");
+        if (StringUtils.isBlank(streamName)) {
+            // return invalid request 400
+            response.sendError(400, "Blank stream name not allowed");
+            return;
+        }
+        // previews are kept by stream name only, ignore any room type scoping
+        if (streamName.contains("/")) {
+            streamName = streamName.substring(streamName.lastIndexOf('/') + 1);
+        }
+        Thumbnail thumbnail = ThumbnailCache.getInstance().get(streamName);
+        if (thumbnail == null) {
+            response.sendError(404, "No preview available");
+            return;
+        }
+        // clients must revalidate, but an unchanged image costs only a 304
+        response.setHeader("ETag", thumbnail.getEtag());
+        response.setHeader("Cache-Control", "no-cache");
+        response.setDateHeader("Last-Modified", thumbnail.getCreated());
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null && (ifNoneMatch.contains(thumbnail.getEtag()) || "*".equals(ifNoneMatch.trim()))) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        byte[] data = thumbnail.getData();
+        response.setContentType(thumbnail.getContentType());
+        response.setContentLength(data.length);
+        try {
+            response.getOutputStream().write(data);
+        } catch (Exception e) {
+            logger.debug("Exception writing preview of {}", streamName, e);
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.red5.mpeg.ws;
+
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.BufferPool;
+import org.red5.mpeg.PooledBuffer;
+import org.red5.mpeg.TSPackets;
+
+/**
+ * Holds the latest PAT / PMT and every TS packet since the most recent video keyframe (sequence header, GOP, IDR or
+ * random access point) of a stream, so that a joining viewer can start decoding immediately. Packet storage is a single
+ * off-heap region that's reused from the start at each keyframe. If a GOP outgrows the region the cache is invalidated
+ * until the next keyframe.
+ * <br>
+ * Not thread-safe; the owning stream serializes access.
+ *
+ * @author Paul Gregoire
+ */
+public class GopCache {
+
+    private static Logger log = LoggerFactory.getLogger(GopCache.class);
+
+    private static final int PACKET_SIZE = TSPackets.PACKET_SIZE;
+
+    // maximum packets cached
+    private final int slots;
+
+    // cached packets since the last keyframe, allocated on first use
+    private ByteBuffer packets;
+
+    // number of packets cached
+    private int count;
+
+    // set once a keyframe has been seen and the gop fits
+    private boolean valid;
+
+    private final ByteBuffer pat = ByteBuffer.allocate(PACKET_SIZE);
+
+    private final ByteBuffer pmt = ByteBuffer.allocate(PACKET_SIZE);
+
+    private boolean hasPat, hasPmt;
+
+    private int pmtPid = -1, videoPid = -1, videoStreamType;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxBytes size of the packet storage
+     */
+    public GopCache(int maxBytes) {
+        this.slots = Math.max(1, maxBytes / PACKET_SIZE);
+    }
+
+    /**
+     * Examines and caches the TS packets from the position to the limit of the buffer; its position is not modified.
+     *
+     * @param data
+     */
+    public void append(ByteBuffer data) {
+        int limit = data.limit();
+        int off = data.position();
+        // one view per call, windowed onto each packet for bulk copies
+        ByteBuffer src = data.duplicate();
+        while (off + PACKET_SIZE <= limit) {
+            if (!TSPackets.isSync(data, off)) {
+                // look for the next sync byte
+                off++;
+                continue;
+            }
+            int pid = TSPackets.pid(data, off);
+            if (pid == TSPackets.PAT_PID) {
+                if (TSPackets.pusi(data, off)) {
+                    pat.clear();
+                    copy(src, off, pat);
+                    hasPat = true;
+                    pmtPid = TSPackets.patPmtPid(data, off);
+                }
+            } else if (pid == pmtPid) {
+                if (TSPackets.pusi(data, off)) {
+                    pmt.clear();
+                    copy(src, off, pmt);
+                    hasPmt = true;
+                    int video = TSPackets.pmtVideoStream(data, off);
+                    if (video >= 0) {
+                        videoPid = video & 0x1fff;
+                        videoStreamType = video >>> 16;
+                    }
+                }
+            } else if (pid == videoPid && TSPackets.isKeyframeStart(data, off, videoStreamType)) {
+                // restart the gop at the keyframe
+                count = 0;
+                valid = true;
+            }
+            if (valid) {
+                if (count < slots) {
+                    if (packets == null) {
+                        packets = ByteBuffer.allocateDirect(slots * PACKET_SIZE);
+                    }
+                    packets.clear().position(count * PACKET_SIZE);
+                    copy(src, off, packets);
+                    count++;
+                } else {
+                    log.debug("GOP exceeds the cache, waiting for the next keyframe");
+                    valid = false;
+                    count = 0;
+                }
+            }
+            off += PACKET_SIZE;
+        }
+    }
+
+    /**
+     * Returns the PSI followed by the cached GOP as a single buffer, or null if nothing useful is cached.
+     *
+     * @return buffer owned by the caller or null
+     */
+    public PooledBuffer snapshot() {
+        if (!hasPat || !hasPmt) {
+            return null;
+        }
+        int cached = valid ? count : 0;
+        PooledBuffer buffer = BufferPool.getInstance().acquire((2 + cached) * PACKET_SIZE);
+        ByteBuffer out = buffer.buffer();
+        out.put((ByteBuffer) pat.duplicate().clear());
+        out.put((ByteBuffer) pmt.duplicate().clear());
+        if (cached > 0) {
+            ByteBuffer gop = packets.duplicate();
+            gop.clear().limit(cached * PACKET_SIZE);
+            out.put(gop);
+        }
+        out.flip();
+        return buffer;
+    }
+
+    /**
+     * Forgets everything cached, such as when the ingest restarts.
+     */
+    public void clear() {
+        hasPat = hasPmt = valid = false;
+        count = 0;
+        pmtPid = videoPid = -1;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Returns the number of packets cached since the last keyframe.
+     *
+     * @return packet count
+     */
+    public int getCount() {
+        return valid ? count : 0;
+    }
+
+    // copies the packet at off in src to the position of dst
+    private static void copy(ByteBuffer src, int off, ByteBuffer dst) {
+        src.limit(off + PACKET_SIZE).position(off);
+        dst.put(src);
+    }
+
+}
@@ -0,0 +1,242 @@
+package org.red5.mpeg.ws;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.red5.mpeg.BufferPool;
+import org.red5.mpeg.PooledBuffer;
+
+/**
+ * Per-stream relay state; the viewers of the stream, its GOP cache and the batch being coalesced. Publishing and joining
+ * are serialized so that a joining viewer receives the cached GOP followed by exactly the live data that comes after it,
+ * with nothing missed or repeated in between.
+ * <br>
+ * Incoming datagrams are coalesced into larger messages so viewers see fewer, bigger frames; a batch is sent once it
+ * reaches the batch size or once the oldest data in it has waited for the latency budget, whichever comes first.
+ *
+ * @author Paul Gregoire
+ */
+public class RelayStream {
+
+    private final String name;
+
+    private final Set<WebSocketViewer> viewers = ConcurrentHashMap.newKeySet();
+
+    private final GopCache cache;
+
+    // set while an ingest is publishing to the stream
+    private boolean published;
+
+    // maximum bytes per coalesced message, 0 to send each datagram as-is
+    private final int batchSize;
+
+    // longest the first byte of a batch may wait, in nanoseconds
+    private final long batchLatency;
+
+    // runs the latency budget flushes
+    private final ScheduledExecutorService flusher;
+
+    // batch being filled, null when there's nothing pending
+    private PooledBuffer batch;
+
+    // identifies the current batch so a late timer doesn't flush a newer one early
+    private long batchSeq;
+
+    private long batches;
+
+    // notified as viewers come and go
+    private ViewerDemandListener demandListener;
+
+    // set once the router has been told to drop the stream, it no longer takes viewers
+    private boolean removed;
+
+    RelayStream(String name, int cacheSize) {
+        this(name, cacheSize, 0, 0L, null);
+    }
+
+    RelayStream(String name, int cacheSize, int batchSize, long batchLatency, ScheduledExecutorService flusher) {
+        this.name = name;
+        this.cache = cacheSize > 0 ? new GopCache(cacheSize) : null;
+        this.batchSize = flusher != null && batchLatency > 0 ? batchSize : 0;
+        this.batchLatency = batchLatency;
+        this.flusher = flusher;
+    }
+
+    /**
+     * Caches the data and coalesces it for the viewers; if coalescing is disabled or the data is already at least a batch
+     * in size its sent straight away.
+     *
+     * @param data
+     */
+    synchronized void publish(PooledBuffer data) {
+        published = true;
+        if (cache != null) {
+            cache.append(data.buffer());
+        }
+        if (viewers.isEmpty()) {
+            discard();
+            return;
+        }
+        int length = data.remaining();
+        if (length >= batchSize) {
+            // keep the order with anything pending
+            flush();
+            fanOut(data);
+            return;
+        }
+        if (batch != null && batch.buffer().remaining() < length) {
+            flush();
+        }
+        if (batch == null) {
+            batch = BufferPool.getInstance().acquire(batchSize);
+            batch.buffer().limit(batchSize);
+            final long seq = ++batchSeq;
+            flusher.schedule(() -> flushDue(seq), batchLatency, TimeUnit.NANOSECONDS);
+        }
+        batch.buffer().put(data.duplicate());
+        if (!batch.buffer().hasRemaining()) {
+            flush();
+        }
+    }
+
+    // timer flush, only if the batch it was scheduled for is still pending
+    private synchronized void flushDue(long seq) {
+        if (batch != null && seq == batchSeq) {
+            flush();
+        }
+    }
+
+    // sends the pending batch, if any
+    private void flush() {
+        if (batch != null) {
+            PooledBuffer data = batch;
+            batch = null;
+            data.buffer().flip();
+            try {
+                fanOut(data);
+                batches++;
+            } finally {
+                data.release();
+            }
+        }
+    }
+
+    // drops the pending batch, if any
+    private void discard() {
+        if (batch != null) {
+            batch.release();
+            batch = null;
+        }
+    }
+
+    // queues data to every viewer, the caller keeps its own reference
+    private void fanOut(PooledBuffer data) {
+        int expected = viewers.size();
+        if (expected > 0) {
+            // one shared frame for the whole audience, with its references taken in a single step
+            SharedFrame frame = new SharedFrame(data);
+            data.retain(expected);
+            for (WebSocketViewer viewer : viewers) {
+                viewer.enqueue(frame);
+            }
+        }
+    }
+
+    /**
+     * Adds a viewer, bursting the cached GOP to it ahead of any live data.
+     *
+     * @param viewer
+     * @return false if the stream has been dropped by the router, the viewer is to join its replacement
+     */
+    synchronized boolean join(WebSocketViewer viewer) {
+        if (removed) {
+            return false;
+        }
+        // the pending batch is already in the cache, existing viewers get it before the newcomer is added
+        flush();
+        if (cache != null) {
+            PooledBuffer burst = cache.snapshot();
+            if (burst != null) {
+                // the viewer takes over our reference
+                viewer.enqueue(new SharedFrame(burst));
+            }
+        }
+        if (viewers.add(viewer) && viewers.size() == 1 && demandListener != null) {
+            demandListener.onFirstViewer(name);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a viewer.
+     *
+     * @param viewer
+     * @return true if the stream is no longer needed; no viewers and no publisher
+     */
+    synchronized boolean leave(WebSocketViewer viewer) {
+        if (viewers.remove(viewer) && viewers.isEmpty()) {
+            discard();
+            if (demandListener != null) {
+                demandListener.onLastViewer(name);
+            }
+        }
+        return removed = viewers.isEmpty() && !published && demandListener == null;
+    }
+
+    /**
+     * Marks the end of publishing and drops the cached data, which would be stale for the next publisher.
+     *
+     * @return true if the stream is no longer needed; no viewers remain
+     */
+    synchronized boolean unpublish() {
+        published = false;
+        demandListener = null;
+        flush();
+        if (cache != null) {
+            cache.clear();
+        }
+        return removed = viewers.isEmpty();
+    }
+
+    /**
+     * Sets the listener for viewer demand; if the stream already has viewers its told straight away.
+     *
+     * @param demandListener listener or null to remove
+     * @return true if the stream is no longer needed; no viewers, no publisher and no listener
+     */
+    synchronized boolean setDemandListener(ViewerDemandListener demandListener) {
+        this.demandListener = demandListener;
+        if (demandListener != null && !viewers.isEmpty()) {
+            demandListener.onFirstViewer(name);
+        }
+        return removed = viewers.isEmpty() && !published && demandListener == null;
+    }
+
+    synchronized boolean isPublished() {
+        return published;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Set<WebSocketViewer> getViewers() {
+        return viewers;
+    }
+
+    public GopCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns the number of coalesced messages sent.
+     *
+     * @return batch count
+     */
+    public synchronized long getBatches() {
+        return batches;
+    }
+
+}
@@ -0,0 +1,45 @@
+package org.red5.mpeg.ws;
+
+import java.nio.ByteBuffer;
+
+import org.red5.mpeg.PooledBuffer;
+
+/**
+ * A binary message prepared once and shared by every viewer of a stream. The read-only view is created once per payload;
+ * each viewer only takes a duplicate of it to track its own write position, so the content is never copied per viewer.
+ * Each viewer holding the frame owns one reference on the underlying buffer.
+ *
+ * @author Paul Gregoire
+ */
+public class SharedFrame {
+
+    private final PooledBuffer buffer;
+
+    private final ByteBuffer view;
+
+    SharedFrame(PooledBuffer buffer) {
+        this.buffer = buffer;
+        this.view = buffer.duplicate();
+    }
+
+    /**
+     * Returns a view for a single send; it shares the content and the read-only protection of the frame.
+     *
+     * @return view positioned at the start of the message
+     */
+    ByteBuffer view() {
+        return view.duplicate();
+    }
+
+    /**
+     * Releases one viewers reference.
+     */
+    void release() {
+        buffer.release();
+    }
+
+    public int length() {
+        return view.remaining();
+    }
+
+}
@@ -0,0 +1,15 @@
+package org.red5.mpeg.ws;
+
+/**
+ * Notified as a stream gains its first viewer and loses its last one, so that work done only for viewers can be started
+ * and stopped on demand. Calls are made while the stream is locked and must not block.
+ *
+ * @author Paul Gregoire
+ */
+public interface ViewerDemandListener {
+
+    void onFirstViewer(String streamName);
+
+    void onLastViewer(String streamName);
+
+}
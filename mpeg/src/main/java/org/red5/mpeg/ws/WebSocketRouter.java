@@ -1,39 +1,61 @@
 package org.red5.mpeg.ws;
 
-import java.io.UnsupportedEncodingException;
 import java.util.*;
 import java.util.concurrent.*;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.red5.net.websocket.WSConstants;
 import org.red5.net.websocket.WebSocketConnection;
 import org.red5.net.websocket.listener.WebSocketDataListener;
 import org.red5.net.websocket.model.WSMessage;
 
+import org.red5.mpeg.BufferPool;
+import org.red5.mpeg.PooledBuffer;
 import org.red5.mpeg.TSIngestConnection;
 
 /**
- * Routes content to connected websocket connections.
- * 
+ * Routes content to connected websocket connections. Viewers are indexed by the stream they asked for, so routing cost only
+ * depends on the audience of the stream being sent; each viewer has its own bounded queue which is sent asynchronously.
+ *
  * @author Paul Gregoire
  */
 public class WebSocketRouter extends WebSocketDataListener {
 
     private static Logger log = LoggerFactory.getLogger(TSIngestConnection.class);
 
-    private CopyOnWriteArraySet<WebSocketConnection> connections = new CopyOnWriteArraySet<>();
+    // outgoing buffers queued per viewer before it's dropped to live
+    private static int viewerQueueSize = 256;
+
+    // bytes of TS cached per stream for instant join, 0 to disable
+    private static int gopCacheSize = 4 * 1024 * 1024;
+
+    // bytes of TS coalesced per message, 0 to send each datagram as it arrives; a dozen 7 packet datagrams by default
+    private static int coalesceSize = 12 * 7 * 188;
+
+    // longest data may wait to be coalesced, in milliseconds
+    private static long coalesceLatency = 10L;
+
+    // shared timer for the coalescing latency budget
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "WebSocketFlush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // all connections and their viewer if they've asked for a stream
+    private ConcurrentMap<WebSocketConnection, Optional<WebSocketViewer>> connections = new ConcurrentHashMap<>();
+
+    // relay state by stream name
+    private ConcurrentMap<String, RelayStream> streams = new ConcurrentHashMap<>();
 
     @Override
     public void onWSConnect(WebSocketConnection conn) {
         log.info("Connect: {}", conn);
-        connections.add(conn);
         // query string usage
         Map<String, Object> qparams = conn.getQuerystringParameters();
         log.debug("Query Str params: {}", qparams);
         if (qparams != null && !qparams.isEmpty()) {
-            int i = 0;
             qparams.forEach((key, value) -> {
                 char prefix = key.charAt(0);
                 // strip any 'bad' prefixing of the key / name
@@ -46,13 +68,31 @@ public class WebSocketRouter extends WebSocketDataListener {
                 }
             });
         }
-        log.debug("Connection tagged for stream: {}", conn.getAttribute("streamName"));
+        String streamName = conn.getStringAttribute("streamName");
+        log.debug("Connection tagged for stream: {}", streamName);
+        if (streamName != null) {
+            WebSocketViewer viewer = new WebSocketViewer(conn, streamName, viewerQueueSize);
+            connections.put(conn, Optional.of(viewer));
+            // join outside of the map lock, the burst may be large; if a concurrent disconnect dropped the stream in
+            // between, join the one that replaced it
+            while (!streams.computeIfAbsent(streamName, this::newStream).join(viewer)) {
+                Thread.yield();
+            }
+        } else {
+            connections.put(conn, Optional.empty());
+        }
     }
 
     @Override
     public void onWSDisconnect(WebSocketConnection conn) {
         log.info("Disconnect: {}", conn);
-        connections.remove(conn);
+        Optional<WebSocketViewer> entry = connections.remove(conn);
+        if (entry != null && entry.isPresent()) {
+            WebSocketViewer viewer = entry.get();
+            viewer.close();
+            // drop the stream entry once its last viewer leaves, unless its still being published
+            streams.computeIfPresent(viewer.getStreamName(), (name, stream) -> stream.leave(viewer) ? null : stream);
+        }
     }
 
     @Override
@@ -67,43 +107,140 @@ public class WebSocketRouter extends WebSocketDataListener {
 
     /**
      * Send text data to any websocket connection with a matching stream name attribute.
-     * 
+     *
      * @param streamName
      * @param text
      */
     public void sendText(String streamName, String text) {
-        connections.forEach(conn -> {
-            if (streamName.equals(conn.getStringAttribute("streamName"))) {
+        RelayStream stream = streams.get(streamName);
+        if (stream != null) {
+            stream.getViewers().forEach(viewer -> {
                 try {
-                    conn.send(text);
+                    viewer.getConnection().send(text);
                 } catch (Throwable t) {
+                    log.debug("Exception sending to {}", viewer.getConnection(), t);
                 }
-            }
-        });
+            });
+        }
     }
 
     /**
      * Send binary data to any websocket connection with a matching stream name attribute.
-     * 
+     *
      * @param streamName
      * @param data
      */
     public void sendData(String streamName, byte[] data) {
-        connections.forEach(conn -> {
-            if (streamName.equals(conn.getStringAttribute("streamName"))) {
-                log.debug("Found a match for stream name, sending data");
-                try {
-                    conn.send(data);
-                } catch (Throwable t) {
+        PooledBuffer buffer = BufferPool.getInstance().acquire(data.length);
+        buffer.buffer().put(data).flip();
+        try {
+            sendData(streamName, buffer);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Send binary data held off-heap to any websocket connection with a matching stream name attribute. The message is
+     * prepared once as a read-only shared frame and the same frame is queued to every viewer; references for the whole
+     * audience are taken in one step rather than per viewer. Small datagrams are first coalesced into larger messages,
+     * bounded by size and latency. The data is also kept in the streams GOP cache so new viewers
+     * can start immediately. The caller may release its reference as soon as this returns.
+     *
+     * @param streamName
+     * @param data
+     */
+    public void sendData(String streamName, PooledBuffer data) {
+        RelayStream stream = streams.get(streamName);
+        if (stream == null) {
+            stream = streams.computeIfAbsent(streamName, this::newStream);
+        }
+        stream.publish(data);
+    }
+
+    /**
+     * Signals that a stream is no longer being published; its cache is dropped and the stream is forgotten once it has no
+     * viewers.
+     *
+     * @param streamName
+     */
+    public void unpublish(String streamName) {
+        streams.computeIfPresent(streamName, (name, stream) -> stream.unpublish() ? null : stream);
+    }
+
+    private RelayStream newStream(String name) {
+        return new RelayStream(name, gopCacheSize, coalesceSize, TimeUnit.MILLISECONDS.toNanos(coalesceLatency), flusher);
+    }
+
+    /**
+     * Sets a listener to be told when a stream gains its first viewer and loses its last; the stream is kept until the
+     * listener is removed or the stream is unpublished.
+     *
+     * @param streamName
+     * @param listener listener or null to remove
+     */
+    public void setDemandListener(String streamName, ViewerDemandListener listener) {
+        if (listener != null) {
+            streams.compute(streamName, (name, stream) -> {
+                if (stream == null) {
+                    stream = newStream(name);
                 }
-            }
-        });
+                stream.setDemandListener(listener);
+                return stream;
+            });
+        } else {
+            streams.computeIfPresent(streamName, (name, stream) -> stream.setDemandListener(null) ? null : stream);
+        }
+    }
+
+    /**
+     * Returns the number of viewers of a stream.
+     *
+     * @param streamName
+     * @return viewer count
+     */
+    public int getViewerCount(String streamName) {
+        RelayStream stream = streams.get(streamName);
+        return stream != null ? stream.getViewers().size() : 0;
+    }
+
+    /**
+     * Returns the viewers of a stream.
+     *
+     * @param streamName
+     * @return viewers
+     */
+    public Set<WebSocketViewer> getViewers(String streamName) {
+        RelayStream stream = streams.get(streamName);
+        return stream != null ? stream.getViewers() : Collections.emptySet();
+    }
+
+    public static void setViewerQueueSize(int viewerQueueSize) {
+        WebSocketRouter.viewerQueueSize = viewerQueueSize;
+    }
+
+    public static void setGopCacheSize(int gopCacheSize) {
+        WebSocketRouter.gopCacheSize = gopCacheSize;
+    }
+
+    public static void setCoalesceSize(int coalesceSize) {
+        WebSocketRouter.coalesceSize = coalesceSize;
+    }
+
+    public static void setCoalesceLatency(long coalesceLatency) {
+        WebSocketRouter.coalesceLatency = coalesceLatency;
     }
 
     @Override
     public void stop() {
-        connections.forEach(conn -> conn.close());
+        connections.forEach((conn, viewer) -> {
+            viewer.ifPresent(WebSocketViewer::close);
+            conn.close();
+        });
         connections.clear();
+        // release any pending batches
+        streams.values().forEach(RelayStream::unpublish);
+        streams.clear();
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,162 @@
+package org.red5.mpeg.ws;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.PacketRing;
+import org.red5.mpeg.PacketRing.OverflowPolicy;
+import org.red5.mpeg.PacketRing.WaitStrategy;
+import org.red5.net.websocket.WebSocketConnection;
+
+/**
+ * A websocket connection subscribed to a stream. Outgoing buffers are queued and sent asynchronously, one at a time, so a
+ * slow viewer never blocks the ingest thread; when the queue fills up the viewer is dropped to live by discarding its
+ * backlog.
+ *
+ * @author Paul Gregoire
+ */
+public class WebSocketViewer implements SendHandler {
+
+    private static Logger log = LoggerFactory.getLogger(WebSocketViewer.class);
+
+    private final WebSocketConnection conn;
+
+    private final String streamName;
+
+    // frames waiting to be sent, each holding a reference
+    private final PacketRing<SharedFrame> queue;
+
+    // set while an async send is outstanding; the container allows only one at a time
+    private final AtomicBoolean sending = new AtomicBoolean();
+
+    // frame currently being sent
+    private volatile SharedFrame inFlight;
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean closed;
+
+    WebSocketViewer(WebSocketConnection conn, String streamName, int queueSize) {
+        this.conn = conn;
+        this.streamName = streamName;
+        this.queue = new PacketRing<>(queueSize, WaitStrategy.SPIN, OverflowPolicy.BLOCK, null);
+    }
+
+    /**
+     * Queues a frame for sending; the caller has already retained it on behalf of this viewer.
+     *
+     * @param data
+     */
+    void enqueue(SharedFrame data) {
+        if (closed) {
+            data.release();
+            return;
+        }
+        if (!queue.offer(data)) {
+            // too far behind, drop the backlog and continue from live
+            SharedFrame stale;
+            while ((stale = queue.poll()) != null) {
+                stale.release();
+                dropped.incrementAndGet();
+            }
+            log.debug("Viewer {} of {} fell behind, dropped to live", conn.getId(), streamName);
+            if (!queue.offer(data)) {
+                data.release();
+                dropped.incrementAndGet();
+            }
+        }
+        // a close racing with the offer may have missed this buffer
+        if (closed) {
+            close();
+            return;
+        }
+        sendNext();
+    }
+
+    // starts the next async send unless one is outstanding
+    private void sendNext() {
+        while (!closed && !queue.isEmpty() && sending.compareAndSet(false, true)) {
+            SharedFrame data = queue.poll();
+            if (data == null) {
+                sending.set(false);
+                continue;
+            }
+            Session session = conn.getWsSession();
+            if (session == null || !session.isOpen()) {
+                data.release();
+                sending.set(false);
+                close();
+                return;
+            }
+            inFlight = data;
+            try {
+                session.getAsyncRemote().sendBinary(data.view(), this);
+            } catch (Throwable t) {
+                log.debug("Exception sending to {}", conn, t);
+                inFlight = null;
+                data.release();
+                sending.set(false);
+                close();
+            }
+            return;
+        }
+    }
+
+    @Override
+    public void onResult(SendResult result) {
+        SharedFrame data = inFlight;
+        inFlight = null;
+        if (data != null) {
+            data.release();
+        }
+        sending.set(false);
+        if (result.isOK()) {
+            sent.incrementAndGet();
+            sendNext();
+        } else {
+            log.debug("Send to {} failed", conn, result.getException());
+            close();
+        }
+    }
+
+    /**
+     * Stops sending and releases anything still queued.
+     */
+    void close() {
+        closed = true;
+        SharedFrame data;
+        while ((data = queue.poll()) != null) {
+            data.release();
+        }
+    }
+
+    public WebSocketConnection getConnection() {
+        return conn;
+    }
+
+    public String getStreamName() {
+        return streamName;
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+}
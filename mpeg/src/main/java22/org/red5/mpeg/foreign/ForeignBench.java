@@ -0,0 +1,221 @@
+package org.red5.mpeg.foreign;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.red5.mpeg.MuxBatch;
+import org.red5.mpeg.NativeTSMuxer;
+import org.red5.mpeg.TSConfig;
+import org.red5.mpeg.TSHandler;
+import org.red5.mpeg.TSReceiver;
+
+/**
+ * Compares the JNI and foreign function bindings of the native library on the same data, in the manner of Main bench:
+ * demuxing datagrams of seven packets, JNI from byte arrays against foreign from heap and native segments, and muxing
+ * frames, JNI from direct buffers against foreign from heap and native segments. Frame counts and output are checked to
+ * match before anything is timed.
+ * <br>
+ * Usage: <pre>java --enable-native-access=ALL-UNNAMED org.red5.mpeg.foreign.ForeignBench [frames]</pre>
+ *
+ * @author Paul Gregoire
+ */
+public class ForeignBench {
+
+    // payload of an ingest datagram
+    private static final int DATAGRAM_SIZE = 7 * 188;
+
+    // a keyframe and p-frames at 30 fps with aac in between, as in Main bench
+    private static final int[] SIZES = { 60000, 8000, 8000, 400, 8000, 8000, 400 };
+
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        TSConfig config = new TSConfig();
+        config.audioPid = (short) 257;
+        config.audioStreamType = 0x0f;
+        config.videoPid = (short) 256;
+        config.videoStreamType = 0x1b;
+        byte[] input = new byte[SIZES[0]];
+        new Random(7).nextBytes(input);
+        bench(config, input, frames);
+        // one run of the pattern muxed is the stream demuxed
+        byte[][] datagrams = stream(config, input);
+        bench(config, datagrams, Math.max(1, frames / SIZES.length));
+    }
+
+    // mux
+    private static void bench(TSConfig config, byte[] input, int frames) {
+        ForeignTSHandler foreign = ForeignTSHandler.build(config);
+        NativeTSMuxer jni = NativeTSMuxer.build(config);
+        int capacity = (int) MuxBatch.maxEncodedSize(input.length);
+        ByteBuffer direct = ByteBuffer.allocateDirect(input.length).put(input);
+        ByteBuffer out = ByteBuffer.allocateDirect(capacity);
+        byte[] heapOut = new byte[capacity];
+        MemorySegment heapIn = MemorySegment.ofArray(input), heap = MemorySegment.ofArray(heapOut);
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment nativeIn = arena.allocate(input.length).copyFrom(heapIn), nativeOut = arena.allocate(capacity);
+            // warm up, comparing output along the way
+            for (int i = 0; i < frames; i++) {
+                int size = SIZES[i % SIZES.length];
+                direct.clear().limit(size);
+                out.clear();
+                int written = mux(jni, direct, i, out);
+                if (written != mux(foreign, heapIn.asSlice(0L, size), i, heap) || !out.flip().equals(ByteBuffer.wrap(heapOut, 0, written))) {
+                    System.out.printf("Bindings differ at frame %d%n", i);
+                    break;
+                }
+            }
+            for (int run = 0; run < RUNS; run++) {
+                long bytes = 0L, start = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    direct.clear().limit(SIZES[i % SIZES.length]);
+                    out.clear();
+                    bytes += mux(jni, direct, i, out);
+                }
+                report("JNI mux, direct buffer", frames, bytes, start);
+                bytes = 0L;
+                start = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    bytes += mux(foreign, heapIn.asSlice(0L, SIZES[i % SIZES.length]), i, heap);
+                }
+                report("Foreign mux, heap segment", frames, bytes, start);
+                bytes = 0L;
+                start = System.nanoTime();
+                for (int i = 0; i < frames; i++) {
+                    bytes += mux(foreign, nativeIn.asSlice(0L, SIZES[i % SIZES.length]), i, nativeOut);
+                }
+                report("Foreign mux, native segment", frames, bytes, start);
+            }
+        } finally {
+            foreign.destroy();
+            jni.destroy();
+        }
+    }
+
+    // demux
+    private static void bench(TSConfig config, byte[][] datagrams, int repeats) {
+        ForeignTSHandler foreign = ForeignTSHandler.build(config);
+        TSHandler jni = TSHandler.build(config);
+        AtomicLong received = new AtomicLong();
+        jni.getReceiver().addListener(packet -> received.incrementAndGet());
+        // the foreign handler delivering to a receiver, as the JNI handler does
+        ForeignTSHandler delivering = ForeignTSHandler.build(config);
+        TSReceiver receiver = new TSReceiver();
+        receiver.addListener(packet -> received.incrementAndGet());
+        MemorySegment[] heap = new MemorySegment[datagrams.length];
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment[] segments = new MemorySegment[datagrams.length];
+            for (int i = 0; i < datagrams.length; i++) {
+                heap[i] = MemorySegment.ofArray(datagrams[i]);
+                segments[i] = arena.allocate(datagrams[i].length).copyFrom(heap[i]);
+            }
+            long bytes = 0L;
+            for (byte[] datagram : datagrams) {
+                bytes += (long) repeats * datagram.length;
+            }
+            for (int run = 0; run <= RUNS; run++) {
+                // the first run warms up and checks that every binding demuxed the same frames
+                received.set(0L);
+                long start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    for (byte[] datagram : datagrams) {
+                        jni.demux(datagram);
+                    }
+                }
+                long jniFrames = received.get();
+                if (run > 0) {
+                    report("JNI demux, byte array", jniFrames, bytes, start);
+                }
+                long heapFrames = 0L;
+                start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    for (MemorySegment datagram : heap) {
+                        heapFrames += count(foreign.demux(datagram));
+                    }
+                }
+                if (run > 0) {
+                    report("Foreign demux, heap segment", heapFrames, bytes, start);
+                }
+                long nativeFrames = 0L;
+                start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    for (MemorySegment datagram : segments) {
+                        nativeFrames += count(foreign.demux(datagram));
+                    }
+                }
+                if (run > 0) {
+                    report("Foreign demux, native segment", nativeFrames, bytes, start);
+                }
+                received.set(0L);
+                start = System.nanoTime();
+                for (int r = 0; r < repeats; r++) {
+                    for (MemorySegment datagram : heap) {
+                        delivering.demux(datagram, receiver);
+                    }
+                }
+                long deliveredFrames = received.get();
+                if (run > 0) {
+                    report("Foreign demux to receiver, heap segment", deliveredFrames, bytes, start);
+                } else if (jniFrames != heapFrames || jniFrames != nativeFrames || jniFrames != deliveredFrames) {
+                    System.out.printf("Bindings differ, frames JNI: %d heap: %d native: %d receiver: %d%n", jniFrames, heapFrames, nativeFrames, deliveredFrames);
+                }
+            }
+        } finally {
+            foreign.destroy();
+            delivering.destroy();
+            jni.destroy();
+        }
+    }
+
+    private static int mux(NativeTSMuxer muxer, ByteBuffer data, int i, ByteBuffer out) {
+        long pts = i * 3000L;
+        boolean video = data.remaining() != 400;
+        return muxer.mux(data, pts, video ? pts - 3000L : pts, video ? (byte) 0x1b : (byte) 0x0f, video ? (short) 256 : (short) 257, video ? (byte) 0xe0 : (byte) 0xc0, data.remaining() == SIZES[0], out);
+    }
+
+    private static int mux(ForeignTSHandler handler, MemorySegment data, int i, MemorySegment out) {
+        long pts = i * 3000L;
+        boolean video = data.byteSize() != 400L;
+        return handler.mux(data, pts, video ? pts - 3000L : pts, video ? (byte) 0x1b : (byte) 0x0f, video ? (short) 256 : (short) 257, video ? (byte) 0xe0 : (byte) 0xc0, data.byteSize() == SIZES[0], out);
+    }
+
+    // counts the frame records
+    private static int count(MemorySegment records) {
+        int frames = 0;
+        for (long offset = 0L, size = records.byteSize(); offset < size; frames++) {
+            offset = ForeignTSHandler.next(offset, records.get(JAVA_INT, offset + ForeignTSHandler.LENGTH_OFFSET));
+        }
+        return frames;
+    }
+
+    // one run of the frame pattern muxed and cut into datagrams
+    private static byte[][] stream(TSConfig config, byte[] input) {
+        ForeignTSHandler muxer = ForeignTSHandler.build(config);
+        MemorySegment data = MemorySegment.ofArray(input);
+        byte[] out = new byte[(SIZES.length + 1) * (int) MuxBatch.maxEncodedSize(input.length)];
+        int length = 0;
+        // and the keyframe of the next run, which completes the last frame of this one
+        for (int i = 0; i <= SIZES.length; i++) {
+            length += mux(muxer, data.asSlice(0L, SIZES[i % SIZES.length]), i, MemorySegment.ofArray(out).asSlice(length));
+        }
+        muxer.destroy();
+        byte[][] datagrams = new byte[(length + DATAGRAM_SIZE - 1) / DATAGRAM_SIZE][];
+        for (int i = 0; i < datagrams.length; i++) {
+            datagrams[i] = Arrays.copyOfRange(out, i * DATAGRAM_SIZE, Math.min(length, (i + 1) * DATAGRAM_SIZE));
+        }
+        return datagrams;
+    }
+
+    private static void report(String binding, long frames, long bytes, long start) {
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%s: %.0f ns/frame, %.1f MB/s%n", binding, (double) elapsed / Math.max(1L, frames), bytes * 1000d / elapsed);
+    }
+
+}
@@ -0,0 +1,202 @@
+package org.red5.mpeg.foreign;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.red5.mpeg.Main;
+import org.red5.mpeg.TSConfig;
+import org.red5.mpeg.TSReceiver;
+
+/**
+ * Muxes and demuxes via the native library bound with the foreign function and memory api, as an alternative to the JNI
+ * bound {@link org.red5.mpeg.TSHandler}. Data is passed as memory segments, heap or native, which the native side reads
+ * and writes in place; the calls are critical, so heap segments are neither copied nor pinned one region at a time.
+ * <br>
+ * Nothing calls back into java: demuxed frames are left in a result arena owned by the native handler, a run of frame
+ * records each made of the pts and dts as longs, the type id, flags, length and a reserved int, followed by the frame
+ * padded to 8 bytes. The arena is reused, so the segment returned by {@link #demux(MemorySegment)} is only valid until the
+ * next call on the handler, and like the JNI handler a handler is to be used from one thread at a time.
+ * <br>
+ * Requires JDK 22 or later, run with <pre>--enable-native-access=ALL-UNNAMED</pre> to avoid the restricted method warnings.
+ *
+ * @author Paul Gregoire
+ */
+public class ForeignTSHandler {
+
+    private static Logger log = LoggerFactory.getLogger(ForeignTSHandler.class);
+
+    // frame record layout in the result arena
+    public static final int RECORD_SIZE = 32;
+
+    public static final long PTS_OFFSET = 0L;
+
+    public static final long DTS_OFFSET = 8L;
+
+    public static final long TYPE_ID_OFFSET = 16L;
+
+    public static final long FLAGS_OFFSET = 20L;
+
+    public static final long LENGTH_OFFSET = 24L;
+
+    private static final MethodHandle create, demux, mux, nativeMemory, destroy;
+
+    static {
+        Main.loadLibrary();
+        Linker linker = Linker.nativeLinker();
+        SymbolLookup lookup = SymbolLookup.loaderLookup();
+        // none of these call back into java, so heap segments may be passed straight through
+        Linker.Option critical = Linker.Option.critical(true);
+        create = linker.downcallHandle(lookup.findOrThrow("r5mpeg_create"), FunctionDescriptor.of(JAVA_LONG, JAVA_SHORT, JAVA_SHORT, JAVA_SHORT, JAVA_BYTE, JAVA_BYTE));
+        demux = linker.downcallHandle(lookup.findOrThrow("r5mpeg_demux"), FunctionDescriptor.of(JAVA_INT, JAVA_LONG, ADDRESS, JAVA_INT, ADDRESS), critical);
+        mux = linker.downcallHandle(lookup.findOrThrow("r5mpeg_mux"), FunctionDescriptor.of(JAVA_INT, JAVA_LONG, ADDRESS, JAVA_INT, JAVA_LONG, JAVA_LONG, JAVA_BYTE, JAVA_SHORT, JAVA_BYTE, JAVA_BYTE, ADDRESS, JAVA_INT), critical);
+        nativeMemory = linker.downcallHandle(lookup.findOrThrow("r5mpeg_native_memory"), FunctionDescriptor.of(JAVA_LONG, JAVA_LONG), critical);
+        destroy = linker.downcallHandle(lookup.findOrThrow("r5mpeg_destroy"), FunctionDescriptor.ofVoid(JAVA_LONG));
+    }
+
+    private final long handlerId;
+
+    private final TSConfig config;
+
+    // receives the address of the result arena
+    private final MemorySegment results = Arena.ofAuto().allocate(ADDRESS);
+
+    private ForeignTSHandler(long handlerId, TSConfig config) {
+        this.handlerId = handlerId;
+        this.config = config;
+    }
+
+    /**
+     * Demux TS data. The frames completed by it are returned as frame records.
+     *
+     * @param data
+     * @return frame records, valid until the next call on the handler
+     */
+    public MemorySegment demux(MemorySegment data) {
+        int count;
+        try {
+            count = (int) demux.invokeExact(handlerId, data, (int) data.byteSize(), results);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        if (count <= 0) {
+            return MemorySegment.NULL;
+        }
+        return results.get(ADDRESS, 0L).reinterpret(count);
+    }
+
+    /**
+     * Demux TS data, handing the frames completed by it to a receiver as the JNI handler does.
+     *
+     * @param data
+     * @param receiver
+     * @return number of frames
+     */
+    public int demux(MemorySegment data, TSReceiver receiver) {
+        MemorySegment records = demux(data);
+        int frames = 0;
+        for (long offset = 0L, size = records.byteSize(); offset < size; frames++) {
+            int length = records.get(JAVA_INT, offset + LENGTH_OFFSET);
+            ByteBuffer staging = receiver.stagingBuffer(length);
+            MemorySegment.copy(records, offset + RECORD_SIZE, MemorySegment.ofBuffer(staging.clear()), 0L, length);
+            receiver.receiveFrame(records.get(JAVA_LONG, offset + PTS_OFFSET), records.get(JAVA_LONG, offset + DTS_OFFSET), records.get(JAVA_INT, offset + TYPE_ID_OFFSET), records.get(JAVA_INT, offset + FLAGS_OFFSET), length);
+            offset = next(offset, length);
+        }
+        return frames;
+    }
+
+    /**
+     * Mux a frame, writing its packets, led by the PAT and PMT when they are due, to the start of the output.
+     *
+     * @param data
+     * @param pts presentation timestamp
+     * @param dts decode timestamp
+     * @param type stream type
+     * @param pid
+     * @param streamId
+     * @param randomAccess
+     * @param out with room for {@link org.red5.mpeg.MuxBatch#maxEncodedSize(int)} bytes
+     * @return bytes written or -1 if the output may be too small
+     */
+    public int mux(MemorySegment data, long pts, long dts, byte type, short pid, byte streamId, boolean randomAccess, MemorySegment out) {
+        try {
+            return (int) mux.invokeExact(handlerId, data, (int) data.byteSize(), pts, dts, type, pid, streamId, (byte) (randomAccess ? 1 : 0), out, (int) Math.min(out.byteSize(), Integer.MAX_VALUE));
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Returns the bytes of native memory held by the handler, including its result arena.
+     *
+     * @return bytes
+     */
+    public long getNativeMemory() {
+        try {
+            return (long) nativeMemory.invokeExact(handlerId);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Destroys the handler; any result arena is released with it.
+     */
+    public void destroy() {
+        try {
+            destroy.invokeExact(handlerId);
+        } catch (Throwable t) {
+            log.warn("Exception destroying handler {}", handlerId, t);
+        }
+    }
+
+    /**
+     * Returns the offset of the record following the one at the given offset.
+     *
+     * @param offset
+     * @param length frame length of the record
+     * @return offset
+     */
+    public static long next(long offset, int length) {
+        return offset + RECORD_SIZE + ((length + 7L) & ~7L);
+    }
+
+    public long getId() {
+        return handlerId;
+    }
+
+    public TSConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Builder for a new handler; the pids and stream types are taken from the config.
+     *
+     * @param config
+     * @return ForeignTSHandler if no errors occur, otherwise return null
+     */
+    public static ForeignTSHandler build(TSConfig config) {
+        long handlerId;
+        try {
+            handlerId = (long) create.invokeExact(config.pmtPid, config.audioPid, config.videoPid, config.audioStreamType, config.videoStreamType);
+        } catch (Throwable t) {
+            log.warn("Exception creating handler", t);
+            return null;
+        }
+        return handlerId > 0 ? new ForeignTSHandler(handlerId, config) : null;
+    }
+
+}
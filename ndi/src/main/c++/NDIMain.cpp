@@ -68,13 +68,13 @@ extern "C" {
         while (audioIndex < buf_size) {
             // break the samples into seconds
             if (pts % 1000 == 0 && audioIndex < buf_size) {
-                std::vector<uint16_t> audioVector(&samples[audioIndex], &samples[audioIndex + audioChunkSize]);
-                sender->sendAudio(audioVector);
+                sender->sendAudio((int16_t *) &samples[audioIndex], audioChunkSize);
                 audioIndex += audioChunkSize;
             }
             pts += 48000 / 60;
             std::this_thread::sleep_for(std::chrono::milliseconds(16)); // sleep for 16ms ~60Hz
         }
+        delete[] samples;
     }
 
     /**
@@ -88,7 +88,7 @@ extern "C" {
         for (int i = 0; i < 787; ++i) {
             std::vector<uint8_t> videoVector = getFrameData(i + 1);
             std::cout << "SendFrame > " << videoVector.size() << " pts " << pts << std::endl;
-            sender->sendData(videoVector, 1);
+            sender->sendData(videoVector.data(), videoVector.size(), 1);
             pts += 90000 / 60; // fake a pts of 60Hz. FYI.. the codestream is 23.98 (I and P only)
             std::this_thread::sleep_for(std::chrono::milliseconds(16)); // sleep for 16ms ~60Hz
         }
@@ -184,7 +184,7 @@ extern "C" {
             sender->debug = true;
             std::cout << "Calling start on id: " << id << std::endl;
             // config for NDI
-            config_t *ndiConfig = (config_t*) malloc(sizeof(config_t));
+            config_t *ndiConfig = new config_t();
             ndiConfig->ndiName = "NDI Test Source";
             ndiConfig->xres = 640;
             ndiConfig->yres = 480;
@@ -192,6 +192,7 @@ extern "C" {
             ndiConfig->no_channels = 1;
             // runs the test sender above
             maininator.start(sender, ndiConfig); // this blocks
+            delete ndiConfig;
             //maininator.stop(sender);
             // remove from the context
             ndi_ctx.removeSender(id);
@@ -18,37 +18,42 @@ extern "C" {
     }
 
     // send typed data from bytes
-    void NDISender::sendData(std::vector<uint8_t> sendVector, int dataType) {
+    void NDISender::sendData(uint8_t *data, size_t data_len, int dataType) {
         // set up a frame for the data and send based on type
         if (dataType == 1) { // video
-            std::cout << "Send video " << NDI_video_frame.xres << "x" << NDI_video_frame.yres << " stride: " << NDI_video_frame.line_stride_in_bytes << " rate: " << NDI_video_frame.frame_rate_N << "/" << NDI_video_frame.frame_rate_D << " fourCC: " << NDI_video_frame.FourCC << " size: " << sendVector.size() << std::endl;
-            NDI_video_frame.p_data = sendVector.data();
+            std::cout << "Send video " << NDI_video_frame.xres << "x" << NDI_video_frame.yres << " stride: " << NDI_video_frame.line_stride_in_bytes << " rate: " << NDI_video_frame.frame_rate_N << "/" << NDI_video_frame.frame_rate_D << " fourCC: " << NDI_video_frame.FourCC << " size: " << data_len << std::endl;
+            NDI_video_frame.p_data = data;
             // stride is simple in yuv420p as its the width of the frame
             NDI_video_frame.line_stride_in_bytes = NDI_video_frame.xres;
             //std::cout << "Stride: " << NDI_video_frame.line_stride_in_bytes << " size: " << NDI_video_frame.data_size_in_bytes << std::endl;
             NDIlib_send_send_video_v2(ndiSender, &NDI_video_frame);
         } else if (dataType == 2) { // audio
-            std::cout << "Send audio " << NDI_audio_frame.sample_rate << "@" << NDI_audio_frame.no_channels << " size: " << sendVector.size() << std::endl;
+            std::cout << "Send audio " << NDI_audio_frame.sample_rate << "@" << NDI_audio_frame.no_channels << " size: " << data_len << std::endl;
             // XXX if we end-up sending audio via byte array here, we'd have to convert them to floats or shorts
         } else if (dataType == 3) { // metadata
-            NDIlib_metadata_frame_t* p_metadata;
-            //p_metadata->p_data = "<CAPTION service=\"1\" action=\"create\" standard=\"C708\" ><div id=\"0\" style=\"width:24%;height:6%;top:93%;left:30%;visibility:visible;z-index:7;text-align:left;\"><span>Hello World!</span></div></CAPTION>\0";
-            p_metadata->p_data = (char *) sendVector.data();
-            NDIlib_send_send_metadata(ndiSender, p_metadata);
+            NDIlib_metadata_frame_t metadata;
+            //metadata.p_data = "<CAPTION service=\"1\" action=\"create\" standard=\"C708\" ><div id=\"0\" style=\"width:24%;height:6%;top:93%;left:30%;visibility:visible;z-index:7;text-align:left;\"><span>Hello World!</span></div></CAPTION>\0";
+            // null terminated by the caller
+            metadata.p_data = (char *) data;
+            NDIlib_send_send_metadata(ndiSender, &metadata);
         }
         // TODO fill in the reset of the types
     }
 
     // send audio from shorts
-    void NDISender::sendAudio(std::vector<uint16_t> sendVector) {
+    void NDISender::sendAudio(int16_t *samples, size_t sample_count) {
         // audio
-        std::cout << "Send audio " << NDI_audio_frame.sample_rate << "@" << NDI_audio_frame.no_channels << " size: " << sendVector.size() << std::endl;
-        // should automagically cast?
-        NDI_audio_frame.p_data = (int16_t *) sendVector.data();
-        NDI_audio_frame.no_samples = sendVector.size();
+        std::cout << "Send audio " << NDI_audio_frame.sample_rate << "@" << NDI_audio_frame.no_channels << " size: " << sample_count << std::endl;
+        NDI_audio_frame.p_data = samples;
+        NDI_audio_frame.no_samples = sample_count;
         NDIlib_util_send_send_audio_interleaved_16s(ndiSender, &NDI_audio_frame);
     }
 
+    // bytes of native memory held by the sender and its scratch buffers
+    size_t NDISender::nativeMemory() {
+        return sizeof(NDISender) + videoScratch.capacity() + metadataScratch.capacity() + audioScratch.capacity() * sizeof(int16_t);
+    }
+
     // handle / dispatch the data received
     void NDISender::recvData(uint8_t *data, size_t data_len) {
         std::cout << "Received size " << data_len << std::endl;
@@ -96,15 +101,16 @@ extern "C" {
         std::cout << "Starting sender: " << id << std::endl;
         NDISender *sender = ndi_ctx.getSender(id);
         if (sender != 0) {
-            // config for NDI from the incoming java config
-            config_t *ndiConfig = (config_t*) malloc(sizeof(config_t));
+            // config for NDI from the incoming java config, new rather than malloc so the defaults are set
+            config_t *ndiConfig = new config_t();
             // get the configuration class
             jclass class_Config = env->GetObjectClass(config);
             /// name
             jstring strname = (jstring) env->CallObjectMethod(config, env->GetMethodID(class_Config, "getName", "()Ljava/lang/String;"));
-            char *name = new char[128];
-            jsize jlen = env->GetStringLength(strname);
-            env->GetStringUTFRegion(strname, 0, jlen, name);
+            jsize utfLength = env->GetStringUTFLength(strname);
+            char *name = new char[utfLength + 1];
+            env->GetStringUTFRegion(strname, 0, env->GetStringLength(strname), name);
+            name[utfLength] = '\0';
             ndiConfig->ndiName = name;
             /// width / height
             int width = (int) env->GetIntField(config, env->GetFieldID(class_Config, "width", "I"));
@@ -140,6 +146,9 @@ extern "C" {
             sender->receiverClass = reinterpret_cast<jclass>(env->NewGlobalRef(receiverClass));
             // enter the blocking accept logic
             maininator.start(sender, ndiConfig);
+            // the name was copied by NDI when the source was created
+            delete[] name;
+            delete ndiConfig;
         } else {
             std::cerr << "Failed to locate server" << std::endl;
         }
@@ -157,13 +166,19 @@ extern "C" {
         int wrote = 0;
         NDISender *sender = ndi_ctx.getSender(id);
         if (sender != 0) {
-            // package the bytes
+            // only video and metadata are sent from bytes, audio goes through sendAudio
+            if (dataType != 1 && dataType != 3) {
+                std::cerr << "Unsupported type for bytes: " << dataType << std::endl;
+                return 0;
+            }
+            // copy the bytes into the senders scratch for the type, null terminated for metadata
             jsize buf_len = env->GetArrayLength(data);
-            jbyte* buf = (jbyte*) malloc(buf_len);
-            env->GetByteArrayRegion(data, 0, buf_len, buf);
+            std::vector<uint8_t> &scratch = dataType == 3 ? sender->metadataScratch : sender->videoScratch;
+            scratch.resize(buf_len + 1);
+            env->GetByteArrayRegion(data, 0, buf_len, (jbyte *) scratch.data());
+            scratch[buf_len] = 0;
             // send the data
-            std::vector<uint8_t> sendVector(&buf[0], &buf[buf_len]);
-            sender->sendData(sendVector, dataType);
+            sender->sendData(scratch.data(), buf_len, dataType);
             // how many bytes did we send out...
             wrote = buf_len;
         }
@@ -181,13 +196,12 @@ extern "C" {
         int wrote = 0;
         NDISender *sender = ndi_ctx.getSender(id);
         if (sender != 0) {
-            // package the shorts
+            // copy the shorts into the senders scratch
             jsize buf_len = env->GetArrayLength(data);
-            jshort* buf = (jshort*) malloc(buf_len);
-            env->GetShortArrayRegion(data, 0, buf_len, buf);
+            sender->audioScratch.resize(buf_len);
+            env->GetShortArrayRegion(data, 0, buf_len, (jshort *) sender->audioScratch.data());
             // send the data
-            std::vector<uint16_t> sendVector(&buf[0], &buf[buf_len]);
-            sender->sendAudio(sendVector);
+            sender->sendAudio(sender->audioScratch.data(), buf_len);
             // how many bytes did we send out...
             wrote = buf_len;
         }
@@ -205,19 +219,29 @@ extern "C" {
         int wrote = 0;
         NDISender *sender = ndi_ctx.getSender(id);
         if (sender != 0) {
-            // package the bytes
+            // copy the bytes into the senders scratch
             jsize buf_len = env->GetArrayLength(data);
-            jbyte* buf = (jbyte*) malloc(buf_len);
-            env->GetByteArrayRegion(data, 0, buf_len, buf);
+            sender->videoScratch.resize(buf_len);
+            env->GetByteArrayRegion(data, 0, buf_len, (jbyte *) sender->videoScratch.data());
             // send the data
-            std::vector<uint8_t> sendVector(&buf[0], &buf[buf_len]);
-            sender->sendData(sendVector, 1);
+            sender->sendData(sender->videoScratch.data(), buf_len, 1);
             // how many bytes did we send out...
             wrote = buf_len;
         }
         return wrote;
     }
 
+    /**
+     * Returns the bytes of native memory held by the sender and its scratch buffers.
+     * 
+     * @param id sender id
+     * @return bytes or 0 if there is no such sender
+     */
+    JNIEXPORT jlong JNICALL Java_org_red5_ndi_NDISender_getNativeMemory(JNIEnv *env, jclass clazz, jlong id) {
+        NDISender *sender = ndi_ctx.getSender(id);
+        return sender != 0 ? (jlong) sender->nativeMemory() : 0L;
+    }
+
     JNIEXPORT void JNICALL Java_org_red5_ndi_NDISender_stop(JNIEnv *env, jclass clazz, jlong id) {
         std::cout << "Stopping NDI sender: " << id << std::endl;
         NDISender *sender = ndi_ctx.getSender(id);
@@ -31,7 +31,7 @@
 // all the fields needed to configure the sender
 typedef struct config_t {
     // identifier for the NDI instance (ex. stream name)
-    const char* ndiName;
+    const char* ndiName = nullptr;
     // audio
     // sample-rate
 	int sample_rate = 48000;
@@ -43,10 +43,10 @@ typedef struct config_t {
     NDIlib_FourCC_video_type_e fourCC = (NDIlib_FourCC_video_type_e) NDI_LIB_FOURCC('I', '4', '2', '0');
     //NDIlib_FourCC_video_type_e fourCC = NDIlib_FourCC_video_type_UYVY;
   	// frame-rate ex. NTSC is 30000,1001 = 30000/1001 = 29.97fps
-	int frame_rate_N, frame_rate_D;
+	int frame_rate_N = 30000, frame_rate_D = 1001;
     // picture aspect ratio ex. 16.0/9.0 = 1.778 is 16:9 video
 	// 0 means square pixels
-	float picture_aspect_ratio;
+	float picture_aspect_ratio = 0.f;
 } config_t;
 
 // for stopping the main()
@@ -56,8 +56,8 @@ static void sigint_handler(int) {
     exit_loop = true;
 }
 
-// global static reference for the JVM
-static JavaVM *jvm;
+// global reference for the JVM, one for all translation units
+inline JavaVM *jvm;
 
 /**
  * Sender implementation, sending out data via NDI.
@@ -70,6 +70,11 @@ class NDISender {
         //NDIlib_audio_frame_v2_t NDI_audio_frame; // floats
         NDIlib_audio_frame_interleaved_16s_t NDI_audio_frame; // shorts
         NDIlib_video_frame_v2_t NDI_video_frame;
+        // the java arrays are copied into these for sending, one per type as they're sent from different threads; each
+        // is reset on every call and reused, so it only grows to the largest frame
+        std::vector<uint8_t> videoScratch;
+        std::vector<uint8_t> metadataScratch;
+        std::vector<int16_t> audioScratch;
         // receiver
         jobject receiver;
         jclass receiverClass;
@@ -94,15 +99,15 @@ class NDISender {
                     env->DeleteGlobalRef(receiverClass);
                 }
             } catch(...) {};
-            // Free the frame holders
-            free((void*) NDI_video_frame.p_data);
-            free((void*) NDI_audio_frame.p_data);
+            // the frame holders point into the scratch buffers, which go with the sender
             std::cout << "freed sender: " << selfId << std::endl;
         };
 
-        void sendData(std::vector<uint8_t> sendVector, int dataType);
+        void sendData(uint8_t *data, size_t data_len, int dataType);
 
-        void sendAudio(std::vector<uint16_t> sendVector);
+        void sendAudio(int16_t *samples, size_t sample_count);
+
+        size_t nativeMemory();
 
         void recvData(uint8_t *data, size_t data_len);
 
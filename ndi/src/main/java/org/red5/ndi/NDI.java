@@ -1,19 +1,30 @@
 package org.red5.ndi;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +51,9 @@ public class NDI {
     // static atomic loaded flag
     private static final AtomicBoolean loaded = new AtomicBoolean(false);
 
+    // extracted libraries are readable by the other accounts sharing lib, as they were before extraction went via temp files
+    private static final Set<PosixFilePermission> LIBRARY_PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+
     // collect the arch and name just once and reuse x times
     private static final String ao = System.getProperty("os.arch") + "-" + System.getProperty("os.name").replaceAll(" ", "");
 
@@ -103,8 +117,9 @@ public class NDI {
                                 try {
                                     if (file.exists()) {
                                         log.debug("Can read: {} execute: {}", file.canRead(), file.canExecute());
+                                        long start = System.nanoTime();
                                         System.load(file.getAbsolutePath());
-                                        log.info("Library loaded: {}", filePath);
+                                        log.info("Library loaded: {} in {}us", filePath, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
                                     } else {
                                         throw new Exception("File not found: " + filePath);
                                     }
@@ -148,9 +163,10 @@ public class NDI {
             // try if the library is on the configured library path
             if (ndiPath != null) {
                 log.debug("Load library: {}", ndiPath);
+                long start = System.nanoTime();
                 try {
                     System.load(ndiPath);
-                    log.info("Red5 NDI library loaded");
+                    log.info("Red5 NDI library loaded in {}us", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
                 } catch (Exception e) {
                     log.warn("Exception loading: {}", ndiPath, e);
                     return;
@@ -183,77 +199,98 @@ public class NDI {
     }
 
     /**
-     * Extracts / deploys the shared libraries to the native library directory.
+     * Extracts / deploys the shared libraries to the native library directory. Libraries go into a sub-directory named
+     * for a digest of the jars library entries, taken from their names, sizes and checksums in the zip directory, so a
+     * directory only ever holds one build of them. Libraries already there are reused; any others are written to a
+     * temporary file and renamed into place, so a concurrent loader never sees a partial file.
      *
      * @param jarPath
      * @throws Exception
      */
     private static void extractShared(final String jarPath) throws Exception {
-        ZipInputStream zis = null;
-        try {
-            zis = new ZipInputStream(Files.newInputStream(Paths.get(jarPath)));
-            ZipEntry entry = null;
-            while ((entry = zis.getNextEntry()) != null) {
+        long start = System.nanoTime();
+        try (ZipFile jar = new ZipFile(jarPath)) {
+            List<ZipEntry> libraries = new ArrayList<>();
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Enumeration<? extends ZipEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String[] parts = entry.getName().split("/");
+                // ensure we're in the lib directory in the jar and its for our aol
+                if (parts.length == 4 && "lib".equals(parts[0]) && osDescriptor.indexOf(parts[1]) != -1 && !entry.isDirectory()) {
+                    log.debug("Entry: {}", entry.getName());
+                    libraries.add(entry);
+                    digest.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+                    digest.update(ByteBuffer.allocate(16).putLong(entry.getSize()).putLong(entry.getCrc()).array());
+                }
+            }
+            StringBuilder key = new StringBuilder();
+            for (byte b : Arrays.copyOf(digest.digest(), 8)) {
+                key.append(String.format("%02x", b & 0xff));
+            }
+            Path jniDirectoryPath = Paths.get("lib", "ndi", key.toString()).toAbsolutePath();
+            Files.createDirectories(jniDirectoryPath);
+            log.debug("Library directory: {} digest took {}us", jniDirectoryPath, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            int extracted = 0;
+            for (ZipEntry entry : libraries) {
                 String entryName = entry.getName();
-                log.debug("Entry: {}", entryName);
-                String[] parts = entryName.split("/");
-                log.debug("Parts: {}", Arrays.toString(parts));
-                // ensure we're in the lib directory in the jar
-                if ("lib".equals(parts[0])) {
-                    if (parts.length == 4) {
-                        // check for our aol
-                        String aol = parts[1];
-                        if (osDescriptor.indexOf(aol) != -1) {
-                            log.debug("Extracting: {}", aol);
-                            // ensure the destination directory exists and if not create it
-                            Path jniDirectoryPath = Paths.get("lib", "ndi");
-                            if (!Files.exists(jniDirectoryPath)) {
-                                log.debug("Creating directory for native libs: {}", jniDirectoryPath);
-                                Files.createDirectories(jniDirectoryPath);
-                            }
-                            // check the size since we dont want broken links (linux only issue)
-                            if (!entry.isDirectory()) {
-                                String libraryFileName = parts[parts.length - 1];
-                                String filePath = String.format("%s%s%s", jniDirectoryPath.toAbsolutePath(), File.separatorChar, libraryFileName);
-                                log.debug("Extract {} to {}", libraryFileName, filePath);
-                                extractFile(zis, filePath);
-                                zis.closeEntry();
-                                if (forceLoad) {
-                                    log.info("Storing library path for forced loading: {}", filePath);
-                                    if (forcedLoadPaths == null) {
-                                        forcedLoadPaths = new ArrayList<>();
-                                    }
-                                    forcedLoadPaths.add(filePath);
-                                }
-                            } else {
-                                log.debug("Skipping directory");
-                            }
-                        }
+                Path filePath = jniDirectoryPath.resolve(entryName.substring(entryName.lastIndexOf('/') + 1));
+                if (Files.isRegularFile(filePath) && Files.size(filePath) == entry.getSize()) {
+                    log.debug("Reusing {}", filePath);
+                } else {
+                    long extractStart = System.nanoTime();
+                    extractFile(jar, entry, filePath);
+                    extracted++;
+                    log.debug("Extracted {} to {} in {}us", entryName, filePath, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - extractStart));
+                }
+                if (forceLoad) {
+                    log.info("Storing library path for forced loading: {}", filePath);
+                    if (forcedLoadPaths == null) {
+                        forcedLoadPaths = new ArrayList<>();
                     }
+                    forcedLoadPaths.add(filePath.toString());
                 }
             }
-        } finally {
-            if (zis != null) {
-                zis.close();
-            }
+            log.info("Libraries ready in {}us, {} of {} extracted", TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), extracted, libraries.size());
         }
     }
 
     /**
-     * Extracts a zip entry (file entry).
+     * Extracts a zip entry (file entry) via a temporary file in the same directory, which is then moved into place. If a
+     * complete copy is already in place, such as one extracted by another webapp at the same time, it is kept.
      * 
-     * @param zipIn
+     * @param jar
+     * @param entry
      * @param filePath
      * @throws IOException
      */
-    private static void extractFile(ZipInputStream zipIn, String filePath) throws IOException {
-        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(filePath));
-        byte[] bytesIn = new byte[4096];
-        int read = 0;
-        while ((read = zipIn.read(bytesIn)) != -1) {
-            bos.write(bytesIn, 0, read);
+    private static void extractFile(ZipFile jar, ZipEntry entry, Path filePath) throws IOException {
+        Path tmpPath = Files.createTempFile(filePath.getParent(), filePath.getFileName().toString(), ".tmp");
+        try {
+            try (InputStream in = jar.getInputStream(entry)) {
+                Files.copy(in, tmpPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            // temp files are created owner only and the move keeps that
+            if (Files.getFileAttributeView(tmpPath, PosixFileAttributeView.class) != null) {
+                Files.setPosixFilePermissions(tmpPath, LIBRARY_PERMISSIONS);
+            }
+            try {
+                // no replacing, on windows that fails for a library another loader already has open
+                Files.move(tmpPath, filePath);
+            } catch (FileAlreadyExistsException | AccessDeniedException e) {
+                if (Files.isRegularFile(filePath) && Files.size(filePath) == entry.getSize()) {
+                    // a racing loader moved its copy into place first
+                    log.debug("{} was extracted concurrently", filePath);
+                } else if (e instanceof FileAlreadyExistsException) {
+                    // left over from an interrupted extraction
+                    Files.move(tmpPath, filePath, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    throw e;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(tmpPath);
         }
-        bos.close();
     }
 
     public static void setForceLoad(boolean forceLoad) {
@@ -281,15 +318,10 @@ public class NDI {
             // get the receiver thread
             Thread recv = new Thread(() -> {
                 do {
-                    NDIPacket pkt = receiver.getNext();
+                    // wait for the next packet instead of sleeping between polls
+                    NDIPacket pkt = receiver.getNext(10L, TimeUnit.MILLISECONDS);
                     if (pkt != null) {
                         log.info("Sender received: {}", pkt);
-                    } else {
-                        try {
-                            Thread.sleep(10L);
-                        } catch (Exception e) {
-                            // no op
-                        }
                     }
                 } while (debug);
             }, "ReceiveHandler");
@@ -25,6 +25,13 @@ public class NDIConfig {
     // used for connection identification
     public int connectionId;
 
+    // receiver queue options
+    public int queueCapacity = NDIReceiver.DEFAULT_CAPACITY;
+
+    public PacketRing.WaitStrategy waitStrategy = PacketRing.WaitStrategy.PARK;
+
+    public PacketRing.OverflowPolicy overflowPolicy = PacketRing.OverflowPolicy.DROP_OLDEST;
+
     public String getName() {
         return name;
     }
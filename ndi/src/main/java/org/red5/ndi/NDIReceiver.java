@@ -2,7 +2,11 @@ package org.red5.ndi;
 
 import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.red5.ndi.PacketRing.OverflowPolicy;
+import org.red5.ndi.PacketRing.WaitStrategy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,10 +17,26 @@ public class NDIReceiver {
 
     private static boolean isTrace = log.isTraceEnabled();
 
+    // default bound on queued packets
+    public static final int DEFAULT_CAPACITY = 1024;
+
     // storage of incoming packets
-    private final ConcurrentLinkedDeque<NDIPacket> packets = new ConcurrentLinkedDeque<>();
+    private final PacketRing<NDIPacket> packets;
 
     public NDIReceiver() {
+        this(DEFAULT_CAPACITY, WaitStrategy.PARK, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Creates a receiver with a bounded packet queue.
+     * 
+     * @param capacity maximum queued packets, rounded up to a power of two
+     * @param waitStrategy how consumers wait in {@link #getNext(long, TimeUnit)}
+     * @param overflowPolicy what to do with packets arriving while the queue is full
+     */
+    public NDIReceiver(int capacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy) {
+        // ndi packets carry no keyframe indication
+        packets = new PacketRing<>(capacity, waitStrategy, overflowPolicy, null);
     }
 
     /**
@@ -30,7 +50,7 @@ public class NDIReceiver {
             log.trace("receive {}", new String(data));
         }
         // construct a packet and store it in the packet deque; a client id of 0 is defaulted to for client instances
-        packets.offer(NDIPacket.build(System.currentTimeMillis(), data));
+        packets.put(NDIPacket.build(System.currentTimeMillis(), data));
     }
 
     /**
@@ -43,7 +63,7 @@ public class NDIReceiver {
             log.trace("receive {}", Arrays.toString(data));
         }
         // construct a packet and store it in the packet deque
-        packets.offer(NDIPacket.build(System.currentTimeMillis(), data));
+        packets.put(NDIPacket.build(System.currentTimeMillis(), data));
     }
 
     /**
@@ -52,7 +72,28 @@ public class NDIReceiver {
      * @return next packet if it exists or null if deque is empty
      */
     public NDIPacket getNext() {
-        return packets != null ? packets.poll() : null;
+        return packets.poll();
+    }
+
+    /**
+     * Returns the next packet, waiting up to the given time for one to arrive.
+     * 
+     * @param timeout
+     * @param unit
+     * @return next packet or null if none arrived in time
+     */
+    public NDIPacket getNext(long timeout, TimeUnit unit) {
+        return packets.poll(timeout, unit);
+    }
+
+    /**
+     * Hands all the current packets to the consumer in-order; this is destructive and will clear the existing packets.
+     * 
+     * @param consumer
+     * @return number of packets drained
+     */
+    public int drainTo(Consumer<NDIPacket> consumer) {
+        return packets.drainTo(consumer);
     }
 
     /**
@@ -62,11 +103,28 @@ public class NDIReceiver {
      */
     public LinkedList<NDIPacket> drain() {
         // create a list with all the current packets in-order
-        LinkedList<NDIPacket> list = new LinkedList<>(Arrays.asList(packets.toArray(new NDIPacket[0])));
-        // clear the list
-        packets.clear();
+        LinkedList<NDIPacket> list = new LinkedList<>();
+        packets.drainTo(list::add);
         // return the packets
         return list;
     }
 
+    /**
+     * Returns the number of queued packets.
+     * 
+     * @return depth
+     */
+    public int getDepth() {
+        return packets.size();
+    }
+
+    /**
+     * Returns the number of packets dropped due to a full queue.
+     * 
+     * @return dropped count
+     */
+    public long getDropped() {
+        return packets.getDropped();
+    }
+
 }
\ No newline at end of file
@@ -69,6 +69,14 @@ public class NDISender {
      */
     private native int sendVideo(long id, byte[] data);
 
+    /**
+     * Returns the bytes of native memory held by the sender matching the given id.
+     * 
+     * @param id sender id
+     * @return bytes
+     */
+    private native long getNativeMemory(long id);
+
     /**
      * Stops the sender matching the given id.
      * 
@@ -111,6 +119,16 @@ public class NDISender {
         return sendAudio(senderId, data);
     }
 
+    /**
+     * Returns the bytes of native memory held by the sender; the arrays sent are copied into scratch buffers which are
+     * reused from call to call, so this only grows to the largest frame sent.
+     * 
+     * @return bytes
+     */
+    public long getNativeMemory() {
+        return getNativeMemory(senderId);
+    }
+
     /**
      * Returns the senders instance id (technically a pointer to its memory location).
      * 
@@ -140,6 +158,7 @@ public class NDISender {
         if (senderId > 0) {
             NDISender sender = new NDISender(senderId);
             sender.config = config;
+            sender.receiver = new NDIReceiver(config.queueCapacity, config.waitStrategy, config.overflowPolicy);
             return sender;
         }
         return null;
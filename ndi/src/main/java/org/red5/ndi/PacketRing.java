@@ -0,0 +1,341 @@
+package org.red5.ndi;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Bounded, array-backed, lock-free ring for handing packets between threads. Each slot carries a sequence number so that
+ * producers and consumers only contend on their own index (multi-producer / multi-consumer safe).
+ * <br>
+ * Waiting consumers (and producers with the BLOCK policy) use the configured wait strategy; with PARK a producer will
+ * unpark a waiting consumer as soon as an item is available.
+ *
+ * @author Paul Gregoire
+ */
+public class PacketRing<T> {
+
+    /**
+     * How a thread waits on the ring.
+     */
+    public enum WaitStrategy {
+        SPIN, YIELD, PARK;
+    }
+
+    /**
+     * What happens when an item is offered to a full ring.
+     */
+    public enum OverflowPolicy {
+        // wait for space
+        BLOCK,
+        // evict the oldest item to make space
+        DROP_OLDEST,
+        // drop the incoming item unless it's a keyframe, in which case the oldest item is evicted
+        DROP_NON_KEYFRAME;
+    }
+
+    // longest a waiting producer will park before checking for space again
+    private static final long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50L);
+
+    private final Object[] items;
+
+    private final AtomicLongArray sequences;
+
+    private final int mask;
+
+    // next slot to be written
+    private final AtomicLong tail = new AtomicLong();
+
+    // next slot to be read
+    private final AtomicLong head = new AtomicLong();
+
+    // items dropped due to overflow
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final WaitStrategy waitStrategy;
+
+    private final OverflowPolicy overflowPolicy;
+
+    // determines whether or not an item is a keyframe for DROP_NON_KEYFRAME
+    private final Predicate<T> keyframe;
+
+    // handed any item that is dropped, allowing it to be recycled
+    private Consumer<T> dropHandler;
+
+    // consumer parked waiting on an item
+    private volatile Thread waitingConsumer;
+
+    // producer parked waiting on space
+    private volatile Thread waitingProducer;
+
+    /**
+     * Creates a ring.
+     *
+     * @param capacity requested capacity, rounded up to a power of two
+     * @param waitStrategy
+     * @param overflowPolicy
+     * @param keyframe keyframe test used with DROP_NON_KEYFRAME; may be null
+     */
+    public PacketRing(int capacity, WaitStrategy waitStrategy, OverflowPolicy overflowPolicy, Predicate<T> keyframe) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        items = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        this.keyframe = keyframe;
+    }
+
+    /**
+     * Offers an item without applying the overflow policy.
+     *
+     * @param item
+     * @return true if stored and false if the ring is full
+     */
+    public boolean offer(T item) {
+        long pos = tail.get();
+        int index;
+        for (;;) {
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        items[index] = item;
+        // a full write, so a consumer publishing itself as waiting either sees the item or is seen here
+        sequences.set(index, pos + 1);
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Adds an item, applying the overflow policy if the ring is full.
+     *
+     * @param item
+     * @return true if stored and false if the item was dropped
+     */
+    public boolean put(T item) {
+        while (!offer(item)) {
+            switch (overflowPolicy) {
+                case BLOCK:
+                    waitForSpace();
+                    break;
+                case DROP_NON_KEYFRAME:
+                    if (keyframe == null || !keyframe.test(item)) {
+                        drop(item);
+                        return false;
+                    }
+                    // keyframes evict the oldest entry
+                    dropOldest();
+                    break;
+                case DROP_OLDEST:
+                    dropOldest();
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next item.
+     *
+     * @return item or null if the ring is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long pos = head.get();
+        int index;
+        for (;;) {
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+        T item = (T) items[index];
+        items[index] = null;
+        // a full write, so a producer publishing itself as waiting either sees the space or is seen here
+        sequences.set(index, pos + mask + 1);
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+        return item;
+    }
+
+    /**
+     * Returns the next item, waiting up to the given time for one to arrive.
+     *
+     * @param timeout
+     * @param unit
+     * @return item or null if none arrived in time
+     */
+    public T poll(long timeout, TimeUnit unit) {
+        T item = poll();
+        if (item == null) {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            long remaining;
+            while ((item = poll()) == null && (remaining = deadline - System.nanoTime()) > 0L) {
+                switch (waitStrategy) {
+                    case SPIN:
+                        break;
+                    case YIELD:
+                        Thread.yield();
+                        break;
+                    case PARK:
+                        waitingConsumer = Thread.currentThread();
+                        // check again now that we're visible to the producers
+                        if ((item = poll()) == null) {
+                            LockSupport.parkNanos(this, remaining);
+                        }
+                        waitingConsumer = null;
+                        if (item != null) {
+                            return item;
+                        }
+                        break;
+                }
+                if (Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Hands every item currently in the ring to the consumer, in order.
+     *
+     * @param consumer
+     * @return number of items drained
+     */
+    public int drainTo(Consumer<? super T> consumer) {
+        return drainTo(consumer, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Hands up to max items to the consumer, in order.
+     *
+     * @param consumer
+     * @param max
+     * @return number of items drained
+     */
+    public int drainTo(Consumer<? super T> consumer, int max) {
+        int count = 0;
+        T item;
+        while (count < max && (item = poll()) != null) {
+            consumer.accept(item);
+            count++;
+        }
+        return count;
+    }
+
+    private void waitForSpace() {
+        switch (waitStrategy) {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                waitingProducer = Thread.currentThread();
+                // check again now that we're visible to the consumers
+                if (size() == items.length) {
+                    LockSupport.parkNanos(this, PRODUCER_PARK_NANOS);
+                }
+                waitingProducer = null;
+                break;
+        }
+    }
+
+    private void dropOldest() {
+        T oldest = poll();
+        if (oldest != null) {
+            drop(oldest);
+        }
+    }
+
+    private void drop(T item) {
+        dropped.incrementAndGet();
+        if (dropHandler != null) {
+            dropHandler.accept(item);
+        }
+    }
+
+    /**
+     * Removes all items from the ring, handing them to the drop handler so they can be recycled.
+     */
+    public void clear() {
+        T item;
+        while ((item = poll()) != null) {
+            if (dropHandler != null) {
+                dropHandler.accept(item);
+            }
+        }
+    }
+
+    public void setDropHandler(Consumer<T> dropHandler) {
+        this.dropHandler = dropHandler;
+    }
+
+    /**
+     * Returns the number of items in the ring.
+     *
+     * @return depth
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0L, Math.min(size, items.length));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int capacity() {
+        return items.length;
+    }
+
+    /**
+     * Returns the number of items dropped due to overflow.
+     *
+     * @return dropped count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+}